@@ -44,11 +44,13 @@ import nu3a.light.N3LightData;
 import nu3a.material.N3Material;
 import nu3a.material.color.N3ColorRGBA;
 import nu3a.material.texture.N3Texture2D;
+import nu3a.math.N3Matrix4D;
 import nu3a.math.N3Vector3D;
 import nu3a.render.N3Render;
 import nu3a.render.software.N3SoftwareRender;
 import nu3a.scene.N3Camera;
 import nu3a.scene.N3GroupNode;
+import nu3a.scene.N3InstancedMesh;
 import nu3a.scene.N3Light;
 import nu3a.scene.N3Scene;
 import nu3a.scene.N3TransformationNode;
@@ -127,7 +129,6 @@ public class SceneTest extends JFrame implements WindowListener, KeyListener, Mo
 		grpScene = new N3GroupNode(scene, "grpScene");
 
 		N3TransformationNode sueloRot = new N3TransformationNode(scene, "sueloRot");
-		N3TransformationNode sueloTrans;
 		sueloRot.rotate(-90.0f, new N3Vector3D(1.0f, 0, 0));
 		sueloRot.update();
 		N3GeometryData g = N3GeometryData.createPlane(0.4f, 0.4f, new N3ColorRGBA(1, 0, 0), false);
@@ -136,16 +137,18 @@ public class SceneTest extends JFrame implements WindowListener, KeyListener, Mo
 		sm.setSpecularColor(new N3ColorRGBA(0, 0, 0), 0.1f);
 		sm.setDiffuseColor(new N3ColorRGBA(1, 0, 0));
 		sm.applyMaterial(true);
+		// Todas las baldosas comparten geometria y material: una sola malla
+		// instanciada
+		N3InstancedMesh baldosas = new N3InstancedMesh(scene, g, "suelo");
+		baldosas.setMaterial(sm);
+		N3Matrix4D m = new N3Matrix4D();
 		for (int i = -5; i < 4; i++)
 			for (int j = -5; j < 4; j++) {
-				sueloTrans = new N3TransformationNode(scene, "sueloTrans" + i + "-" + j);
-				sueloTrans.translate(new N3Vector3D(i * 0.4f, j * 0.4f, 0));
-				sueloTrans.update();
-				suelo = new N3VisualMesh(scene, g, "suelo" + i + "-" + j);
-				suelo.setMaterial(sm);
-				sueloTrans.addChild(suelo);
-				sueloRot.addChild(sueloTrans);
+				m.translate(new N3Vector3D(i * 0.4f, j * 0.4f, 0));
+				baldosas.addInstance(m);
 			}
+		suelo = baldosas;
+		sueloRot.addChild(suelo);
 
 		cubeTrans = new N3TransformationNode(scene, "cubeTrans");
 		cubeTrans.translate(new N3Vector3D(0, 0.2f, 1.0f));
@@ -142,6 +142,35 @@ public class N3GeometryData implements N3CollisionableVolume,
 		refs.remove(l);
 	}
 
+	/**
+	 * Obtiene el n�mero de objetos que est�n utilizando la geometr�a.
+	 * 
+	 * @return N�mero de objetos notificados de los cambios
+	 */
+	public int getGeometryListenerCount() {
+		return refs.size();
+	}
+
+	/**
+	 * Obtiene una copia de la geometr�a. Los pol�gonos de la copia son nuevos,
+	 * pero comparten los v�rtices, normales, colores y coordenadas de textura
+	 * con los de la geometr�a original.
+	 * 
+	 * @return Copia de la geometr�a
+	 */
+	public N3GeometryData copy() {
+		N3GeometryData result = new N3GeometryData();
+		for (int i = 0; i < polys.size(); i++) {
+			N3Polygon p = getPolygon(i);
+			N3Polygon q = result.createPolygon();
+			q.vertexes.addAll(p.vertexes);
+			q.normals.addAll(p.normals);
+			q.colors.addAll(p.colors);
+			q.uvs.addAll(p.uvs);
+		}
+		return result;
+	}
+
 	/**
 	 * Notifica a todos los objetos que la geometr�a ha cambiado.
 	 */
@@ -0,0 +1,643 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.geometry;
+
+import java.util.Hashtable;
+import java.util.PriorityQueue;
+
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
+
+/**
+ * Simplificador de mallas mediante colapso de aristas guiado por cuadricas de
+ * error (Garland y Heckbert). Cada vertice acumula la suma de las cuadricas de
+ * los planos de sus triangulos, y en cada paso se colapsa la arista cuyo
+ * vertice resultante tiene menor error, hasta llegar al numero de triangulos
+ * deseado.
+ *
+ * Los bordes abiertos se protegen con planos perpendiculares a sus
+ * triangulos. Los vertices que comparten posicion con otros de distintas
+ * coordenadas de textura (costuras) no se mueven. Se rechazan los colapsos que
+ * invierten triangulos o que dejan la malla no manifold.
+ *
+ * Pensado para generar niveles de detalle antes de dibujar, no en cada frame.
+ * La geometria resultante tiene triangulos con normales por cara.
+ */
+public class N3MeshSimplifier {
+	// Peso de los planos que protegen los bordes abiertos
+	private static final double BORDER_WEIGHT = 1000.0;
+
+	/**
+	 * Vertice unificado: se compara por su posicion y sus coordenadas de
+	 * textura.
+	 */
+	private static class N3SimplifyVertex {
+		float x, y, z;
+
+		N3TexCoord2D uv;
+
+		int index;
+
+		N3SimplifyVertex(N3Point3D v, N3TexCoord2D uv) {
+			x = v.x;
+			y = v.y;
+			z = v.z;
+			this.uv = uv;
+		}
+
+		public boolean equals(Object o) {
+			N3SimplifyVertex s = (N3SimplifyVertex) o;
+			if (x != s.x || y != s.y || z != s.z)
+				return false;
+			if (uv != s.uv
+					&& (uv == null || s.uv == null || uv.u != s.uv.u
+							|| uv.v != s.uv.v))
+				return false;
+			return true;
+		}
+
+		public int hashCode() {
+			int h = Float.floatToIntBits(x + 0.0f);
+			h = h * 31 + Float.floatToIntBits(y + 0.0f);
+			h = h * 31 + Float.floatToIntBits(z + 0.0f);
+			return h;
+		}
+	}
+
+	/**
+	 * Colapso candidato de una arista.
+	 */
+	private static class N3Collapse implements Comparable {
+		double cost;
+
+		int a, b;
+
+		int stampA, stampB;
+
+		double x, y, z;
+
+		public int compareTo(Object o) {
+			N3Collapse c = (N3Collapse) o;
+			return cost < c.cost ? -1 : (cost > c.cost ? 1 : 0);
+		}
+	}
+
+	// Datos de los vertices
+	private double[] px, py, pz;
+
+	private double[][] quadrics;
+
+	private N3ColorRGBA[] colors;
+
+	private N3TexCoord2D[] uvs;
+
+	private boolean[] locked;
+
+	private boolean[] removedVertex;
+
+	private int[] stamps;
+
+	// Triangulos que contienen cada vertice
+	private int[][] adjacency;
+
+	private int[] adjacencyCount;
+
+	// Datos de los triangulos
+	private int[] triangles;
+
+	private boolean[] removedTriangle;
+
+	private int liveTriangles;
+
+	// Marcas para comprobar los vecinos comunes de dos vertices
+	private int[] mark;
+
+	private int markStamp;
+
+	private PriorityQueue heap;
+
+	private N3MeshSimplifier() {
+	}
+
+	/**
+	 * Obtiene el numero de triangulos de una geometria, una vez divididos sus
+	 * poligonos.
+	 *
+	 * @param g
+	 *            Geometria
+	 * @return Numero de triangulos
+	 */
+	public static int triangleCount(N3GeometryData g) {
+		int count = 0;
+		for (int i = 0; i < g.polygonCount(); i++) {
+			int sides = g.getPolygon(i).getSides();
+			if (sides >= 3)
+				count += sides - 2;
+		}
+		return count;
+	}
+
+	/**
+	 * Obtiene una version simplificada de la geometria con, como mucho, la
+	 * proporcion de triangulos indicada. Se conserva siempre al menos un
+	 * triangulo, aunque la proporcion redondee a cero en mallas pequenas.
+	 *
+	 * @param g
+	 *            Geometria original. No se modifica.
+	 * @param ratio
+	 *            Proporcion de triangulos a conservar, entre 0 y 1
+	 * @return Nueva geometria simplificada
+	 */
+	public static N3GeometryData simplify(N3GeometryData g, float ratio) {
+		return simplify(g, Math.max(1, (int) (triangleCount(g) * ratio)));
+	}
+
+	/**
+	 * Obtiene una version simplificada de la geometria con, como mucho, el
+	 * numero de triangulos indicado, y al menos uno. Si la malla no admite
+	 * mas colapsos validos el resultado puede tener mas triangulos.
+	 *
+	 * @param g
+	 *            Geometria original. No se modifica.
+	 * @param targetTriangles
+	 *            Numero de triangulos deseado
+	 * @return Nueva geometria simplificada
+	 */
+	public static N3GeometryData simplify(N3GeometryData g,
+			int targetTriangles) {
+		N3MeshSimplifier s = new N3MeshSimplifier();
+		boolean textured = s.load(g);
+		s.computeQuadrics();
+		s.collapse(Math.max(1, targetTriangles));
+		return s.build(textured);
+	}
+
+	// Carga la geometria, unificando vertices y dividiendo los poligonos en
+	// triangulos. Devuelve true si la geometria tiene coordenadas de textura.
+	private boolean load(N3GeometryData g) {
+		Hashtable welded = new Hashtable();
+		Hashtable positions = new Hashtable();
+		int count = triangleCount(g);
+		triangles = new int[count * 3];
+		int maxVertices = count * 3;
+		px = new double[maxVertices];
+		py = new double[maxVertices];
+		pz = new double[maxVertices];
+		colors = new N3ColorRGBA[maxVertices];
+		uvs = new N3TexCoord2D[maxVertices];
+		locked = new boolean[maxVertices];
+		int vertexCount = 0;
+		int t = 0;
+		boolean textured = false;
+		for (int i = 0; i < g.polygonCount(); i++) {
+			N3Polygon p = g.getPolygon(i);
+			if (p.getSides() < 3)
+				continue;
+			textured |= p.isTextured();
+			int[] ids = new int[p.getSides()];
+			for (int j = 0; j < p.getSides(); j++) {
+				N3Point3D v = (N3Point3D) p.getVertex(j);
+				N3TexCoord2D uv = p.isTextured() ? p.getUV(j) : null;
+				N3SimplifyVertex s = new N3SimplifyVertex(v, uv);
+				N3SimplifyVertex w = (N3SimplifyVertex) welded.get(s);
+				if (w == null) {
+					s.index = vertexCount++;
+					welded.put(s, s);
+					px[s.index] = v.x;
+					py[s.index] = v.y;
+					pz[s.index] = v.z;
+					colors[s.index] = p.getColor(j);
+					uvs[s.index] = uv;
+					// Los vertices de una costura no se mueven
+					N3SimplifyVertex key = new N3SimplifyVertex(v, null);
+					N3SimplifyVertex twin = (N3SimplifyVertex) positions
+							.get(key);
+					if (twin == null) {
+						key.index = s.index;
+						positions.put(key, key);
+					} else {
+						locked[twin.index] = true;
+						locked[s.index] = true;
+					}
+					w = s;
+				}
+				ids[j] = w.index;
+			}
+			for (int j = 1; j < ids.length - 1; j++) {
+				triangles[t++] = ids[0];
+				triangles[t++] = ids[j];
+				triangles[t++] = ids[j + 1];
+			}
+		}
+
+		removedTriangle = new boolean[count];
+		liveTriangles = count;
+		removedVertex = new boolean[vertexCount];
+		stamps = new int[vertexCount];
+		mark = new int[vertexCount];
+		quadrics = new double[vertexCount][10];
+		adjacency = new int[vertexCount][];
+		adjacencyCount = new int[vertexCount];
+		for (int i = 0; i < vertexCount; i++)
+			adjacency[i] = new int[6];
+		for (int i = 0; i < count; i++) {
+			if (triangles[i * 3] == triangles[i * 3 + 1]
+					|| triangles[i * 3 + 1] == triangles[i * 3 + 2]
+					|| triangles[i * 3] == triangles[i * 3 + 2]) {
+				removedTriangle[i] = true;
+				liveTriangles--;
+				continue;
+			}
+			for (int j = 0; j < 3; j++)
+				addAdjacency(triangles[i * 3 + j], i);
+		}
+		return textured;
+	}
+
+	private void addAdjacency(int v, int t) {
+		if (adjacencyCount[v] == adjacency[v].length) {
+			int[] a = new int[adjacency[v].length * 2];
+			System.arraycopy(adjacency[v], 0, a, 0, adjacencyCount[v]);
+			adjacency[v] = a;
+		}
+		adjacency[v][adjacencyCount[v]++] = t;
+	}
+
+	private void removeAdjacency(int v, int t) {
+		for (int i = 0; i < adjacencyCount[v]; i++)
+			if (adjacency[v][i] == t) {
+				adjacency[v][i] = adjacency[v][--adjacencyCount[v]];
+				return;
+			}
+	}
+
+	// Anade a la cuadrica q el plano ax + by + cz + d = 0 con el peso dado
+	private static void addPlane(double[] q, double a, double b, double c,
+			double d, double w) {
+		q[0] += w * a * a;
+		q[1] += w * a * b;
+		q[2] += w * a * c;
+		q[3] += w * a * d;
+		q[4] += w * b * b;
+		q[5] += w * b * c;
+		q[6] += w * b * d;
+		q[7] += w * c * c;
+		q[8] += w * c * d;
+		q[9] += w * d * d;
+	}
+
+	// Calcula las cuadricas de los vertices y los colapsos iniciales
+	private void computeQuadrics() {
+		Hashtable edges = new Hashtable();
+		for (int i = 0; i < removedTriangle.length; i++) {
+			if (removedTriangle[i])
+				continue;
+			int a = triangles[i * 3];
+			int b = triangles[i * 3 + 1];
+			int c = triangles[i * 3 + 2];
+			double[] n = normal(a, b, c, 0, 0, 0, -1);
+			double len = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+			if (len == 0)
+				continue;
+			double area = len * 0.5;
+			double nx = n[0] / len, ny = n[1] / len, nz = n[2] / len;
+			double d = -(nx * px[a] + ny * py[a] + nz * pz[a]);
+			for (int j = 0; j < 3; j++)
+				addPlane(quadrics[triangles[i * 3 + j]], nx, ny, nz, d, area);
+			for (int j = 0; j < 3; j++) {
+				Long key = edgeKey(triangles[i * 3 + j], triangles[i * 3
+						+ (j + 1) % 3]);
+				int[] e = (int[]) edges.get(key);
+				if (e == null)
+					edges.put(key, new int[] { i, j, 1 });
+				else
+					e[2]++;
+			}
+		}
+
+		// Planos de proteccion de los bordes abiertos
+		heap = new PriorityQueue();
+		java.util.Enumeration en = edges.elements();
+		while (en.hasMoreElements()) {
+			int[] e = (int[]) en.nextElement();
+			int tri = e[0];
+			int a = triangles[tri * 3 + e[1]];
+			int b = triangles[tri * 3 + (e[1] + 1) % 3];
+			if (e[2] == 1) {
+				int c = triangles[tri * 3 + (e[1] + 2) % 3];
+				double[] n = normal(a, b, c, 0, 0, 0, -1);
+				double ex = px[b] - px[a], ey = py[b] - py[a], ez = pz[b]
+						- pz[a];
+				// Plano que contiene la arista y es perpendicular al triangulo
+				double qx = ey * n[2] - ez * n[1];
+				double qy = ez * n[0] - ex * n[2];
+				double qz = ex * n[1] - ey * n[0];
+				double len = Math.sqrt(qx * qx + qy * qy + qz * qz);
+				if (len > 0) {
+					qx /= len;
+					qy /= len;
+					qz /= len;
+					double d = -(qx * px[a] + qy * py[a] + qz * pz[a]);
+					addPlane(quadrics[a], qx, qy, qz, d, BORDER_WEIGHT);
+					addPlane(quadrics[b], qx, qy, qz, d, BORDER_WEIGHT);
+				}
+			}
+		}
+		en = edges.elements();
+		while (en.hasMoreElements()) {
+			int[] e = (int[]) en.nextElement();
+			int tri = e[0];
+			push(triangles[tri * 3 + e[1]], triangles[tri * 3 + (e[1] + 1)
+					% 3]);
+		}
+	}
+
+	private static Long edgeKey(int a, int b) {
+		if (a > b) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		return new Long(((long) a << 32) | (b & 0xffffffffL));
+	}
+
+	// Normal sin normalizar del triangulo a, b, c, sustituyendo el vertice
+	// moved (si no es -1) por la posicion x, y, z
+	private double[] normal(int a, int b, int c, double x, double y,
+			double z, int moved) {
+		double ax = px[a], ay = py[a], az = pz[a];
+		double bx = px[b], by = py[b], bz = pz[b];
+		double cx = px[c], cy = py[c], cz = pz[c];
+		if (a == moved) {
+			ax = x;
+			ay = y;
+			az = z;
+		} else if (b == moved) {
+			bx = x;
+			by = y;
+			bz = z;
+		} else if (c == moved) {
+			cx = x;
+			cy = y;
+			cz = z;
+		}
+		double ux = bx - ax, uy = by - ay, uz = bz - az;
+		double vx = cx - ax, vy = cy - ay, vz = cz - az;
+		return new double[] { uy * vz - uz * vy, uz * vx - ux * vz,
+				ux * vy - uy * vx };
+	}
+
+	private static double error(double[] q, double x, double y, double z) {
+		return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3]
+				* x + q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y + q[7]
+				* z * z + 2 * q[8] * z + q[9];
+	}
+
+	// Calcula el mejor colapso de la arista a-b y lo anade a la cola
+	private void push(int a, int b) {
+		if (locked[a] && locked[b])
+			return;
+		// Se elimina siempre un vertice que se pueda mover
+		if (locked[b]) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		double[] qa = quadrics[a];
+		double[] qb = quadrics[b];
+		double[] q = new double[10];
+		for (int i = 0; i < 10; i++)
+			q[i] = qa[i] + qb[i];
+
+		N3Collapse c = new N3Collapse();
+		c.a = a;
+		c.b = b;
+		c.stampA = stamps[a];
+		c.stampB = stamps[b];
+		c.x = px[a];
+		c.y = py[a];
+		c.z = pz[a];
+		c.cost = error(q, c.x, c.y, c.z);
+		if (!locked[a]) {
+			// Posicion optima, si el sistema tiene solucion
+			double det = q[0] * (q[4] * q[7] - q[5] * q[5]) - q[1]
+					* (q[1] * q[7] - q[5] * q[2]) + q[2]
+					* (q[1] * q[5] - q[4] * q[2]);
+			if (Math.abs(det) > 1e-12) {
+				double x = (-q[3] * (q[4] * q[7] - q[5] * q[5]) + q[1]
+						* (q[6] * q[7] - q[5] * q[8]) - q[2]
+						* (q[6] * q[5] - q[4] * q[8]))
+						/ det;
+				double y = (q[0] * (-q[6] * q[7] + q[8] * q[5]) + q[3]
+						* (q[1] * q[7] - q[5] * q[2]) + q[2]
+						* (q[1] * q[8] - q[6] * q[2]))
+						/ det;
+				double z = (q[0] * (-q[4] * q[8] + q[5] * q[6]) - q[1]
+						* (-q[1] * q[8] + q[6] * q[2]) - q[3]
+						* (q[1] * q[5] - q[4] * q[2]))
+						/ det;
+				consider(c, q, x, y, z);
+			}
+			consider(c, q, px[b], py[b], pz[b]);
+			consider(c, q, (px[a] + px[b]) * 0.5, (py[a] + py[b]) * 0.5,
+					(pz[a] + pz[b]) * 0.5);
+		}
+		heap.add(c);
+	}
+
+	private static void consider(N3Collapse c, double[] q, double x,
+			double y, double z) {
+		double e = error(q, x, y, z);
+		if (e < c.cost) {
+			c.cost = e;
+			c.x = x;
+			c.y = y;
+			c.z = z;
+		}
+	}
+
+	// Colapsa aristas hasta llegar al numero de triangulos indicado
+	private void collapse(int target) {
+		while (liveTriangles > target && !heap.isEmpty()) {
+			N3Collapse c = (N3Collapse) heap.poll();
+			if (removedVertex[c.a] || removedVertex[c.b]
+					|| stamps[c.a] != c.stampA || stamps[c.b] != c.stampB)
+				continue;
+			if (!isValid(c))
+				continue;
+			apply(c);
+		}
+	}
+
+	// Comprueba que el colapso no invierte triangulos ni rompe la topologia
+	private boolean isValid(N3Collapse c) {
+		int a = c.a;
+		int b = c.b;
+		// Los vecinos comunes de a y b han de ser solo los terceros vertices
+		// de los triangulos que comparten la arista
+		markStamp++;
+		int shared = 0;
+		for (int i = 0; i < adjacencyCount[a]; i++) {
+			int t = adjacency[a][i];
+			for (int j = 0; j < 3; j++)
+				mark[triangles[t * 3 + j]] = markStamp;
+		}
+		int common = 0;
+		markStamp++;
+		for (int i = 0; i < adjacencyCount[b]; i++) {
+			int t = adjacency[b][i];
+			boolean hasA = false;
+			for (int j = 0; j < 3; j++) {
+				int v = triangles[t * 3 + j];
+				if (v == a)
+					hasA = true;
+				else if (v != b && mark[v] == markStamp - 1) {
+					mark[v] = markStamp;
+					common++;
+				}
+			}
+			if (hasA)
+				shared++;
+		}
+		if (common > shared || shared == 0)
+			return false;
+
+		// Ningun triangulo que permanece puede invertirse
+		if (!keepsOrientation(a, b, c) || !keepsOrientation(b, a, c))
+			return false;
+		return true;
+	}
+
+	private boolean keepsOrientation(int v, int other, N3Collapse c) {
+		for (int i = 0; i < adjacencyCount[v]; i++) {
+			int t = adjacency[v][i];
+			int t0 = triangles[t * 3];
+			int t1 = triangles[t * 3 + 1];
+			int t2 = triangles[t * 3 + 2];
+			if (t0 == other || t1 == other || t2 == other)
+				continue;
+			double[] before = normal(t0, t1, t2, 0, 0, 0, -1);
+			double[] after = normal(t0, t1, t2, c.x, c.y, c.z, v);
+			double dot = before[0] * after[0] + before[1] * after[1]
+					+ before[2] * after[2];
+			if (dot <= 0)
+				return false;
+		}
+		return true;
+	}
+
+	// Colapsa el vertice b sobre a
+	private void apply(N3Collapse c) {
+		int a = c.a;
+		int b = c.b;
+		px[a] = c.x;
+		py[a] = c.y;
+		pz[a] = c.z;
+		for (int i = 0; i < 10; i++)
+			quadrics[a][i] += quadrics[b][i];
+		while (adjacencyCount[b] > 0) {
+			int t = adjacency[b][adjacencyCount[b] - 1];
+			removeAdjacency(b, t);
+			boolean hasA = false;
+			for (int j = 0; j < 3; j++)
+				if (triangles[t * 3 + j] == a)
+					hasA = true;
+			if (hasA) {
+				removedTriangle[t] = true;
+				liveTriangles--;
+				for (int j = 0; j < 3; j++)
+					if (triangles[t * 3 + j] != b)
+						removeAdjacency(triangles[t * 3 + j], t);
+			} else {
+				for (int j = 0; j < 3; j++)
+					if (triangles[t * 3 + j] == b)
+						triangles[t * 3 + j] = a;
+				addAdjacency(a, t);
+			}
+		}
+		removedVertex[b] = true;
+		stamps[a]++;
+		// Se recalculan los colapsos de las aristas de a
+		markStamp++;
+		for (int i = 0; i < adjacencyCount[a]; i++) {
+			int t = adjacency[a][i];
+			for (int j = 0; j < 3; j++) {
+				int v = triangles[t * 3 + j];
+				if (v != a && mark[v] != markStamp) {
+					mark[v] = markStamp;
+					stamps[v]++;
+				}
+			}
+		}
+		markStamp++;
+		for (int i = 0; i < adjacencyCount[a]; i++) {
+			int t = adjacency[a][i];
+			for (int j = 0; j < 3; j++) {
+				int v = triangles[t * 3 + j];
+				if (v != a && mark[v] != markStamp) {
+					mark[v] = markStamp;
+					push(a, v);
+					pushNeighbours(v, a);
+				}
+			}
+		}
+	}
+
+	// Vuelve a calcular los colapsos de las aristas de v, salvo la arista v-a.
+	// Las aristas interiores se anaden dos veces, una por triangulo; el
+	// duplicado se descarta al sacarlo de la cola.
+	private void pushNeighbours(int v, int a) {
+		for (int i = 0; i < adjacencyCount[v]; i++) {
+			int t = adjacency[v][i];
+			for (int j = 0; j < 3; j++) {
+				int w = triangles[t * 3 + j];
+				if (w != v && w != a)
+					push(v, w);
+			}
+		}
+	}
+
+	// Construye la geometria resultante
+	private N3GeometryData build(boolean textured) {
+		N3GeometryData result = new N3GeometryData();
+		N3Point3D[] points = new N3Point3D[removedVertex.length];
+		for (int i = 0; i < removedVertex.length; i++)
+			if (!removedVertex[i])
+				points[i] = new N3Point3D((float) px[i], (float) py[i],
+						(float) pz[i]);
+		for (int i = 0; i < removedTriangle.length; i++) {
+			if (removedTriangle[i])
+				continue;
+			N3Polygon p = result.createPolygon();
+			for (int j = 0; j < 3; j++) {
+				int v = triangles[i * 3 + j];
+				if (textured)
+					p.addVertex(points[v], colors[v], uvs[v]);
+				else
+					p.addVertex(points[v], colors[v]);
+			}
+			p.generateNormal();
+		}
+		return result;
+	}
+}
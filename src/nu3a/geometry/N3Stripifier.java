@@ -0,0 +1,321 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.geometry;
+
+import java.util.Hashtable;
+import java.util.Vector;
+
+import nu3a.material.color.N3ColorData;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
+import nu3a.material.texture.N3TexCoordData;
+import nu3a.math.N3Vector3D;
+
+/**
+ * Convierte los poligonos de una geometria en una unica tira de triangulos.
+ * Los vertices con la misma posicion, normal, color y coordenadas de textura
+ * se unifican, los poligonos se dividen en triangulos y estos se agrupan en
+ * tiras de forma voraz siguiendo las aristas compartidas. Las tiras obtenidas
+ * se unen en una sola mediante triangulos degenerados, manteniendo la
+ * orientacion de todos los triangulos.
+ *
+ * En una tira cada triangulo despues del primero solo anade un vertice nuevo,
+ * por lo que el render transforma e ilumina cada vertice una sola vez en lugar
+ * de una vez por cada triangulo al que pertenece.
+ */
+public class N3Stripifier {
+
+	/**
+	 * Vertice unificado: se compara por el valor de todos sus atributos.
+	 */
+	private static class N3StripVertex {
+		N3Point3D v;
+
+		N3Vector3D n;
+
+		N3ColorRGBA c;
+
+		N3TexCoord2D uv;
+
+		int index;
+
+		N3StripVertex(N3Point3D v, N3Vector3D n, N3ColorRGBA c,
+				N3TexCoord2D uv) {
+			this.v = v;
+			this.n = n;
+			this.c = c;
+			this.uv = uv;
+		}
+
+		public boolean equals(Object o) {
+			N3StripVertex s = (N3StripVertex) o;
+			if (v.x != s.v.x || v.y != s.v.y || v.z != s.v.z)
+				return false;
+			if (n != s.n
+					&& (n == null || s.n == null || n.x != s.n.x
+							|| n.y != s.n.y || n.z != s.n.z))
+				return false;
+			if (c != s.c
+					&& (c == null || s.c == null || c.R != s.c.R
+							|| c.G != s.c.G || c.B != s.c.B || c.A != s.c.A))
+				return false;
+			if (uv != s.uv
+					&& (uv == null || s.uv == null || uv.u != s.uv.u
+							|| uv.v != s.uv.v))
+				return false;
+			return true;
+		}
+
+		public int hashCode() {
+			// Se suma 0 para que 0 y -0 tengan el mismo codigo
+			int h = Float.floatToIntBits(v.x + 0.0f);
+			h = h * 31 + Float.floatToIntBits(v.y + 0.0f);
+			h = h * 31 + Float.floatToIntBits(v.z + 0.0f);
+			if (n != null)
+				h = h * 31 + Float.floatToIntBits(n.x + n.y + n.z + 0.0f);
+			if (uv != null)
+				h = h * 31 + Float.floatToIntBits(uv.u + uv.v + 0.0f);
+			return h;
+		}
+	}
+
+	/**
+	 * Convierte la geometria indicada en una tira de triangulos, dejando los
+	 * datos de sus vertices en los contenedores indicados, que se vacian
+	 * previamente. Los triangulos degenerados de union comparten la misma
+	 * referencia de vertice, por lo que el render puede descartarlos sin
+	 * calcularlos.
+	 *
+	 * @param g
+	 *            Geometria a convertir
+	 * @param vertexData
+	 *            Contenedor para los vertices de la tira
+	 * @param colorData
+	 *            Contenedor para los colores de la tira
+	 * @param normalData
+	 *            Contenedor para las normales de la tira
+	 * @param texCoordData
+	 *            Contenedor para las coordenadas de textura de la tira. Solo
+	 *            se rellena si algun poligono tiene coordenadas de textura.
+	 * @return Numero de vertices de la tira
+	 */
+	public static int stripify(N3GeometryData g, N3VertexData vertexData,
+			N3ColorData colorData, N3NormalData normalData,
+			N3TexCoordData texCoordData) {
+		Hashtable welded = new Hashtable();
+		Vector vertexes = new Vector(0, 1);
+		int triangleCount = 0;
+		boolean textured = false;
+		for (int i = 0; i < g.polygonCount(); i++) {
+			N3Polygon p = g.getPolygon(i);
+			if (p.getSides() >= 3)
+				triangleCount += p.getSides() - 2;
+			textured |= p.isTextured();
+		}
+
+		// Division en triangulos, con el mismo orden que los abanicos de
+		// N3VisualMesh, y unificacion de vertices
+		int[] triangles = new int[triangleCount * 3];
+		int t = 0;
+		for (int i = 0; i < g.polygonCount(); i++) {
+			N3Polygon p = g.getPolygon(i);
+			if (p.getSides() < 3)
+				continue;
+			int[] ids = new int[p.getSides()];
+			for (int j = 0; j < p.getSides(); j++) {
+				N3StripVertex s = new N3StripVertex((N3Point3D) p.getVertex(j),
+						(N3Vector3D) p.getNormal(j), p.getColor(j), p.isTextured()
+								? p.getUV(j) : null);
+				N3StripVertex w = (N3StripVertex) welded.get(s);
+				if (w == null) {
+					s.index = vertexes.size();
+					vertexes.add(s);
+					welded.put(s, s);
+					w = s;
+				}
+				ids[j] = w.index;
+			}
+			for (int j = 1; j < ids.length - 1; j++) {
+				triangles[t++] = ids[0];
+				triangles[t++] = ids[j];
+				triangles[t++] = ids[j + 1];
+			}
+		}
+
+		int[] strip = createStrip(triangles);
+
+		vertexData.clear();
+		colorData.clear();
+		normalData.clear();
+		texCoordData.clear();
+		for (int i = 0; i < strip.length; i++) {
+			N3StripVertex s = (N3StripVertex) vertexes.elementAt(strip[i]);
+			vertexData.addVertex(s.v);
+			colorData.addColor(s.c);
+			normalData.addNormal(s.n);
+			if (textured)
+				texCoordData.addTexCoord(s.uv);
+		}
+		return strip.length;
+	}
+
+	/**
+	 * Agrupa una lista de triangulos indexados en una unica tira. Las tiras
+	 * parciales se unen repitiendo el ultimo vertice de una y el primero de la
+	 * siguiente, y anadiendo un vertice mas si es necesario para que cada
+	 * tira empiece en posicion par y conserve su orientacion.
+	 *
+	 * @param triangles
+	 *            Indices de los vertices de los triangulos, de tres en tres
+	 * @return Indices de los vertices de la tira
+	 */
+	public static int[] createStrip(int[] triangles) {
+		int count = triangles.length / 3;
+
+		// Triangulos que contienen cada arista orientada
+		Hashtable edges = new Hashtable();
+		for (int i = 0; i < count; i++)
+			for (int j = 0; j < 3; j++) {
+				Long key = edgeKey(triangles[i * 3 + j], triangles[i * 3
+						+ (j + 1) % 3]);
+				Vector v = (Vector) edges.get(key);
+				if (v == null) {
+					v = new Vector(1, 1);
+					edges.put(key, v);
+				}
+				v.add(new Integer(i));
+			}
+
+		boolean[] used = new boolean[count];
+		int[] mark = new int[count];
+		int stamp = 0;
+		int[] result = new int[count * 6];
+		int length = 0;
+		int[] best = new int[count + 2];
+		int[] current = new int[count + 2];
+		for (int i = 0; i < count; i++) {
+			if (used[i])
+				continue;
+			// Se prueba a empezar la tira por cada una de las aristas del
+			// triangulo y se queda la mas larga
+			int bestLength = 0;
+			for (int r = 0; r < 3; r++) {
+				stamp++;
+				int l = buildStrip(triangles, i, r, edges, used, mark, stamp,
+						current);
+				if (l > bestLength) {
+					bestLength = l;
+					int[] tmp = best;
+					best = current;
+					current = tmp;
+				}
+			}
+			// Se marcan como usados los triangulos de la tira elegida
+			for (int k = 0; k + 2 < bestLength; k++) {
+				int a = best[k];
+				int b = best[k + 1];
+				if ((k & 1) == 1) {
+					a = best[k + 1];
+					b = best[k];
+				}
+				used[findTriangle(triangles, edges, used, a, b, best[k + 2])] = true;
+			}
+			// Union con la tira anterior
+			if (length > 0) {
+				result[length] = result[length - 1];
+				length++;
+				result[length++] = best[0];
+				if ((length & 1) == 1)
+					result[length++] = best[0];
+			}
+			System.arraycopy(best, 0, result, length, bestLength);
+			length += bestLength;
+		}
+		int[] strip = new int[length];
+		System.arraycopy(result, 0, strip, 0, length);
+		return strip;
+	}
+
+	// Construye una tira empezando por el triangulo indicado, rotado r
+	// posiciones, sin usar triangulos ya usados ni marcados con stamp
+	private static int buildStrip(int[] triangles, int start, int r,
+			Hashtable edges, boolean[] used, int[] mark, int stamp, int[] strip) {
+		strip[0] = triangles[start * 3 + r];
+		strip[1] = triangles[start * 3 + (r + 1) % 3];
+		strip[2] = triangles[start * 3 + (r + 2) % 3];
+		mark[start] = stamp;
+		int length = 3;
+		while (true) {
+			// El siguiente triangulo (posicion length-2) comparte la arista
+			// formada por los dos ultimos vertices, con la orientacion que le
+			// corresponde segun su paridad
+			int a = strip[length - 2];
+			int b = strip[length - 1];
+			if (((length - 2) & 1) == 1) {
+				int tmp = a;
+				a = b;
+				b = tmp;
+			}
+			Vector v = (Vector) edges.get(edgeKey(a, b));
+			int next = -1;
+			for (int i = 0; v != null && i < v.size(); i++) {
+				int tri = ((Integer) v.elementAt(i)).intValue();
+				if (!used[tri] && mark[tri] != stamp) {
+					next = tri;
+					break;
+				}
+			}
+			if (next == -1)
+				return length;
+			mark[next] = stamp;
+			strip[length++] = thirdVertex(triangles, next, a, b);
+		}
+	}
+
+	// Busca un triangulo no usado con la arista orientada a-b y el tercer
+	// vertice c
+	private static int findTriangle(int[] triangles, Hashtable edges,
+			boolean[] used, int a, int b, int c) {
+		Vector v = (Vector) edges.get(edgeKey(a, b));
+		for (int i = 0; i < v.size(); i++) {
+			int tri = ((Integer) v.elementAt(i)).intValue();
+			if (!used[tri] && thirdVertex(triangles, tri, a, b) == c)
+				return tri;
+		}
+		return -1;
+	}
+
+	// Obtiene el vertice del triangulo que no pertenece a la arista a-b
+	private static int thirdVertex(int[] triangles, int tri, int a, int b) {
+		for (int j = 0; j < 3; j++) {
+			int v = triangles[tri * 3 + j];
+			if (v != a && v != b)
+				return v;
+		}
+		return triangles[tri * 3];
+	}
+
+	private static Long edgeKey(int a, int b) {
+		return new Long(((long) a << 32) | (b & 0xffffffffL));
+	}
+}
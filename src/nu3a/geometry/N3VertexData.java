@@ -119,6 +119,15 @@ public class N3VertexData {
 		return vertexes.isEmpty();
 	}
 
+	/**
+	 * Obtiene el n�mero de v�rtices del contenedor.
+	 * 
+	 * @return N�mero de v�rtices
+	 */
+	public int size() {
+		return vertexes.size();
+	}
+
 	/**
 	 * Indica si se pueden devolver m�s objetos secuencialmente.
 	 * 
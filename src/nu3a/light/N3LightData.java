@@ -91,6 +91,12 @@ public class N3LightData implements N3PersistentResource {
 	protected float linearAttenuation;
 	protected float quadraticAttenuation;
 
+	/**
+	 * Contador de cambios de la luz, que se incrementa en cada modificaci�n
+	 * hecha con los m�todos de la clase.
+	 */
+	protected int version;
+
 	/**
 	 * Crea una instancia de la clase con los valores de color a blanco,
 	 */
@@ -122,6 +128,16 @@ public class N3LightData implements N3PersistentResource {
 		quadraticAttenuation = 0.0f;
 	}
 
+	/**
+	 * Obtiene el contador de cambios de la luz. Permite saber si la luz ha
+	 * cambiado desde la �ltima vez que se consult�.
+	 * 
+	 * @return Contador de cambios
+	 */
+	public int getVersion() {
+		return version;
+	}
+
 	/**
 	 * Obtiene la componente ambiental de la luz
 	 * 
@@ -139,6 +155,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setAmbiental(N3ColorRGBA color) {
 		ambiental = color;
+		version++;
 	}
 
 	/**
@@ -158,6 +175,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setDiffuse(N3ColorRGBA color) {
 		diffuse = color;
+		version++;
 	}
 
 	/**
@@ -177,6 +195,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setSpecular(N3ColorRGBA color) {
 		specular = color;
+		version++;
 	}
 
 	/**
@@ -187,6 +206,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setConstantAttenuation(float f) {
 		constantAttenuation = f;
+		version++;
 	}
 
 	/**
@@ -206,6 +226,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setLinearAttenuation(float f) {
 		linearAttenuation = f;
+		version++;
 	}
 
 	/**
@@ -225,6 +246,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setQuadraticAttenuation(float f) {
 		quadraticAttenuation = f;
+		version++;
 	}
 
 	/**
@@ -244,6 +266,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setDirection(N3Vector3D v) {
 		direction = v;
+		version++;
 	}
 
 	/**
@@ -265,6 +288,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setAngle(float a) {
 		angle = (a < 0) ? 0 : ((a > 180.0f) ? 180.0f : a);
+		version++;
 	}
 
 	/**
@@ -284,6 +308,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setSpotExponent(float e) {
 		spotExponent = e;
+		version++;
 	}
 
 	/**
@@ -303,6 +328,7 @@ public class N3LightData implements N3PersistentResource {
 	 */
 	public void setPositional(boolean p) {
 		positional = p;
+		version++;
 	}
 
 	/**
@@ -35,6 +35,7 @@ import nu3a.persistence.N3PersistentResource;
 import nu3a.persistence.N3PersistentResourceList;
 import nu3a.persistence.N3SceneReader;
 import nu3a.render.N3Render;
+import nu3a.render.N3RenderState;
 import nu3a.scene.N3Scene;
 import nu3a.util.Observer;
 
@@ -167,6 +168,35 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	protected float shininess;
 
+	/**
+	 * Bloque de estado compilado a partir del material, o null si hay que
+	 * compilarlo. Se descarta cada vez que cambia alguna caracter�stica del
+	 * material mediante sus m�todos; los colores se copian al compilarlo, por
+	 * lo que modificar directamente un color asignado no tiene efecto hasta
+	 * que se vuelve a asignar.
+	 */
+	protected N3RenderState renderState;
+
+	/**
+	 * Identificador del material para ordenar los objetos por material al
+	 * dibujarlos.
+	 */
+	protected int sortId;
+
+	/**
+	 * Versi�n del material. Se incrementa cada vez que cambia alguna de sus
+	 * caracter�sticas.
+	 */
+	protected int version;
+
+	// Siguiente identificador de ordenaci�n
+	private static int nextSortId = 1;
+
+	// Colores que se aplican cuando no se aplica el material
+	private static final N3ColorRGBA WHITE = new N3ColorRGBA(1f, 1f, 1f);
+
+	private static final N3ColorRGBA BLACK = new N3ColorRGBA(0f, 0f, 0f);
+
 	/**
 	 * Constructor el material. Caracteristicas iniciales aaaa
 	 * 
@@ -189,6 +219,7 @@ public class N3Material implements Observer, N3NamedObject,
 		specular_color = new N3ColorRGBA(1f, 1f, 1f);
 		emission_color = new N3ColorRGBA(0f, 0f, 0f);
 		face = N3_FRONT;
+		sortId = nextSortId++;
 	}
 
 	// ////////////// Implementaci�n de la interfaz N3NamedObject
@@ -233,6 +264,7 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void setColorData(N3ColorData colorData) {
 		this.colorData = colorData;
+		invalidateState();
 	}
 
 	/**
@@ -253,6 +285,7 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void setTextureMode(int mode) {
 		texture_mode = mode;
+		invalidateState();
 	}
 
 	/**
@@ -270,6 +303,18 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	protected void setDirty() {
 		isDirty = true;
+		invalidateState();
+	}
+
+	/**
+	 * Descarta el bloque de estado compilado del material y notifica a la
+	 * escena que ha cambiado.
+	 */
+	protected void invalidateState() {
+		renderState = null;
+		version++;
+		if (scene != null)
+			scene.notifyChange();
 	}
 
 	/**
@@ -307,6 +352,7 @@ public class N3Material implements Observer, N3NamedObject,
 				texture_calc.genTexture(data, texture.getDataFormat(),
 						texture.getWidth(), texture.getHeight(), render);
 				active_texture = texture_calc;
+				renderState = null;
 			} catch (N3NameException ne) {
 				System.out
 						.println("Nombre de la multitextura repetida. Mal rollo!!!!");
@@ -325,6 +371,37 @@ public class N3Material implements Observer, N3NamedObject,
 		return texture_mode;
 	}
 
+	/**
+	 * Obtiene el identificador del material usado para agrupar los objetos
+	 * con el mismo material al dibujarlos.
+	 * 
+	 * @return Identificador de ordenaci�n del material
+	 */
+	public int getSortId() {
+		return sortId;
+	}
+
+	/**
+	 * Obtiene la versi�n del material, que cambia cada vez que se modifica
+	 * alguna de sus caracter�sticas.
+	 * 
+	 * @return Versi�n del material
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Obtiene la textura que se aplica al renderizar el material.
+	 * 
+	 * @return Textura activa, o null si el material no aplica texturas
+	 */
+	public N3Texture getActiveTexture() {
+		if (texture_mode != N3_NO_TEXTURE && !textures.isEmpty())
+			return active_texture;
+		return null;
+	}
+
 	/**
 	 * Permite a�adir una textura al material. En el modo de textura �nica la
 	 * �ltima textura a�adida es la textura que se aplica.
@@ -371,6 +448,7 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void applyMaterial(boolean apply) {
 		apply_material = apply;
+		invalidateState();
 	}
 
 	/**
@@ -381,6 +459,7 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void setAmbientColor(N3ColorRGBA c) {
 		ambient_color = c;
+		invalidateState();
 	}
 
 	/**
@@ -391,6 +470,7 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void setDiffuseColor(N3ColorRGBA c) {
 		diffuse_color = c;
+		invalidateState();
 	}
 
 	/**
@@ -402,6 +482,7 @@ public class N3Material implements Observer, N3NamedObject,
 	public void setSpecularColor(N3ColorRGBA c, float shininess) {
 		specular_color = c;
 		this.shininess = shininess;
+		invalidateState();
 	}
 
 	/**
@@ -413,6 +494,61 @@ public class N3Material implements Observer, N3NamedObject,
 	 */
 	public void setEmissionColor(N3ColorRGBA c) {
 		emission_color = c;
+		invalidateState();
+	}
+
+	/**
+	 * Indica si se aplican las caracter�sticas de color del material.
+	 * 
+	 * @return True si se aplican las caracter�sticas.
+	 */
+	public boolean isMaterialApplied() {
+		return apply_material;
+	}
+
+	/**
+	 * Obtiene la componente ambiental del material.
+	 * 
+	 * @return Color ambiental del material.
+	 */
+	public N3ColorRGBA getAmbientColor() {
+		return ambient_color;
+	}
+
+	/**
+	 * Obtiene la componente difusa del material.
+	 * 
+	 * @return Color difuso del material.
+	 */
+	public N3ColorRGBA getDiffuseColor() {
+		return diffuse_color;
+	}
+
+	/**
+	 * Obtiene la componente especular del material.
+	 * 
+	 * @return Color especular del material.
+	 */
+	public N3ColorRGBA getSpecularColor() {
+		return specular_color;
+	}
+
+	/**
+	 * Obtiene la componente de emisi�n de color del material.
+	 * 
+	 * @return Color de emisi�n del material.
+	 */
+	public N3ColorRGBA getEmissionColor() {
+		return emission_color;
+	}
+
+	/**
+	 * Obtiene el brillo especular del material.
+	 * 
+	 * @return Brillo del material.
+	 */
+	public float getShininess() {
+		return shininess;
 	}
 
 	/**
@@ -435,65 +571,68 @@ public class N3Material implements Observer, N3NamedObject,
 		specular_color = specular;
 		emission_color = emission;
 		this.shininess = shininess;
+		invalidateState();
 	}
 
 	/**
 	 * Pone el material actual por defecto en el render. Todos los objetos
-	 * visuales se renderizaran con este material a partir de ahora.
+	 * visuales se renderizaran con este material a partir de ahora. El
+	 * material se compila en un bloque de estado para el render, que se
+	 * reutiliza mientras el material no cambie; el render solo recibe los
+	 * valores que difieren de su estado actual.
 	 * 
 	 * @param render
 	 *            Render en el que aplicar las caracter�sticas del material.
 	 */
 	public void renderMaterial(N3Render render) {
+		if (renderState == null || !renderState.isCompiledFor(render))
+			renderState = compileRenderState(render);
+		render.applyRenderState(renderState);
+		if (renderState.isTexturing() && multitexture && isDirty)
+			calculeMultitexture(render);
+	}
+
+	/**
+	 * Compila las caracter�sticas del material en un bloque de estado para el
+	 * render indicado.
+	 * 
+	 * @param render
+	 *            Render para el que se compila el bloque
+	 * @return Bloque de estado del material
+	 */
+	protected N3RenderState compileRenderState(N3Render render) {
+		int renderFace = face;
 		switch (face) {
 		case N3_FRONT:
-			face = render.N3_FRONT;
+			renderFace = render.N3_FRONT;
 			break;
 		case N3_BACK:
-			face = render.N3_BACK;
+			renderFace = render.N3_BACK;
 			break;
 		case N3_FRONT_AND_BACK:
-			face = render.N3_FRONT_AND_BACK;
+			renderFace = render.N3_FRONT_AND_BACK;
 			break;
 		}
-		;
-		if (apply_material) {
-
-			render.setColorMaterial(true);
-			render.setColorMaterialAmbient(face, ambient_color);
-			render.setColorMaterialDiffuse(face, diffuse_color);
-			render.setColorMaterialSpecular(face, specular_color);
-			render.setColorMaterialEmission(face, emission_color);
-		} else {
-			render.setColorMaterial(true);
-			render.setColorMaterialAmbient(face, new N3ColorRGBA(1f, 1f, 1f));
-			render.setColorMaterialDiffuse(face, new N3ColorRGBA(1f, 1f, 1f));
-			render.setColorMaterialSpecular(face, new N3ColorRGBA(1f, 1f, 1f));
-			render.setColorMaterialEmission(face, new N3ColorRGBA(0f, 0f, 0f));
-		}
-
-		if (texture_mode != N3_NO_TEXTURE && !textures.isEmpty()) {
-			switch (texture_mode) {
-			case N3_REPLACE:
-				render.setTextureMode(render.N3_REPLACE);
-				break;
-			case N3_DECAL:
-				render.setTextureMode(render.N3_DECAL);
-				break;
-			case N3_MODULATE:
-				render.setTextureMode(render.N3_MODULATE);
-				break;
-			case N3_BLEND:
-				render.setTextureMode(render.N3_BLEND);
-				break;
-			}
-			render.setTexturing(true);
-			render.selectTexture(active_texture);
-			if (multitexture && isDirty)
-				calculeMultitexture(render);
-		} else {
-			render.setTexturing(false);
+		int mode = render.N3_MODULATE;
+		switch (texture_mode) {
+		case N3_REPLACE:
+			mode = render.N3_REPLACE;
+			break;
+		case N3_DECAL:
+			mode = render.N3_DECAL;
+			break;
+		case N3_BLEND:
+			mode = render.N3_BLEND;
+			break;
 		}
+		boolean texturing = texture_mode != N3_NO_TEXTURE
+				&& !textures.isEmpty();
+		if (apply_material)
+			return new N3RenderState(render, renderFace, ambient_color,
+					diffuse_color, specular_color, emission_color, texturing,
+					mode, active_texture);
+		return new N3RenderState(render, renderFace, WHITE, WHITE, WHITE,
+				BLACK, texturing, mode, active_texture);
 	}
 
 	public void getPersistentResources(N3PersistentResourceList resources) {
@@ -145,6 +145,28 @@ public class N3Texture2D extends N3Texture {
 		saveLoaderFormatValue(render, dataFormat);
 	}
 
+	/**
+	 * Genera una textura vac�a en la que se puede dibujar, con
+	 * N3Render.setRenderTarget o con un N3RenderTarget de la escena.
+	 * 
+	 * @param width
+	 *            Anchura de la textura
+	 * @param height
+	 *            Altura de la textura
+	 * @param render
+	 *            Render para el que se genera la textura
+	 */
+	public void genRenderTarget(int width, int height, N3Render render) {
+		this.data = null;
+		this.dataFormat = render.N3_RGBA;
+		this.width = width;
+		this.height = height;
+		this.render = render;
+
+		this.id = render.genRenderTarget(width, height);
+		saveLoaderFormatValue(render, dataFormat);
+	}
+
 	public Element getXMLDescription(Document doc,
 			N3PersistentResourceList resources) {
 		Element result = super.getXMLDescription(doc, resources);
@@ -157,7 +179,9 @@ public class N3Texture2D extends N3Texture {
 
 		try {
 			FileOutputStream f = new FileOutputStream(name + ".texture.raw");
-			f.write(this.data);
+			// Las texturas de dibujado se guardan vac�as
+			f.write((this.data != null) ? this.data
+					: new byte[width * height * 4]);
 			f.close();
 
 			data = doc.createElement("filename");
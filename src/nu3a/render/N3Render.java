@@ -26,9 +26,11 @@ import java.awt.Component;
 import java.awt.Rectangle;
 
 import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point3D;
 import nu3a.geometry.N3VertexData;
 import nu3a.material.color.N3ColorData;
 import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
 import nu3a.material.texture.N3TexCoordData;
 import nu3a.material.texture.N3Texture;
 import nu3a.math.N3Matrix4D;
@@ -80,6 +82,14 @@ public abstract class N3Render {
 	public int N3_TRIANGLES_DATA;
 	public int N3_TRIANGLE_FAN_DATA;
 
+	/**
+	 * Tira de tri�ngulos: cada v�rtice a partir del tercero forma un tri�ngulo
+	 * con los dos anteriores, alternando el sentido para mantener la
+	 * orientaci�n. Los tri�ngulos con v�rtices repetidos (degenerados) se
+	 * descartan, lo que permite unir varias tiras en una sola llamada.
+	 */
+	public int N3_TRIANGLE_STRIP_DATA;
+
 	/**
 	 * Definen en que caras se aplican los materiales.
 	 */
@@ -153,6 +163,30 @@ public abstract class N3Render {
 	 */
 	protected boolean colorMaterial = false;
 
+	/**
+	 * �ltimo bloque de estado cuyos colores de material se han enviado al
+	 * render, o null si el estado del render es desconocido.
+	 */
+	protected N3RenderState currentState;
+
+	/**
+	 * �ltima textura seleccionada mediante un bloque de estado.
+	 */
+	protected N3Texture currentTexture;
+
+	// Indica si se est� aplicando un bloque de estado
+	private boolean applyingState;
+
+	/**
+	 * Contadores del frame en curso.
+	 */
+	protected N3RenderStats frameStats;
+
+	/**
+	 * Contadores del �ltimo frame completo.
+	 */
+	protected N3RenderStats lastFrameStats;
+
 	/**
 	 * Inversa de la transformaci�n de la camara.
 	 */
@@ -192,6 +226,8 @@ public abstract class N3Render {
 			this.renderComponent = renderComponent;
 			initialTransform = new N3Matrix4D();
 			tempMatrix = new N3Matrix4D();
+			frameStats = new N3RenderStats();
+			lastFrameStats = new N3RenderStats();
 		} else
 			throw (new N3CreateRenderException(
 					"Render component is not visible. Make it visible before create N3Render"));
@@ -228,6 +264,102 @@ public abstract class N3Render {
 	 */
 	abstract public void endDraw();
 
+	/**
+	 * Vuelve a mostrar en el componente la �ltima imagen dibujada, sin
+	 * dibujar de nuevo. La implementaci�n por defecto no hace nada.
+	 */
+	public void present() {
+	}
+
+	/**
+	 * Indica el comienzo de un nuevo frame. Los contadores del frame anterior
+	 * pasan a ser los que devuelve getStats y se empieza a contar de nuevo.
+	 */
+	public void beginFrame() {
+		lastFrameStats.setData(frameStats);
+		frameStats.reset();
+	}
+
+	/**
+	 * Obtiene los contadores del �ltimo frame completo.
+	 * 
+	 * @return Contadores del �ltimo frame
+	 */
+	public N3RenderStats getStats() {
+		return lastFrameStats;
+	}
+
+	/**
+	 * Obtiene los contadores del frame en curso.
+	 * 
+	 * @return Contadores del frame en curso
+	 */
+	public N3RenderStats getFrameStats() {
+		return frameStats;
+	}
+
+	/**
+	 * Aplica un bloque de estado. Si es el mismo bloque que se aplic� en
+	 * �ltimo lugar no se hace nada; si no, solo se env�an al render los
+	 * valores que difieren del estado actual.
+	 * 
+	 * Las llamadas directas a selectTexture o a los m�todos
+	 * setColorMaterial* no actualizan la copia del estado, por lo que tras
+	 * ellas hay que llamar a resetRenderState.
+	 * 
+	 * @param state
+	 *            Bloque de estado a aplicar
+	 */
+	public void applyRenderState(N3RenderState state) {
+		if (state == currentState) {
+			frameStats.countStateBlock(true);
+			return;
+		}
+		frameStats.countStateBlock(false);
+		applyingState = true;
+		boolean known = currentState != null;
+		if (!known || !colorMaterial) {
+			setColorMaterial(true);
+			frameStats.countStateChange();
+		}
+		if (!state.sameColors(currentState)) {
+			setColorMaterialAmbient(state.face, state.ambient);
+			setColorMaterialDiffuse(state.face, state.diffuse);
+			setColorMaterialSpecular(state.face, state.specular);
+			setColorMaterialEmission(state.face, state.emission);
+			frameStats.countStateChange();
+		}
+		if (state.texturing) {
+			if (!known || textureMode != state.textureMode) {
+				setTextureMode(state.textureMode);
+				frameStats.countStateChange();
+			}
+			if (!known || !texturing) {
+				setTexturing(true);
+				frameStats.countStateChange();
+			}
+			if (!known || currentTexture != state.texture) {
+				selectTexture(state.texture);
+				currentTexture = state.texture;
+				frameStats.countTextureBind();
+			}
+		} else if (!known || texturing) {
+			setTexturing(false);
+			frameStats.countStateChange();
+		}
+		applyingState = false;
+		currentState = state;
+	}
+
+	/**
+	 * Olvida la copia del estado del render, de forma que el siguiente bloque
+	 * de estado se aplica completo.
+	 */
+	public void resetRenderState() {
+		currentState = null;
+		currentTexture = null;
+	}
+
 	// ////Transformaci�n del espacio.
 	/**
 	 * Carga la matriz de transformaci�n con la matriz especificara.
@@ -422,6 +554,109 @@ public abstract class N3Render {
 			N3ColorData colorData, N3TexCoordData texCoordData,
 			N3NormalData normalData);
 
+	/**
+	 * Dibuja un lote de puntos sin iluminaci�n ni textura, con la
+	 * transformaci�n actual y el test de profundidad activo. Las coordenadas
+	 * se pasan en arrays separados para no tener que crear un objeto por
+	 * punto. La implementaci�n por defecto construye los datos de v�rtices y
+	 * colores y los dibuja con drawData, ignorando el tama�o.
+	 * 
+	 * @param x
+	 *            Coordenadas x de los puntos
+	 * @param y
+	 *            Coordenadas y de los puntos
+	 * @param z
+	 *            Coordenadas z de los puntos
+	 * @param colors
+	 *            Colores empaquetados de los puntos, en el formato de
+	 *            N3ColorRGBA.getPackedValue
+	 * @param count
+	 *            N�mero de puntos a dibujar
+	 * @param size
+	 *            Lado en p�xels del cuadrado con el que se dibuja cada punto
+	 */
+	public void drawPoints(float[] x, float[] y, float[] z, int[] colors,
+			int count, int size) {
+		N3VertexData vertexData = new N3VertexData();
+		N3ColorData colorData = new N3ColorData();
+		for (int i = 0; i < count; i++) {
+			int c = colors[i];
+			vertexData.addVertex(new N3Point3D(x[i], y[i], z[i]));
+			colorData.addColor(new N3ColorRGBA((c & 0xFF) / 255.0f,
+					((c >> 8) & 0xFF) / 255.0f, ((c >> 16) & 0xFF) / 255.0f,
+					(c >>> 24) / 255.0f));
+		}
+		vertexData.begin();
+		colorData.begin();
+		boolean lit = lighting;
+		setLighting(false);
+		drawData(vertexData, N3_POINTS_DATA, colorData);
+		setLighting(lit);
+	}
+
+	/**
+	 * Dibuja un rect�ngulo con la textura indicada orientado hacia la c�mara,
+	 * sin iluminaci�n y con el test de profundidad activo. El centro se da en
+	 * coordenadas del mundo, y los lados del rect�ngulo siguen los ejes x e
+	 * y de la c�mara. El texel (0, 0) queda en la esquina superior izquierda.
+	 * Los texels con alfa 0 no se dibujan si el render lo permite; la
+	 * implementaci�n por defecto dibuja dos tri�ngulos con drawData y no los
+	 * descarta.
+	 * 
+	 * @param texture
+	 *            Textura del rect�ngulo
+	 * @param x
+	 *            Coordenada x del centro
+	 * @param y
+	 *            Coordenada y del centro
+	 * @param z
+	 *            Coordenada z del centro
+	 * @param halfWidth
+	 *            Mitad de la anchura del rect�ngulo
+	 * @param halfHeight
+	 *            Mitad de la altura del rect�ngulo
+	 */
+	public void drawBillboard(N3Texture texture, float x, float y, float z,
+			float halfWidth, float halfHeight) {
+		float[] v = initialTransform.getMatrix();
+		float rx = v[0] * halfWidth, ry = v[4] * halfWidth, rz = v[8]
+				* halfWidth;
+		float ux = v[1] * halfHeight, uy = v[5] * halfHeight, uz = v[9]
+				* halfHeight;
+		N3Point3D tl = new N3Point3D(x - rx + ux, y - ry + uy, z - rz + uz);
+		N3Point3D bl = new N3Point3D(x - rx - ux, y - ry - uy, z - rz - uz);
+		N3Point3D br = new N3Point3D(x + rx - ux, y + ry - uy, z + rz - uz);
+		N3Point3D tr = new N3Point3D(x + rx + ux, y + ry + uy, z + rz + uz);
+		N3VertexData vertexData = new N3VertexData();
+		N3TexCoordData texCoordData = new N3TexCoordData();
+		N3ColorData colorData = new N3ColorData();
+		N3Point3D[] corners = { tl, bl, br, tl, br, tr };
+		float[] uv = { 0, 0, 0, 1, 1, 1, 0, 0, 1, 1, 1, 0 };
+		N3ColorRGBA white = new N3ColorRGBA(1, 1, 1);
+		for (int i = 0; i < 6; i++) {
+			vertexData.addVertex(corners[i]);
+			texCoordData.addTexCoord(new N3TexCoord2D(uv[i * 2], uv[i * 2 + 1]));
+			colorData.addColor(white);
+		}
+		vertexData.begin();
+		texCoordData.begin();
+		colorData.begin();
+		boolean lit = lighting;
+		boolean tex = texturing;
+		int mode = textureMode;
+		resetCameraTransformation();
+		setLighting(false);
+		setTexturing(true);
+		setTextureMode(N3_REPLACE);
+		selectTexture(texture);
+		drawData(vertexData, N3_TRIANGLES_DATA, colorData, texCoordData,
+				new N3NormalData());
+		setLighting(lit);
+		setTexturing(tex);
+		setTextureMode(mode);
+		resetRenderState();
+	}
+
 	// /////Texturas
 	/**
 	 * Permite activar y desactivar el render con texturas.
@@ -430,6 +665,8 @@ public abstract class N3Render {
 	 *            Indica si se activa o no el texturizado.
 	 */
 	public void setTexturing(boolean texturing) {
+		if (!applyingState && this.texturing != texturing)
+			currentState = null;
 		this.texturing = texturing;
 	}
 
@@ -447,6 +684,8 @@ public abstract class N3Render {
 	 *            Modo de textura
 	 */
 	public void setTextureMode(int mode) {
+		if (!applyingState && textureMode != mode)
+			currentState = null;
 		this.textureMode = mode;
 	}
 
@@ -501,6 +740,31 @@ public abstract class N3Render {
 	 */
 	abstract public void selectTexture(N3Texture texture);
 
+	/**
+	 * Crea una textura 2D en la que se puede dibujar con setRenderTarget. La
+	 * implementaci�n por defecto no lo soporta y devuelve -1.
+	 * 
+	 * @param width
+	 *            Anchura
+	 * @param height
+	 *            Altura
+	 * @return c�digo de la textura, o -1 si el render no lo soporta
+	 */
+	public int genRenderTarget(int width, int height) {
+		return -1;
+	}
+
+	/**
+	 * Establece d�nde se dibuja a continuaci�n: en una textura creada con
+	 * genRenderTarget, o en el componente si se indica null. La
+	 * implementaci�n por defecto no hace nada.
+	 * 
+	 * @param texture
+	 *            Textura en la que dibujar, o null para el componente
+	 */
+	public void setRenderTarget(N3Texture texture) {
+	}
+
 	/**
 	 * Establece las actuales coordenadas de textura.
 	 * 
@@ -519,6 +783,8 @@ public abstract class N3Render {
 	 *            para aplicarlos.
 	 */
 	public void setColorMaterial(boolean colorMaterial) {
+		if (!applyingState && this.colorMaterial != colorMaterial)
+			currentState = null;
 		this.colorMaterial = colorMaterial;
 	}
 
@@ -648,6 +914,22 @@ public abstract class N3Render {
 		return lighting;
 	}
 
+	/**
+	 * Indica al render que los datos de la siguiente llamada a drawData
+	 * pertenecen al objeto indicado, en la versi�n de geometr�a indicada. El
+	 * render puede guardar para ese objeto los colores iluminados de sus
+	 * v�rtices y reutilizarlos en los siguientes frames mientras no cambien la
+	 * geometr�a, la transformaci�n, el material o las luces. La implementaci�n
+	 * por defecto no hace nada.
+	 * 
+	 * @param key
+	 *            Objeto al que pertenecen los datos.
+	 * @param version
+	 *            Versi�n de la geometr�a del objeto.
+	 */
+	public void setLitColorCacheKey(Object key, int version) {
+	}
+
 	/**
 	 * Obtiene el m�ximo n�mero de luces que soporta el render.
 	 * 
@@ -703,4 +985,16 @@ public abstract class N3Render {
 	 *            N�mero de luz a desactivar.
 	 */
 	public abstract void disableLight(int n);
+
+	/**
+	 * Indica qu� luces activas afectan a los datos que se dibujen a
+	 * continuaci�n, sin modificar su estado: el bit n corresponde a la luz n.
+	 * El render puede saltarse las luces cuyo bit no est� activo. La
+	 * implementaci�n por defecto no hace nada.
+	 * 
+	 * @param mask
+	 *            M�scara de luces, -1 para todas.
+	 */
+	public void setLightMask(int mask) {
+	}
 }
@@ -0,0 +1,166 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render;
+
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3Texture;
+
+/**
+ * Bloque inmutable con el estado de render de un material: colores del
+ * material, modo de textura y textura activa. Los valores se expresan con las
+ * constantes del render para el que se ha compilado el bloque.
+ *
+ * Un bloque no cambia nunca una vez creado, por lo que el render puede
+ * compararlo por identidad con el ultimo bloque aplicado y, si es el mismo,
+ * no enviar ningun cambio. Los colores se copian al crear el bloque.
+ */
+public class N3RenderState {
+	/**
+	 * Render para el que se ha compilado el bloque.
+	 */
+	protected final N3Render render;
+
+	/**
+	 * Caras a las que se aplica el material, con las constantes del render.
+	 */
+	protected final int face;
+
+	protected final N3ColorRGBA ambient;
+
+	protected final N3ColorRGBA diffuse;
+
+	protected final N3ColorRGBA specular;
+
+	protected final N3ColorRGBA emission;
+
+	/**
+	 * Indica si el bloque activa el texturizado.
+	 */
+	protected final boolean texturing;
+
+	/**
+	 * Modo de textura, con las constantes del render.
+	 */
+	protected final int textureMode;
+
+	/**
+	 * Textura activa, o null si no hay texturizado.
+	 */
+	protected final N3Texture texture;
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param render
+	 *            Render para el que se compila el bloque
+	 * @param face
+	 *            Caras a las que se aplica el material
+	 * @param ambient
+	 *            Color ambiental del material. Se guarda una copia.
+	 * @param diffuse
+	 *            Color difuso del material. Se guarda una copia.
+	 * @param specular
+	 *            Color especular del material. Se guarda una copia.
+	 * @param emission
+	 *            Color de emision del material. Se guarda una copia.
+	 * @param texturing
+	 *            True si el bloque activa el texturizado
+	 * @param textureMode
+	 *            Modo de textura. Solo se usa si texturing es true.
+	 * @param texture
+	 *            Textura activa. Solo se usa si texturing es true.
+	 */
+	public N3RenderState(N3Render render, int face, N3ColorRGBA ambient,
+			N3ColorRGBA diffuse, N3ColorRGBA specular, N3ColorRGBA emission,
+			boolean texturing, int textureMode, N3Texture texture) {
+		this.render = render;
+		this.face = face;
+		this.ambient = copy(ambient);
+		this.diffuse = copy(diffuse);
+		this.specular = copy(specular);
+		this.emission = copy(emission);
+		this.texturing = texturing;
+		this.textureMode = texturing ? textureMode : 0;
+		this.texture = texturing ? texture : null;
+	}
+
+	private static N3ColorRGBA copy(N3ColorRGBA c) {
+		return new N3ColorRGBA(c.R, c.G, c.B, c.A);
+	}
+
+	private static boolean equals(N3ColorRGBA a, N3ColorRGBA b) {
+		return a.R == b.R && a.G == b.G && a.B == b.B && a.A == b.A;
+	}
+
+	/**
+	 * Indica si el bloque se ha compilado para el render indicado.
+	 *
+	 * @param render
+	 *            Render
+	 * @return True si el bloque pertenece al render
+	 */
+	public boolean isCompiledFor(N3Render render) {
+		return this.render == render;
+	}
+
+	/**
+	 * Indica si los colores del material de este bloque coinciden con los de
+	 * otro.
+	 *
+	 * @param s
+	 *            Bloque con el que comparar. Puede ser null.
+	 * @return True si las caras y los cuatro colores coinciden
+	 */
+	public boolean sameColors(N3RenderState s) {
+		return s != null && face == s.face && equals(ambient, s.ambient)
+				&& equals(diffuse, s.diffuse) && equals(specular, s.specular)
+				&& equals(emission, s.emission);
+	}
+
+	/**
+	 * Indica si el bloque activa el texturizado.
+	 *
+	 * @return True si el bloque activa el texturizado
+	 */
+	public boolean isTexturing() {
+		return texturing;
+	}
+
+	/**
+	 * Obtiene el modo de textura del bloque.
+	 *
+	 * @return Modo de textura, con las constantes del render
+	 */
+	public int getTextureMode() {
+		return textureMode;
+	}
+
+	/**
+	 * Obtiene la textura activa del bloque.
+	 *
+	 * @return Textura activa, o null si el bloque no activa el texturizado
+	 */
+	public N3Texture getTexture() {
+		return texture;
+	}
+}
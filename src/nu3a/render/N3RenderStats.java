@@ -0,0 +1,175 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render;
+
+/**
+ * Contadores de un render a lo largo de un frame: bloques de estado
+ * aplicados, bloques ignorados por ser iguales al actual, cambios de estado
+ * que llegan realmente al render, cambios de textura y llamadas de dibujo.
+ * Tambien guarda la escala de resolucion con la que se ha dibujado el frame.
+ */
+public class N3RenderStats {
+	protected int stateBlocks;
+
+	protected int redundantBlocks;
+
+	protected int stateChanges;
+
+	protected int textureBinds;
+
+	protected int drawCalls;
+
+	protected float resolutionScale = 1;
+
+	/**
+	 * Pone a cero todos los contadores.
+	 */
+	public void reset() {
+		stateBlocks = 0;
+		redundantBlocks = 0;
+		stateChanges = 0;
+		textureBinds = 0;
+		drawCalls = 0;
+		resolutionScale = 1;
+	}
+
+	/**
+	 * Copia los contadores de otra instancia.
+	 *
+	 * @param s
+	 *            Contadores a copiar
+	 */
+	public void setData(N3RenderStats s) {
+		stateBlocks = s.stateBlocks;
+		redundantBlocks = s.redundantBlocks;
+		stateChanges = s.stateChanges;
+		textureBinds = s.textureBinds;
+		drawCalls = s.drawCalls;
+		resolutionScale = s.resolutionScale;
+	}
+
+	/**
+	 * Cuenta un bloque de estado aplicado.
+	 *
+	 * @param redundant
+	 *            True si el bloque era el ya activo y no ha producido cambios
+	 */
+	public void countStateBlock(boolean redundant) {
+		stateBlocks++;
+		if (redundant)
+			redundantBlocks++;
+	}
+
+	/**
+	 * Cuenta un cambio de estado enviado al render.
+	 */
+	public void countStateChange() {
+		stateChanges++;
+	}
+
+	/**
+	 * Cuenta un cambio de la textura activa.
+	 */
+	public void countTextureBind() {
+		textureBinds++;
+		stateChanges++;
+	}
+
+	/**
+	 * Cuenta una llamada de dibujo.
+	 */
+	public void countDrawCall() {
+		drawCalls++;
+	}
+
+	/**
+	 * Establece la escala de resolucion con la que se dibuja el frame.
+	 *
+	 * @param scale
+	 *            Escala respecto a la resolucion del componente
+	 */
+	public void setResolutionScale(float scale) {
+		resolutionScale = scale;
+	}
+
+	/**
+	 * Obtiene el numero de bloques de estado aplicados.
+	 *
+	 * @return Numero de bloques aplicados
+	 */
+	public int getStateBlocks() {
+		return stateBlocks;
+	}
+
+	/**
+	 * Obtiene el numero de bloques que eran el ya activo.
+	 *
+	 * @return Numero de bloques redundantes
+	 */
+	public int getRedundantBlocks() {
+		return redundantBlocks;
+	}
+
+	/**
+	 * Obtiene el numero de cambios de estado enviados al render, incluidos
+	 * los cambios de textura.
+	 *
+	 * @return Numero de cambios de estado
+	 */
+	public int getStateChanges() {
+		return stateChanges;
+	}
+
+	/**
+	 * Obtiene el numero de cambios de la textura activa.
+	 *
+	 * @return Numero de cambios de textura
+	 */
+	public int getTextureBinds() {
+		return textureBinds;
+	}
+
+	/**
+	 * Obtiene el numero de llamadas de dibujo.
+	 *
+	 * @return Numero de llamadas de dibujo
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * Obtiene la escala de resolucion con la que se ha dibujado el frame.
+	 *
+	 * @return Escala respecto a la resolucion del componente
+	 */
+	public float getResolutionScale() {
+		return resolutionScale;
+	}
+
+	public String toString() {
+		return "blocks=" + stateBlocks + " redundant=" + redundantBlocks
+				+ " changes=" + stateChanges + " textures=" + textureBinds
+				+ " draws=" + drawCalls + " scale=" + resolutionScale;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render;
+
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Grupo de hilos que ejecuta en paralelo un conjunto fijo de tareas, una por
+ * hilo. Con una sola tarea no se crea ningun hilo y la tarea se ejecuta en
+ * el hilo que llama, por lo que antes de lanzar las tareas debe comprobarse
+ * si el grupo es paralelo. Los hilos son demonios y no impiden que termine
+ * la aplicacion.
+ */
+public class N3WorkerPool {
+	private String name;
+
+	private Vector tasks;
+
+	private ExecutorService executor;
+
+	/**
+	 * Constructor de la clase. Crea un grupo sin tareas.
+	 *
+	 * @param name
+	 *            Nombre de los hilos del grupo
+	 */
+	public N3WorkerPool(String name) {
+		this.name = name;
+		tasks = new Vector();
+	}
+
+	/**
+	 * Establece las tareas del grupo, que deben ser Callable. Detiene los
+	 * hilos de las tareas anteriores y, si hay mas de una tarea, crea un hilo
+	 * para cada una.
+	 *
+	 * @param tasks
+	 *            Tareas del grupo
+	 */
+	public void setTasks(Vector tasks) {
+		shutdown();
+		this.tasks = tasks;
+		if (tasks.size() > 1)
+			executor = newExecutor(name, tasks.size());
+	}
+
+	/**
+	 * Indica si las tareas se ejecutan en hilos propios.
+	 *
+	 * @return True si hay mas de una tarea
+	 */
+	public boolean isParallel() {
+		return executor != null;
+	}
+
+	/**
+	 * Ejecuta todas las tareas en los hilos del grupo y espera a que
+	 * terminen. Si el hilo que llama se interrumpe, conserva la
+	 * interrupcion y vuelve sin esperar.
+	 */
+	public void invokeAll() {
+		try {
+			executor.invokeAll(tasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Detiene los hilos del grupo cuando terminan sus tareas en curso.
+	 */
+	public void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Crea un ejecutor con el numero de hilos indicado. Los hilos son
+	 * demonios y llevan el nombre indicado.
+	 *
+	 * @param name
+	 *            Nombre de los hilos
+	 * @param threads
+	 *            Numero de hilos
+	 * @return Nuevo ejecutor
+	 */
+	public static ExecutorService newExecutor(final String name, int threads) {
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+}
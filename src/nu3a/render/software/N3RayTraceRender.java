@@ -0,0 +1,760 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render.software;
+
+import java.awt.Component;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3VertexData;
+import nu3a.material.color.N3ColorData;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
+import nu3a.material.texture.N3TexCoordData;
+import nu3a.material.texture.N3Texture;
+import nu3a.math.N3Matrix4D;
+import nu3a.math.N3Vector3D;
+import nu3a.render.N3WorkerPool;
+import nu3a.render.exception.N3CreateRenderException;
+
+/**
+ * Render software que dibuja los triangulos trazando rayos en lugar de
+ * rasterizarlos. Durante el frame los triangulos se transforman al espacio de
+ * la camara y se guardan junto con sus normales, colores, coordenadas de
+ * textura, material y textura. Al terminar el frame (o al cambiar de textura
+ * destino) se construye una jerarquia de volumenes envolventes con ellos y se
+ * lanza un rayo por pixel; cada impacto se ilumina con el mismo modelo que
+ * N3SoftwareLighting, pero por pixel y, si se activan las sombras, lanzando un
+ * rayo hacia cada luz.
+ *
+ * La pantalla se divide en bloques de TILE_SIZE x TILE_SIZE pixels que se
+ * reparten entre varios hilos. Los puntos y las lineas se siguen
+ * rasterizando; si se usa el z buffer, los triangulos solo los tapan cuando
+ * estan delante de ellos.
+ */
+public class N3RayTraceRender extends N3SoftwareRender {
+	/**
+	 * Lado en pixels de los bloques de pantalla.
+	 */
+	public static final int TILE_SIZE = 16;
+
+	// Separacion de los rayos de sombra respecto a la superficie
+	private static final float SHADOW_BIAS = 1e-3f;
+
+	/**
+	 * Jerarquia de los triangulos del frame.
+	 */
+	protected N3SoftwareBVH bvh;
+
+	/**
+	 * Numero de triangulos guardados.
+	 */
+	protected int triangleCount;
+
+	/**
+	 * Vertices de los triangulos en el espacio de la camara, de nueve en
+	 * nueve componentes.
+	 */
+	protected float[] verts;
+
+	/**
+	 * Normales de los vertices en el espacio de la camara, de nueve en nueve
+	 * componentes.
+	 */
+	protected float[] normals;
+
+	/**
+	 * Colores de los vertices, de doce en doce componentes.
+	 */
+	protected float[] colors;
+
+	/**
+	 * Coordenadas de textura de los vertices, de seis en seis componentes.
+	 */
+	protected float[] uvs;
+
+	/**
+	 * Caras descartadas de cada triangulo: 1 las traseras, -1 las delanteras
+	 * y 0 ninguna.
+	 */
+	protected int[] faces;
+
+	/**
+	 * Material de cada triangulo, o -1 si no se ilumina.
+	 */
+	protected int[] triMaterial;
+
+	/**
+	 * Textura de cada triangulo, o -1 si no tiene.
+	 */
+	protected int[] triTexture;
+
+	/**
+	 * Indica si la textura de cada triangulo sustituye a su color.
+	 */
+	protected boolean[] triReplace;
+
+	/**
+	 * Emision, ambiental, difuso y especular de cada material, de doce en
+	 * doce componentes.
+	 */
+	protected float[] materials;
+
+	/**
+	 * Mascara de luces de cada material.
+	 */
+	protected int[] masks;
+
+	/**
+	 * Numero de materiales guardados.
+	 */
+	protected int materialCount;
+
+	/**
+	 * Indica si se lanzan rayos de sombra.
+	 */
+	protected boolean shadows;
+
+	/**
+	 * Numero de hilos del trazado.
+	 */
+	protected int threads;
+
+	/**
+	 * Numero de triangulos trazados en el ultimo frame.
+	 */
+	protected int tracedTriangles;
+
+	// Vertices en curso de una tira, abanico o lista
+	private Object[] slotSource;
+
+	private float[] slotPos, slotNormal, slotColor, slotUV;
+
+	private N3Point3D point;
+
+	private N3Vector3D vector;
+
+	private float[] current;
+
+	// Estado de los datos en curso
+	private int drawMaterial, drawTexture, drawFaces;
+
+	private boolean drawReplace;
+
+	// Luces compiladas
+	private int lightCount;
+
+	private int[] bit;
+
+	private boolean[] spot;
+
+	private float[] posX, posY, posZ, dirX, dirY, dirZ, cutCos, kc, kl, kq;
+
+	private float[] ambR, ambG, ambB, difR, difG, difB, speR, speG, speB;
+
+	private float globalR, globalG, globalB;
+
+	// Proyeccion y destino del trazado
+	private float[] p;
+
+	private int width, height, tilesX, tilesY;
+
+	private int[] pixels;
+
+	private boolean depthTest;
+
+	private AtomicInteger nextTile;
+
+	private N3TileTracer[] tracers;
+
+	private N3WorkerPool pool;
+
+	/**
+	 * Constructor del render. Es necesario que el componente se este
+	 * mostrando en pantalla, de lo contrario no se puede crear el contexto y
+	 * se lanza una excepcion.
+	 *
+	 * @param renderComponent
+	 *            Componente sobre el que se realiza el render.
+	 * @param doubleBuffer
+	 *            Indica si se usa o no doble buffer.
+	 * @exception N3CreateRenderException
+	 *                Indica que se ha producido algun error en la creacion
+	 *                del render.
+	 */
+	public N3RayTraceRender(Component renderComponent, boolean doubleBuffer)
+			throws N3CreateRenderException {
+		super(renderComponent, doubleBuffer);
+		bvh = new N3SoftwareBVH();
+		ensureCapacity(256);
+		materials = new float[16 * 12];
+		masks = new int[16];
+		slotSource = new Object[3];
+		slotPos = new float[9];
+		slotNormal = new float[9];
+		slotColor = new float[12];
+		slotUV = new float[6];
+		point = new N3Point3D();
+		vector = new N3Vector3D();
+		current = new float[12];
+		p = new float[16];
+		nextTile = new AtomicInteger();
+		int n = N3SoftwareLighting.MAX_LIGHTS;
+		bit = new int[n];
+		spot = new boolean[n];
+		posX = new float[n];
+		posY = new float[n];
+		posZ = new float[n];
+		dirX = new float[n];
+		dirY = new float[n];
+		dirZ = new float[n];
+		cutCos = new float[n];
+		kc = new float[n];
+		kl = new float[n];
+		kq = new float[n];
+		ambR = new float[n];
+		ambG = new float[n];
+		ambB = new float[n];
+		difR = new float[n];
+		difG = new float[n];
+		difB = new float[n];
+		speR = new float[n];
+		speG = new float[n];
+		speB = new float[n];
+		pool = new N3WorkerPool("N3RayTraceRender");
+		setThreads(Runtime.getRuntime().availableProcessors());
+	}
+
+	public String getRenderInfo() {
+		return "Nu3A Ray Trace Render v0.1\n" + "====================\n"
+				+ "Supported extensions:\n" + "shadows\n";
+	}
+
+	/**
+	 * Establece el numero de hilos del trazado.
+	 *
+	 * @param threads
+	 *            Numero de hilos, 1 para trazar en el hilo que dibuja
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			threads = 1;
+		this.threads = threads;
+		tracers = new N3TileTracer[threads];
+		Vector tasks = new Vector(threads);
+		for (int i = 0; i < threads; i++) {
+			tracers[i] = new N3TileTracer();
+			tasks.add(tracers[i]);
+		}
+		pool.setTasks(tasks);
+	}
+
+	/**
+	 * Obtiene el numero de hilos del trazado.
+	 *
+	 * @return Numero de hilos
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Establece si se lanzan rayos de sombra. Con las sombras activadas, las
+	 * luces tapadas por otro triangulo solo aportan su termino ambiental.
+	 *
+	 * @param shadows
+	 *            True para lanzar rayos de sombra
+	 */
+	public void setShadows(boolean shadows) {
+		this.shadows = shadows;
+	}
+
+	/**
+	 * Indica si se lanzan rayos de sombra.
+	 *
+	 * @return True si se lanzan rayos de sombra
+	 */
+	public boolean isShadows() {
+		return shadows;
+	}
+
+	/**
+	 * Obtiene el numero de triangulos trazados en el ultimo frame.
+	 *
+	 * @return Numero de triangulos
+	 */
+	public int getTriangleCount() {
+		return tracedTriangles;
+	}
+
+	public void endDraw() {
+		trace();
+		super.endDraw();
+	}
+
+	public void setRenderTarget(N3Texture texture) {
+		// Lo dibujado hasta ahora es del destino anterior
+		trace();
+		super.setRenderTarget(texture);
+	}
+
+	public void clear() {
+		triangleCount = 0;
+		materialCount = 0;
+		super.clear();
+	}
+
+	public void drawData(N3VertexData vertexData, int dataType,
+			N3ColorData colorData, N3NormalData normalData) {
+		if (!isTriangleData(dataType)) {
+			super.drawData(vertexData, dataType, colorData, normalData);
+			return;
+		}
+		frameStats.countDrawCall();
+		setLitColorCacheKey(null, 0);
+		if (beginCapture(false))
+			capture(vertexData, colorData, normalData, null, dataType);
+	}
+
+	public void drawData(N3VertexData vertexData, int dataType,
+			N3ColorData colorData, N3TexCoordData texCoordData,
+			N3NormalData normalData) {
+		if (!isTriangleData(dataType)) {
+			super.drawData(vertexData, dataType, colorData, texCoordData,
+					normalData);
+			return;
+		}
+		frameStats.countDrawCall();
+		setLitColorCacheKey(null, 0);
+		if (beginCapture(texCoordData != null))
+			capture(vertexData, colorData, normalData, texCoordData, dataType);
+	}
+
+	private boolean isTriangleData(int dataType) {
+		return dataType == N3_TRIANGLES_DATA
+				|| dataType == N3_TRIANGLE_STRIP_DATA
+				|| dataType == N3_TRIANGLE_FAN_DATA;
+	}
+
+	// Toma el estado del render para los datos que se van a guardar.
+	// Devuelve false si no se dibuja ninguna cara.
+	private boolean beginCapture(boolean textured) {
+		if (!cull_facing)
+			drawFaces = 0;
+		else if (cullFace == N3_BACK_CULL)
+			drawFaces = 1;
+		else if (cullFace == N3_FRONT_CULL)
+			drawFaces = -1;
+		else
+			return false;
+		drawMaterial = lighting ? getMaterialId() : -1;
+		drawTexture = (textured && renderContext.texturing && renderContext.selectedTexture >= 0) ? renderContext.selectedTexture
+				: -1;
+		drawReplace = renderContext.textureMode == N3SoftwareRenderContext.N3_SWR_REPLACE;
+		return true;
+	}
+
+	// Identificador del material y la mascara de luces activos, anadiendolos
+	// a la tabla si no estaban
+	private int getMaterialId() {
+		lightingEngine.getMaterial(current);
+		int mask = lightingEngine.getLightMask();
+		for (int id = materialCount - 1; id >= 0; id--) {
+			int b = id * 12;
+			boolean equal = masks[id] == mask;
+			for (int i = 0; i < 12 && equal; i++)
+				equal = materials[b + i] == current[i];
+			if (equal)
+				return id;
+		}
+		if (materialCount == masks.length) {
+			float[] m = new float[materials.length * 2];
+			System.arraycopy(materials, 0, m, 0, materials.length);
+			materials = m;
+			int[] k = new int[masks.length * 2];
+			System.arraycopy(masks, 0, k, 0, masks.length);
+			masks = k;
+		}
+		System.arraycopy(current, 0, materials, materialCount * 12, 12);
+		masks[materialCount] = mask;
+		return materialCount++;
+	}
+
+	// Transforma y guarda los triangulos de una lista, tira o abanico. En
+	// tiras y abanicos los vertices ocupan las mismas posiciones que en
+	// drawStrip
+	private void capture(N3VertexData vertexData, N3ColorData colorData,
+			N3NormalData normalData, N3TexCoordData texCoordData, int dataType) {
+		boolean list = dataType == N3_TRIANGLES_DATA;
+		boolean fan = dataType == N3_TRIANGLE_FAN_DATA;
+		int k = 0;
+		while (vertexData.hasNext()) {
+			int slot = fan ? (k == 0 ? 0 : 1 + ((k - 1) & 1)) : k % 3;
+			N3Point3D t = (N3Point3D) vertexData.next();
+			slotSource[slot] = t;
+			point.x = t.x;
+			point.y = t.y;
+			point.z = t.z;
+			N3Matrix4D.mult(modelViewMatrix, point);
+			int s = slot * 3;
+			slotPos[s] = point.x;
+			slotPos[s + 1] = point.y;
+			slotPos[s + 2] = point.z;
+			N3Vector3D n = (N3Vector3D) normalData.next();
+			if (n != null) {
+				vector.x = n.x;
+				vector.y = n.y;
+				vector.z = n.z;
+				N3Matrix4D.mult(modelViewMatrix, vector);
+				float length = vector.length();
+				if (length > 0) {
+					vector.x /= length;
+					vector.y /= length;
+					vector.z /= length;
+				}
+				slotNormal[s] = vector.x;
+				slotNormal[s + 1] = vector.y;
+				slotNormal[s + 2] = vector.z;
+			} else
+				slotNormal[s] = slotNormal[s + 1] = slotNormal[s + 2] = 0;
+			N3ColorRGBA color = colorData.next();
+			slotColor[slot * 4] = color.R;
+			slotColor[slot * 4 + 1] = color.G;
+			slotColor[slot * 4 + 2] = color.B;
+			slotColor[slot * 4 + 3] = color.A;
+			if (texCoordData != null) {
+				N3TexCoord2D uv = texCoordData.next();
+				slotUV[slot * 2] = uv.u;
+				slotUV[slot * 2 + 1] = uv.v;
+			}
+			if (list) {
+				if (slot == 2)
+					addTriangle(0, 1, 2);
+			} else if (k >= 2) {
+				int a, b;
+				if (fan) {
+					a = 0;
+					b = 1 + (k & 1);
+				} else if ((k & 1) == 0) {
+					a = (k - 2) % 3;
+					b = (k - 1) % 3;
+				} else {
+					a = (k - 1) % 3;
+					b = (k - 2) % 3;
+				}
+				if (slotSource[a] != slotSource[b]
+						&& slotSource[b] != slotSource[slot]
+						&& slotSource[a] != slotSource[slot])
+					addTriangle(a, b, slot);
+			}
+			k++;
+		}
+	}
+
+	// Guarda el triangulo formado por los vertices en curso indicados
+	private void addTriangle(int a, int b, int c) {
+		if (triangleCount == faces.length)
+			ensureCapacity(faces.length * 2);
+		int i = triangleCount++;
+		copySlot(a, i, 0);
+		copySlot(b, i, 1);
+		copySlot(c, i, 2);
+		faces[i] = drawFaces;
+		triMaterial[i] = drawMaterial;
+		triTexture[i] = drawTexture;
+		triReplace[i] = drawReplace;
+	}
+
+	private void copySlot(int slot, int tri, int vertex) {
+		System.arraycopy(slotPos, slot * 3, verts, tri * 9 + vertex * 3, 3);
+		System.arraycopy(slotNormal, slot * 3, normals, tri * 9 + vertex * 3,
+				3);
+		System.arraycopy(slotColor, slot * 4, colors, tri * 12 + vertex * 4, 4);
+		System.arraycopy(slotUV, slot * 2, uvs, tri * 6 + vertex * 2, 2);
+	}
+
+	private void ensureCapacity(int n) {
+		float[] v = new float[n * 9];
+		float[] nr = new float[n * 9];
+		float[] c = new float[n * 12];
+		float[] t = new float[n * 6];
+		int[] f = new int[n];
+		int[] m = new int[n];
+		int[] x = new int[n];
+		boolean[] r = new boolean[n];
+		if (faces != null) {
+			System.arraycopy(verts, 0, v, 0, triangleCount * 9);
+			System.arraycopy(normals, 0, nr, 0, triangleCount * 9);
+			System.arraycopy(colors, 0, c, 0, triangleCount * 12);
+			System.arraycopy(uvs, 0, t, 0, triangleCount * 6);
+			System.arraycopy(faces, 0, f, 0, triangleCount);
+			System.arraycopy(triMaterial, 0, m, 0, triangleCount);
+			System.arraycopy(triTexture, 0, x, 0, triangleCount);
+			System.arraycopy(triReplace, 0, r, 0, triangleCount);
+		}
+		verts = v;
+		normals = nr;
+		colors = c;
+		uvs = t;
+		faces = f;
+		triMaterial = m;
+		triTexture = x;
+		triReplace = r;
+	}
+
+	/**
+	 * Traza los triangulos guardados sobre el destino de dibujado actual y
+	 * vacia la lista de triangulos.
+	 */
+	protected void trace() {
+		tracedTriangles = triangleCount;
+		if (triangleCount == 0)
+			return;
+		bvh.build(verts, faces, triangleCount);
+		System.arraycopy(projectionMatrix.getMatrix(), 0, p, 0, 16);
+		compileLights();
+		width = renderContext.width;
+		height = renderContext.height;
+		pixels = renderContext.pixels;
+		depthTest = renderContext.depthtest;
+		tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+		nextTile.set(0);
+		if (pool.isParallel())
+			pool.invokeAll();
+		else
+			tracers[0].call();
+		triangleCount = 0;
+		materialCount = 0;
+	}
+
+	// Copia las luces activas
+	private void compileLights() {
+		globalR = lightingEngine.ambientalLight.R;
+		globalG = lightingEngine.ambientalLight.G;
+		globalB = lightingEngine.ambientalLight.B;
+		lightCount = 0;
+		for (int i = 0; i < N3SoftwareLighting.MAX_LIGHTS; i++) {
+			N3SoftwareLight l = lightingEngine.lights[i];
+			if (!l.enable)
+				continue;
+			int k = lightCount++;
+			bit[k] = 1 << i;
+			posX[k] = l.pos.x;
+			posY[k] = l.pos.y;
+			posZ[k] = l.pos.z;
+			dirX[k] = l.dir.x;
+			dirY[k] = l.dir.y;
+			dirZ[k] = l.dir.z;
+			spot[k] = l.spotCutOff != 180.0f;
+			cutCos[k] = l.cosine;
+			kc[k] = l.Kc;
+			kl[k] = l.Kl;
+			kq[k] = l.Kq;
+			ambR[k] = l.ambiental.R;
+			ambG[k] = l.ambiental.G;
+			ambB[k] = l.ambiental.B;
+			difR[k] = l.diffuse.R;
+			difG[k] = l.diffuse.G;
+			difB[k] = l.diffuse.B;
+			speR[k] = l.specular.R * l.shininess;
+			speG[k] = l.specular.G * l.shininess;
+			speB[k] = l.specular.B * l.shininess;
+		}
+	}
+
+	/**
+	 * Tarea que traza bloques de pantalla hasta que no quedan. Cada hilo
+	 * tiene la suya, con su propia pila de recorrido.
+	 */
+	private class N3TileTracer implements Callable {
+		private int[] stack = new int[N3SoftwareBVH.STACK_SIZE];
+
+		private float[] hit = new float[3];
+
+		// Color iluminado del ultimo impacto
+		private float r, g, b;
+
+		public Object call() {
+			int count = tilesX * tilesY;
+			for (int t = nextTile.getAndIncrement(); t < count; t = nextTile
+					.getAndIncrement())
+				traceTile((t % tilesX) * TILE_SIZE, (t / tilesX) * TILE_SIZE);
+			return null;
+		}
+
+		// Traza el bloque cuya esquina es (tx, ty)
+		private void traceTile(int tx, int ty) {
+			int ex = Math.min(tx + TILE_SIZE, width);
+			int ey = Math.min(ty + TILE_SIZE, height);
+			float wn = p[11] * zNear + p[15];
+			float wf = p[11] * zFar + p[15];
+			for (int y = ty; y < ey; y++) {
+				float yn = 1 - y / hF;
+				float oy = (yn * wn - p[9] * zNear - p[13]) / p[5];
+				float dy = (yn * wf - p[9] * zFar - p[13]) / p[5] - oy;
+				for (int x = tx; x < ex; x++) {
+					// Rayo del plano cercano al lejano que pasa por el pixel
+					float xn = x / wF - 1;
+					float ox = (xn * wn - p[8] * zNear - p[12]) / p[0];
+					float dx = (xn * wf - p[8] * zFar - p[12]) / p[0] - ox;
+					float dz = zFar - zNear;
+					int tri = bvh.intersect(ox, oy, zNear, dx, dy, dz, 0, 1,
+							stack, hit);
+					if (tri < 0)
+						continue;
+					float t = hit[0];
+					float z = zNear + t * dz;
+					int pos = y * width + x;
+					if (depthTest
+							&& !renderContext.updateDepth(pos, projectDepth(0,
+									0, z, 1.0f / (p[11] * z + p[15]))))
+						continue;
+					pixels[pos] = shade(tri, ox + t * dx, oy + t * dy, z,
+							hit[1], hit[2]);
+				}
+			}
+		}
+
+		// Color del punto (vx, vy, vz) del triangulo, cuyas coordenadas
+		// baricentricas son (1 - u - v, u, v)
+		private int shade(int tri, float vx, float vy, float vz, float u,
+				float v) {
+			float w = 1 - u - v;
+			int c = tri * 12;
+			float cr = colors[c] * w + colors[c + 4] * u + colors[c + 8] * v;
+			float cg = colors[c + 1] * w + colors[c + 5] * u + colors[c + 9]
+					* v;
+			float cb = colors[c + 2] * w + colors[c + 6] * u + colors[c + 10]
+					* v;
+			float ca = colors[c + 3] * w + colors[c + 7] * u + colors[c + 11]
+					* v;
+			int m = triMaterial[tri];
+			if (m >= 0) {
+				int n = tri * 9;
+				float nx = normals[n] * w + normals[n + 3] * u + normals[n + 6]
+						* v;
+				float ny = normals[n + 1] * w + normals[n + 4] * u
+						+ normals[n + 7] * v;
+				float nz = normals[n + 2] * w + normals[n + 5] * u
+						+ normals[n + 8] * v;
+				float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length > 0) {
+					nx /= length;
+					ny /= length;
+					nz /= length;
+				}
+				light(m, vx, vy, vz, nx, ny, nz);
+				cr = r;
+				cg = g;
+				cb = b;
+			}
+			int tex = triTexture[tri];
+			if (tex >= 0) {
+				int tw = renderContext.getTextureWidth(tex);
+				int th = renderContext.getTextureHeight(tex);
+				int uv = tri * 6;
+				int tu = (int) ((uvs[uv] * w + uvs[uv + 2] * u + uvs[uv + 4]
+						* v) * (tw - 1));
+				int tv = (int) ((uvs[uv + 1] * w + uvs[uv + 3] * u + uvs[uv + 5]
+						* v) * (th - 1));
+				tu = (tu < 0) ? 0 : (tu >= tw) ? tw - 1 : tu;
+				tv = (tv < 0) ? 0 : (tv >= th) ? th - 1 : tv;
+				int texel = renderContext.getTexels(tex)[tu + tv * tw];
+				if (triReplace[tri])
+					return texel;
+				return (int) ((texel & 0xFF) * cr)
+						| ((int) (((texel >> 8) & 0xFF) * cg) << 8)
+						| ((int) (((texel >> 16) & 0xFF) * cb) << 16)
+						| ((int) ((texel >>> 24) * ca) << 24);
+			}
+			return (int) (255 * cr) | ((int) (255 * cg) << 8)
+					| ((int) (255 * cb) << 16) | ((int) (255 * ca) << 24);
+		}
+
+		// Ilumina un punto con el material indicado, como
+		// N3SoftwareLighting.shade, dejando el resultado en r, g y b
+		private void light(int m, float vx, float vy, float vz, float nx,
+				float ny, float nz) {
+			int mb = m * 12;
+			int mask = masks[m];
+			r = materials[mb] + materials[mb + 3] * globalR;
+			g = materials[mb + 1] + materials[mb + 4] * globalG;
+			b = materials[mb + 2] + materials[mb + 5] * globalB;
+			for (int k = 0; k < lightCount; k++) {
+				if ((mask & bit[k]) == 0)
+					continue;
+				float lx = posX[k] - vx;
+				float ly = posY[k] - vy;
+				float lz = posZ[k] - vz;
+				float dist2 = lx * lx + ly * ly + lz * lz;
+				float dist = (float) Math.sqrt(dist2);
+				float dx = lx, dy = ly, dz = lz;
+				if (dist != 0.0f) {
+					float inv = 1.0f / dist;
+					dx *= inv;
+					dy *= inv;
+					dz *= inv;
+				}
+				float spotEffect = 1.0f;
+				if (spot[k]) {
+					spotEffect = -(dx * dirX[k] + dy * dirY[k] + dz * dirZ[k]);
+					if (spotEffect < 0 || spotEffect < cutCos[k])
+						continue;
+				}
+				float contrF = spotEffect
+						/ (kc[k] + kl[k] * dist + kq[k] * dist2);
+				float tr = materials[mb + 3] * ambR[k];
+				float tg = materials[mb + 4] * ambG[k];
+				float tb = materials[mb + 5] * ambB[k];
+				float diff = dx * nx + dy * ny + dz * nz;
+				if (diff > 0
+						&& !(shadows && dist > SHADOW_BIAS && bvh.occluded(vx,
+								vy, vz, lx, ly, lz, SHADOW_BIAS / dist,
+								1 - SHADOW_BIAS / dist, stack))) {
+					tr += diff * materials[mb + 6] * difR[k];
+					tg += diff * materials[mb + 7] * difG[k];
+					tb += diff * materials[mb + 8] * difB[k];
+					float spec = dx * nx + dy * ny + (dz + 1.0f) * nz;
+					if (spec > 0) {
+						tr += spec * materials[mb + 9] * speR[k];
+						tg += spec * materials[mb + 10] * speG[k];
+						tb += spec * materials[mb + 11] * speB[k];
+					}
+				}
+				r += contrF * tr;
+				g += contrF * tg;
+				b += contrF * tb;
+			}
+			if (r > 1.0f)
+				r = 1.0f;
+			if (g > 1.0f)
+				g = 1.0f;
+			if (b > 1.0f)
+				b = 1.0f;
+		}
+	}
+}
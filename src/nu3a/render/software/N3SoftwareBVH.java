@@ -0,0 +1,520 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render.software;
+
+/**
+ * Jerarquia de volumenes envolventes (BVH) sobre un conjunto de triangulos,
+ * para lanzar rayos contra ellos. Los nodos son cajas alineadas con los ejes
+ * y se dividen por el eje mas largo de los centros de sus triangulos, en el
+ * punto que minimiza la heuristica de area de superficie (SAH) evaluada en
+ * BINS intervalos.
+ *
+ * Todos los datos se guardan en arrays planos. Una vez construida, la
+ * jerarquia solo se lee, de modo que varios hilos pueden lanzar rayos a la
+ * vez si cada uno usa su propia pila.
+ */
+public class N3SoftwareBVH {
+	/**
+	 * Numero de intervalos en los que se evalua la division de cada nodo.
+	 */
+	public static final int BINS = 12;
+
+	/**
+	 * Numero de triangulos por debajo del cual un nodo no se divide.
+	 */
+	public static final int LEAF_SIZE = 4;
+
+	/**
+	 * Profundidad maxima de la pila de recorrido.
+	 */
+	public static final int STACK_SIZE = 64;
+
+	// Distancia minima de los impactos, para no chocar con el origen
+	private static final float EPSILON = 1e-6f;
+
+	/**
+	 * Numero de triangulos.
+	 */
+	protected int count;
+
+	/**
+	 * Vertice inicial y dos aristas de cada triangulo, de nueve en nueve
+	 * componentes y en el orden de las hojas.
+	 */
+	protected float[] tris;
+
+	/**
+	 * Indice original de cada triangulo, en el orden de las hojas.
+	 */
+	protected int[] order;
+
+	/**
+	 * Caras que se descartan de cada triangulo: 1 las traseras, -1 las
+	 * delanteras y 0 ninguna.
+	 */
+	protected int[] cull;
+
+	/**
+	 * Caja de cada nodo, de seis en seis componentes (minimo y maximo).
+	 */
+	protected float[] bounds;
+
+	/**
+	 * Datos de cada nodo, de dos en dos: en los nodos internos el indice del
+	 * primer hijo (el segundo es el siguiente) y 0; en las hojas el primer
+	 * triangulo y el numero de triangulos.
+	 */
+	protected int[] nodes;
+
+	/**
+	 * Numero de nodos.
+	 */
+	protected int nodeCount;
+
+	// Datos auxiliares de la construccion
+	private float[] box, center;
+
+	private int[] binCount;
+
+	private float[] binBox, rightArea;
+
+	/**
+	 * Construye la jerarquia para los triangulos indicados.
+	 *
+	 * @param verts
+	 *            Vertices de los triangulos, de nueve en nueve componentes
+	 * @param faces
+	 *            Caras descartadas de cada triangulo: 1 las traseras, -1 las
+	 *            delanteras y 0 ninguna
+	 * @param n
+	 *            Numero de triangulos
+	 */
+	public void build(float[] verts, int[] faces, int n) {
+		count = n;
+		if (order == null || order.length < n) {
+			int size = Math.max(n, 16);
+			order = new int[size];
+			tris = new float[size * 9];
+			cull = new int[size];
+			box = new float[size * 6];
+			center = new float[size * 3];
+			bounds = new float[size * 12];
+			nodes = new int[size * 4];
+		}
+		if (binCount == null) {
+			binCount = new int[BINS];
+			binBox = new float[BINS * 6];
+			rightArea = new float[BINS];
+		}
+		for (int i = 0; i < n; i++) {
+			int v = i * 9;
+			int b = i * 6;
+			for (int a = 0; a < 3; a++) {
+				float p0 = verts[v + a], p1 = verts[v + 3 + a], p2 = verts[v
+						+ 6 + a];
+				float min = Math.min(p0, Math.min(p1, p2));
+				float max = Math.max(p0, Math.max(p1, p2));
+				box[b + a] = min;
+				box[b + 3 + a] = max;
+				center[i * 3 + a] = (min + max) * 0.5f;
+			}
+			order[i] = i;
+		}
+		nodeCount = 1;
+		if (n > 0)
+			split(0, 0, n);
+		// Los triangulos se copian en el orden de las hojas
+		for (int i = 0; i < n; i++) {
+			int v = order[i] * 9;
+			int t = i * 9;
+			for (int a = 0; a < 3; a++) {
+				tris[t + a] = verts[v + a];
+				tris[t + 3 + a] = verts[v + 3 + a] - verts[v + a];
+				tris[t + 6 + a] = verts[v + 6 + a] - verts[v + a];
+			}
+			cull[i] = faces[order[i]];
+		}
+	}
+
+	/**
+	 * Obtiene el numero de nodos de la jerarquia.
+	 *
+	 * @return Numero de nodos
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Obtiene el numero de triangulos de la jerarquia.
+	 *
+	 * @return Numero de triangulos
+	 */
+	public int getTriangleCount() {
+		return count;
+	}
+
+	// Construye el nodo indicado con los triangulos [first, first + n)
+	private void split(int node, int first, int n) {
+		float[] b = bounds;
+		int nb = node * 6;
+		float cminX = Float.MAX_VALUE, cminY = Float.MAX_VALUE, cminZ = Float.MAX_VALUE;
+		float cmaxX = -Float.MAX_VALUE, cmaxY = -Float.MAX_VALUE, cmaxZ = -Float.MAX_VALUE;
+		for (int a = 0; a < 3; a++) {
+			b[nb + a] = Float.MAX_VALUE;
+			b[nb + 3 + a] = -Float.MAX_VALUE;
+		}
+		for (int i = first; i < first + n; i++) {
+			int t = order[i];
+			int tb = t * 6;
+			for (int a = 0; a < 3; a++) {
+				if (box[tb + a] < b[nb + a])
+					b[nb + a] = box[tb + a];
+				if (box[tb + 3 + a] > b[nb + 3 + a])
+					b[nb + 3 + a] = box[tb + 3 + a];
+			}
+			float cx = center[t * 3], cy = center[t * 3 + 1], cz = center[t * 3 + 2];
+			cminX = Math.min(cminX, cx);
+			cmaxX = Math.max(cmaxX, cx);
+			cminY = Math.min(cminY, cy);
+			cmaxY = Math.max(cmaxY, cy);
+			cminZ = Math.min(cminZ, cz);
+			cmaxZ = Math.max(cmaxZ, cz);
+		}
+		if (n <= LEAF_SIZE) {
+			leaf(node, first, n);
+			return;
+		}
+		int axis = 0;
+		float cmin = cminX, extent = cmaxX - cminX;
+		if (cmaxY - cminY > extent) {
+			axis = 1;
+			cmin = cminY;
+			extent = cmaxY - cminY;
+		}
+		if (cmaxZ - cminZ > extent) {
+			axis = 2;
+			cmin = cminZ;
+			extent = cmaxZ - cminZ;
+		}
+		if (extent <= 0) {
+			// Todos los centros coinciden: no hay division posible
+			leaf(node, first, n);
+			return;
+		}
+		// Reparto de los triangulos en intervalos
+		float scale = BINS / extent;
+		for (int i = 0; i < BINS; i++) {
+			binCount[i] = 0;
+			for (int a = 0; a < 3; a++) {
+				binBox[i * 6 + a] = Float.MAX_VALUE;
+				binBox[i * 6 + 3 + a] = -Float.MAX_VALUE;
+			}
+		}
+		for (int i = first; i < first + n; i++) {
+			int t = order[i];
+			int k = bin(center[t * 3 + axis], cmin, scale);
+			binCount[k]++;
+			int tb = t * 6, kb = k * 6;
+			for (int a = 0; a < 3; a++) {
+				if (box[tb + a] < binBox[kb + a])
+					binBox[kb + a] = box[tb + a];
+				if (box[tb + 3 + a] > binBox[kb + 3 + a])
+					binBox[kb + 3 + a] = box[tb + 3 + a];
+			}
+		}
+		// Areas acumuladas desde la derecha y barrido desde la izquierda
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+		for (int i = BINS - 1; i > 0; i--) {
+			int kb = i * 6;
+			if (binCount[i] > 0) {
+				minX = Math.min(minX, binBox[kb]);
+				minY = Math.min(minY, binBox[kb + 1]);
+				minZ = Math.min(minZ, binBox[kb + 2]);
+				maxX = Math.max(maxX, binBox[kb + 3]);
+				maxY = Math.max(maxY, binBox[kb + 4]);
+				maxZ = Math.max(maxZ, binBox[kb + 5]);
+			}
+			rightArea[i] = area(minX, minY, minZ, maxX, maxY, maxZ);
+		}
+		minX = minY = minZ = Float.MAX_VALUE;
+		maxX = maxY = maxZ = -Float.MAX_VALUE;
+		int left = 0, bestSplit = -1;
+		float bestCost = Float.MAX_VALUE;
+		for (int i = 0; i < BINS - 1; i++) {
+			int kb = i * 6;
+			if (binCount[i] > 0) {
+				minX = Math.min(minX, binBox[kb]);
+				minY = Math.min(minY, binBox[kb + 1]);
+				minZ = Math.min(minZ, binBox[kb + 2]);
+				maxX = Math.max(maxX, binBox[kb + 3]);
+				maxY = Math.max(maxY, binBox[kb + 4]);
+				maxZ = Math.max(maxZ, binBox[kb + 5]);
+			}
+			left += binCount[i];
+			if (left == 0 || left == n)
+				continue;
+			float cost = area(minX, minY, minZ, maxX, maxY, maxZ) * left
+					+ rightArea[i + 1] * (n - left);
+			if (cost < bestCost) {
+				bestCost = cost;
+				bestSplit = i;
+			}
+		}
+		int mid;
+		if (bestSplit < 0)
+			mid = first + n / 2;
+		else {
+			// Particion de los indices segun el intervalo de su centro
+			int i = first, j = first + n - 1;
+			while (i <= j) {
+				if (bin(center[order[i] * 3 + axis], cmin, scale) <= bestSplit)
+					i++;
+				else {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j--] = tmp;
+				}
+			}
+			mid = i;
+		}
+		int child = nodeCount;
+		nodeCount += 2;
+		nodes[node * 2] = child;
+		nodes[node * 2 + 1] = 0;
+		split(child, first, mid - first);
+		split(child + 1, mid, first + n - mid);
+	}
+
+	private static int bin(float c, float min, float scale) {
+		int k = (int) ((c - min) * scale);
+		return (k >= BINS) ? BINS - 1 : (k < 0 ? 0 : k);
+	}
+
+	private static float area(float minX, float minY, float minZ, float maxX,
+			float maxY, float maxZ) {
+		if (minX > maxX)
+			return 0;
+		float x = maxX - minX, y = maxY - minY, z = maxZ - minZ;
+		return x * y + y * z + z * x;
+	}
+
+	private void leaf(int node, int first, int n) {
+		nodes[node * 2] = first;
+		nodes[node * 2 + 1] = n;
+	}
+
+	// Distancia a la que el rayo entra en la caja de un nodo, o
+	// Float.MAX_VALUE si no la corta antes de tMax
+	private float enter(int node, float ox, float oy, float oz, float ix,
+			float iy, float iz, float tMax) {
+		int b = node * 6;
+		float t0 = (bounds[b] - ox) * ix, t1 = (bounds[b + 3] - ox) * ix;
+		float near = Math.min(t0, t1), far = Math.max(t0, t1);
+		t0 = (bounds[b + 1] - oy) * iy;
+		t1 = (bounds[b + 4] - oy) * iy;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		t0 = (bounds[b + 2] - oz) * iz;
+		t1 = (bounds[b + 5] - oz) * iz;
+		near = Math.max(near, Math.min(t0, t1));
+		far = Math.min(far, Math.max(t0, t1));
+		if (far < near || far < 0 || near > tMax)
+			return Float.MAX_VALUE;
+		return near;
+	}
+
+	/**
+	 * Busca el triangulo mas cercano que corta un rayo.
+	 *
+	 * @param ox
+	 *            Coordenada x del origen
+	 * @param oy
+	 *            Coordenada y del origen
+	 * @param oz
+	 *            Coordenada z del origen
+	 * @param dx
+	 *            Componente x de la direccion
+	 * @param dy
+	 *            Componente y de la direccion
+	 * @param dz
+	 *            Componente z de la direccion
+	 * @param tMin
+	 *            Distancia minima del impacto, en unidades de la direccion
+	 * @param tMax
+	 *            Distancia maxima del impacto, en unidades de la direccion
+	 * @param stack
+	 *            Pila de recorrido de STACK_SIZE elementos, propia de cada
+	 *            hilo
+	 * @param hit
+	 *            Array en el que se deja la distancia y las coordenadas
+	 *            baricentricas u y v del impacto
+	 * @return Indice original del triangulo, o -1 si el rayo no corta
+	 *         ninguno
+	 */
+	public int intersect(float ox, float oy, float oz, float dx, float dy,
+			float dz, float tMin, float tMax, int[] stack, float[] hit) {
+		if (count == 0)
+			return -1;
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		int result = -1;
+		float best = tMax;
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (enter(node, ox, oy, oz, ix, iy, iz, best) == Float.MAX_VALUE)
+				continue;
+			int n = nodes[node * 2 + 1];
+			if (n == 0) {
+				// Se visita primero el hijo que el rayo corta antes
+				int child = nodes[node * 2];
+				float t0 = enter(child, ox, oy, oz, ix, iy, iz, best);
+				float t1 = enter(child + 1, ox, oy, oz, ix, iy, iz, best);
+				if (t0 <= t1) {
+					if (t1 != Float.MAX_VALUE)
+						stack[sp++] = child + 1;
+					if (t0 != Float.MAX_VALUE)
+						stack[sp++] = child;
+				} else {
+					if (t0 != Float.MAX_VALUE)
+						stack[sp++] = child;
+					stack[sp++] = child + 1;
+				}
+				continue;
+			}
+			int first = nodes[node * 2];
+			for (int i = first; i < first + n; i++) {
+				int t = i * 9;
+				float e1x = tris[t + 3], e1y = tris[t + 4], e1z = tris[t + 5];
+				float e2x = tris[t + 6], e2y = tris[t + 7], e2z = tris[t + 8];
+				float px = dy * e2z - dz * e2y;
+				float py = dz * e2x - dx * e2z;
+				float pz = dx * e2y - dy * e2x;
+				float det = e1x * px + e1y * py + e1z * pz;
+				// Con det positivo el rayo ve la cara delantera
+				int c = cull[i];
+				if ((c == 1 && det <= EPSILON) || (c == -1 && det >= -EPSILON)
+						|| (c == 0 && det > -EPSILON && det < EPSILON))
+					continue;
+				float inv = 1 / det;
+				float sx = ox - tris[t], sy = oy - tris[t + 1], sz = oz
+						- tris[t + 2];
+				float u = (sx * px + sy * py + sz * pz) * inv;
+				if (u < 0 || u > 1)
+					continue;
+				float qx = sy * e1z - sz * e1y;
+				float qy = sz * e1x - sx * e1z;
+				float qz = sx * e1y - sy * e1x;
+				float v = (dx * qx + dy * qy + dz * qz) * inv;
+				if (v < 0 || u + v > 1)
+					continue;
+				float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+				if (d > tMin && d < best) {
+					best = d;
+					result = i;
+					hit[1] = u;
+					hit[2] = v;
+				}
+			}
+		}
+		if (result < 0)
+			return -1;
+		hit[0] = best;
+		return order[result];
+	}
+
+	/**
+	 * Indica si algun triangulo corta un segmento, sin buscar el mas
+	 * cercano. No se descarta ninguna cara.
+	 *
+	 * @param ox
+	 *            Coordenada x del origen
+	 * @param oy
+	 *            Coordenada y del origen
+	 * @param oz
+	 *            Coordenada z del origen
+	 * @param dx
+	 *            Componente x de la direccion
+	 * @param dy
+	 *            Componente y de la direccion
+	 * @param dz
+	 *            Componente z de la direccion
+	 * @param tMin
+	 *            Distancia minima del impacto, en unidades de la direccion
+	 * @param tMax
+	 *            Longitud del segmento, en unidades de la direccion
+	 * @param stack
+	 *            Pila de recorrido de STACK_SIZE elementos, propia de cada
+	 *            hilo
+	 * @return True si algun triangulo corta el segmento
+	 */
+	public boolean occluded(float ox, float oy, float oz, float dx, float dy,
+			float dz, float tMin, float tMax, int[] stack) {
+		if (count == 0)
+			return false;
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		int sp = 0;
+		stack[sp++] = 0;
+		while (sp > 0) {
+			int node = stack[--sp];
+			if (enter(node, ox, oy, oz, ix, iy, iz, tMax) == Float.MAX_VALUE)
+				continue;
+			int n = nodes[node * 2 + 1];
+			if (n == 0) {
+				stack[sp++] = nodes[node * 2] + 1;
+				stack[sp++] = nodes[node * 2];
+				continue;
+			}
+			int first = nodes[node * 2];
+			for (int i = first; i < first + n; i++) {
+				int t = i * 9;
+				float e1x = tris[t + 3], e1y = tris[t + 4], e1z = tris[t + 5];
+				float e2x = tris[t + 6], e2y = tris[t + 7], e2z = tris[t + 8];
+				float px = dy * e2z - dz * e2y;
+				float py = dz * e2x - dx * e2z;
+				float pz = dx * e2y - dy * e2x;
+				float det = e1x * px + e1y * py + e1z * pz;
+				if (det > -EPSILON && det < EPSILON)
+					continue;
+				float inv = 1 / det;
+				float sx = ox - tris[t], sy = oy - tris[t + 1], sz = oz
+						- tris[t + 2];
+				float u = (sx * px + sy * py + sz * pz) * inv;
+				if (u < 0 || u > 1)
+					continue;
+				float qx = sy * e1z - sz * e1y;
+				float qy = sz * e1x - sx * e1z;
+				float qz = sx * e1y - sy * e1x;
+				float v = (dx * qx + dy * qy + dz * qz) * inv;
+				if (v < 0 || u + v > 1)
+					continue;
+				float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+				if (d > tMin && d < tMax)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,534 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render.software;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu3a.math.N3Matrix4D;
+import nu3a.render.N3WorkerPool;
+
+/**
+ * Pasada de iluminacion diferida del render software. Durante el dibujado los
+ * triangulos iluminados no se iluminan por vertice: el contexto guarda por
+ * pixel la profundidad, la normal empaquetada, el albedo y un identificador
+ * de material (el G-buffer). Al terminar el frame esta clase ilumina una sola
+ * vez cada pixel visible, con el mismo modelo que N3SoftwareLighting.
+ *
+ * La pantalla se divide en bloques de TILE_SIZE x TILE_SIZE pixels. Para cada
+ * luz se calcula el radio a partir del cual su atenuacion la hace
+ * despreciable, y su esfera (la del cono en los focos) se proyecta en
+ * pantalla; cada bloque solo evalua las luces cuya esfera cubre el bloque y
+ * el rango de profundidades de sus pixels. Los bloques se reparten entre
+ * varios hilos.
+ */
+public class N3SoftwareDeferred {
+	/**
+	 * Lado en pixels de los bloques de pantalla.
+	 */
+	public static final int TILE_SIZE = 16;
+
+	/**
+	 * Numero maximo de materiales distintos por frame. El identificador 0 se
+	 * reserva para los pixels que no se iluminan.
+	 */
+	public static final int MAX_MATERIALS = 256;
+
+	// Intensidad por debajo de la cual se desprecia una luz
+	private static final float THRESHOLD = 1.0f / 256.0f;
+
+	/**
+	 * Contexto en el que se guarda el G-buffer.
+	 */
+	protected N3SoftwareRenderContext context;
+
+	/**
+	 * Motor de iluminacion del que se toman las luces y los materiales.
+	 */
+	protected N3SoftwareLighting lighting;
+
+	/**
+	 * Emision, ambiental, difuso y especular de cada material del frame, de
+	 * doce en doce componentes.
+	 */
+	protected float[] materials;
+
+	/**
+	 * Mascara de luces de cada material del frame.
+	 */
+	protected int[] masks;
+
+	/**
+	 * Numero de materiales del frame, incluido el 0.
+	 */
+	protected int materialCount;
+
+	/**
+	 * Numero de hilos de la pasada de iluminacion.
+	 */
+	protected int threads;
+
+	/**
+	 * Numero de parejas luz-bloque evaluadas en el ultimo frame.
+	 */
+	protected int lightTiles;
+
+	// Luces compiladas del frame
+	private int lightCount;
+
+	private float[] posX, posY, posZ, dirX, dirY, dirZ, cutCos, kc, kl, kq;
+
+	// Cuadrado de la distancia de alcance de cada luz
+	private float[] reach;
+
+	// Bit de cada luz en las mascaras de luces
+	private int[] bit;
+
+	private boolean[] spot;
+
+	private float[] ambR, ambG, ambB, difR, difG, difB, speR, speG, speB;
+
+	// Caja de cada luz en pantalla y rango de profundidad de su esfera
+	private int[] minX, maxX, minY, maxY;
+
+	private float[] minZ, maxZ;
+
+	// Luz ambiental global
+	private float globalR, globalG, globalB;
+
+	// Proyeccion y factores de pantalla
+	private float[] p;
+
+	private float wF, hF;
+
+	private int tilesX, tilesY;
+
+	private AtomicInteger nextTile;
+
+	private AtomicInteger pairs;
+
+	private N3TileShader[] shaders;
+
+	private N3WorkerPool pool;
+
+	private float[] current;
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param context
+	 *            Contexto en el que se guarda el G-buffer
+	 * @param lighting
+	 *            Motor de iluminacion del render
+	 */
+	public N3SoftwareDeferred(N3SoftwareRenderContext context,
+			N3SoftwareLighting lighting) {
+		this.context = context;
+		this.lighting = lighting;
+		materials = new float[MAX_MATERIALS * 12];
+		masks = new int[MAX_MATERIALS];
+		materialCount = 1;
+		current = new float[12];
+		p = new float[16];
+		nextTile = new AtomicInteger();
+		pairs = new AtomicInteger();
+		int n = N3SoftwareLighting.MAX_LIGHTS;
+		posX = new float[n];
+		posY = new float[n];
+		posZ = new float[n];
+		dirX = new float[n];
+		dirY = new float[n];
+		dirZ = new float[n];
+		cutCos = new float[n];
+		kc = new float[n];
+		kl = new float[n];
+		kq = new float[n];
+		reach = new float[n];
+		bit = new int[n];
+		spot = new boolean[n];
+		ambR = new float[n];
+		ambG = new float[n];
+		ambB = new float[n];
+		difR = new float[n];
+		difG = new float[n];
+		difB = new float[n];
+		speR = new float[n];
+		speG = new float[n];
+		speB = new float[n];
+		minX = new int[n];
+		maxX = new int[n];
+		minY = new int[n];
+		maxY = new int[n];
+		minZ = new float[n];
+		maxZ = new float[n];
+		pool = new N3WorkerPool("N3SoftwareDeferred");
+		setThreads(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Establece el numero de hilos de la pasada de iluminacion.
+	 *
+	 * @param threads
+	 *            Numero de hilos, 1 para iluminar en el hilo que dibuja
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			threads = 1;
+		this.threads = threads;
+		shaders = new N3TileShader[threads];
+		Vector tasks = new Vector(threads);
+		for (int i = 0; i < threads; i++) {
+			shaders[i] = new N3TileShader();
+			tasks.add(shaders[i]);
+		}
+		pool.setTasks(tasks);
+	}
+
+	/**
+	 * Obtiene el numero de hilos de la pasada de iluminacion.
+	 *
+	 * @return Numero de hilos
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Obtiene el numero de parejas luz-bloque evaluadas en el ultimo frame.
+	 * Comparado con el numero de luces por el de bloques, indica cuantas ha
+	 * descartado la division en bloques.
+	 *
+	 * @return Numero de parejas luz-bloque
+	 */
+	public int getLightTileCount() {
+		return lightTiles;
+	}
+
+	/**
+	 * Empieza un nuevo frame, vaciando la tabla de materiales.
+	 */
+	public void beginFrame() {
+		materialCount = 1;
+	}
+
+	/**
+	 * Obtiene el identificador del material y la mascara de luces activos en
+	 * el motor de iluminacion, anadiendolos a la tabla del frame si no
+	 * estaban. Si la tabla esta llena se usa el ultimo material.
+	 *
+	 * @return Identificador del material, entre 1 y MAX_MATERIALS - 1
+	 */
+	public int getMaterialId() {
+		lighting.getMaterial(current);
+		int mask = lighting.getLightMask();
+		for (int id = materialCount - 1; id > 0; id--) {
+			int b = id * 12;
+			boolean equal = masks[id] == mask;
+			for (int i = 0; i < 12 && equal; i++)
+				equal = materials[b + i] == current[i];
+			if (equal)
+				return id;
+		}
+		if (materialCount == MAX_MATERIALS)
+			return MAX_MATERIALS - 1;
+		System.arraycopy(current, 0, materials, materialCount * 12, 12);
+		masks[materialCount] = mask;
+		return materialCount++;
+	}
+
+	/**
+	 * Ilumina los pixels del G-buffer y deja el resultado en la imagen del
+	 * contexto.
+	 *
+	 * @param projection
+	 *            Matriz de proyeccion con la que se ha dibujado el frame
+	 * @param wF
+	 *            Factor horizontal de paso a coordenadas de pantalla
+	 * @param hF
+	 *            Factor vertical de paso a coordenadas de pantalla
+	 */
+	public void shade(N3Matrix4D projection, float wF, float hF) {
+		if (context.gMaterial == null)
+			return;
+		System.arraycopy(projection.getMatrix(), 0, p, 0, 16);
+		this.wF = wF;
+		this.hF = hF;
+		compileLights();
+		tilesX = (context.width + TILE_SIZE - 1) / TILE_SIZE;
+		tilesY = (context.height + TILE_SIZE - 1) / TILE_SIZE;
+		nextTile.set(0);
+		pairs.set(0);
+		if (pool.isParallel())
+			pool.invokeAll();
+		else
+			shaders[0].call();
+		lightTiles = pairs.get();
+	}
+
+	// Copia las luces activas y calcula su zona de influencia en pantalla
+	private void compileLights() {
+		globalR = lighting.ambientalLight.R;
+		globalG = lighting.ambientalLight.G;
+		globalB = lighting.ambientalLight.B;
+		lightCount = 0;
+		for (int i = 0; i < N3SoftwareLighting.MAX_LIGHTS; i++) {
+			N3SoftwareLight l = lighting.lights[i];
+			if (!l.enable)
+				continue;
+			int k = lightCount;
+			bit[k] = 1 << i;
+			posX[k] = l.pos.x;
+			posY[k] = l.pos.y;
+			posZ[k] = l.pos.z;
+			dirX[k] = l.dir.x;
+			dirY[k] = l.dir.y;
+			dirZ[k] = l.dir.z;
+			spot[k] = l.spotCutOff != 180.0f;
+			cutCos[k] = l.cosine;
+			kc[k] = l.Kc;
+			kl[k] = l.Kl;
+			kq[k] = l.Kq;
+			ambR[k] = l.ambiental.R;
+			ambG[k] = l.ambiental.G;
+			ambB[k] = l.ambiental.B;
+			difR[k] = l.diffuse.R;
+			difG[k] = l.diffuse.G;
+			difB[k] = l.diffuse.B;
+			speR[k] = l.specular.R * l.shininess;
+			speG[k] = l.specular.G * l.shininess;
+			speB[k] = l.specular.B * l.shininess;
+			float intensity = Math.max(ambR[k] + difR[k] + 2 * speR[k], Math
+					.max(ambG[k] + difG[k] + 2 * speG[k], ambB[k] + difB[k] + 2
+							* speB[k]));
+			float radius = radius(intensity / THRESHOLD, kc[k], kl[k], kq[k]);
+			if (radius <= 0)
+				continue;
+			reach[k] = (radius == Float.MAX_VALUE) ? Float.MAX_VALUE : radius
+					* radius;
+			float cx = posX[k], cy = posY[k], cz = posZ[k];
+			if (spot[k] && radius != Float.MAX_VALUE
+					&& cutCos[k] >= 0.70710678f) {
+				// Esfera que contiene el cono del foco
+				radius = radius / (2 * cutCos[k]);
+				cx += dirX[k] * radius;
+				cy += dirY[k] * radius;
+				cz += dirZ[k] * radius;
+			}
+			bound(k, cx, cy, cz, radius);
+			lightCount++;
+		}
+	}
+
+	// Distancia a la que la atenuacion supera el umbral indicado
+	private static float radius(float t, float kc, float kl, float kq) {
+		if (kl <= 0 && kq <= 0)
+			return kc >= t ? 0 : Float.MAX_VALUE;
+		if (kc >= t)
+			return 0;
+		if (kq <= 0)
+			return (t - kc) / kl;
+		return (float) ((-kl + Math.sqrt(kl * kl - 4 * kq * (kc - t))) / (2 * kq));
+	}
+
+	// Calcula la caja en pantalla y el rango de profundidad de una esfera
+	private void bound(int k, float cx, float cy, float cz, float r) {
+		minX[k] = 0;
+		minY[k] = 0;
+		maxX[k] = context.width - 1;
+		maxY[k] = context.height - 1;
+		if (r == Float.MAX_VALUE) {
+			minZ[k] = -Float.MAX_VALUE;
+			maxZ[k] = Float.MAX_VALUE;
+			return;
+		}
+		minZ[k] = cz - r;
+		maxZ[k] = cz + r;
+		float x0 = Float.MAX_VALUE, x1 = -Float.MAX_VALUE;
+		float y0 = Float.MAX_VALUE, y1 = -Float.MAX_VALUE;
+		for (int c = 0; c < 8; c++) {
+			float x = cx + ((c & 1) == 0 ? -r : r);
+			float y = cy + ((c & 2) == 0 ? -r : r);
+			float z = cz + ((c & 4) == 0 ? -r : r);
+			float w = p[3] * x + p[7] * y + p[11] * z + p[15];
+			// La esfera llega al plano de la camara: toda la pantalla
+			if (w <= 1e-4f)
+				return;
+			float sx = wF * (1 + (p[0] * x + p[4] * y + p[8] * z + p[12]) / w);
+			float sy = hF * (1 - (p[1] * x + p[5] * y + p[9] * z + p[13]) / w);
+			x0 = Math.min(x0, sx);
+			x1 = Math.max(x1, sx);
+			y0 = Math.min(y0, sy);
+			y1 = Math.max(y1, sy);
+		}
+		minX[k] = (int) Math.floor(x0);
+		maxX[k] = (int) Math.ceil(x1);
+		minY[k] = (int) Math.floor(y0);
+		maxY[k] = (int) Math.ceil(y1);
+	}
+
+	/**
+	 * Tarea que ilumina bloques de pantalla hasta que no quedan. Cada hilo
+	 * tiene la suya, con su propia memoria de trabajo.
+	 */
+	private class N3TileShader implements Callable {
+		private float[] vx = new float[TILE_SIZE * TILE_SIZE];
+
+		private float[] vy = new float[TILE_SIZE * TILE_SIZE];
+
+		private float[] vz = new float[TILE_SIZE * TILE_SIZE];
+
+		private int[] list = new int[N3SoftwareLighting.MAX_LIGHTS];
+
+		public Object call() {
+			int count = tilesX * tilesY;
+			for (int t = nextTile.getAndIncrement(); t < count; t = nextTile
+					.getAndIncrement())
+				shadeTile((t % tilesX) * TILE_SIZE, (t / tilesX) * TILE_SIZE);
+			return null;
+		}
+
+		// Ilumina el bloque cuya esquina es (tx, ty)
+		private void shadeTile(int tx, int ty) {
+			int width = context.width;
+			int ex = Math.min(tx + TILE_SIZE, width);
+			int ey = Math.min(ty + TILE_SIZE, context.height);
+			byte[] material = context.gMaterial;
+			float z0 = Float.MAX_VALUE, z1 = -Float.MAX_VALUE;
+			boolean any = false;
+			// Posiciones en el espacio de la camara
+			for (int y = ty; y < ey; y++)
+				for (int x = tx; x < ex; x++) {
+					int pos = y * width + x;
+					if (material[pos] == 0)
+						continue;
+					int i = (y - ty) * TILE_SIZE + (x - tx);
+					float xn = x / wF - 1;
+					float yn = 1 - y / hF;
+					float zn = context.getDepth(pos);
+					float z = (p[14] - zn * p[15]) / (zn * p[11] - p[10]);
+					float w = p[11] * z + p[15];
+					vz[i] = z;
+					vx[i] = (xn * w - p[8] * z - p[12]) / p[0];
+					vy[i] = (yn * w - p[9] * z - p[13]) / p[5];
+					z0 = Math.min(z0, z);
+					z1 = Math.max(z1, z);
+					any = true;
+				}
+			if (!any)
+				return;
+			// Luces que alcanzan el bloque
+			int n = 0;
+			for (int k = 0; k < lightCount; k++)
+				if (maxX[k] >= tx && minX[k] < ex && maxY[k] >= ty
+						&& minY[k] < ey && maxZ[k] >= z0 && minZ[k] <= z1)
+					list[n++] = k;
+			pairs.addAndGet(n);
+			int[] normals = context.gNormal;
+			int[] albedo = context.gAlbedo;
+			int[] pixels = context.pixels;
+			for (int y = ty; y < ey; y++)
+				for (int x = tx; x < ex; x++) {
+					int pos = y * width + x;
+					int id = material[pos] & 0xFF;
+					if (id == 0)
+						continue;
+					int i = (y - ty) * TILE_SIZE + (x - tx);
+					int packed = normals[pos];
+					float nx = ((packed >>> 20) & 0x3FF) / 511.5f - 1;
+					float ny = ((packed >>> 10) & 0x3FF) / 511.5f - 1;
+					float nz = (packed & 0x3FF) / 511.5f - 1;
+					float len = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+					if (len != 0) {
+						nx /= len;
+						ny /= len;
+						nz /= len;
+					}
+					pixels[pos] = light(id, vx[i], vy[i], vz[i], nx, ny, nz,
+							n, albedo[pos]);
+				}
+		}
+
+		// Ilumina un pixel y lo combina con su albedo
+		private int light(int id, float px, float py, float pz, float nx,
+				float ny, float nz, int n, int color) {
+			float[] mat = materials;
+			int m = id * 12;
+			int mask = masks[id];
+			float r = mat[m] + mat[m + 3] * globalR;
+			float g = mat[m + 1] + mat[m + 4] * globalG;
+			float b = mat[m + 2] + mat[m + 5] * globalB;
+			for (int j = 0; j < n; j++) {
+				int k = list[j];
+				if ((mask & bit[k]) == 0)
+					continue;
+				float dx = posX[k] - px;
+				float dy = posY[k] - py;
+				float dz = posZ[k] - pz;
+				float dist2 = dx * dx + dy * dy + dz * dz;
+				if (dist2 > reach[k])
+					continue;
+				float dist = (float) Math.sqrt(dist2);
+				if (dist != 0.0f) {
+					float inv = 1.0f / dist;
+					dx *= inv;
+					dy *= inv;
+					dz *= inv;
+				}
+				float spotEffect = 1.0f;
+				if (spot[k]) {
+					spotEffect = -(dx * dirX[k] + dy * dirY[k] + dz * dirZ[k]);
+					if (spotEffect < 0 || spotEffect < cutCos[k])
+						continue;
+				}
+				float contrF = spotEffect
+						/ (kc[k] + kl[k] * dist + kq[k] * dist2);
+				float tr = mat[m + 3] * ambR[k];
+				float tg = mat[m + 4] * ambG[k];
+				float tb = mat[m + 5] * ambB[k];
+				float diff = dx * nx + dy * ny + dz * nz;
+				if (diff > 0) {
+					tr += diff * mat[m + 6] * difR[k];
+					tg += diff * mat[m + 7] * difG[k];
+					tb += diff * mat[m + 8] * difB[k];
+					float spec = dx * nx + dy * ny + (dz + 1.0f) * nz;
+					if (spec > 0) {
+						tr += spec * mat[m + 9] * speR[k];
+						tg += spec * mat[m + 10] * speG[k];
+						tb += spec * mat[m + 11] * speB[k];
+					}
+				}
+				r += contrF * tr;
+				g += contrF * tg;
+				b += contrF * tb;
+			}
+			r = r > 1.0f ? 1.0f : r;
+			g = g > 1.0f ? 1.0f : g;
+			b = b > 1.0f ? 1.0f : b;
+			return (int) ((color & 0xFF) * r)
+					| ((int) (((color >> 8) & 0xFF) * g) << 8)
+					| ((int) (((color >> 16) & 0xFF) * b) << 16)
+					| (color & 0xFF000000);
+		}
+	}
+}
@@ -26,32 +26,18 @@ import nu3a.geometry.N3Point3D;
 import nu3a.material.color.N3ColorRGBA;
 import nu3a.math.N3Vector3D;
 
+/**
+ * Parametros de una de las luces del render software. Las luces no guardan
+ * ningun estado compartido: el material y la luz ambiental global pertenecen
+ * al motor de iluminacion de cada render, que es quien evalua la iluminacion a
+ * partir de estos parametros.
+ */
 public class N3SoftwareLight {
 
 	/**
-	 * Componenten ambiental global
-	 */
-	protected static N3ColorRGBA ambientalLight;
-
-	/**
-	 * Emision del material sobre el que calcular la luz.
-	 */
-	protected static N3ColorRGBA matEmission;
-
-	/**
-	 * Color ambiental del material sobre el que calcular la luz.
-	 */
-	protected static N3ColorRGBA matAmbient;
-
-	/**
-	 * Color difuso del material sobre el que calcular la luz.
-	 */
-	protected static N3ColorRGBA matDiffuse;
-
-	/**
-	 * Color especular del material sobre el que calcular la luz.
+	 * Motor de iluminacion al que pertenece la luz.
 	 */
-	protected static N3ColorRGBA matSpecular;
+	protected N3SoftwareLighting owner;
 
 	/**
 	 * Componente ambiental de la luz.
@@ -110,34 +96,23 @@ public class N3SoftwareLight {
 
 	protected float spotExp = 1.0f;
 
-	protected N3ColorRGBA ambientTerm, diffuseTerm, specularTerm;
-
-	protected N3Vector3D d;
-
 	protected float cosine = (float) Math.cos(Math.toRadians(spotCutOff));
 
 	/**
 	 * Construye una luz con las componentes a color blanco, posicion (0,0,0) y
 	 * direcci�n (0,0,-1)
+	 * 
+	 * @param owner
+	 *            Motor de iluminacion al que pertenece la luz.
 	 */
-	protected N3SoftwareLight() {
-		if (ambientalLight == null) {
-			ambientalLight = new N3ColorRGBA(0.2f, 0.2f, 0.2f);
-			matEmission = new N3ColorRGBA(0, 0, 0);
-			matAmbient = new N3ColorRGBA(0, 0, 0);
-			matDiffuse = new N3ColorRGBA(1, 1, 1);
-			matSpecular = new N3ColorRGBA(0, 0, 0);
-		}
+	protected N3SoftwareLight(N3SoftwareLighting owner) {
+		this.owner = owner;
 		ambiental = new N3ColorRGBA(0.2f, 0.2f, 0.2f);
 		diffuse = new N3ColorRGBA(0.8f, 0.8f, 0.8f);
 		specular = new N3ColorRGBA(0, 0, 0, 0);
 		dir = new N3Vector3D();
 		pos = new N3Point3D();
 		enable = true;
-		d = new N3Vector3D();
-		ambientTerm = new N3ColorRGBA();
-		diffuseTerm = new N3ColorRGBA();
-		specularTerm = new N3ColorRGBA();
 	}
 
 	/**
@@ -147,7 +122,10 @@ public class N3SoftwareLight {
 	 *            Estado de la luz.
 	 */
 	public void setEnable(boolean s) {
-		this.enable = s;
+		if (enable != s) {
+			this.enable = s;
+			owner.lightChanged();
+		}
 	}
 
 	/**
@@ -159,40 +137,17 @@ public class N3SoftwareLight {
 		return enable;
 	}
 
-	/**
-	 * Permite especificar la luz ambiental de la escena.
-	 * 
-	 * @param c
-	 *            Color de la luz ambiental de la escena.
-	 */
-	protected static void setAmbientalLight(N3ColorRGBA c) {
-		ambientalLight.setData(c);
-	}
-
-	protected static void setMatAmbient(N3ColorRGBA c) {
-		matAmbient.setData(c);
-	}
-
-	protected static void setMatDiffuse(N3ColorRGBA c) {
-		matDiffuse.setData(c);
-	}
-
-	protected static void setMatSpecular(N3ColorRGBA c) {
-		matSpecular.setData(c);
-	}
-
-	protected static void setMatEmission(N3ColorRGBA c) {
-		matEmission.setData(c);
-	}
-
 	/**
 	 * Permite especificar la componente ambiental de la luz.
 	 * 
 	 * @param c
 	 *            Color de la componente ambiental de la luz.
 	 */
-	protected void setAmbiental(N3ColorRGBA c) {
-		ambiental.setData(c);
+	public void setAmbiental(N3ColorRGBA c) {
+		if (!equals(ambiental, c)) {
+			ambiental.setData(c);
+			owner.lightChanged();
+		}
 	}
 
 	/**
@@ -201,8 +156,11 @@ public class N3SoftwareLight {
 	 * @param c
 	 *            Color de la componente difusa de la luz.
 	 */
-	protected void setDiffuse(N3ColorRGBA c) {
-		diffuse.setData(c);
+	public void setDiffuse(N3ColorRGBA c) {
+		if (!equals(diffuse, c)) {
+			diffuse.setData(c);
+			owner.lightChanged();
+		}
 	}
 
 	/**
@@ -211,8 +169,11 @@ public class N3SoftwareLight {
 	 * @param c
 	 *            Color de la componente especular de la luz.
 	 */
-	protected void setSpecular(N3ColorRGBA c) {
-		specular.setData(c);
+	public void setSpecular(N3ColorRGBA c) {
+		if (!equals(specular, c)) {
+			specular.setData(c);
+			owner.lightChanged();
+		}
 	}
 
 	/**
@@ -221,11 +182,14 @@ public class N3SoftwareLight {
 	 * @param d
 	 *            Direcci�n de la luz.
 	 */
-	protected void setDirection(N3Vector3D d) {
+	public void setDirection(N3Vector3D d) {
+		float x = dir.x, y = dir.y, z = dir.z;
 		dir.x = d.x;
 		dir.y = d.y;
 		dir.z = d.z;
 		dir.normalize();
+		if (x != dir.x || y != dir.y || z != dir.z)
+			owner.lightChanged();
 	}
 
 	/**
@@ -234,111 +198,55 @@ public class N3SoftwareLight {
 	 * @param p
 	 *            Posici�n de la luz.
 	 */
-	protected void setPosition(N3Point3D p) {
-		pos.x = p.x;
-		pos.y = p.y;
-		pos.z = p.z;
-	}
-
-	protected void setCutOff(float angle) {
-		spotCutOff = angle;
-		cosine = (float) Math.cos(Math.toRadians(spotCutOff));
+	public void setPosition(N3Point3D p) {
+		if (pos.x != p.x || pos.y != p.y || pos.z != p.z) {
+			pos.x = p.x;
+			pos.y = p.y;
+			pos.z = p.z;
+			owner.lightChanged();
+		}
 	}
 
-	protected void setSpotExp(float exp) {
-		spotExp = exp;
+	public void setCutOff(float angle) {
+		if (spotCutOff != angle) {
+			spotCutOff = angle;
+			cosine = (float) Math.cos(Math.toRadians(spotCutOff));
+			owner.lightChanged();
+		}
 	}
 
-	protected void setConstantAtten(float Kc) {
-		this.Kc = Kc;
+	public void setSpotExp(float exp) {
+		if (spotExp != exp) {
+			spotExp = exp;
+			owner.lightChanged();
+		}
 	}
 
-	protected void setLinearAtten(float Kl) {
-		this.Kl = Kl;
+	public void setConstantAtten(float Kc) {
+		if (this.Kc != Kc) {
+			this.Kc = Kc;
+			owner.lightChanged();
+		}
 	}
 
-	protected void setQuadAtten(float Kq) {
-		this.Kq = Kq;
+	public void setLinearAtten(float Kl) {
+		if (this.Kl != Kl) {
+			this.Kl = Kl;
+			owner.lightChanged();
+		}
 	}
 
-	// /Obtenido del OpenGL RedBook "The Mathematics of Lighting"
-	/**
-	 * Aplica la parte de la iluminaci�n independiente de la luz.
-	 * 
-	 * @param c
-	 *            Color al que aplicar al iluminaci�n.
-	 */
-	public static void applyIndependantLight(N3ColorRGBA c) {
-		c.R = matEmission.R + matAmbient.R * ambientalLight.R;
-		c.G = matEmission.G + matAmbient.G * ambientalLight.G;
-		c.B = matEmission.B + matAmbient.B * ambientalLight.B;
+	public void setQuadAtten(float Kq) {
+		if (this.Kq != Kq) {
+			this.Kq = Kq;
+			owner.lightChanged();
+		}
 	}
 
 	/**
-	 * Aplica la iluminaci�n al color especificado segun la normal indicada.
-	 * 
-	 * @param v
-	 *            Vertice sobre el que calcular
-	 * @param c
-	 *            Color al que aplicar la iluminaci�n
-	 * @param n
-	 *            Normal del punto al que se le aplica la iluminaci�n.
+	 * Compara dos colores componente a componente.
 	 */
-	protected void applyLight(N3Point3D v, N3ColorRGBA c, N3Vector3D n) {
-		// Termino ambiental
-		ambientTerm.R = matAmbient.R * ambiental.R;
-		ambientTerm.G = matAmbient.G * ambiental.G;
-		ambientTerm.B = matAmbient.B * ambiental.B;
-		d.x = pos.x - v.x;
-		d.y = pos.y - v.y;
-		d.z = pos.z - v.z;
-		float dist = d.length();
-		// Termino diffuso
-		d.normalize();
-		float diff = d.dotProduct(n);
-		if (diff < 0)
-			diff = 0;
-		diffuseTerm.R = diff * matDiffuse.R * diffuse.R;
-		diffuseTerm.G = diff * matDiffuse.G * diffuse.G;
-		diffuseTerm.B = diff * matDiffuse.B * diffuse.B;
-
-		float atten = 1 / (Kc + Kl * dist + Kq * dist * dist);
-		float spotEffect;
-		if (spotCutOff == 180.0f)
-			spotEffect = 1.0f;
-		else {
-			d.neg();
-			spotEffect = d.dotProduct(dir);
-			if (spotEffect < 0)
-				spotEffect = 0;
-			else if (spotEffect < cosine)
-				spotEffect = 0;
-		}
-
-		float contrF = atten * spotEffect;
-		// Termino especular
-		if (diff != 0.0f) {
-			float spec;
-			d.z += 1.0f;
-			spec = d.dotProduct(n);
-			if (spec < 0)
-				spec = 0.0f;
-			spec *= shininess;
-			specularTerm.R = spec * matSpecular.R * specular.R;
-			specularTerm.G = spec * matSpecular.G * specular.G;
-			specularTerm.B = spec * matSpecular.B * specular.B;
-		} else
-			specularTerm.R = specularTerm.G = specularTerm.B = 0.0f;
-
-		c.R += contrF * (ambientTerm.R + diffuseTerm.R + specularTerm.R);
-		c.G += contrF * (ambientTerm.G + diffuseTerm.G + specularTerm.G);
-		c.B += contrF * (ambientTerm.B + diffuseTerm.B + specularTerm.B);
-		// Recortar al rengo [0,1] los colores obtenidos
-		if (c.R > 1.0f)
-			c.R = 1.0f;
-		if (c.G > 1.0f)
-			c.G = 1.0f;
-		if (c.B > 1.0f)
-			c.B = 1.0f;
+	static boolean equals(N3ColorRGBA a, N3ColorRGBA b) {
+		return a.R == b.R && a.G == b.G && a.B == b.B && a.A == b.A;
 	}
 }
@@ -0,0 +1,406 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render.software;
+
+import nu3a.material.color.N3ColorRGBA;
+
+/**
+ * Motor de iluminacion del render software. Cada render tiene el suyo, con el
+ * material activo, la luz ambiental global y el conjunto de luces, de forma
+ * que varios renders pueden trabajar a la vez sin compartir estado.
+ *
+ * Los parametros de las luces se compilan en arrays planos (posicion,
+ * direccion, coseno del corte, atenuaciones y terminos de color ya
+ * multiplicados por el material) solo cuando cambian, lo que en la practica
+ * ocurre una vez por frame, y todas las luces activas se evaluan en una unica
+ * pasada por vertice. El modelo es el del OpenGL RedBook "The Mathematics of
+ * Lighting".
+ */
+public class N3SoftwareLighting {
+
+	/**
+	 * Maximo de luces soportado por el motor.
+	 */
+	public static final int MAX_LIGHTS = 32;
+
+	/**
+	 * Luces del motor.
+	 */
+	protected N3SoftwareLight[] lights;
+
+	/**
+	 * Componente ambiental global
+	 */
+	protected N3ColorRGBA ambientalLight;
+
+	/**
+	 * Emision del material sobre el que calcular la luz.
+	 */
+	protected N3ColorRGBA matEmission;
+
+	/**
+	 * Color ambiental del material sobre el que calcular la luz.
+	 */
+	protected N3ColorRGBA matAmbient;
+
+	/**
+	 * Color difuso del material sobre el que calcular la luz.
+	 */
+	protected N3ColorRGBA matDiffuse;
+
+	/**
+	 * Color especular del material sobre el que calcular la luz.
+	 */
+	protected N3ColorRGBA matSpecular;
+
+	/**
+	 * Indica si hay que volver a compilar los parametros de las luces.
+	 */
+	protected boolean lightsDirty = true;
+
+	/**
+	 * Indica si hay que volver a combinar el material con las luces.
+	 */
+	protected boolean materialDirty = true;
+
+	/**
+	 * Contador que se incrementa cada vez que cambia de verdad alguno de los
+	 * parametros de las luces o la luz ambiental global.
+	 */
+	protected int lightStamp;
+
+	/**
+	 * Mascara de las luces que afectan a los vertices que se iluminan: el bit
+	 * n corresponde a la luz n.
+	 */
+	protected int lightMask = -1;
+
+	// Indica si hay que volver a calcular la lista de luces de la mascara
+	private boolean maskDirty = true;
+
+	// Luces compiladas cuyo bit esta activo en la mascara
+	private int[] maskList;
+	private int maskCount;
+
+	// Parametros compilados de las luces activas
+	protected int count;
+	protected int[] index;
+	protected float[] posX, posY, posZ;
+	protected float[] dirX, dirY, dirZ;
+	protected float[] cutCos;
+	protected boolean[] spot;
+	protected float[] kc, kl, kq;
+	protected float[] ambR, ambG, ambB;
+	protected float[] difR, difG, difB;
+	protected float[] speR, speG, speB;
+
+	// Termino independiente de las luces
+	protected float baseR, baseG, baseB;
+
+	/**
+	 * Construye el motor con todas las luces activadas y el material por
+	 * defecto.
+	 */
+	public N3SoftwareLighting() {
+		ambientalLight = new N3ColorRGBA(0.2f, 0.2f, 0.2f);
+		matEmission = new N3ColorRGBA(0, 0, 0);
+		matAmbient = new N3ColorRGBA(0, 0, 0);
+		matDiffuse = new N3ColorRGBA(1, 1, 1);
+		matSpecular = new N3ColorRGBA(0, 0, 0);
+		lights = new N3SoftwareLight[MAX_LIGHTS];
+		for (int i = 0; i < MAX_LIGHTS; i++)
+			lights[i] = new N3SoftwareLight(this);
+		posX = new float[MAX_LIGHTS];
+		posY = new float[MAX_LIGHTS];
+		posZ = new float[MAX_LIGHTS];
+		dirX = new float[MAX_LIGHTS];
+		dirY = new float[MAX_LIGHTS];
+		dirZ = new float[MAX_LIGHTS];
+		cutCos = new float[MAX_LIGHTS];
+		spot = new boolean[MAX_LIGHTS];
+		kc = new float[MAX_LIGHTS];
+		kl = new float[MAX_LIGHTS];
+		kq = new float[MAX_LIGHTS];
+		ambR = new float[MAX_LIGHTS];
+		ambG = new float[MAX_LIGHTS];
+		ambB = new float[MAX_LIGHTS];
+		difR = new float[MAX_LIGHTS];
+		difG = new float[MAX_LIGHTS];
+		difB = new float[MAX_LIGHTS];
+		speR = new float[MAX_LIGHTS];
+		speG = new float[MAX_LIGHTS];
+		speB = new float[MAX_LIGHTS];
+		index = new int[MAX_LIGHTS];
+		maskList = new int[MAX_LIGHTS];
+	}
+
+	/**
+	 * Obtiene la luz indicada.
+	 *
+	 * @param n
+	 *            Numero de la luz.
+	 * @return Luz.
+	 */
+	public N3SoftwareLight getLight(int n) {
+		return lights[n];
+	}
+
+	/**
+	 * Notifica que los parametros de alguna luz han cambiado.
+	 */
+	protected void lightChanged() {
+		lightsDirty = true;
+		lightStamp++;
+	}
+
+	/**
+	 * Establece que luces afectan a los siguientes vertices, sin cambiar su
+	 * estado ni el contador de cambios de las luces.
+	 *
+	 * @param mask
+	 *            Mascara de luces, con el bit n para la luz n.
+	 */
+	public void setLightMask(int mask) {
+		if (lightMask != mask) {
+			lightMask = mask;
+			maskDirty = true;
+		}
+	}
+
+	/**
+	 * Obtiene la mascara de luces actual.
+	 *
+	 * @return Mascara de luces, con el bit n para la luz n.
+	 */
+	public int getLightMask() {
+		return lightMask;
+	}
+
+	/**
+	 * Obtiene el contador de cambios de las luces. Dos llamadas que devuelvan
+	 * el mismo valor garantizan que las luces no han cambiado entre ellas.
+	 *
+	 * @return Contador de cambios de las luces.
+	 */
+	public int getLightStamp() {
+		return lightStamp;
+	}
+
+	/**
+	 * Permite especificar la luz ambiental de la escena.
+	 *
+	 * @param c
+	 *            Color de la luz ambiental de la escena.
+	 */
+	public void setAmbientalLight(N3ColorRGBA c) {
+		if (!N3SoftwareLight.equals(ambientalLight, c)) {
+			ambientalLight.setData(c);
+			materialDirty = true;
+			lightStamp++;
+		}
+	}
+
+	public void setMatAmbient(N3ColorRGBA c) {
+		if (!N3SoftwareLight.equals(matAmbient, c)) {
+			matAmbient.setData(c);
+			materialDirty = true;
+		}
+	}
+
+	public void setMatDiffuse(N3ColorRGBA c) {
+		if (!N3SoftwareLight.equals(matDiffuse, c)) {
+			matDiffuse.setData(c);
+			materialDirty = true;
+		}
+	}
+
+	public void setMatSpecular(N3ColorRGBA c) {
+		if (!N3SoftwareLight.equals(matSpecular, c)) {
+			matSpecular.setData(c);
+			materialDirty = true;
+		}
+	}
+
+	public void setMatEmission(N3ColorRGBA c) {
+		if (!N3SoftwareLight.equals(matEmission, c)) {
+			matEmission.setData(c);
+			materialDirty = true;
+		}
+	}
+
+	/**
+	 * Copia en el array indicado las componentes RGB de emision, ambiental,
+	 * difusa y especular del material actual.
+	 *
+	 * @param dest
+	 *            Array de al menos 12 elementos.
+	 */
+	public void getMaterial(float[] dest) {
+		dest[0] = matEmission.R;
+		dest[1] = matEmission.G;
+		dest[2] = matEmission.B;
+		dest[3] = matAmbient.R;
+		dest[4] = matAmbient.G;
+		dest[5] = matAmbient.B;
+		dest[6] = matDiffuse.R;
+		dest[7] = matDiffuse.G;
+		dest[8] = matDiffuse.B;
+		dest[9] = matSpecular.R;
+		dest[10] = matSpecular.G;
+		dest[11] = matSpecular.B;
+	}
+
+	/**
+	 * Compila los parametros de las luces activas y los combina con el
+	 * material actual.
+	 */
+	protected void prepare() {
+		if (lightsDirty) {
+			count = 0;
+			for (int i = 0; i < MAX_LIGHTS; i++) {
+				N3SoftwareLight l = lights[i];
+				if (!l.enable)
+					continue;
+				posX[count] = l.pos.x;
+				posY[count] = l.pos.y;
+				posZ[count] = l.pos.z;
+				dirX[count] = l.dir.x;
+				dirY[count] = l.dir.y;
+				dirZ[count] = l.dir.z;
+				spot[count] = l.spotCutOff != 180.0f;
+				cutCos[count] = l.cosine;
+				kc[count] = l.Kc;
+				kl[count] = l.Kl;
+				kq[count] = l.Kq;
+				index[count] = i;
+				count++;
+			}
+		}
+		baseR = matEmission.R + matAmbient.R * ambientalLight.R;
+		baseG = matEmission.G + matAmbient.G * ambientalLight.G;
+		baseB = matEmission.B + matAmbient.B * ambientalLight.B;
+		int k = 0;
+		for (int i = 0; i < MAX_LIGHTS; i++) {
+			N3SoftwareLight l = lights[i];
+			if (!l.enable)
+				continue;
+			ambR[k] = matAmbient.R * l.ambiental.R;
+			ambG[k] = matAmbient.G * l.ambiental.G;
+			ambB[k] = matAmbient.B * l.ambiental.B;
+			difR[k] = matDiffuse.R * l.diffuse.R;
+			difG[k] = matDiffuse.G * l.diffuse.G;
+			difB[k] = matDiffuse.B * l.diffuse.B;
+			speR[k] = matSpecular.R * l.specular.R * l.shininess;
+			speG[k] = matSpecular.G * l.specular.G * l.shininess;
+			speB[k] = matSpecular.B * l.specular.B * l.shininess;
+			k++;
+		}
+		if (lightsDirty)
+			maskDirty = true;
+		lightsDirty = false;
+		materialDirty = false;
+	}
+
+	/**
+	 * Calcula la iluminacion de un vertice con las luces activas cuyo bit
+	 * esta en la mascara.
+	 * Vertice y normal han de estar en el mismo espacio que las luces (el de
+	 * la camara).
+	 *
+	 * @param vx
+	 *            Coordenada x del vertice
+	 * @param vy
+	 *            Coordenada y del vertice
+	 * @param vz
+	 *            Coordenada z del vertice
+	 * @param nx
+	 *            Componente x de la normal
+	 * @param ny
+	 *            Componente y de la normal
+	 * @param nz
+	 *            Componente z de la normal
+	 * @param c
+	 *            Color en el que se deja el resultado. No se modifica su
+	 *            componente alfa.
+	 */
+	public void shade(float vx, float vy, float vz, float nx, float ny,
+			float nz, N3ColorRGBA c) {
+		if (lightsDirty || materialDirty)
+			prepare();
+		float r = baseR;
+		float g = baseG;
+		float b = baseB;
+		if (maskDirty) {
+			maskCount = 0;
+			for (int k = 0; k < count; k++)
+				if ((lightMask & (1 << index[k])) != 0)
+					maskList[maskCount++] = k;
+			maskDirty = false;
+		}
+		for (int j = 0; j < maskCount; j++) {
+			int k = maskList[j];
+			float dx = posX[k] - vx;
+			float dy = posY[k] - vy;
+			float dz = posZ[k] - vz;
+			float dist2 = dx * dx + dy * dy + dz * dz;
+			float dist = (float) Math.sqrt(dist2);
+			if (dist != 0.0f) {
+				float inv = 1.0f / dist;
+				dx *= inv;
+				dy *= inv;
+				dz *= inv;
+			}
+			float spotEffect = 1.0f;
+			if (spot[k]) {
+				spotEffect = -(dx * dirX[k] + dy * dirY[k] + dz * dirZ[k]);
+				if (spotEffect < 0 || spotEffect < cutCos[k])
+					continue;
+			}
+			float contrF = spotEffect / (kc[k] + kl[k] * dist + kq[k] * dist2);
+			float tr = ambR[k];
+			float tg = ambG[k];
+			float tb = ambB[k];
+			// Termino difuso
+			float diff = dx * nx + dy * ny + dz * nz;
+			if (diff > 0) {
+				tr += diff * difR[k];
+				tg += diff * difG[k];
+				tb += diff * difB[k];
+				// Termino especular
+				float spec = dx * nx + dy * ny + (dz + 1.0f) * nz;
+				if (spec > 0) {
+					tr += spec * speR[k];
+					tg += spec * speG[k];
+					tb += spec * speB[k];
+				}
+			}
+			r += contrF * tr;
+			g += contrF * tg;
+			b += contrF * tb;
+		}
+		// Recortar al rango [0,1] los colores obtenidos
+		c.R = r > 1.0f ? 1.0f : r;
+		c.G = g > 1.0f ? 1.0f : g;
+		c.B = b > 1.0f ? 1.0f : b;
+	}
+}
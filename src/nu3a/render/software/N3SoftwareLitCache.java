@@ -0,0 +1,128 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.render.software;
+
+import nu3a.math.N3Matrix4D;
+
+/**
+ * Cache de los colores iluminados de los vertices de un objeto. Guarda junto a
+ * los colores todo aquello de lo que depende la iluminacion: la version de la
+ * geometria del objeto, la matriz de modelado con la que se calcularon, el
+ * material, el contador de cambios de las luces y la mascara de luces.
+ * Mientras nada de ello cambie los colores se reutilizan de un frame a otro.
+ */
+public class N3SoftwareLitCache {
+
+	/**
+	 * Version de la geometria con la que se calcularon los colores.
+	 */
+	protected int version;
+
+	/**
+	 * Contador de cambios de las luces con el que se calcularon los colores.
+	 */
+	protected int lightStamp;
+
+	/**
+	 * Mascara de luces con la que se calcularon los colores.
+	 */
+	protected int lightMask;
+
+	/**
+	 * Matriz de modelado con la que se calcularon los colores.
+	 */
+	protected float[] modelView;
+
+	/**
+	 * Material con el que se calcularon los colores.
+	 */
+	protected float[] material;
+
+	// Material actual, para comparar sin reservar memoria.
+	private float[] currentMaterial;
+
+	/**
+	 * Componentes de los colores iluminados.
+	 */
+	protected float[] r, g, b;
+
+	/**
+	 * Indica que vertices tienen su color calculado.
+	 */
+	protected boolean[] valid;
+
+	/**
+	 * Construye una cache vacia.
+	 */
+	public N3SoftwareLitCache() {
+		modelView = new float[16];
+		material = new float[12];
+		currentMaterial = new float[12];
+		r = g = b = new float[0];
+		valid = new boolean[0];
+		version = -1;
+	}
+
+	/**
+	 * Comprueba que los colores guardados siguen siendo validos para el estado
+	 * indicado. Si no lo son, se descartan y se guarda el nuevo estado.
+	 *
+	 * @param version
+	 *            Version de la geometria del objeto.
+	 * @param size
+	 *            Numero de vertices del objeto.
+	 * @param mv
+	 *            Matriz de modelado actual.
+	 * @param engine
+	 *            Motor de iluminacion del render.
+	 * @return True si los colores guardados se pueden reutilizar.
+	 */
+	public boolean validate(int version, int size, N3Matrix4D mv,
+			N3SoftwareLighting engine) {
+		boolean ok = this.version == version && valid.length == size
+				&& lightStamp == engine.getLightStamp()
+				&& lightMask == engine.getLightMask();
+		float[] m = mv.getMatrix();
+		for (int i = 0; ok && i < 16; i++)
+			ok = modelView[i] == m[i];
+		engine.getMaterial(currentMaterial);
+		for (int i = 0; ok && i < 12; i++)
+			ok = material[i] == currentMaterial[i];
+		if (!ok) {
+			this.version = version;
+			lightStamp = engine.getLightStamp();
+			lightMask = engine.getLightMask();
+			System.arraycopy(m, 0, modelView, 0, 16);
+			System.arraycopy(currentMaterial, 0, material, 0, 12);
+			if (valid.length != size) {
+				r = new float[size];
+				g = new float[size];
+				b = new float[size];
+				valid = new boolean[size];
+			} else
+				for (int i = 0; i < size; i++)
+					valid[i] = false;
+		}
+		return ok;
+	}
+}
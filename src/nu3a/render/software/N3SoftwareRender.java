@@ -24,12 +24,15 @@ package nu3a.render.software;
 
 import java.awt.Component;
 import java.awt.Rectangle;
+import java.util.WeakHashMap;
 
 import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point2D;
 import nu3a.geometry.N3Point3D;
 import nu3a.geometry.N3VertexData;
 import nu3a.material.color.N3ColorData;
 import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
 import nu3a.material.texture.N3TexCoordData;
 import nu3a.material.texture.N3Texture;
 import nu3a.math.N3Matrix4D;
@@ -59,12 +62,63 @@ public class N3SoftwareRender extends N3Render {
 	/**
 	 * Maximo de luces soportado por el render.
 	 */
-	protected static int MAX_LIGHTS = 1;
+	protected static final int MAX_LIGHTS = N3SoftwareLighting.MAX_LIGHTS;
 
 	/**
-	 * Vector de luces del render
+	 * Motor de iluminacion del render, con el estado de luces y material
+	 * propio de esta instancia.
 	 */
-	N3SoftwareLight lights[];
+	protected N3SoftwareLighting lightingEngine;
+
+	/**
+	 * Caches de colores iluminados, por objeto.
+	 */
+	protected WeakHashMap litCaches;
+
+	// Cache de los datos que se estan dibujando, y clave y version indicadas
+	// para los siguientes.
+	private N3SoftwareLitCache litCache;
+	private Object litCacheKey;
+	private int litCacheVersion;
+
+	/**
+	 * Pasada de iluminacion diferida, o null si se ilumina por vertice.
+	 */
+	protected N3SoftwareDeferred deferred;
+
+	// Indica si los triangulos que se dibujan van al G-buffer
+	private boolean gBufferDraw;
+
+	// Ventana de visualizacion del componente mientras se dibuja en una
+	// textura
+	private Rectangle screenViewport;
+
+	/**
+	 * Frames que se miden antes de ajustar la resolucion dinamica.
+	 */
+	protected static final int RESOLUTION_FRAMES = 8;
+
+	/**
+	 * Margen sobre el tiempo objetivo a partir del cual se reduce la
+	 * resolucion.
+	 */
+	protected static final float RESOLUTION_LOWER = 1.1f;
+
+	/**
+	 * Margen bajo el tiempo objetivo a partir del cual se aumenta la
+	 * resolucion. La distancia entre ambos margenes evita que la escala
+	 * oscile entre dos valores.
+	 */
+	protected static final float RESOLUTION_RAISE = 0.8f;
+
+	// Resolucion dinamica: tiempo objetivo por frame en nanosegundos, o 0 si
+	// esta desactivada, y limites de la escala
+	private long targetFrameTime;
+	private float minScale, maxScale;
+
+	// Comienzo del dibujado actual y tiempo acumulado desde el ultimo ajuste
+	private long drawStart, measuredTime;
+	private int measuredFrames;
 
 	// ///////////////Para optimizaci�n.
 	// Normal
@@ -72,21 +126,50 @@ public class N3SoftwareRender extends N3Render {
 	private N3Vector3D d;
 
 	// Factores para el ancho y el alto
-	private float wF;
-	private float hF;
+	protected float wF;
+	protected float hF;
 
 	// Puntos con los que trabajar.
 	private N3Point3D v1, v2, v3, cV1, cV2, cV3;
 
 	// Planos zNear,zFar
-	private float zNear = -0.1f;
-	private float zFar = -100.0f;
+	protected float zNear = -0.1f;
+	protected float zFar = -100.0f;
+
+	// Indica si se calcula la profundidad invertida
+	protected boolean reversedDepth;
+
+	// Filas z y w de la proyeccion restadas, con las que se calcula la
+	// profundidad invertida sin pasar por la normalizada
+	private float rz0, rz1, rz2, rz3;
 
 	// Para las luces.
 	private N3ColorRGBA c1, c2, c3;
 
 	private N3Vector3D normal;
 
+	// V�rtices ya procesados de las tiras y abanicos de tri�ngulos
+	private N3Point3D[] sView, sScreen;
+	private N3ColorRGBA[] sColor;
+	private N3Vector3D[] sNormal;
+	private N3TexCoord2D[] sUV;
+	private N3Point2D[] sSource;
+	private boolean[] sClip, sLit;
+	private int[] sIndex;
+
+	// Cache de v�rtices ya transformados de la tira actual, indexada por la
+	// identidad del v�rtice de origen, para reutilizar los que se repiten
+	private static final int STRIP_CACHE = 1024;
+	private Object[] cSource;
+	private float[] cData;
+	private boolean[] cClip;
+	private int[] cStrip;
+	private int stripCount;
+
+	// Coordenadas de pantalla y colores de los lotes de puntos
+	private float[] batchScreen;
+	private int[] batchColors;
+
 	private void define_const() {
 		//
 		N3_POINTS_DATA = 0;
@@ -124,6 +207,8 @@ public class N3SoftwareRender extends N3Render {
 		N3_UNSIGNED_INT = 27;
 		N3_INT = 28;
 		N3_FLOAT = 29;
+		//
+		N3_TRIANGLE_STRIP_DATA = 30;
 	}
 
 	/**
@@ -154,9 +239,8 @@ public class N3SoftwareRender extends N3Render {
 		modelViewMatrix = new N3Matrix4D();
 		cullFace = N3Render.N3_BACK_CULL;
 		clearColor = new N3ColorRGBA(0, 0, 0);
-		lights = new N3SoftwareLight[MAX_LIGHTS];
-		for (int i = 0; i < lights.length; i++)
-			lights[i] = new N3SoftwareLight();
+		lightingEngine = new N3SoftwareLighting();
+		litCaches = new WeakHashMap();
 
 		// /Optimizaciones
 		vect1 = new N3Vector3D();
@@ -172,6 +256,24 @@ public class N3SoftwareRender extends N3Render {
 		cV2 = new N3Point3D();
 		cV3 = new N3Point3D();
 		normal = new N3Vector3D();
+		sView = new N3Point3D[3];
+		sScreen = new N3Point3D[3];
+		sColor = new N3ColorRGBA[3];
+		for (int i = 0; i < 3; i++) {
+			sView[i] = new N3Point3D();
+			sScreen[i] = new N3Point3D();
+			sColor[i] = new N3ColorRGBA();
+		}
+		sNormal = new N3Vector3D[3];
+		sUV = new N3TexCoord2D[3];
+		sSource = new N3Point2D[3];
+		sClip = new boolean[3];
+		sLit = new boolean[3];
+		sIndex = new int[3];
+		cSource = new Object[STRIP_CACHE];
+		cData = new float[STRIP_CACHE * 6];
+		cClip = new boolean[STRIP_CACHE];
+		cStrip = new int[STRIP_CACHE];
 		renderContext.setTextureMode(renderContext.N3_SWR_MODULATE);
 	}
 
@@ -190,17 +292,224 @@ public class N3SoftwareRender extends N3Render {
 	}
 
 	public boolean beginDraw() {
+		drawStart = System.nanoTime();
 		return true;
 	}
 
 	public void endDraw() {
+		renderContext.resolveSpans();
+		if (deferred != null)
+			deferred.shade(projectionMatrix, wF, hF);
+		renderContext.paint();
+		frameStats.setResolutionScale(renderContext.getResolutionScale());
+		if (targetFrameTime > 0)
+			adjustResolution(System.nanoTime() - drawStart);
+	}
+
+	public void present() {
 		renderContext.paint();
 	}
 
+	/**
+	 * Ajusta la resolucion dinamica con el tiempo de un frame. Cada
+	 * RESOLUTION_FRAMES frames se compara el tiempo medio con el objetivo y,
+	 * si se sale de los margenes, se cambia la escala. Como el coste de
+	 * dibujado es proporcional al numero de pixels, la escala se corrige con
+	 * la raiz de la proporcion entre ambos tiempos.
+	 * 
+	 * @param time
+	 *            Tiempo del frame en nanosegundos
+	 */
+	protected void adjustResolution(long time) {
+		measuredTime += time;
+		if (++measuredFrames < RESOLUTION_FRAMES)
+			return;
+		float ratio = (float) targetFrameTime * measuredFrames / measuredTime;
+		measuredTime = 0;
+		measuredFrames = 0;
+		if (ratio * RESOLUTION_LOWER >= 1 && ratio * RESOLUTION_RAISE <= 1)
+			return;
+		float scale = renderContext.getResolutionScale()
+				* (float) Math.sqrt(ratio);
+		scale = Math.max(minScale, Math.min(maxScale, scale));
+		if (Math.abs(scale - renderContext.getResolutionScale()) >= 0.01f)
+			setResolutionScale(scale);
+	}
+
+	/**
+	 * Activa la resolucion dinamica: la resolucion a la que se dibuja se
+	 * ajusta cada pocos frames para mantener el tiempo de frame indicado, y
+	 * la imagen se escala al tama�o del componente al mostrarla.
+	 * 
+	 * @param frameTime
+	 *            Tiempo objetivo por frame en milisegundos, o 0 para
+	 *            desactivarla y volver a la resolucion completa
+	 * @param minScale
+	 *            Escala minima, mayor que 0
+	 * @param maxScale
+	 *            Escala maxima, hasta 1
+	 */
+	public void setDynamicResolution(float frameTime, float minScale,
+			float maxScale) {
+		if (frameTime > 0 && (minScale <= 0 || minScale > maxScale))
+			throw new IllegalArgumentException("Invalid resolution bounds");
+		targetFrameTime = (long) (frameTime * 1000000);
+		this.minScale = minScale;
+		this.maxScale = Math.min(maxScale, 1);
+		measuredTime = 0;
+		measuredFrames = 0;
+		if (targetFrameTime <= 0)
+			setResolutionScale(1);
+		else
+			setResolutionScale(Math.max(this.minScale, Math.min(
+					this.maxScale, renderContext.getResolutionScale())));
+	}
+
+	/**
+	 * Indica si la resolucion dinamica esta activa.
+	 * 
+	 * @return True si la resolucion se ajusta al tiempo de frame
+	 */
+	public boolean isDynamicResolution() {
+		return targetFrameTime > 0;
+	}
+
+	/**
+	 * Establece la resolucion a la que se dibuja, como fraccion de la del
+	 * componente. Con la resolucion dinamica activa la escala se sigue
+	 * ajustando a partir de este valor.
+	 * 
+	 * @param scale
+	 *            Escala, entre 0 y 1
+	 */
+	public void setResolutionScale(float scale) {
+		renderContext.setResolutionScale(scale);
+		if (vp != null)
+			setViewport(vp);
+	}
+
+	/**
+	 * Obtiene la resolucion a la que se dibuja, como fraccion de la del
+	 * componente.
+	 * 
+	 * @return Escala de la resolucion
+	 */
+	public float getResolutionScale() {
+		return renderContext.getResolutionScale();
+	}
+
+	/**
+	 * Indica si al reducir la resolucion la imagen se escala con filtrado
+	 * bilineal en lugar de repetir el pixel mas cercano.
+	 * 
+	 * @param bilinear
+	 *            True para usar el filtrado bilineal
+	 */
+	public void setBilinearUpscale(boolean bilinear) {
+		renderContext.setBilinearUpscale(bilinear);
+	}
+
+	/**
+	 * Establece el formato del Z buffer: N3_SWR_DEPTH_FLOAT,
+	 * N3_SWR_DEPTH_16, N3_SWR_DEPTH_24 o N3_SWR_DEPTH_REVERSED de
+	 * N3SoftwareRenderContext. Solo el de 16 bits reduce la memoria del Z
+	 * buffer; el de 24 bits ocupa lo mismo que el de reales, pero interpola
+	 * la profundidad de cada tramo sumando enteros. El invertido
+	 * mejora la precision de los objetos lejanos cuando el plano lejano esta
+	 * muy alejado del cercano.
+	 * 
+	 * @param format
+	 *            Formato del Z buffer
+	 */
+	public void setDepthFormat(int format) {
+		renderContext.setDepthFormat(format);
+		reversedDepth = format == N3SoftwareRenderContext.N3_SWR_DEPTH_REVERSED;
+	}
+
+	/**
+	 * Obtiene el formato del Z buffer.
+	 * 
+	 * @return Formato del Z buffer
+	 */
+	public int getDepthFormat() {
+		return renderContext.getDepthFormat();
+	}
+
+	/**
+	 * Permite iluminar los triangulos de forma diferida. En lugar de iluminar
+	 * cada vertice con todas las luces, los triangulos iluminados guardan en
+	 * un G-buffer su normal, su albedo y su material, y al terminar el
+	 * dibujado cada pixel visible se ilumina una sola vez, en bloques de
+	 * pantalla que solo evaluan las luces que los alcanzan. Compensa con
+	 * muchas luces con atenuacion o focos estrechos.
+	 * 
+	 * @param deferredShading
+	 *            True para usar la iluminacion diferida
+	 */
+	public void setDeferredShading(boolean deferredShading) {
+		if (deferredShading && deferred == null)
+			deferred = new N3SoftwareDeferred(renderContext, lightingEngine);
+		else if (!deferredShading && deferred != null) {
+			deferred.setThreads(1);
+			deferred = null;
+		}
+		renderContext.setGBuffer(deferredShading);
+	}
+
+	/**
+	 * Indica si se usa la iluminacion diferida.
+	 * 
+	 * @return True si se usa la iluminacion diferida
+	 */
+	public boolean isDeferredShading() {
+		return deferred != null;
+	}
+
+	/**
+	 * Obtiene la pasada de iluminacion diferida, para ajustar su numero de
+	 * hilos o consultar sus estadisticas.
+	 * 
+	 * @return Pasada de iluminacion diferida, o null si no se usa
+	 */
+	public N3SoftwareDeferred getDeferredShading() {
+		return deferred;
+	}
+
+	/**
+	 * Permite usar un buffer de tramos en lugar de dibujar los tri�ngulos
+	 * directamente. Los tri�ngulos se convierten en tramos horizontales con su
+	 * profundidad, y al terminar el dibujado se resuelve qu� parte de cada
+	 * tramo es visible y solo esa parte se sombrea, de modo que el coste de
+	 * sombreado depende del tama�o de la pantalla y no de la complejidad de
+	 * la escena.
+	 * 
+	 * @param spanBuffer
+	 *            True para usar el buffer de tramos
+	 */
+	public void setSpanBuffer(boolean spanBuffer) {
+		renderContext.setSpanBuffer(spanBuffer);
+	}
+
+	/**
+	 * Indica si se usa un buffer de tramos para dibujar los tri�ngulos.
+	 * 
+	 * @return True si se usa el buffer de tramos
+	 */
+	public boolean isSpanBuffer() {
+		return renderContext.getSpanBuffer();
+	}
+
 	public void setViewport(Rectangle vp) {
 		super.setViewport(vp);
-		wF = vp.width / 2.0f - 1.0f;
-		hF = vp.height / 2.0f - 1.0f;
+		if (renderContext.getRenderTarget() < 0
+				&& renderContext.getResolutionScale() < 1) {
+			float scale = renderContext.getResolutionScale();
+			wF = Math.max(1, Math.round(vp.width * scale)) / 2.0f - 1.0f;
+			hF = Math.max(1, Math.round(vp.height * scale)) / 2.0f - 1.0f;
+		} else {
+			wF = vp.width / 2.0f - 1.0f;
+			hF = vp.height / 2.0f - 1.0f;
+		}
 	}
 
 	public void setZBuffer(boolean zBuffer) {
@@ -209,6 +518,8 @@ public class N3SoftwareRender extends N3Render {
 	}
 
 	public void clear() {
+		if (deferred != null && renderContext.getRenderTarget() < 0)
+			deferred.beginFrame();
 		renderContext.clearToColor(clearColor);
 		if (zBuffer)
 			renderContext.cleanZBuffer();
@@ -228,6 +539,11 @@ public class N3SoftwareRender extends N3Render {
 			float[] m = projectionMatrix.getMatrix();
 			zNear = -(m[14] / (m[10] - 1));
 			zFar = -(m[14] / (m[10] + 1));
+			rz0 = m[2] - m[3];
+			rz1 = m[6] - m[7];
+			rz2 = m[10] - m[11];
+			rz3 = m[14] - m[15];
+			renderContext.setProjection(m);
 		} else
 			modelViewMatrix.setData(matrix);
 	}
@@ -243,15 +559,43 @@ public class N3SoftwareRender extends N3Render {
 
 	protected void doPerspective(N3Point3D point) {
 		if (testFrustrum(point)) {
+			float vx = point.x, vy = point.y, vz = point.z;
 			N3Matrix4D.mult(projectionMatrix, point);
 			// Normalizamos
 			point.x /= point.w;
 			point.y /= point.w;
-			point.z /= point.w;
+			if (reversedDepth)
+				point.z = projectDepth(vx, vy, vz, 1.0f / point.w);
+			else
+				point.z /= point.w;
 		} else
 			clip = true;
 	}
 
+	/**
+	 * Calcula la profundidad que se guarda en el Z buffer para un punto en
+	 * coordenadas de la camara. Es la normalizada salvo con la profundidad
+	 * invertida, que se calcula como (z - w) / 2w con las filas de la
+	 * proyeccion ya restadas: junto al plano lejano ambos terminos casi se
+	 * anulan y restarlos tras proyectar perderia la precision que se busca.
+	 * 
+	 * @param vx
+	 *            Coordenada x del punto
+	 * @param vy
+	 *            Coordenada y del punto
+	 * @param vz
+	 *            Coordenada z del punto
+	 * @param invW
+	 *            Inversa de la coordenada w del punto proyectado
+	 * @return Profundidad del punto
+	 */
+	protected float projectDepth(float vx, float vy, float vz, float invW) {
+		if (reversedDepth)
+			return (rz0 * vx + rz1 * vy + rz2 * vz + rz3) * 0.5f * invW;
+		float[] p = projectionMatrix.getMatrix();
+		return (p[2] * vx + p[6] * vy + p[10] * vz + p[14]) * invW;
+	}
+
 	protected void doScreenCoordinates(N3Point3D point) {
 		point.x = wF * (1.0f + point.x);
 		point.y = hF * (1.0f - point.y);
@@ -262,21 +606,123 @@ public class N3SoftwareRender extends N3Render {
 		doScreenCoordinates(point);
 	}
 
+	/**
+	 * Aplica la iluminacion al vertice indicado del objeto en curso,
+	 * reutilizando el color de la cache del objeto si es posible.
+	 * 
+	 * @param index
+	 *            Posicion del vertice en los datos del objeto.
+	 * @param v
+	 *            Vertice en coordenadas de la camara.
+	 * @param c
+	 *            Color del vertice, en el que se deja el resultado.
+	 * @param n
+	 *            Normal del vertice en coordenadas del objeto.
+	 */
+	protected void applyShading(int index, N3Point3D v, N3ColorRGBA c,
+			N3Vector3D n) {
+		if (gBufferDraw) {
+			// El G-buffer recibe la normal en la camara en lugar del color
+			normal.x = n.x;
+			normal.y = n.y;
+			normal.z = n.z;
+			N3Matrix4D.mult(modelViewMatrix, normal);
+			float len = (float) Math.sqrt(normal.x * normal.x + normal.y
+					* normal.y + normal.z * normal.z);
+			if (len != 0.0f)
+				len = 1.0f / len;
+			c.R = normal.x * len;
+			c.G = normal.y * len;
+			c.B = normal.z * len;
+			return;
+		}
+		if (litCache == null) {
+			applyShading(v, c, n);
+			return;
+		}
+		if (litCache.valid[index]) {
+			c.R = litCache.r[index];
+			c.G = litCache.g[index];
+			c.B = litCache.b[index];
+			return;
+		}
+		applyShading(v, c, n);
+		litCache.r[index] = c.R;
+		litCache.g[index] = c.G;
+		litCache.b[index] = c.B;
+		litCache.valid[index] = true;
+	}
+
+	/**
+	 * Prepara la cache de colores iluminados para los datos que se van a
+	 * dibujar, si se ha indicado a que objeto pertenecen.
+	 * 
+	 * @param vertexData
+	 *            Datos de los vertices a dibujar.
+	 */
+	protected void beginLitCache(N3VertexData vertexData) {
+		litCache = null;
+		if (litCacheKey != null && lighting) {
+			N3SoftwareLitCache cache = (N3SoftwareLitCache) litCaches
+					.get(litCacheKey);
+			if (cache == null) {
+				cache = new N3SoftwareLitCache();
+				litCaches.put(litCacheKey, cache);
+			}
+			cache.validate(litCacheVersion, vertexData.size(),
+					modelViewMatrix, lightingEngine);
+			litCache = cache;
+		}
+		litCacheKey = null;
+	}
+
+	/**
+	 * Decide si los datos que se van a dibujar se escriben en el G-buffer:
+	 * solo los triangulos iluminados cuando se usa la iluminacion diferida.
+	 * 
+	 * @param dataType
+	 *            Tipo de los datos a dibujar.
+	 */
+	protected void beginGBuffer(int dataType) {
+		gBufferDraw = deferred != null
+				&& lighting
+				&& renderContext.getGBuffer()
+				&& (dataType == N3_TRIANGLES_DATA
+						|| dataType == N3_TRIANGLE_STRIP_DATA || dataType == N3_TRIANGLE_FAN_DATA);
+		if (gBufferDraw) {
+			litCache = null;
+			renderContext.setGBufferMaterial(deferred.getMaterialId());
+		}
+	}
+
+	/**
+	 * Termina el dibujado de unos datos, volviendo al dibujado directo.
+	 */
+	protected void endGBuffer() {
+		if (gBufferDraw) {
+			gBufferDraw = false;
+			renderContext.setGBufferMaterial(0);
+		}
+	}
+
+	public void setLitColorCacheKey(Object key, int version) {
+		litCacheKey = key;
+		litCacheVersion = version;
+	}
+
 	protected void applyShading(N3Point3D v, N3ColorRGBA c, N3Vector3D n) {
 		normal.x = n.x;
 		normal.y = n.y;
 		normal.z = n.z;
 		N3Matrix4D.mult(modelViewMatrix, normal);
-		N3SoftwareLight.applyIndependantLight(c);
-		for (int i = 0; i < MAX_LIGHTS; i++)
-			if (lights[i].isEnable())
-				lights[i].applyLight(v, c, normal);
+		lightingEngine.shade(v.x, v.y, v.z, normal.x, normal.y, normal.z, c);
 	}
 
 	protected void drawTriangles(N3VertexData vertexData,
 			N3ColorData colorData, N3NormalData normalData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext
 					.beginDrawingMode(N3SoftwareRenderContext.N3_TRIANGLES);
 			while (vertexData.hasNext()) {
@@ -329,9 +775,9 @@ public class N3SoftwareRender extends N3Render {
 						if ((cullFace == N3_BACK_CULL && dir < 0)
 								|| (cullFace == N3_FRONT_CULL && dir > 0)) {
 							if (lighting) {
-								applyShading(v1, c1, n1);
-								applyShading(v2, c2, n2);
-								applyShading(v3, c3, n3);
+								applyShading(index, v1, c1, n1);
+								applyShading(index + 1, v2, c2, n2);
+								applyShading(index + 2, v3, c3, n3);
 							}
 							doScreenCoordinates(cV1);
 							doScreenCoordinates(cV2);
@@ -359,9 +805,9 @@ public class N3SoftwareRender extends N3Render {
 					doPerspective(cV3);
 					if (!clip) {
 						if (lighting) {
-							applyShading(v1, c1, n1);
-							applyShading(v2, c2, n2);
-							applyShading(v3, c3, n3);
+							applyShading(index, v1, c1, n1);
+							applyShading(index + 1, v2, c2, n2);
+							applyShading(index + 2, v3, c3, n3);
 						}
 						doScreenCoordinates(cV1);
 						doScreenCoordinates(cV2);
@@ -374,6 +820,7 @@ public class N3SoftwareRender extends N3Render {
 						renderContext.setVertex(cV3);
 					}
 				}
+				index += 3;
 			}
 			renderContext.endDrawingMode();
 		}
@@ -384,6 +831,7 @@ public class N3SoftwareRender extends N3Render {
 			N3TexCoordData texCoordData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext
 					.beginDrawingMode(N3SoftwareRenderContext.N3_TRIANGLES);
 			while (vertexData.hasNext()) {
@@ -408,6 +856,11 @@ public class N3SoftwareRender extends N3Render {
 				c1.setData(colorData.next());
 				c2.setData(colorData.next());
 				c3.setData(colorData.next());
+				// Las coordenadas se leen aunque el tri�ngulo se descarte, para
+				// no desfasarlas respecto a los v�rtices
+				N3TexCoord2D uv1 = texCoordData.next();
+				N3TexCoord2D uv2 = texCoordData.next();
+				N3TexCoord2D uv3 = texCoordData.next();
 				if (cull_facing) {
 					cV1.x = v1.x;
 					cV1.y = v1.y;
@@ -436,21 +889,21 @@ public class N3SoftwareRender extends N3Render {
 						if ((cullFace == N3_BACK_CULL && dir < 0)
 								|| (cullFace == N3_FRONT_CULL && dir > 0)) {
 							if (lighting) {
-								applyShading(v1, c1, n1);
-								applyShading(v2, c2, n2);
-								applyShading(v3, c3, n3);
+								applyShading(index, v1, c1, n1);
+								applyShading(index + 1, v2, c2, n2);
+								applyShading(index + 2, v3, c3, n3);
 							}
 							doScreenCoordinates(cV1);
 							doScreenCoordinates(cV2);
 							doScreenCoordinates(cV3);
 							renderContext.setColor(c1);
-							renderContext.setUV(texCoordData.next());
+							renderContext.setUV(uv1);
 							renderContext.setVertex(cV1);
 							renderContext.setColor(c2);
-							renderContext.setUV(texCoordData.next());
+							renderContext.setUV(uv2);
 							renderContext.setVertex(cV2);
 							renderContext.setColor(c3);
-							renderContext.setUV(texCoordData.next());
+							renderContext.setUV(uv3);
 							renderContext.setVertex(cV3);
 						}
 					}
@@ -469,32 +922,175 @@ public class N3SoftwareRender extends N3Render {
 					doPerspective(cV3);
 					if (!clip) {
 						if (lighting) {
-							applyShading(v1, c1, n1);
-							applyShading(v2, c2, n2);
-							applyShading(v3, c3, n3);
+							applyShading(index, v1, c1, n1);
+							applyShading(index + 1, v2, c2, n2);
+							applyShading(index + 2, v3, c3, n3);
 						}
 						doScreenCoordinates(cV1);
 						doScreenCoordinates(cV2);
 						doScreenCoordinates(cV3);
 						renderContext.setColor(c1);
+						renderContext.setUV(uv1);
 						renderContext.setVertex(cV1);
 						renderContext.setColor(c2);
-						renderContext.setUV(texCoordData.next());
+						renderContext.setUV(uv2);
 						renderContext.setVertex(cV2);
 						renderContext.setColor(c3);
-						renderContext.setUV(texCoordData.next());
+						renderContext.setUV(uv3);
 						renderContext.setVertex(cV3);
 					}
 				}
+				index += 3;
 			}
 			renderContext.endDrawingMode();
 		}
 	}
 
+	/**
+	 * Dibuja una tira o un abanico de tri�ngulos. Cada v�rtice se transforma,
+	 * proyecta e ilumina una sola vez, y se reutiliza en todos los tri�ngulos
+	 * en los que participa. Si el mismo v�rtice (el mismo objeto) vuelve a
+	 * aparecer m�s adelante en la tira, como ocurre en las filas de una
+	 * rejilla, se toma de la cache en lugar de transformarlo de nuevo. Los
+	 * tri�ngulos degenerados (con dos v�rtices iguales) se descartan.
+	 * 
+	 * @param vertexData
+	 *            V�rtices de la tira o abanico.
+	 * @param colorData
+	 *            Colores de los v�rtices.
+	 * @param normalData
+	 *            Normales de los v�rtices.
+	 * @param texCoordData
+	 *            Coordenadas de textura de los v�rtices, o null si no tiene.
+	 * @param fan
+	 *            True si los datos forman un abanico; False si forman una tira.
+	 */
+	protected void drawStrip(N3VertexData vertexData, N3ColorData colorData,
+			N3NormalData normalData, N3TexCoordData texCoordData, boolean fan) {
+		if (vertexData.hasNext()) {
+			int k = 0;
+			int strip = ++stripCount;
+			renderContext
+					.beginDrawingMode(N3SoftwareRenderContext.N3_TRIANGLES);
+			while (vertexData.hasNext()) {
+				int slot = fan ? (k == 0 ? 0 : 1 + ((k - 1) & 1)) : k % 3;
+				N3Point3D t = (N3Point3D) vertexData.next();
+				N3Point3D v = sView[slot];
+				N3Point3D s = sScreen[slot];
+				int h = System.identityHashCode(t) & (STRIP_CACHE - 1);
+				int d = h * 6;
+				sSource[slot] = t;
+				sNormal[slot] = (N3Vector3D) normalData.next();
+				sColor[slot].setData(colorData.next());
+				if (texCoordData != null)
+					sUV[slot] = texCoordData.next();
+				if (cStrip[h] == strip && cSource[h] == t) {
+					v.x = cData[d];
+					v.y = cData[d + 1];
+					v.z = cData[d + 2];
+					s.x = cData[d + 3];
+					s.y = cData[d + 4];
+					s.z = cData[d + 5];
+					sClip[slot] = cClip[h];
+				} else {
+					v.x = t.x;
+					v.y = t.y;
+					v.z = t.z;
+					N3Matrix4D.mult(modelViewMatrix, v);
+					s.x = v.x;
+					s.y = v.y;
+					s.z = v.z;
+					clip = false;
+					doPerspective(s);
+					sClip[slot] = clip;
+					if (!clip)
+						doScreenCoordinates(s);
+					cStrip[h] = strip;
+					cSource[h] = t;
+					cData[d] = v.x;
+					cData[d + 1] = v.y;
+					cData[d + 2] = v.z;
+					cData[d + 3] = s.x;
+					cData[d + 4] = s.y;
+					cData[d + 5] = s.z;
+					cClip[h] = clip;
+				}
+				sIndex[slot] = k;
+				sLit[slot] = false;
+				if (k >= 2) {
+					int a, b;
+					if (fan) {
+						a = 0;
+						b = 1 + (k & 1);
+					} else if ((k & 1) == 0) {
+						a = (k - 2) % 3;
+						b = (k - 1) % 3;
+					} else {
+						a = (k - 1) % 3;
+						b = (k - 2) % 3;
+					}
+					drawStripTriangle(a, b, slot, texCoordData != null);
+				}
+				k++;
+			}
+			renderContext.endDrawingMode();
+		}
+	}
+
+	/**
+	 * Dibuja uno de los tri�ngulos de una tira o abanico, a partir de los
+	 * v�rtices ya procesados.
+	 */
+	private void drawStripTriangle(int a, int b, int c, boolean textured) {
+		if (sSource[a] == sSource[b] || sSource[b] == sSource[c]
+				|| sSource[a] == sSource[c])
+			return;
+		if (sClip[a] || sClip[b] || sClip[c])
+			return;
+		if (cull_facing) {
+			N3Point3D pa = sScreen[a];
+			N3Point3D pb = sScreen[b];
+			N3Point3D pc = sScreen[c];
+			// En coordenadas de pantalla el eje y est� invertido
+			float cross = (pb.x - pa.x) * (pc.y - pa.y) - (pb.y - pa.y)
+					* (pc.x - pa.x);
+			if (!((cullFace == N3_BACK_CULL && cross < 0)
+					|| (cullFace == N3_FRONT_CULL && cross > 0)))
+				return;
+		}
+		if (lighting) {
+			if (!sLit[a]) {
+				applyShading(sIndex[a], sView[a], sColor[a], sNormal[a]);
+				sLit[a] = true;
+			}
+			if (!sLit[b]) {
+				applyShading(sIndex[b], sView[b], sColor[b], sNormal[b]);
+				sLit[b] = true;
+			}
+			if (!sLit[c]) {
+				applyShading(sIndex[c], sView[c], sColor[c], sNormal[c]);
+				sLit[c] = true;
+			}
+		}
+		renderContext.setColor(sColor[a]);
+		if (textured)
+			renderContext.setUV(sUV[a]);
+		renderContext.setVertex(sScreen[a]);
+		renderContext.setColor(sColor[b]);
+		if (textured)
+			renderContext.setUV(sUV[b]);
+		renderContext.setVertex(sScreen[b]);
+		renderContext.setColor(sColor[c]);
+		if (textured)
+			renderContext.setUV(sUV[c]);
+		renderContext.setVertex(sScreen[c]);
+	}
+
 	protected void drawLines(N3VertexData vertexData, N3ColorData colorData,
 			N3NormalData normalData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext.beginDrawingMode(N3SoftwareRenderContext.N3_LINES);
 			while (vertexData.hasNext()) {
 				N3Point3D t1 = (N3Point3D) vertexData.next();
@@ -521,8 +1117,8 @@ public class N3SoftwareRender extends N3Render {
 					if (lighting) {
 						N3Vector3D n1 = (N3Vector3D) normalData.next();
 						N3Vector3D n2 = (N3Vector3D) normalData.next();
-						applyShading(v1, c1, n1);
-						applyShading(v2, c2, n2);
+						applyShading(index, v1, c1, n1);
+						applyShading(index + 1, v2, c2, n2);
 					}
 					doScreenCoordinates(cV1);
 					doScreenCoordinates(cV2);
@@ -531,6 +1127,7 @@ public class N3SoftwareRender extends N3Render {
 					renderContext.setColor(c2);
 					renderContext.setVertex(cV2);
 				}
+				index += 2;
 			}
 			renderContext.endDrawingMode();
 		}
@@ -540,6 +1137,7 @@ public class N3SoftwareRender extends N3Render {
 			N3NormalData normalData, N3TexCoordData texCoordData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext.beginDrawingMode(N3SoftwareRenderContext.N3_LINES);
 			while (vertexData.hasNext()) {
 				N3Point3D t1 = (N3Point3D) vertexData.next();
@@ -566,8 +1164,8 @@ public class N3SoftwareRender extends N3Render {
 					if (lighting) {
 						N3Vector3D n1 = (N3Vector3D) normalData.next();
 						N3Vector3D n2 = (N3Vector3D) normalData.next();
-						applyShading(v1, c1, n1);
-						applyShading(v2, c2, n2);
+						applyShading(index, v1, c1, n1);
+						applyShading(index + 1, v2, c2, n2);
 					}
 					doScreenCoordinates(cV1);
 					doScreenCoordinates(cV2);
@@ -578,6 +1176,7 @@ public class N3SoftwareRender extends N3Render {
 					renderContext.setUV(texCoordData.next());
 					renderContext.setVertex(cV2);
 				}
+				index += 2;
 			}
 			renderContext.endDrawingMode();
 		}
@@ -587,6 +1186,7 @@ public class N3SoftwareRender extends N3Render {
 			N3NormalData normalData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext.beginDrawingMode(N3SoftwareRenderContext.N3_POINTS);
 			while (vertexData.hasNext()) {
 				N3Point3D t1 = (N3Point3D) vertexData.next();
@@ -602,12 +1202,13 @@ public class N3SoftwareRender extends N3Render {
 				if (!clip) {
 					if (lighting) {
 						N3Vector3D n1 = (N3Vector3D) normalData.next();
-						applyShading(v1, c1, n1);
+						applyShading(index, v1, c1, n1);
 					}
 					doScreenCoordinates(cV1);
 					renderContext.setColor(c1);
 					renderContext.setVertex(cV1);
 				}
+				index++;
 			}
 			renderContext.endDrawingMode();
 		}
@@ -617,6 +1218,7 @@ public class N3SoftwareRender extends N3Render {
 			N3NormalData normalData, N3TexCoordData coordData) {
 		if (vertexData.hasNext()) {
 			clip = false;
+			int index = 0;
 			renderContext.beginDrawingMode(N3SoftwareRenderContext.N3_POINTS);
 			while (vertexData.hasNext()) {
 				N3Point3D t1 = (N3Point3D) vertexData.next();
@@ -632,13 +1234,14 @@ public class N3SoftwareRender extends N3Render {
 				if (!clip) {
 					if (lighting) {
 						N3Vector3D n1 = (N3Vector3D) normalData.next();
-						applyShading(v1, c1, n1);
+						applyShading(index, v1, c1, n1);
 					}
 					doScreenCoordinates(cV1);
 					renderContext.setColor(c1);
 					renderContext.setUV(coordData.next());
 					renderContext.setVertex(cV1);
 				}
+				index++;
 			}
 			renderContext.endDrawingMode();
 		}
@@ -651,12 +1254,20 @@ public class N3SoftwareRender extends N3Render {
 
 	public void drawData(N3VertexData vertexData, int dataType,
 			N3ColorData colorData, N3NormalData normalData) {
+		frameStats.countDrawCall();
+		beginLitCache(vertexData);
+		beginGBuffer(dataType);
 		if (dataType == this.N3_TRIANGLES_DATA)
 			drawTriangles(vertexData, colorData, normalData);
+		else if (dataType == this.N3_TRIANGLE_STRIP_DATA)
+			drawStrip(vertexData, colorData, normalData, null, false);
+		else if (dataType == this.N3_TRIANGLE_FAN_DATA)
+			drawStrip(vertexData, colorData, normalData, null, true);
 		else if (dataType == this.N3_LINES_DATA)
 			drawLines(vertexData, colorData, normalData);
 		else
 			drawPoints(vertexData, colorData, normalData);
+		endGBuffer();
 	}
 
 	public void drawData(N3VertexData vertexData, int dataType,
@@ -666,12 +1277,83 @@ public class N3SoftwareRender extends N3Render {
 	public void drawData(N3VertexData vertexData, int dataType,
 			N3ColorData colorData, N3TexCoordData texCoordData,
 			N3NormalData normalData) {
+		frameStats.countDrawCall();
+		beginLitCache(vertexData);
+		beginGBuffer(dataType);
 		if (dataType == this.N3_TRIANGLES_DATA)
 			drawTriangles(vertexData, colorData, normalData, texCoordData);
+		else if (dataType == this.N3_TRIANGLE_STRIP_DATA)
+			drawStrip(vertexData, colorData, normalData, texCoordData, false);
+		else if (dataType == this.N3_TRIANGLE_FAN_DATA)
+			drawStrip(vertexData, colorData, normalData, texCoordData, true);
 		else if (dataType == this.N3_LINES_DATA)
 			drawLines(vertexData, colorData, normalData, texCoordData);
 		else
 			drawPoints(vertexData, colorData, normalData, texCoordData);
+		endGBuffer();
+	}
+
+	/**
+	 * Dibuja un lote de puntos. Las matrices se leen una sola vez y cada
+	 * punto se transforma, recorta y proyecta sin pasar por los objetos de
+	 * trabajo del dibujado por v�rtices.
+	 */
+	public void drawPoints(float[] x, float[] y, float[] z, int[] colors,
+			int count, int size) {
+		frameStats.countDrawCall();
+		litCacheKey = null;
+		if (batchColors == null || batchColors.length < count) {
+			batchScreen = new float[count * 3];
+			batchColors = new int[count];
+		}
+		float[] m = modelViewMatrix.getMatrix();
+		float[] p = projectionMatrix.getMatrix();
+		float[] screen = batchScreen;
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			float px = x[i], py = y[i], pz = z[i];
+			float vz = m[2] * px + m[6] * py + m[10] * pz + m[14];
+			if (vz > zNear || vz < zFar)
+				continue;
+			float vx = m[0] * px + m[4] * py + m[8] * pz + m[12];
+			float vy = m[1] * px + m[5] * py + m[9] * pz + m[13];
+			float w = 1.0f / (p[3] * vx + p[7] * vy + p[11] * vz + p[15]);
+			int k = n * 3;
+			screen[k] = wF
+					* (1.0f + (p[0] * vx + p[4] * vy + p[8] * vz + p[12]) * w);
+			screen[k + 1] = hF
+					* (1.0f - (p[1] * vx + p[5] * vy + p[9] * vz + p[13]) * w);
+			screen[k + 2] = projectDepth(vx, vy, vz, w);
+			batchColors[n++] = colors[i];
+		}
+		renderContext.drawPoints(screen, batchColors, n, size);
+	}
+
+	public void drawBillboard(N3Texture texture, float x, float y, float z,
+			float halfWidth, float halfHeight) {
+		frameStats.countDrawCall();
+		litCacheKey = null;
+		resetCameraTransformation();
+		float[] m = modelViewMatrix.getMatrix();
+		float[] p = projectionMatrix.getMatrix();
+		float vz = m[2] * x + m[6] * y + m[10] * z + m[14];
+		if (vz > zNear || vz < zFar)
+			return;
+		float vx = m[0] * x + m[4] * y + m[8] * z + m[12];
+		float vy = m[1] * x + m[5] * y + m[9] * z + m[13];
+		// El rect�ngulo es paralelo al plano de la c�mara, as� que basta con
+		// proyectar dos esquinas opuestas
+		float w = 1.0f / (p[3] * vx + p[7] * vy + p[11] * vz + p[15]);
+		float cz = projectDepth(vx, vy, vz, w);
+		float x0 = vx - halfWidth, y0 = vy + halfHeight;
+		float x1 = vx + halfWidth, y1 = vy - halfHeight;
+		float w0 = 1.0f / (p[3] * x0 + p[7] * y0 + p[11] * vz + p[15]);
+		float w1 = 1.0f / (p[3] * x1 + p[7] * y1 + p[11] * vz + p[15]);
+		float sx0 = wF * (1.0f + (p[0] * x0 + p[4] * y0 + p[8] * vz + p[12]) * w0);
+		float sy0 = hF * (1.0f - (p[1] * x0 + p[5] * y0 + p[9] * vz + p[13]) * w0);
+		float sx1 = wF * (1.0f + (p[0] * x1 + p[4] * y1 + p[8] * vz + p[12]) * w1);
+		float sy1 = hF * (1.0f - (p[1] * x1 + p[5] * y1 + p[9] * vz + p[13]) * w1);
+		renderContext.drawBillboard(texture.getID(), sx0, sy0, sx1, sy1, cz);
 	}
 
 	// /////////////////////////////////////////////////////////////////////////////////////////////////
@@ -704,7 +1386,23 @@ public class N3SoftwareRender extends N3Render {
 		renderContext.selectTexture(texture.getID());
 	}
 
+	public int genRenderTarget(int width, int height) {
+		return renderContext.createRenderTarget(width, height);
+	}
+
+	public void setRenderTarget(N3Texture texture) {
+		int index = (texture != null) ? texture.getID() : -1;
+		if (index == renderContext.getRenderTarget())
+			return;
+		if (renderContext.getRenderTarget() < 0)
+			screenViewport = vp;
+		renderContext.setRenderTarget(index);
+		if (index < 0 && screenViewport != null)
+			setViewport(screenViewport);
+	}
+
 	public void setTextureMode(int mode) {
+		super.setTextureMode(mode);
 		if (mode == N3_REPLACE) {
 			renderContext
 					.setTextureMode(N3SoftwareRenderContext.N3_SWR_REPLACE);
@@ -735,11 +1433,11 @@ public class N3SoftwareRender extends N3Render {
 	}
 
 	public void setColorMaterialAmbient(int face, N3ColorRGBA color) {
-		N3SoftwareLight.setMatAmbient(color);
+		lightingEngine.setMatAmbient(color);
 	}
 
 	public void setColorMaterialDiffuse(int face, N3ColorRGBA color) {
-		N3SoftwareLight.setMatDiffuse(color);
+		lightingEngine.setMatDiffuse(color);
 	}
 
 	public void setColorMaterialAmbientAndDiffuse(int face, N3ColorRGBA color) {
@@ -748,11 +1446,11 @@ public class N3SoftwareRender extends N3Render {
 	}
 
 	public void setColorMaterialSpecular(int face, N3ColorRGBA color) {
-		N3SoftwareLight.setMatSpecular(color);
+		lightingEngine.setMatSpecular(color);
 	}
 
 	public void setColorMaterialEmission(int face, N3ColorRGBA color) {
-		N3SoftwareLight.setMatEmission(color);
+		lightingEngine.setMatEmission(color);
 	}
 
 	// Manejo de luces
@@ -771,7 +1469,7 @@ public class N3SoftwareRender extends N3Render {
 				c1.G = values[1];
 				c1.B = values[2];
 				c1.A = values[3];
-				lights[n].setAmbiental(c1);
+				lightingEngine.getLight(n).setAmbiental(c1);
 				return;
 			}
 			if (paramType == N3_DIFFUSE) {
@@ -779,7 +1477,7 @@ public class N3SoftwareRender extends N3Render {
 				c1.G = values[1];
 				c1.B = values[2];
 				c1.A = values[3];
-				lights[n].setDiffuse(c1);
+				lightingEngine.getLight(n).setDiffuse(c1);
 				return;
 			}
 			if (paramType == N3_SPECULAR) {
@@ -787,7 +1485,7 @@ public class N3SoftwareRender extends N3Render {
 				c1.G = values[1];
 				c1.B = values[2];
 				c1.A = values[3];
-				lights[n].setSpecular(c1);
+				lightingEngine.getLight(n).setSpecular(c1);
 				return;
 			}
 			if (paramType == N3_SPOT_DIRECTION) {
@@ -795,7 +1493,7 @@ public class N3SoftwareRender extends N3Render {
 				d.y = values[1];
 				d.z = values[2];
 				N3Matrix4D.mult(modelViewMatrix, d);
-				lights[n].setDirection(d);
+				lightingEngine.getLight(n).setDirection(d);
 				return;
 			}
 			if (paramType == N3_POSITION) {
@@ -804,7 +1502,7 @@ public class N3SoftwareRender extends N3Render {
 				v1.z = values[2];
 				v1.w = values[3];
 				N3Matrix4D.mult(modelViewMatrix, v1);
-				lights[n].setPosition(v1);
+				lightingEngine.getLight(n).setPosition(v1);
 				return;
 			}
 		}
@@ -813,39 +1511,43 @@ public class N3SoftwareRender extends N3Render {
 	public void setLightParam(int paramType, float value, int n) {
 		if (n < MAX_LIGHTS) {
 			if (paramType == N3_SPOT_CUTOFF) {
-				lights[n].setCutOff(value);
+				lightingEngine.getLight(n).setCutOff(value);
 				return;
 			}
 			if (paramType == N3_SPOT_EXPONENT) {
-				lights[n].setSpotExp(value);
+				lightingEngine.getLight(n).setSpotExp(value);
 				return;
 			}
 			if (paramType == N3_CONSTANT_ATTENUATION) {
-				lights[n].setConstantAtten(value);
+				lightingEngine.getLight(n).setConstantAtten(value);
 				return;
 			}
 			if (paramType == N3_LINEAR_ATTENUATION) {
-				lights[n].setLinearAtten(value);
+				lightingEngine.getLight(n).setLinearAtten(value);
 				return;
 			}
 			if (paramType == N3_QUADRATIC_ATTENUATION) {
-				lights[n].setQuadAtten(value);
+				lightingEngine.getLight(n).setQuadAtten(value);
 				return;
 			}
 		}
 	}
 
 	public void setAmbientLightValue(N3ColorRGBA c) {
-		N3SoftwareLight.setAmbientalLight(c);
+		lightingEngine.setAmbientalLight(c);
 	}
 
 	public void enableLight(int n) {
 		if (n < MAX_LIGHTS)
-			lights[n].enable = true;
+			lightingEngine.getLight(n).setEnable(true);
 	}
 
 	public void disableLight(int n) {
 		if (n < MAX_LIGHTS)
-			lights[n].enable = false;
+			lightingEngine.getLight(n).setEnable(false);
+	}
+
+	public void setLightMask(int mask) {
+		lightingEngine.setLightMask(mask);
 	}
 }
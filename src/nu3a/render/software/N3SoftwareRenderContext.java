@@ -29,6 +29,7 @@ import java.awt.image.ColorModel;
 import java.awt.image.DirectColorModel;
 import java.awt.image.ImageConsumer;
 import java.awt.image.ImageProducer;
+import java.util.Arrays;
 import java.util.Vector;
 
 import nu3a.geometry.N3Point3D;
@@ -44,7 +45,10 @@ import nu3a.material.texture.N3TexCoord2D;
 public class N3SoftwareRenderContext implements ImageProducer {
 
 	private class N3InternalTexture {
-		byte[] data;
+		// Texels empaquetados en el mismo formato que la imagen
+		int[] texels;
+		// Profundidad, solo en las texturas que son destino de dibujado
+		float[] depth;
 		int dataFormat;
 		int dataType;
 		int width;
@@ -57,11 +61,13 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	private static final int N3_SWR_STATUS_DRAW_LINES = 2;
 	private static final int N3_SWR_STATUS_DRAW_TRIANGLES = 3;
 	private static final int N3_SWR_STATUS_DRAW_POLYGON = 4;
+	private static final int N3_SWR_STATUS_DRAW_STRIP = 5;
 
 	public static final int N3_POINTS = 100;
 	public static final int N3_LINES = 101;
 	public static final int N3_TRIANGLES = 102;
 	public static final int N3_POLYGON = 103;
+	public static final int N3_TRIANGLE_STRIP = 104;
 
 	public static final int N3_SWR_REPLACE = 200;
 	public static final int N3_SWR_MODULATE = 201;
@@ -69,6 +75,11 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	public static final int N3_RGBA = 21;
 	public static final int N3_RGB = 22;
 
+	public static final int N3_SWR_DEPTH_FLOAT = 300;
+	public static final int N3_SWR_DEPTH_16 = 301;
+	public static final int N3_SWR_DEPTH_24 = 302;
+	public static final int N3_SWR_DEPTH_REVERSED = 303;
+
 	/**
 	 * Componente para el que se proporciona el contexto de renderizado.
 	 */
@@ -90,6 +101,33 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	protected float[] zBuffer;
 
+	/**
+	 * Z Buffer de 16 bits, con la profundidad normalizada en coma fija. Solo
+	 * existe con el formato N3_SWR_DEPTH_16.
+	 */
+	protected char[] zBuffer16;
+
+	/**
+	 * Z Buffer de 24 bits, con la profundidad normalizada en coma fija. Solo
+	 * existe con el formato N3_SWR_DEPTH_24.
+	 */
+	protected int[] zBuffer24;
+
+	/**
+	 * Formato del Z buffer del componente.
+	 */
+	protected int depthFormat = N3_SWR_DEPTH_FLOAT;
+
+	// Formato del Z buffer en el que se dibuja. Las texturas destino de
+	// dibujado guardan siempre la profundidad en reales
+	private int zFormat = N3_SWR_DEPTH_FLOAT;
+
+	// Mayor valor del Z buffer en coma fija
+	private int zMax;
+
+	// Profundidad por debajo de la cual no se dibuja sin test de profundidad
+	private float minDepth = 0;
+
 	/**
 	 * Im�gen en la que se dibujar� el contenido renderizado.
 	 */
@@ -198,6 +236,149 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	protected Vector textures;
 
+	// Tipos de tramo del buffer de tramos, uno por rutina de rasterizado
+	private static final int SPAN_FLAT = 0;
+	private static final int SPAN_GOURAUD = 1;
+	private static final int SPAN_REPLACE = 2;
+	private static final int SPAN_FLAT_TEXTURED = 3;
+	private static final int SPAN_GOURAUD_TEXTURED = 4;
+
+	// Enteros y reales de cada tramo
+	private static final int SPAN_INTS = 8;
+	private static final int SPAN_FLOATS = 14;
+
+	/**
+	 * Indica si los tri�ngulos se rasterizan en el buffer de tramos en lugar
+	 * de dibujarse directamente. En ese caso cada tri�ngulo se convierte en
+	 * tramos horizontales con su profundidad y sus interpolantes, y al
+	 * resolver el buffer solo se sombrean los p�xels visibles de cada tramo.
+	 */
+	protected boolean spanBuffer;
+
+	/**
+	 * N�mero de tramos pendientes de resolver.
+	 */
+	protected int spanCount;
+
+	// Por tramo: x inicial, x final, tipo, color, textura, test de
+	// profundidad y siguiente tramo de la l�nea
+	private int[] spanInts;
+
+	// Por tramo: z, dz, r, g, b, a, dr, dg, db, da, u, v, du, dv, con u y v
+	// divididas por w
+	private float[] spanFloats;
+
+	// Primer y �ltimo tramo de cada l�nea
+	private int[] spanHead, spanTail;
+
+	// Profundidad y tramo visible de cada p�xel de la l�nea en resoluci�n
+	private float[] rowZ;
+
+	// Profundidad en coma fija de cada p�xel de la l�nea en resoluci�n
+	private int[] rowFixedZ;
+
+	private int[] rowOwner;
+
+	/**
+	 * N�mero de p�xels entre dos divisiones de las coordenadas de textura.
+	 * Entre ellas las coordenadas se interpolan linealmente.
+	 */
+	public static final int PERSPECTIVE_STEP = 16;
+
+	/**
+	 * Coeficientes con los que se obtiene 1/w a partir de la profundidad de
+	 * un p�xel: 1/w = qA * z + qB. Con una proyecci�n ortogr�fica w es 1.
+	 */
+	protected float qA = 0, qB = 1;
+
+	// Coeficientes de 1/w respecto a la profundidad normalizada
+	private float projA = 0, projB = 1;
+
+	// �ndices de los texels de los p�xels del tramo en curso
+	private int[] spanTexels = new int[256];
+
+	// Bits fraccionarios con los que se interpola la profundidad de 24 bits
+	private static final int DEPTH_FRACTION = 7;
+
+	/**
+	 * N�mero m�ximo de p�xels que puede abarcar en cada eje un tri�ngulo para
+	 * dibujarse como tri�ngulo peque�o: en lugar de recorrerse por tramos se
+	 * muestrea directamente en el centro de cada p�xel que abarca.
+	 */
+	public static final int SMALL_TRIANGLE = 2;
+
+	/**
+	 * Normal en el espacio de la c�mara de cada p�xel del G-buffer, con diez
+	 * bits por componente.
+	 */
+	protected int[] gNormal;
+
+	/**
+	 * Albedo de cada p�xel del G-buffer, en el mismo formato que la imagen.
+	 */
+	protected int[] gAlbedo;
+
+	/**
+	 * Material de cada p�xel del G-buffer. El 0 indica que el p�xel ya tiene
+	 * su color definitivo y no se ilumina.
+	 */
+	protected byte[] gMaterial;
+
+	/**
+	 * Material con el que se escriben en el G-buffer los tri�ngulos que se
+	 * dibujan, o 0 para dibujarlos directamente.
+	 */
+	protected int gBufferId;
+
+	/**
+	 * Textura en la que se dibuja, o -1 si se dibuja en el componente.
+	 */
+	protected int target = -1;
+
+	// Buffers del componente, que se conservan mientras se dibuja en una
+	// textura
+	private int[] screenPixels;
+
+	private float[] screenZ;
+
+	private int screenWidth, screenHeight;
+
+	private boolean screenSpans;
+
+	private int[] screenNormal, screenAlbedo;
+
+	private byte[] screenMaterial;
+
+	/**
+	 * Imagen que se muestra en el componente. Coincide con la de dibujado
+	 * salvo cuando se dibuja a una resoluci�n reducida, en cuyo caso se
+	 * escala al actualizar el componente.
+	 */
+	protected int[] outputPixels;
+
+	/**
+	 * Dimensiones del componente.
+	 */
+	protected int outputWidth, outputHeight;
+
+	/**
+	 * Escala de la resoluci�n de dibujado respecto a la del componente.
+	 */
+	protected float resolutionScale = 1;
+
+	/**
+	 * Indica si la imagen reducida se escala con filtrado bilineal.
+	 */
+	protected boolean bilinear;
+
+	// Imagen de dibujado a resoluci�n reducida, creada al reducirla la
+	// primera vez
+	private int[] scaledPixels;
+
+	// Columna de origen, siguiente columna y peso de esta de cada columna
+	// del componente
+	private int[] blitX0, blitX1, blitWX;
+
 	/**
 	 * Crea un contexto de renderizado para el componente. Si se especifica, el
 	 * dibujado se realizar� a trav�s de un doble-buffer para evitar parpadeos
@@ -216,6 +397,13 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		size = width * height;
 		pixels = new int[size];
 		zBuffer = new float[size];
+		screenPixels = pixels;
+		screenZ = zBuffer;
+		screenWidth = width;
+		screenHeight = height;
+		outputPixels = pixels;
+		outputWidth = width;
+		outputHeight = height;
 		image = Toolkit.getDefaultToolkit().createImage(this);
 		colormodel = new DirectColorModel(32, 0x000000FF, 0x0000FF00,
 				0x00FF0000, 0xFF000000);
@@ -264,6 +452,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			break;
 		case (N3_SWR_STATUS_DRAW_TRIANGLES):
 		case (N3_SWR_STATUS_DRAW_POLYGON):
+		case (N3_SWR_STATUS_DRAW_STRIP):
 			nVertex = 0;
 			vertexPool = new N3Point3D[3];
 			colorPool = new N3ColorRGBA[3];
@@ -287,8 +476,10 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	public synchronized void update() {
 		if (consumer != null) {
-			consumer.setPixels(0, 0, width, height, colormodel, (int[]) pixels,
-					0, width);
+			if (screenPixels != outputPixels)
+				upscale();
+			consumer.setPixels(0, 0, outputWidth, outputHeight, colormodel,
+					outputPixels, 0, outputWidth);
 			consumer.imageComplete(ImageConsumer.SINGLEFRAMEDONE);
 			needUpdate = false;
 		} else
@@ -318,6 +509,10 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				status = N3_SWR_STATUS_DRAW_POLYGON;
 				stablishStatusEnvironment();
 				break;
+			case (N3_TRIANGLE_STRIP):
+				status = N3_SWR_STATUS_DRAW_STRIP;
+				stablishStatusEnvironment();
+				break;
 			}
 			break;
 		default:
@@ -331,6 +526,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		case (N3_SWR_STATUS_DRAW_LINES):
 		case (N3_SWR_STATUS_DRAW_TRIANGLES):
 		case (N3_SWR_STATUS_DRAW_POLYGON):
+		case (N3_SWR_STATUS_DRAW_STRIP):
 			status = N3_SWR_STATUS_INIT;
 			break;
 		}
@@ -404,27 +600,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			uvPool[nVertex] = lastUV;
 			nVertex++;
 			if (nVertex == 3) {
-				/* dibujado del tri�ngulo con el pool */
-				int color1 = colorPool[0].getPackedValue();
-				int color2 = colorPool[1].getPackedValue();
-				int color3 = colorPool[2].getPackedValue();
-				if ((color1 == color2) && (color2 == color3)) {
-					if ((!texturing) || (selectedTexture >= textures.size())
-							|| selectedTexture == -1)
-						drawFlatTriangle();
-					else if (textureMode == N3_SWR_REPLACE)
-						drawReplaceTexturedTriangle();
-					else
-						drawFlatTexturedTriangle();
-				} else {
-					if ((!texturing) || (selectedTexture >= textures.size())
-							|| selectedTexture == -1)
-						drawGoraudTriangle();
-					else if (textureMode == N3_SWR_REPLACE)
-						drawReplaceTexturedTriangle();
-					else
-						drawGoraudTexturedTriangle();
-				}
+				drawPoolTriangle();
 				nVertex = 0;
 			}
 			break;
@@ -434,36 +610,203 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			uvPool[nVertex] = lastUV;
 			nVertex++;
 			if (nVertex == 3) {
-				/* dibujado del tri�ngulo con el pool */
-				int color1 = colorPool[0].getPackedValue();
-				int color2 = colorPool[1].getPackedValue();
-				int color3 = colorPool[2].getPackedValue();
-				if ((color1 == color2) && (color2 == color3)) {
-					if ((!texturing) || (selectedTexture >= textures.size())
-							|| selectedTexture == -1)
-						drawFlatTriangle();
-					else if (textureMode == N3_SWR_REPLACE)
-						drawReplaceTexturedTriangle();
-					else
-						drawFlatTexturedTriangle();
-				} else {
-					if ((!texturing) || (selectedTexture >= textures.size())
-							|| selectedTexture == -1)
-						drawGoraudTriangle();
-					else if (textureMode == N3_SWR_REPLACE)
-						drawReplaceTexturedTriangle();
-					else
-						drawGoraudTexturedTriangle();
-				}
+				drawPoolTriangle();
 				nVertex = 2;
 				vertexPool[1] = vertexPool[2];
 				colorPool[1] = colorPool[2];
 				uvPool[1] = uvPool[2];
 			}
 			break;
+		case (N3_SWR_STATUS_DRAW_STRIP):
+			vertexPool[nVertex] = lastVertex;
+			colorPool[nVertex] = lastColor;
+			uvPool[nVertex] = lastUV;
+			nVertex++;
+			if (nVertex == 3) {
+				drawPoolTriangle();
+				nVertex = 2;
+				vertexPool[0] = vertexPool[1];
+				colorPool[0] = colorPool[1];
+				uvPool[0] = uvPool[1];
+				vertexPool[1] = vertexPool[2];
+				colorPool[1] = colorPool[2];
+				uvPool[1] = uvPool[2];
+			}
+			break;
 		}
 	}
 
+	/**
+	 * Dibuja el tri�ngulo formado por los tres v�rtices del pool, eligiendo el
+	 * m�todo de rasterizado seg�n sus colores y el estado de texturas.
+	 */
+	private void drawPoolTriangle() {
+		if (gBufferId > 0
+				&& (!texturing || selectedTexture >= textures.size()
+						|| selectedTexture == -1 || textureMode != N3_SWR_REPLACE)) {
+			drawGBufferTriangle();
+			return;
+		}
+		int color1 = colorPool[0].getPackedValue();
+		int color2 = colorPool[1].getPackedValue();
+		int color3 = colorPool[2].getPackedValue();
+		boolean textured = texturing && (selectedTexture < textures.size())
+				&& selectedTexture != -1;
+		int kind;
+		if (textured && textureMode == N3_SWR_REPLACE)
+			kind = SPAN_REPLACE;
+		else if ((color1 == color2) && (color2 == color3))
+			kind = textured ? SPAN_FLAT_TEXTURED : SPAN_FLAT;
+		else
+			kind = textured ? SPAN_GOURAUD_TEXTURED : SPAN_GOURAUD;
+		if (isSmallTriangle()) {
+			drawSmallTriangle(kind);
+			return;
+		}
+		switch (kind) {
+		case SPAN_FLAT:
+			drawFlatTriangle();
+			break;
+		case SPAN_GOURAUD:
+			drawGoraudTriangle();
+			break;
+		case SPAN_REPLACE:
+			drawReplaceTexturedTriangle();
+			break;
+		case SPAN_FLAT_TEXTURED:
+			drawFlatTexturedTriangle();
+			break;
+		default:
+			drawGoraudTexturedTriangle();
+		}
+	}
+
+	/**
+	 * Indica si el tri�ngulo del pool abarca como mucho SMALL_TRIANGLE p�xels
+	 * en cada eje.
+	 */
+	private boolean isSmallTriangle() {
+		float x0 = vertexPool[0].x, x1 = vertexPool[1].x, x2 = vertexPool[2].x;
+		float y0 = vertexPool[0].y, y1 = vertexPool[1].y, y2 = vertexPool[2].y;
+		float minx = Math.min(x0, Math.min(x1, x2));
+		float maxx = Math.max(x0, Math.max(x1, x2));
+		float miny = Math.min(y0, Math.min(y1, y2));
+		float maxy = Math.max(y0, Math.max(y1, y2));
+		return (maxx - minx < SMALL_TRIANGLE) && (maxy - miny < SMALL_TRIANGLE);
+	}
+
+	/**
+	 * Dibuja el tri�ngulo peque�o del pool muestre�ndolo en el centro de cada
+	 * p�xel de su caja. Se evita as� la preparaci�n de lados y tramos de las
+	 * rutinas generales, que para uno a cuatro p�xels cuesta m�s que el
+	 * propio dibujado. Si la caja no contiene ning�n centro de p�xel el
+	 * tri�ngulo se descarta sin m�s.
+	 * 
+	 * @param kind
+	 *            Tipo de tramo con el que se sombrea el tri�ngulo
+	 */
+	private void drawSmallTriangle(int kind) {
+		N3Point3D v0 = vertexPool[0], v1 = vertexPool[1], v2 = vertexPool[2];
+		float minx = Math.min(v0.x, Math.min(v1.x, v2.x));
+		float maxx = Math.max(v0.x, Math.max(v1.x, v2.x));
+		float miny = Math.min(v0.y, Math.min(v1.y, v2.y));
+		float maxy = Math.max(v0.y, Math.max(v1.y, v2.y));
+		/* Centros de p�xel (i + 0.5) dentro de la caja */
+		int px0 = Math.max((int) Math.ceil(minx - 0.5f), 0);
+		int px1 = Math.min((int) Math.floor(maxx - 0.5f), width - 1);
+		int py0 = Math.max((int) Math.ceil(miny - 0.5f), 0);
+		int py1 = Math.min((int) Math.floor(maxy - 0.5f), height - 1);
+		if (px0 > px1 || py0 > py1)
+			return;
+		float area = (v1.x - v0.x) * (v2.y - v0.y) - (v2.x - v0.x)
+				* (v1.y - v0.y);
+		if (area == 0)
+			return;
+		float inv = 1.0f / area;
+		int c0 = colorPool[0].getPackedValue();
+		int c1 = colorPool[1].getPackedValue();
+		int c2 = colorPool[2].getPackedValue();
+		N3InternalTexture texture = null;
+		float tu0 = 0, tv0 = 0, tu1 = 0, tv1 = 0, tu2 = 0, tv2 = 0;
+		if (kind >= SPAN_REPLACE) {
+			texture = (N3InternalTexture) textures.elementAt(selectedTexture);
+			/* Las coordenadas de textura se interpolan divididas por w */
+			float q0 = qA * v0.z + qB, q1 = qA * v1.z + qB, q2 = qA * v2.z
+					+ qB;
+			tu0 = uvPool[0].u * (texture.width - 1) * q0;
+			tv0 = uvPool[0].v * (texture.height - 1) * q0;
+			tu1 = uvPool[1].u * (texture.width - 1) * q1;
+			tv1 = uvPool[1].v * (texture.height - 1) * q1;
+			tu2 = uvPool[2].u * (texture.width - 1) * q2;
+			tv2 = uvPool[2].v * (texture.height - 1) * q2;
+		}
+		for (int y = py0; y <= py1; y++) {
+			float cy = y + 0.5f;
+			for (int x = px0; x <= px1; x++) {
+				float cx = x + 0.5f;
+				/* Coordenadas baric�ntricas del centro del p�xel */
+				float l0 = ((v2.x - v1.x) * (cy - v1.y) - (v2.y - v1.y)
+						* (cx - v1.x))
+						* inv;
+				float l1 = ((v0.x - v2.x) * (cy - v2.y) - (v0.y - v2.y)
+						* (cx - v2.x))
+						* inv;
+				float l2 = 1 - l0 - l1;
+				if (l0 < 0 || l1 < 0 || l2 < 0)
+					continue;
+				float z = l0 * v0.z + l1 * v1.z + l2 * v2.z;
+				float r = 0, g = 0, b = 0, a = 0, u = 0, v = 0;
+				if (kind == SPAN_GOURAUD || kind == SPAN_GOURAUD_TEXTURED) {
+					r = l0 * (c0 & 0xFF) + l1 * (c1 & 0xFF) + l2 * (c2 & 0xFF);
+					g = l0 * ((c0 >> 8) & 0xFF) + l1 * ((c1 >> 8) & 0xFF) + l2
+							* ((c2 >> 8) & 0xFF);
+					b = l0 * ((c0 >> 16) & 0xFF) + l1 * ((c1 >> 16) & 0xFF)
+							+ l2 * ((c2 >> 16) & 0xFF);
+					a = l0 * ((c0 >> 24) & 0xFF) + l1 * ((c1 >> 24) & 0xFF)
+							+ l2 * ((c2 >> 24) & 0xFF);
+				}
+				if (texture != null) {
+					u = l0 * tu0 + l1 * tu1 + l2 * tu2;
+					v = l0 * tv0 + l1 * tv1 + l2 * tv2;
+				}
+				if (spanBuffer) {
+					addSpan(kind, y, x, x, c0, z, 0, r, g, b, a, 0, 0, 0, 0,
+							u, v, 0, 0);
+					continue;
+				}
+				int pos = x + y * width;
+				if (!depthTest(pos, z))
+					continue;
+				if (texture == null) {
+					pixels[pos] = (kind == SPAN_FLAT) ? c0 : (int) r
+							+ ((int) g << 8) + ((int) b << 16) + ((int) a << 24);
+					continue;
+				}
+				float q = 1.0f / Math.max(qA * z + qB, Float.MIN_NORMAL);
+				u = Math.max(0.0f, Math.min(u * q, texture.width - 1));
+				v = Math.max(0.0f, Math.min(v * q, texture.height - 1));
+				int texel = texture.texels[(int) u + ((int) v) * texture.width];
+				switch (kind) {
+				case SPAN_REPLACE:
+					pixels[pos] = texel;
+					break;
+				case SPAN_FLAT_TEXTURED:
+					pixels[pos] = (int) ((texel & 0xFF) * ((c0 & 0x000000FF) / 255))
+							| (int) ((((texel >> 8) & 0xFF) * (((c0 & 0x0000FF00) >> 8) / 255)) << 8)
+							| (int) ((((texel >> 16) & 0xFF) * (((c0 & 0x00FF0000) >> 16) / 255)) << 16)
+							| (int) (((texel >>> 24) * (((c0 >> 24) & 0x000000FF) / 255)) << 24);
+					break;
+				default:
+					pixels[pos] = (int) ((texel & 0xFF) * (r / 255))
+							| ((int) ((((texel >> 8) & 0xFF) * (g / 255))) << 8)
+							| ((int) ((((texel >> 16) & 0xFF) * (b / 255))) << 16)
+							| ((int) (((texel >>> 24) * (a / 255))) << 24);
+				}
+			}
+		}
+		needUpdate = true;
+	}
+
 	/**
 	 * Establece el color del pr�ximo v�rtice a dibujar.
 	 * 
@@ -502,10 +845,27 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		if (status == N3_SWR_STATUS_INIT) {
 			if (size > 0) {
 				int half = size >> 1;
-				zBuffer[0] = 1;
+				Object buffer;
+				switch (zFormat) {
+				case N3_SWR_DEPTH_16:
+					zBuffer16[0] = (char) zMax;
+					buffer = zBuffer16;
+					break;
+				case N3_SWR_DEPTH_24:
+					zBuffer24[0] = zMax;
+					buffer = zBuffer24;
+					break;
+				case N3_SWR_DEPTH_REVERSED:
+					zBuffer[0] = 0;
+					buffer = zBuffer;
+					break;
+				default:
+					zBuffer[0] = 1;
+					buffer = zBuffer;
+				}
 
 				for (int i = 1; i < size;) {
-					System.arraycopy(zBuffer, 0, zBuffer, i, (i < half) ? i
+					System.arraycopy(buffer, 0, buffer, i, (i < half) ? i
 							: size - i);
 					i <<= 1;
 				}
@@ -513,6 +873,161 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		}
 	}
 
+	/**
+	 * Establece el formato del Z buffer del componente:
+	 * <ul>
+	 * <li>N3_SWR_DEPTH_FLOAT: la profundidad normalizada, en reales.
+	 * <li>N3_SWR_DEPTH_16 y N3_SWR_DEPTH_24: la profundidad normalizada en
+	 * coma fija de 16 o 24 bits. El de 16 bits ocupa la mitad que los reales,
+	 * a costa de precisi�n. El de 24 bits se guarda en enteros, ocupa lo mismo
+	 * que los reales y reparte la precisi�n por igual en todo el rango; su
+	 * profundidad se interpola a lo largo de cada tramo sumando enteros.
+	 * <li>N3_SWR_DEPTH_REVERSED: en reales, pero con la profundidad
+	 * invertida, 0 en el plano lejano y -1 en el cercano. El render la
+	 * calcula directamente a partir de la profundidad en la c�mara, con lo
+	 * que los reales conservan su precisi�n junto al plano lejano.
+	 * </ul>
+	 * Los tri�ngulos con los formatos en reales y con el de 24 bits comparan
+	 * directamente sobre el Z buffer, mientras que el de 16 bits convierte
+	 * cada profundidad al compararla. Debe llamarse entre frames y dibujando
+	 * en el componente.
+	 * 
+	 * @param format
+	 *            Formato del Z buffer
+	 */
+	public void setDepthFormat(int format) {
+		if (target >= 0)
+			throw new IllegalStateException(
+					"Depth format can't change while drawing to a texture");
+		if (format == depthFormat)
+			return;
+		resolveSpans();
+		int n = outputWidth * outputHeight;
+		switch (format) {
+		case N3_SWR_DEPTH_16:
+			zBuffer16 = new char[n];
+			zBuffer = null;
+			zBuffer24 = null;
+			zMax = 0xFFFF;
+			break;
+		case N3_SWR_DEPTH_24:
+			zBuffer24 = new int[n];
+			zBuffer = null;
+			zBuffer16 = null;
+			zMax = 0xFFFFFF;
+			break;
+		case N3_SWR_DEPTH_FLOAT:
+		case N3_SWR_DEPTH_REVERSED:
+			if (zBuffer == null)
+				zBuffer = new float[n];
+			zBuffer16 = null;
+			zBuffer24 = null;
+			zMax = 0;
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown depth format: "
+					+ format);
+		}
+		screenZ = zBuffer;
+		depthFormat = zFormat = format;
+		minDepth = (format == N3_SWR_DEPTH_REVERSED) ? -0.5f : 0;
+		if (spanHead != null && zMax > 0 && rowFixedZ == null)
+			rowFixedZ = new int[outputWidth];
+		updateDepthCoefficients();
+		cleanZBuffer();
+	}
+
+	/**
+	 * Obtiene el formato del Z buffer del componente.
+	 * 
+	 * @return Formato del Z buffer
+	 */
+	public int getDepthFormat() {
+		return depthFormat;
+	}
+
+	/**
+	 * Obtiene la profundidad normalizada de un p�xel, entre -1 y 1, sea cual
+	 * sea el formato del Z buffer.
+	 * 
+	 * @param index
+	 *            Posici�n del p�xel
+	 * @return Profundidad normalizada del p�xel
+	 */
+	public float getDepth(int index) {
+		switch (zFormat) {
+		case N3_SWR_DEPTH_16:
+			return zBuffer16[index] * (2.0f / 0xFFFF) - 1;
+		case N3_SWR_DEPTH_24:
+			return zBuffer24[index] * (2.0f / 0xFFFFFF) - 1;
+		case N3_SWR_DEPTH_REVERSED:
+			return 1 + 2 * zBuffer[index];
+		default:
+			return zBuffer[index];
+		}
+	}
+
+	/**
+	 * Obtiene el Z buffer de 24 bits si el tri�ngulo que se va a dibujar
+	 * puede comparar y guardar la profundidad directamente en �l, con el
+	 * test de profundidad activado y sin G-buffer. En ese caso la
+	 * profundidad de cada tramo se interpola sumando enteros. Se consulta
+	 * una vez por tri�ngulo.
+	 * 
+	 * @return Z buffer de 24 bits, o null si no se usa
+	 */
+	private int[] fixedDepth24() {
+		if (!depthtest || gMaterial != null || zFormat != N3_SWR_DEPTH_24)
+			return null;
+		return zBuffer24;
+	}
+
+	/**
+	 * Obtiene el Z buffer en reales si el tri�ngulo que se va a dibujar puede
+	 * comparar y guardar la profundidad directamente en �l, sin pasar por
+	 * depthTest: con el test de profundidad activado, un formato en reales y
+	 * sin G-buffer. Se consulta una vez por tri�ngulo.
+	 * 
+	 * @return Z buffer en reales, o null si hay que usar depthTest
+	 */
+	private float[] floatDepth() {
+		if (!depthtest || gMaterial != null || zFormat == N3_SWR_DEPTH_16
+				|| zFormat == N3_SWR_DEPTH_24)
+			return null;
+		return zBuffer;
+	}
+
+	// Profundidad z en coma fija, entre 0 y zMax
+	private int fixedDepth(float z) {
+		int q = (int) ((z + 1) * (zMax * 0.5f));
+		return (q < 0) ? 0 : (q > zMax) ? zMax : q;
+	}
+
+	// Profundidad z en coma fija con DEPTH_FRACTION bits fraccionarios, para
+	// interpolarla sumando enteros
+	private int fixedDepthStep(float z) {
+		float q = (z + 1) * (zMax * (0.5f * (1 << DEPTH_FRACTION)));
+		int max = zMax << DEPTH_FRACTION;
+		return (q > 0) ? ((q < max) ? (int) q : max) : 0;
+	}
+
+	// Incremento por p�xel de la profundidad en coma fija q de un tramo de n
+	// p�xels, a partir del incremento dz de la profundidad normalizada. Si
+	// por el redondeo el tramo se saliese del rango, se ajusta para que
+	// termine en su l�mite
+	private int fixedDepthDelta(int q, float dz, int n) {
+		if (n <= 1)
+			return 0;
+		int dq = (int) (dz * (zMax * (0.5f * (1 << DEPTH_FRACTION))));
+		long end = q + (long) dq * (n - 1);
+		int max = zMax << DEPTH_FRACTION;
+		if (end < 0)
+			dq = -q / (n - 1);
+		else if (end > max)
+			dq = (max - q) / (n - 1);
+		return dq;
+	}
+
 	/**
 	 * Establece si el dibujado se realizar� utilizando el test de profundidad
 	 * 
@@ -563,17 +1078,18 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			int width, int height) {
 		N3InternalTexture t = new N3InternalTexture();
 		if (dataFormat == N3_RGB) {
-			t.data = new byte[data.length + width * height];
+			t.texels = new int[data.length / 3];
 			int j = 0;
-			for (int i = 0; i < data.length; i += 3) {
-				t.data[j++] = data[i];
-				t.data[j++] = data[i + 1];
-				t.data[j++] = data[i + 2];
-				t.data[j++] = -1;
-			}
+			for (int i = 0; i < data.length; i += 3)
+				t.texels[j++] = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8)
+						| ((data[i + 2] & 0xFF) << 16) | 0xFF000000;
 		} else {
-			t.data = new byte[data.length];
-			System.arraycopy(data, 0, t.data, 0, data.length);
+			t.texels = new int[data.length / 4];
+			int j = 0;
+			for (int i = 0; i < data.length; i += 4)
+				t.texels[j++] = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8)
+						| ((data[i + 2] & 0xFF) << 16)
+						| ((data[i + 3] & 0xFF) << 24);
 		}
 		t.dataFormat = dataFormat;
 		t.dataType = dataType;
@@ -583,6 +1099,256 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		return textures.size() - 1;
 	}
 
+	/**
+	 * Crea una textura en la que se puede dibujar. Sus texels son
+	 * directamente los p�xels que se dibujan en ella, de modo que tras
+	 * dibujar se puede usar como cualquier otra textura sin copiarla ni
+	 * convertirla.
+	 * 
+	 * @param width
+	 *            Anchura de la textura
+	 * @param height
+	 *            Altura de la textura
+	 * @return C�digo de la textura dentro del contexto
+	 */
+	public int createRenderTarget(int width, int height) {
+		N3InternalTexture t = new N3InternalTexture();
+		t.texels = new int[width * height];
+		t.depth = new float[width * height];
+		t.dataFormat = N3_RGBA;
+		t.width = width;
+		t.height = height;
+		textures.add(t);
+		return textures.size() - 1;
+	}
+
+	/**
+	 * Establece d�nde se dibuja: en una textura creada con
+	 * createRenderTarget o en el componente. Mientras se dibuja en una
+	 * textura no se usan el buffer de tramos ni el G-buffer.
+	 * 
+	 * @param index
+	 *            C�digo de la textura, o -1 para dibujar en el componente
+	 */
+	public void setRenderTarget(int index) {
+		if (index == target)
+			return;
+		N3InternalTexture t = null;
+		if (index >= 0) {
+			t = (N3InternalTexture) textures.elementAt(index);
+			if (t.depth == null)
+				throw new IllegalArgumentException("Not a render target: "
+						+ index);
+		}
+		resolveSpans();
+		if (target < 0) {
+			screenSpans = spanBuffer;
+			screenNormal = gNormal;
+			screenAlbedo = gAlbedo;
+			screenMaterial = gMaterial;
+		}
+		if (t == null) {
+			pixels = screenPixels;
+			zBuffer = screenZ;
+			zFormat = depthFormat;
+			width = screenWidth;
+			height = screenHeight;
+			spanBuffer = screenSpans;
+			gNormal = screenNormal;
+			gAlbedo = screenAlbedo;
+			gMaterial = screenMaterial;
+		} else {
+			pixels = t.texels;
+			zBuffer = t.depth;
+			zFormat = (depthFormat == N3_SWR_DEPTH_REVERSED) ? depthFormat
+					: N3_SWR_DEPTH_FLOAT;
+			width = t.width;
+			height = t.height;
+			spanBuffer = false;
+			gNormal = null;
+			gAlbedo = null;
+			gMaterial = null;
+		}
+		size = width * height;
+		gBufferId = 0;
+		target = index;
+	}
+
+	/**
+	 * Obtiene la textura en la que se dibuja.
+	 * 
+	 * @return C�digo de la textura, o -1 si se dibuja en el componente
+	 */
+	public int getRenderTarget() {
+		return target;
+	}
+
+	/**
+	 * Obtiene los texels de una textura, empaquetados en el mismo formato que
+	 * la im�gen.
+	 * 
+	 * @param index
+	 *            C�digo de la textura
+	 * @return Texels de la textura, fila a fila
+	 */
+	protected int[] getTexels(int index) {
+		return ((N3InternalTexture) textures.elementAt(index)).texels;
+	}
+
+	/**
+	 * Obtiene la anchura de una textura.
+	 * 
+	 * @param index
+	 *            C�digo de la textura
+	 * @return Anchura en texels
+	 */
+	protected int getTextureWidth(int index) {
+		return ((N3InternalTexture) textures.elementAt(index)).width;
+	}
+
+	/**
+	 * Obtiene la altura de una textura.
+	 * 
+	 * @param index
+	 *            C�digo de la textura
+	 * @return Altura en texels
+	 */
+	protected int getTextureHeight(int index) {
+		return ((N3InternalTexture) textures.elementAt(index)).height;
+	}
+
+	/**
+	 * Establece la resoluci�n a la que se dibuja, como fracci�n de la del
+	 * componente. Con una escala menor que 1 se dibuja en una imagen
+	 * reducida que se escala al tama�o del componente al actualizarlo. La
+	 * imagen reducida comparte el Z-buffer, el buffer de tramos y el
+	 * G-buffer de la imagen completa, por lo que cambiar la escala no
+	 * reserva memoria salvo la primera vez. Debe llamarse entre frames y
+	 * dibujando en el componente.
+	 * 
+	 * @param scale
+	 *            Escala, entre 0 y 1
+	 */
+	public void setResolutionScale(float scale) {
+		if (target >= 0)
+			throw new IllegalStateException(
+					"Resolution can't change while drawing to a texture");
+		scale = (scale > 1) ? 1 : scale;
+		int w = Math.max(1, Math.round(outputWidth * scale));
+		int h = Math.max(1, Math.round(outputHeight * scale));
+		resolutionScale = scale;
+		if (w == screenWidth && h == screenHeight)
+			return;
+		discardSpans();
+		if (w == outputWidth && h == outputHeight)
+			screenPixels = outputPixels;
+		else {
+			if (scaledPixels == null) {
+				scaledPixels = new int[outputWidth * outputHeight];
+				blitX0 = new int[outputWidth];
+				blitX1 = new int[outputWidth];
+				blitWX = new int[outputWidth];
+			}
+			screenPixels = scaledPixels;
+			// Centros de las columnas del componente en la imagen reducida
+			int dx = (w << 16) / outputWidth;
+			int sx = (dx >> 1) - 0x8000;
+			for (int x = 0; x < outputWidth; x++, sx += dx) {
+				int s = (sx < 0) ? 0 : sx;
+				blitX0[x] = s >> 16;
+				blitX1[x] = Math.min((s >> 16) + 1, w - 1);
+				blitWX[x] = (s >> 8) & 0xFF;
+			}
+		}
+		pixels = screenPixels;
+		width = screenWidth = w;
+		height = screenHeight = h;
+		size = w * h;
+		if (spanHead != null)
+			for (int i = 0; i < h; i++)
+				spanHead[i] = -1;
+		needUpdate = true;
+	}
+
+	/**
+	 * Obtiene la escala de la resoluci�n de dibujado.
+	 * 
+	 * @return Escala respecto a la resoluci�n del componente
+	 */
+	public float getResolutionScale() {
+		return resolutionScale;
+	}
+
+	/**
+	 * Indica si la imagen reducida se escala con filtrado bilineal o
+	 * repitiendo el p�xel m�s cercano.
+	 * 
+	 * @param value
+	 *            True para usar el filtrado bilineal
+	 */
+	public void setBilinearUpscale(boolean value) {
+		bilinear = value;
+	}
+
+	/**
+	 * Indica si la imagen reducida se escala con filtrado bilineal.
+	 * 
+	 * @return True si se usa el filtrado bilineal
+	 */
+	public boolean getBilinearUpscale() {
+		return bilinear;
+	}
+
+	/**
+	 * Escala la imagen reducida al tama�o del componente, con aritm�tica
+	 * entera en coma fija.
+	 */
+	private void upscale() {
+		int[] src = screenPixels, dst = outputPixels;
+		int w = screenWidth, h = screenHeight;
+		int dy = (h << 16) / outputHeight;
+		int pos = 0;
+		if (!bilinear) {
+			int dx = (w << 16) / outputWidth;
+			for (int y = 0, sy = dy >> 1; y < outputHeight; y++, sy += dy) {
+				int row = (sy >> 16) * w;
+				for (int x = 0, sx = dx >> 1; x < outputWidth; x++, sx += dx)
+					dst[pos++] = src[row + (sx >> 16)];
+			}
+			return;
+		}
+		int[] x0 = blitX0, x1 = blitX1, wx = blitWX;
+		for (int y = 0, sy = (dy >> 1) - 0x8000; y < outputHeight; y++, sy += dy) {
+			int s = (sy < 0) ? 0 : sy;
+			int row0 = (s >> 16) * w;
+			int row1 = Math.min((s >> 16) + 1, h - 1) * w;
+			int wy = (s >> 8) & 0xFF;
+			for (int x = 0; x < outputWidth; x++) {
+				int top = lerp(src[row0 + x0[x]], src[row0 + x1[x]], wx[x]);
+				int bottom = lerp(src[row1 + x0[x]], src[row1 + x1[x]], wx[x]);
+				dst[pos++] = lerp(top, bottom, wy);
+			}
+		}
+	}
+
+	/**
+	 * Interpola dos colores empaquetados, tratando dos componentes a la vez.
+	 * 
+	 * @param a
+	 *            Primer color
+	 * @param b
+	 *            Segundo color
+	 * @param t
+	 *            Peso del segundo color, entre 0 y 255
+	 * @return Color interpolado
+	 */
+	private static int lerp(int a, int b, int t) {
+		int s = 256 - t;
+		int rb = (((a & 0x00FF00FF) * s + (b & 0x00FF00FF) * t) >>> 8) & 0x00FF00FF;
+		int ga = (((a >>> 8) & 0x00FF00FF) * s + ((b >>> 8) & 0x00FF00FF) * t) & 0xFF00FF00;
+		return rb | ga;
+	}
+
 	/**
 	 * Selecciona la textura activa
 	 * 
@@ -603,6 +1369,397 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		textureMode = mode;
 	}
 
+	/**
+	 * Permite indicar si los tri�ngulos se rasterizan en el buffer de tramos.
+	 * Con el buffer de tramos cada p�xel se sombrea una sola vez, sea cual sea
+	 * el n�mero de tri�ngulos que lo cubren; los tramos se resuelven al llamar
+	 * a resolveSpans. Los puntos y las l�neas se siguen dibujando
+	 * directamente.
+	 * 
+	 * @param value
+	 *            True para usar el buffer de tramos
+	 */
+	public void setSpanBuffer(boolean value) {
+		if (!value)
+			resolveSpans();
+		else if (spanHead == null) {
+			// Se reservan para el tama�o del componente, que es el m�ximo
+			spanHead = new int[outputHeight];
+			spanTail = new int[outputHeight];
+			for (int i = 0; i < outputHeight; i++)
+				spanHead[i] = -1;
+			rowZ = new float[outputWidth];
+			rowOwner = new int[outputWidth];
+			if (zMax > 0)
+				rowFixedZ = new int[outputWidth];
+			spanInts = new int[256 * SPAN_INTS];
+			spanFloats = new float[256 * SPAN_FLOATS];
+		}
+		spanBuffer = value;
+	}
+
+	/**
+	 * Establece la proyecci�n con la que se han calculado los v�rtices, para
+	 * corregir la perspectiva de las coordenadas de textura. En una
+	 * proyecci�n perspectiva la profundidad normalizada vale
+	 * -m10 - m14 / z, con z la profundidad en el espacio de la c�mara, as�
+	 * que 1/w = -1/z es lineal en la profundidad del p�xel.
+	 * 
+	 * @param m
+	 *            Matriz de proyecci�n, por columnas
+	 */
+	public void setProjection(float[] m) {
+		projA = 0;
+		projB = 1;
+		if (m[11] != 0 && m[15] == 0 && m[14] != 0) {
+			projA = 1.0f / m[14];
+			projB = m[10] / m[14];
+		}
+		updateDepthCoefficients();
+	}
+
+	/**
+	 * Calcula qA y qB para el formato del Z buffer. Con la profundidad
+	 * invertida z, la normalizada es 1 + 2z.
+	 */
+	private void updateDepthCoefficients() {
+		float a = projA, b = projB;
+		if (depthFormat == N3_SWR_DEPTH_REVERSED) {
+			b = a + b;
+			a = 2 * a;
+		}
+		if (a != qA || b != qB) {
+			// Los tramos pendientes se calcularon con la proyecci�n anterior
+			resolveSpans();
+			qA = a;
+			qB = b;
+		}
+	}
+
+	/**
+	 * Calcula en spanTexels los �ndices de los texels de n p�xels seguidos
+	 * de una l�nea horizontal, a partir de la profundidad y de las
+	 * coordenadas de textura divididas por w en el primer p�xel y de sus
+	 * incrementos por p�xel. La divisi�n por 1/w solo se hace cada
+	 * PERSPECTIVE_STEP p�xels, interpolando linealmente entre medias.
+	 */
+	private void perspectiveTexels(N3InternalTexture texture, float z,
+			float dz, float uq, float vq, float duq, float dvq, int n) {
+		if (spanTexels.length < n)
+			spanTexels = new int[Math.max(n, spanTexels.length * 2)];
+		float tw = texture.width - 1, th = texture.height - 1;
+		float q = 1.0f / Math.max(qA * z + qB, Float.MIN_NORMAL);
+		float u = Math.max(0.0f, Math.min(uq * q, tw));
+		float v = Math.max(0.0f, Math.min(vq * q, th));
+		for (int i = 0; i < n;) {
+			int run = Math.min(PERSPECTIVE_STEP, n - i);
+			z += dz * run;
+			uq += duq * run;
+			vq += dvq * run;
+			q = 1.0f / Math.max(qA * z + qB, Float.MIN_NORMAL);
+			float u1 = Math.max(0.0f, Math.min(uq * q, tw));
+			float v1 = Math.max(0.0f, Math.min(vq * q, th));
+			float du = (u1 - u) / run, dv = (v1 - v) / run;
+			for (int end = i + run; i < end; i++) {
+				spanTexels[i] = (int) u + ((int) v) * texture.width;
+				u += du;
+				v += dv;
+			}
+			u = u1;
+			v = v1;
+		}
+	}
+
+	/**
+	 * Indica si los tri�ngulos se rasterizan en el buffer de tramos.
+	 * 
+	 * @return True si se usa el buffer de tramos
+	 */
+	public boolean getSpanBuffer() {
+		return spanBuffer;
+	}
+
+	/**
+	 * Permite guardar un G-buffer junto a la imagen. Mientras se indique un
+	 * material con setGBufferMaterial, los tri�ngulos no se sombrean: se
+	 * guardan por p�xel su profundidad, su normal, su albedo y su material
+	 * para iluminarlos despu�s una sola vez.
+	 * 
+	 * @param value
+	 *            True para crear el G-buffer
+	 */
+	public void setGBuffer(boolean value) {
+		if (!value) {
+			gNormal = null;
+			gAlbedo = null;
+			gMaterial = null;
+			gBufferId = 0;
+		} else if (gMaterial == null) {
+			gNormal = new int[outputWidth * outputHeight];
+			gAlbedo = new int[outputWidth * outputHeight];
+			gMaterial = new byte[outputWidth * outputHeight];
+		}
+	}
+
+	/**
+	 * Indica si se guarda un G-buffer junto a la imagen.
+	 * 
+	 * @return True si existe el G-buffer
+	 */
+	public boolean getGBuffer() {
+		return gMaterial != null;
+	}
+
+	/**
+	 * Establece el material con el que se escriben en el G-buffer los
+	 * siguientes tri�ngulos. Las componentes R, G y B del color de sus
+	 * v�rtices han de contener la normal en el espacio de la c�mara.
+	 * 
+	 * @param id
+	 *            Identificador del material, o 0 para dibujar los tri�ngulos
+	 *            directamente
+	 */
+	public void setGBufferMaterial(int id) {
+		gBufferId = (gMaterial != null) ? id : 0;
+	}
+
+	// Descarta los tramos pendientes
+	private void discardSpans() {
+		if (spanCount > 0) {
+			for (int i = 0; i < height; i++)
+				spanHead[i] = -1;
+			spanCount = 0;
+		}
+	}
+
+	/**
+	 * A�ade un tramo de la l�nea y al buffer de tramos. Los interpolantes
+	 * corresponden al p�xel x0 y se incrementan en cada p�xel.
+	 */
+	private void addSpan(int kind, int y, int x0, int x1, int color, float z,
+			float dz, float r, float g, float b, float a, float dr, float dg,
+			float db, float da, float u, float v, float du, float dv) {
+		// Los tri�ngulos recortan el tramo a width, no a width - 1; la
+		// subdivisi�n de las texturas se hace sobre esa longitud
+		int length = x1 - x0 + 1;
+		if (x1 >= width)
+			x1 = width - 1;
+		if (x0 > x1)
+			return;
+		if (x0 == x1) {
+			// En un tramo de un p�xel los incrementos se han calculado
+			// dividiendo por cero, y multiplicados por 0 dar�an NaN
+			dz = dr = dg = db = da = du = dv = 0;
+		}
+		if ((spanCount + 1) * SPAN_INTS > spanInts.length) {
+			int[] i = new int[spanInts.length * 2];
+			System.arraycopy(spanInts, 0, i, 0, spanInts.length);
+			spanInts = i;
+			float[] f = new float[spanFloats.length * 2];
+			System.arraycopy(spanFloats, 0, f, 0, spanFloats.length);
+			spanFloats = f;
+		}
+		int s = spanCount++;
+		int p = s * SPAN_INTS;
+		spanInts[p] = x0;
+		spanInts[p + 1] = x1;
+		spanInts[p + 2] = kind;
+		spanInts[p + 3] = color;
+		spanInts[p + 4] = selectedTexture;
+		spanInts[p + 5] = depthtest ? 1 : 0;
+		spanInts[p + 6] = -1;
+		spanInts[p + 7] = length;
+		p = s * SPAN_FLOATS;
+		spanFloats[p] = z;
+		spanFloats[p + 1] = dz;
+		spanFloats[p + 2] = r;
+		spanFloats[p + 3] = g;
+		spanFloats[p + 4] = b;
+		spanFloats[p + 5] = a;
+		spanFloats[p + 6] = dr;
+		spanFloats[p + 7] = dg;
+		spanFloats[p + 8] = db;
+		spanFloats[p + 9] = da;
+		spanFloats[p + 10] = u;
+		spanFloats[p + 11] = v;
+		spanFloats[p + 12] = du;
+		spanFloats[p + 13] = dv;
+		if (spanHead[y] < 0)
+			spanHead[y] = s;
+		else
+			spanInts[spanTail[y] * SPAN_INTS + 6] = s;
+		spanTail[y] = s;
+	}
+
+	/**
+	 * Resuelve el buffer de tramos. Para cada l�nea se decide, en el orden en
+	 * que se a�adieron los tramos y con las mismas reglas que el dibujado
+	 * directo, qu� tramo es visible en cada p�xel; despu�s se sombrea una sola
+	 * vez cada segmento visible.
+	 */
+	public void resolveSpans() {
+		if (spanCount == 0)
+			return;
+		for (int y = 0; y < height; y++) {
+			int s = spanHead[y];
+			if (s < 0)
+				continue;
+			int row = y * width;
+			int min = width, max = -1;
+			for (int t = s; t >= 0; t = spanInts[t * SPAN_INTS + 6]) {
+				min = Math.min(min, spanInts[t * SPAN_INTS]);
+				max = Math.max(max, spanInts[t * SPAN_INTS + 1]);
+			}
+			boolean fixed = zMax > 0;
+			if (!fixed)
+				System.arraycopy(zBuffer, row + min, rowZ, min, max - min + 1);
+			else if (zFormat == N3_SWR_DEPTH_16)
+				for (int x = min; x <= max; x++)
+					rowFixedZ[x] = zBuffer16[row + x];
+			else
+				System.arraycopy(zBuffer24, row + min, rowFixedZ, min, max
+						- min + 1);
+			for (int x = min; x <= max; x++)
+				rowOwner[x] = -1;
+			// Visibilidad
+			for (int t = s; t >= 0; t = spanInts[t * SPAN_INTS + 6]) {
+				int p = t * SPAN_INTS;
+				int x0 = spanInts[p], x1 = spanInts[p + 1];
+				float z = spanFloats[t * SPAN_FLOATS];
+				float dz = spanFloats[t * SPAN_FLOATS + 1];
+				if (spanInts[p + 5] == 0) {
+					for (int x = x0; x <= x1; x++, z += dz)
+						if (z >= minDepth)
+							rowOwner[x] = t;
+				} else if (!fixed) {
+					for (int x = x0; x <= x1; x++, z += dz)
+						if (rowZ[x] > z) {
+							rowZ[x] = z;
+							rowOwner[x] = t;
+						}
+				} else if (zFormat == N3_SWR_DEPTH_24) {
+					// Como en el dibujado directo, la profundidad se
+					// interpola sobre la longitud del tramo sin recortar
+					int q = fixedDepthStep(z);
+					int dq = fixedDepthDelta(q, dz, spanInts[p + 7]);
+					for (int x = x0; x <= x1; x++, q += dq) {
+						int d = q >> DEPTH_FRACTION;
+						if (rowFixedZ[x] > d) {
+							rowFixedZ[x] = d;
+							rowOwner[x] = t;
+						}
+					}
+				} else {
+					for (int x = x0; x <= x1; x++, z += dz) {
+						int q = fixedDepth(z);
+						if (rowFixedZ[x] > q) {
+							rowFixedZ[x] = q;
+							rowOwner[x] = t;
+						}
+					}
+				}
+			}
+			if (!fixed)
+				System.arraycopy(rowZ, min, zBuffer, row + min, max - min + 1);
+			else if (zFormat == N3_SWR_DEPTH_16)
+				for (int x = min; x <= max; x++)
+					zBuffer16[row + x] = (char) rowFixedZ[x];
+			else
+				System.arraycopy(rowFixedZ, min, zBuffer24, row + min, max
+						- min + 1);
+			// Sombreado de los segmentos visibles
+			int x = min;
+			while (x <= max) {
+				int t = rowOwner[x];
+				if (t < 0) {
+					x++;
+					continue;
+				}
+				int end = x;
+				while (end < max && rowOwner[end + 1] == t)
+					end++;
+				shadeSpan(t, row, x, end);
+				if (gMaterial != null)
+					for (int i = x; i <= end; i++)
+						gMaterial[row + i] = 0;
+				x = end + 1;
+			}
+			spanHead[y] = -1;
+		}
+		spanCount = 0;
+		needUpdate = true;
+	}
+
+	// Sombrea los p�xels x0..x1 del tramo t
+	private void shadeSpan(int t, int row, int x0, int x1) {
+		int p = t * SPAN_INTS;
+		int color = spanInts[p + 3];
+		int kind = spanInts[p + 2];
+		if (kind == SPAN_FLAT) {
+			for (int x = x0; x <= x1; x++)
+				pixels[row + x] = color;
+			return;
+		}
+		int k = x0 - spanInts[p];
+		int n = spanInts[p + 7];
+		p = t * SPAN_FLOATS;
+		float dr = spanFloats[p + 6], dg = spanFloats[p + 7];
+		float db = spanFloats[p + 8], da = spanFloats[p + 9];
+		float r = spanFloats[p + 2], g = spanFloats[p + 3];
+		float b = spanFloats[p + 4], a = spanFloats[p + 5];
+		// Los interpolantes se avanzan sumando desde el principio del tramo,
+		// como en el dibujado directo, para obtener los mismos valores
+		for (int i = 0; i < k; i++) {
+			r += dr;
+			g += dg;
+			b += db;
+			a += da;
+		}
+		if (kind == SPAN_GOURAUD) {
+			for (int x = x0; x <= x1; x++) {
+				pixels[row + x] = (int) r + ((int) g << 8) + ((int) b << 16)
+						+ ((int) a << 24);
+				r += dr;
+				g += dg;
+				b += db;
+				a += da;
+			}
+			return;
+		}
+		N3InternalTexture texture = (N3InternalTexture) textures
+				.elementAt(spanInts[t * SPAN_INTS + 4]);
+		// La subdivision empieza tambien al principio del tramo, de modo que
+		// las divisiones caen en los mismos p�xels que en el dibujado directo
+		perspectiveTexels(texture, spanFloats[p], spanFloats[p + 1],
+				spanFloats[p + 10], spanFloats[p + 11], spanFloats[p + 12],
+				spanFloats[p + 13], n);
+		int[] texels = texture.texels;
+		int texel;
+		for (int x = x0, i = k; x <= x1; x++, i++) {
+			texel = texels[spanTexels[i]];
+			switch (kind) {
+			case SPAN_REPLACE:
+				pixels[row + x] = texel;
+				break;
+			case SPAN_FLAT_TEXTURED:
+				pixels[row + x] = (int) ((texel & 0xFF) * ((color & 0x000000FF) / 255))
+						| (int) ((((texel >> 8) & 0xFF) * (((color & 0x0000FF00) >> 8) / 255)) << 8)
+						| (int) ((((texel >> 16) & 0xFF) * (((color & 0x00FF0000) >> 16) / 255)) << 16)
+						| (int) (((texel >>> 24) * (((color >> 24) & 0x000000FF) / 255)) << 24);
+				break;
+			default:
+				pixels[row + x] = (int) ((texel & 0xFF) * (r / 255))
+						| ((int) ((((texel >> 8) & 0xFF) * (g / 255))) << 8)
+						| ((int) ((((texel >> 16) & 0xFF) * (b / 255))) << 16)
+						| ((int) (((texel >>> 24) * (a / 255))) << 24);
+				r += dr;
+				g += dg;
+				b += db;
+				a += da;
+			}
+		}
+	}
+
 	/**
 	 * Indica si un punto deber�a de dibujarse, teniendo en cuenta si hay otros
 	 * puntos entre �l y la c�mara. En el caso de que el z buffer est� activo y
@@ -616,19 +1773,148 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 * @return true si hay que dibujar el punto. False en caso contrario.
 	 */
 	public boolean depthTest(int index, float z) {
-		if (!depthtest)
-			return (z >= 0.0f);
-		else if (zBuffer[index] > z) {
+		if (!depthtest) {
+			if (z < minDepth)
+				return false;
+		} else if (!updateDepth(index, z))
+			return false;
+		if (gMaterial != null)
+			gMaterial[index] = 0;
+		return true;
+	}
+
+	/**
+	 * Compara la profundidad de un punto con la del Z buffer en el formato de
+	 * este, y la guarda si el punto est� m�s cerca.
+	 * 
+	 * @param index
+	 *            Posici�n de la im�gen en la que se dibujar�a el punto
+	 * @param z
+	 *            Profundidad del punto
+	 * @return true si el punto est� m�s cerca
+	 */
+	protected boolean updateDepth(int index, float z) {
+		switch (zFormat) {
+		case N3_SWR_DEPTH_16: {
+			int q = fixedDepth(z);
+			if (zBuffer16[index] <= q)
+				return false;
+			zBuffer16[index] = (char) q;
+			return true;
+		}
+		case N3_SWR_DEPTH_24: {
+			int q = fixedDepth(z);
+			if (zBuffer24[index] <= q)
+				return false;
+			zBuffer24[index] = q;
+			return true;
+		}
+		default:
+			if (!(zBuffer[index] > z))
+				return false;
 			zBuffer[index] = z;
 			return true;
 		}
-		return false;
 	}
 
 	/*---------------------------------------------------------------------------------
 	M�todos de dibujado
 	---------------------------------------------------------------------------------*/
 
+	/**
+	 * Dibuja un lote de puntos ya proyectados a coordenadas de pantalla, cada
+	 * uno como un cuadrado de size x size p�xels centrado en el punto. Los
+	 * puntos no pasan por el buffer de tramos: se escriben directamente
+	 * con el test de profundidad.
+	 * 
+	 * @param screen
+	 *            Coordenadas x, y, z de pantalla de los puntos, de tres en
+	 *            tres
+	 * @param colors
+	 *            Colores empaquetados de los puntos
+	 * @param count
+	 *            N�mero de puntos
+	 * @param size
+	 *            Lado en p�xels de cada punto
+	 */
+	public void drawPoints(float[] screen, int[] colors, int count, int size) {
+		if (size <= 1) {
+			for (int i = 0, k = 0; i < count; i++, k += 3) {
+				int x = (int) screen[k];
+				int y = (int) screen[k + 1];
+				if (x < 0 || x >= width || y < 0 || y >= height)
+					continue;
+				int pos = x + y * width;
+				if (depthTest(pos, screen[k + 2]))
+					pixels[pos] = colors[i];
+			}
+		} else {
+			int half = size >> 1;
+			for (int i = 0, k = 0; i < count; i++, k += 3) {
+				int x0 = (int) screen[k] - half;
+				int y0 = (int) screen[k + 1] - half;
+				int x1 = Math.min(x0 + size, width);
+				int y1 = Math.min(y0 + size, height);
+				x0 = Math.max(x0, 0);
+				y0 = Math.max(y0, 0);
+				float z = screen[k + 2];
+				int color = colors[i];
+				for (int y = y0; y < y1; y++)
+					for (int pos = y * width + x0, end = y * width + x1; pos < end; pos++)
+						if (depthTest(pos, z))
+							pixels[pos] = color;
+			}
+		}
+		needUpdate = true;
+	}
+
+	/**
+	 * Dibuja una textura sobre un rect�ngulo de pantalla a profundidad
+	 * constante, ampliando o reduciendo por el texel m�s cercano. Los texels
+	 * con alfa 0 se descartan, de forma que el fondo de la textura no tapa lo
+	 * que hay detr�s.
+	 * 
+	 * @param index
+	 *            C�digo de la textura
+	 * @param x0
+	 *            Coordenada x de la esquina superior izquierda
+	 * @param y0
+	 *            Coordenada y de la esquina superior izquierda
+	 * @param x1
+	 *            Coordenada x de la esquina inferior derecha
+	 * @param y1
+	 *            Coordenada y de la esquina inferior derecha
+	 * @param z
+	 *            Profundidad del rect�ngulo
+	 */
+	public void drawBillboard(int index, float x0, float y0, float x1,
+			float y1, float z) {
+		if (x1 <= x0 || y1 <= y0)
+			return;
+		int[] texels = getTexels(index);
+		int tw = getTextureWidth(index);
+		int th = getTextureHeight(index);
+		// Paso en coma fija 16.16 por p�xel de pantalla
+		int du = (int) (tw * 65536.0f / (x1 - x0));
+		int dv = (int) (th * 65536.0f / (y1 - y0));
+		int px0 = Math.max((int) Math.ceil(x0 - 0.5f), 0);
+		int py0 = Math.max((int) Math.ceil(y0 - 0.5f), 0);
+		int px1 = Math.min((int) Math.ceil(x1 - 0.5f), width);
+		int py1 = Math.min((int) Math.ceil(y1 - 0.5f), height);
+		int u0 = (int) ((px0 + 0.5f - x0) * du);
+		int v = (int) ((py0 + 0.5f - y0) * dv);
+		for (int y = py0; y < py1; y++, v += dv) {
+			int row = Math.min(v >> 16, th - 1) * tw;
+			int u = u0;
+			for (int pos = y * width + px0, end = y * width + px1; pos < end; pos++, u += du) {
+				int texel = texels[row + Math.min(u >> 16, tw - 1)];
+				if ((texel >>> 24) != 0 && depthTest(pos, z))
+					pixels[pos] = texel;
+			}
+		}
+		needUpdate = true;
+	}
+
 	/**
 	 * Dibuja un v�rtice con el �ltimo color especificado.
 	 */
@@ -1095,6 +2381,9 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	public void clear() {
 		if (status == N3_SWR_STATUS_INIT) {
+			discardSpans();
+			if (gMaterial != null)
+				Arrays.fill(gMaterial, (byte) 0);
 			if (size > 0) {
 				int c = lastColor.getPackedValue();
 				int half = size >> 1;
@@ -1118,6 +2407,9 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	public void clearToColor(N3ColorRGBA color) {
 		if (status == N3_SWR_STATUS_INIT) {
+			discardSpans();
+			if (gMaterial != null)
+				Arrays.fill(gMaterial, (byte) 0);
 			if (size > 0) {
 				int c = color.getPackedValue();
 				int half = size >> 1;
@@ -1133,11 +2425,130 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		}
 	}
 
+	/**
+	 * Escribe en el G-buffer el tri�ngulo del pool. La profundidad, la normal
+	 * (tomada de las componentes R, G y B de los colores) y las coordenadas
+	 * de textura se interpolan con las ecuaciones de plano del tri�ngulo.
+	 */
+	public void drawGBufferTriangle() {
+		N3Point3D p0 = vertexPool[0], p1 = vertexPool[1], p2 = vertexPool[2];
+		float x10 = p1.x - p0.x, y10 = p1.y - p0.y;
+		float x20 = p2.x - p0.x, y20 = p2.y - p0.y;
+		float area = x10 * y20 - x20 * y10;
+		if (area == 0.0f)
+			return;
+		float inv = 1.0f / area;
+		/* Gradientes de cada magnitud en x e y */
+		float a1 = p1.z - p0.z, a2 = p2.z - p0.z;
+		float zdx = (a1 * y20 - a2 * y10) * inv;
+		float zdy = (a2 * x10 - a1 * x20) * inv;
+		N3ColorRGBA c0 = colorPool[0], c1 = colorPool[1], c2 = colorPool[2];
+		a1 = c1.R - c0.R;
+		a2 = c2.R - c0.R;
+		float nxdx = (a1 * y20 - a2 * y10) * inv;
+		float nxdy = (a2 * x10 - a1 * x20) * inv;
+		a1 = c1.G - c0.G;
+		a2 = c2.G - c0.G;
+		float nydx = (a1 * y20 - a2 * y10) * inv;
+		float nydy = (a2 * x10 - a1 * x20) * inv;
+		a1 = c1.B - c0.B;
+		a2 = c2.B - c0.B;
+		float nzdx = (a1 * y20 - a2 * y10) * inv;
+		float nzdy = (a2 * x10 - a1 * x20) * inv;
+		N3InternalTexture texture = null;
+		float u0 = 0, v0 = 0, udx = 0, udy = 0, vdx = 0, vdy = 0;
+		if (texturing && selectedTexture >= 0
+				&& selectedTexture < textures.size()) {
+			texture = (N3InternalTexture) textures.elementAt(selectedTexture);
+			float tw = texture.width - 1, th = texture.height - 1;
+			/* Las coordenadas de textura se interpolan divididas por w */
+			float q0 = qA * p0.z + qB;
+			float q1 = qA * p1.z + qB;
+			float q2 = qA * p2.z + qB;
+			u0 = uvPool[0].u * tw * q0;
+			v0 = uvPool[0].v * th * q0;
+			a1 = uvPool[1].u * tw * q1 - u0;
+			a2 = uvPool[2].u * tw * q2 - u0;
+			udx = (a1 * y20 - a2 * y10) * inv;
+			udy = (a2 * x10 - a1 * x20) * inv;
+			a1 = uvPool[1].v * th * q1 - v0;
+			a2 = uvPool[2].v * th * q2 - v0;
+			vdx = (a1 * y20 - a2 * y10) * inv;
+			vdy = (a2 * x10 - a1 * x20) * inv;
+		}
+		byte id = (byte) gBufferId;
+		int ymin = (int) Math.ceil(Math.min(p0.y, Math.min(p1.y, p2.y)));
+		int ymax = (int) Math.floor(Math.max(p0.y, Math.max(p1.y, p2.y)));
+		ymin = (ymin < 0) ? 0 : ymin;
+		ymax = (ymax >= height) ? height - 1 : ymax;
+		for (int y = ymin; y <= ymax; y++) {
+			/* Extremos de la l�nea horizontal */
+			float left = Float.MAX_VALUE, right = -Float.MAX_VALUE;
+			for (int e = 0; e < 3; e++) {
+				N3Point3D a = vertexPool[e], b = vertexPool[(e + 1) % 3];
+				if ((y < a.y && y < b.y) || (y > a.y && y > b.y))
+					continue;
+				if (a.y == b.y) {
+					left = Math.min(left, Math.min(a.x, b.x));
+					right = Math.max(right, Math.max(a.x, b.x));
+				} else {
+					float x = a.x + (y - a.y) * (b.x - a.x) / (b.y - a.y);
+					left = Math.min(left, x);
+					right = Math.max(right, x);
+				}
+			}
+			int init = (int) Math.ceil(left);
+			int end = (int) Math.floor(right);
+			init = (init < 0) ? 0 : init;
+			end = (end >= width) ? width - 1 : end;
+			if (init > end)
+				continue;
+			float dx = init - p0.x, dy = y - p0.y;
+			float z = p0.z + dx * zdx + dy * zdy;
+			float nx = c0.R + dx * nxdx + dy * nxdy;
+			float ny = c0.G + dx * nydx + dy * nydy;
+			float nz = c0.B + dx * nzdx + dy * nzdy;
+			if (texture != null)
+				perspectiveTexels(texture, z, zdx, u0 + dx * udx + dy * udy,
+						v0 + dx * vdx + dy * vdy, udx, vdx, end - init + 1);
+			int pos = init + y * width;
+			for (int x = init, k = 0; x <= end; x++, pos++, k++) {
+				boolean visible;
+				if (depthtest)
+					visible = updateDepth(pos, z);
+				else
+					visible = z >= minDepth;
+				if (visible) {
+					gNormal[pos] = (packNormal(nx) << 20)
+							| (packNormal(ny) << 10) | packNormal(nz);
+					if (texture == null)
+						gAlbedo[pos] = 0xFFFFFFFF;
+					else
+						gAlbedo[pos] = texture.texels[spanTexels[k]];
+					gMaterial[pos] = id;
+				}
+				z += zdx;
+				nx += nxdx;
+				ny += nydx;
+				nz += nzdx;
+			}
+		}
+		needUpdate = true;
+	}
+
+	// Empaqueta una componente de la normal en diez bits
+	private static int packNormal(float n) {
+		int q = (int) ((n + 1.0f) * 511.5f);
+		return (q < 0) ? 0 : (q > 1023) ? 1023 : q;
+	}
+
 	/**
 	 * Dibuja un tri�ngulo utilizando el pool, con el �ltimo color definido.
 	 */
 	public void drawFlatTriangle() {
 		int color = lastColor.getPackedValue();
+		float[] zf = floatDepth();
+		int[] zi = fixedDepth24();
 		/* Buscamos el lado cuya proyecci�n sobre el eje Y es m�s larga */
 		int dy01 = ((int) vertexPool[1].y - (int) vertexPool[0].y);
 		dy01 = (dy01 < 0) ? -dy01 : dy01;
@@ -1264,13 +2675,38 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				}
 				pos = init + y * width;
 				if ((y >= 0) && (y < height) && (init <= width) && (end >= 0)) {
-					for (; init <= end; init++) {
-						if ((init >= 0) && (init < width))
-							if (depthTest(pos, initz))
+					if (spanBuffer)
+						addSpan(SPAN_FLAT, y, init, end, color, initz, ldz, 0,
+								0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+					else if (zf != null)
+						for (; init <= end; init++) {
+							if ((init >= 0) && (init < width) && zf[pos] > initz) {
+								zf[pos] = initz;
 								pixels[pos] = color;
-						pos++;
-						initz += ldz;
+							}
+							pos++;
+							initz += ldz;
+						}
+					else if (zi != null) {
+						int q = fixedDepthStep(initz);
+						int dq = fixedDepthDelta(q, ldz, end - init + 1);
+							for (; init <= end; init++) {
+								if ((init >= 0) && (init < width) && zi[pos] > (q >> DEPTH_FRACTION)) {
+									zi[pos] = q >> DEPTH_FRACTION;
+									pixels[pos] = color;
+								}
+								pos++;
+								q += dq;
+							}
 					}
+					else
+						for (; init <= end; init++) {
+							if ((init >= 0) && (init < width))
+								if (depthTest(pos, initz))
+									pixels[pos] = color;
+							pos++;
+							initz += ldz;
+						}
 				}
 				/* Actualizamos los valores para la siguiente vuelta */
 				bx += bdx;
@@ -1286,6 +2722,8 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 * Dibuja un tri�ngulo goraud utilizando el pool
 	 */
 	public void drawGoraudTriangle() {
+		float[] zf = floatDepth();
+		int[] zi = fixedDepth24();
 		int c0 = colorPool[0].getPackedValue();
 		int c1 = colorPool[1].getPackedValue();
 		int c2 = colorPool[2].getPackedValue();
@@ -1513,19 +2951,55 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				}
 				pos = init + y * width;
 				if ((y >= 0) && (y < height) && (init <= width) && (end >= 0))
-					for (; init <= end; init++) {
-						if ((init >= 0) && (init < width))
-							if (depthTest(pos, initz))
+					if (spanBuffer)
+						addSpan(SPAN_GOURAUD, y, init, end, 0, initz, ldz,
+								initr, initg, initb, inita, ldr, ldg, ldb, lda,
+								0, 0, 0, 0);
+					else if (zf != null)
+						for (; init <= end; init++) {
+							if ((init >= 0) && (init < width) && zf[pos] > initz) {
+								zf[pos] = initz;
 								pixels[pos] = (int) initr + ((int) initg << 8)
-										+ ((int) initb << 16)
-										+ ((int) inita << 24);
-						pos++;
-						initz += ldz;
-						initr += ldr;
-						initg += ldg;
-						initb += ldb;
-						inita += lda;
+										+ ((int) initb << 16) + ((int) inita << 24);
+							}
+							pos++;
+							initz += ldz;
+							initr += ldr;
+							initg += ldg;
+							initb += ldb;
+							inita += lda;
+						}
+					else if (zi != null) {
+						int q = fixedDepthStep(initz);
+						int dq = fixedDepthDelta(q, ldz, end - init + 1);
+							for (; init <= end; init++) {
+								if ((init >= 0) && (init < width) && zi[pos] > (q >> DEPTH_FRACTION)) {
+									zi[pos] = q >> DEPTH_FRACTION;
+									pixels[pos] = (int) initr + ((int) initg << 8)
+											+ ((int) initb << 16) + ((int) inita << 24);
+								}
+								pos++;
+								q += dq;
+								initr += ldr;
+								initg += ldg;
+								initb += ldb;
+								inita += lda;
+							}
 					}
+					else
+						for (; init <= end; init++) {
+							if ((init >= 0) && (init < width))
+								if (depthTest(pos, initz))
+									pixels[pos] = (int) initr + ((int) initg << 8)
+											+ ((int) initb << 16)
+											+ ((int) inita << 24);
+							pos++;
+							initz += ldz;
+							initr += ldr;
+							initg += ldg;
+							initb += ldb;
+							inita += lda;
+						}
 				/* Actualizamos los valores para la siguiente vuelta */
 				bx += bdx;
 				bz += bdz;
@@ -1554,6 +3028,8 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	public void drawReplaceTexturedTriangle() {
 		int color = lastColor.getPackedValue();
+		float[] zf = floatDepth();
+		int[] zi = fixedDepth24();
 		/* Buscamos el lado cuya proyecci�n sobre el eje Y es m�s larga */
 		int dy01 = ((int) vertexPool[1].y - (int) vertexPool[0].y);
 		dy01 = (dy01 < 0) ? -dy01 : dy01;
@@ -1562,10 +3038,14 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		int dy12 = ((int) vertexPool[2].y - (int) vertexPool[1].y);
 		dy12 = (dy12 < 0) ? -dy12 : dy12;
 		int dy;
-		int bx1, bx2, by1, by2, sx, sy, btx1, bty1, btx2, bty2, stx, sty;
-		float bz1, bz2, sz;
+		int bx1, bx2, by1, by2, sx, sy;
+		float bz1, bz2, sz, btx1, bty1, btx2, bty2, stx, sty;
 		N3InternalTexture texture = (N3InternalTexture) textures
 				.elementAt(selectedTexture);
+		/* Las coordenadas de textura se interpolan divididas por w */
+		float q0 = qA * vertexPool[0].z + qB;
+		float q1 = qA * vertexPool[1].z + qB;
+		float q2 = qA * vertexPool[2].z + qB;
 		if ((dy01 >= dy02) && (dy01 >= dy12)) {
 			/* El lado base ser� el 0-1 */
 			bx1 = (int) vertexPool[0].x;
@@ -1578,12 +3058,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[2].y;
 			sz = vertexPool[2].z;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[1].u * (texture.width - 1));
-			bty2 = (int) (uvPool[1].v * (texture.height - 1));
-			stx = (int) (uvPool[2].u * (texture.width - 1));
-			sty = (int) (uvPool[2].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[1].u * (texture.width - 1) * q1;
+			bty2 = uvPool[1].v * (texture.height - 1) * q1;
+			stx = uvPool[2].u * (texture.width - 1) * q2;
+			sty = uvPool[2].v * (texture.height - 1) * q2;
 
 			dy = dy01;
 		} else if ((dy02 >= dy01) && (dy02 >= dy12)) {
@@ -1598,12 +3078,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[1].y;
 			sz = vertexPool[1].z;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[1].u * (texture.width - 1));
-			sty = (int) (uvPool[1].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[1].u * (texture.width - 1) * q1;
+			sty = uvPool[1].v * (texture.height - 1) * q1;
 
 			dy = dy02;
 		} else {
@@ -1618,12 +3098,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[0].y;
 			sz = vertexPool[0].z;
 
-			btx1 = (int) (uvPool[1].u * (texture.width - 1));
-			bty1 = (int) (uvPool[1].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[0].u * (texture.width - 1));
-			sty = (int) (uvPool[0].v * (texture.height - 1));
+			btx1 = uvPool[1].u * (texture.width - 1) * q1;
+			bty1 = uvPool[1].v * (texture.height - 1) * q1;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[0].u * (texture.width - 1) * q0;
+			sty = uvPool[0].v * (texture.height - 1) * q0;
 
 			dy = dy12;
 		}
@@ -1637,12 +3117,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			float tmpf = bz1;
 			bz1 = bz2;
 			bz2 = tmpf;
-			tmpi = btx1;
+			tmpf = btx1;
 			btx1 = btx2;
-			btx2 = tmpi;
-			tmpi = bty1;
+			btx2 = tmpf;
+			tmpf = bty1;
 			bty1 = bty2;
-			bty2 = tmpi;
+			bty2 = tmpf;
 		}
 		float bdx, bdz, s1dx, s1dz, s2dx, s2dz, dsx, dsz, btdx, btdy, s1tdx, s1tdy, s2tdx, s2tdy, dstx, dsty;
 		if ((int) dy != 0) {
@@ -1714,7 +3194,6 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			}
 			by1 = 0;
 		}
-		int texdatapos;
 		if ((by1 < height) && (by2 > 0)) {
 			for (int y = by1; y <= by2; y++) {
 				/* Dibujamos la l�nea horizontal */
@@ -1747,21 +3226,45 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				}
 				pos = init + y * width;
 				if ((y >= 0) && (y < height) && (init <= width) && (end >= 0)) {
-					for (; init <= end; init++) {
-						texdatapos = ((int) inittx + ((int) initty)
-								* texture.width) * 4;
-						if ((init >= 0) && (init < width))
-							if (depthTest(pos, initz)) {
-								color = ((int) texture.data[texdatapos])
-										+ (((int) texture.data[texdatapos + 1]) << 8)
-										+ (((int) texture.data[texdatapos + 2]) << 16)
-										+ (((int) texture.data[texdatapos + 3]) << 24);
-								pixels[pos] = color;
+					if (spanBuffer)
+						addSpan(SPAN_REPLACE, y, init, end, 0, initz, ldz, 0,
+								0, 0, 0, 0, 0, 0, 0, inittx, initty, ltdx, ltdy);
+					else if (zf != null) {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zf[pos] > initz) {
+								zf[pos] = initz;
+								pixels[pos] = texture.texels[spanTexels[k]];
 							}
-						pos++;
-						initz += ldz;
-						inittx += ltdx;
-						initty += ltdy;
+							pos++;
+							initz += ldz;
+						}
+					} else if (zi != null) {
+						int q = fixedDepthStep(initz);
+						int dq = fixedDepthDelta(q, ldz, end - init + 1);
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zi[pos] > (q >> DEPTH_FRACTION)) {
+								zi[pos] = q >> DEPTH_FRACTION;
+								pixels[pos] = texture.texels[spanTexels[k]];
+							}
+							pos++;
+							q += dq;
+						}
+					} else {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width))
+								if (depthTest(pos, initz)) {
+									color = texture.texels[spanTexels[k]];
+									pixels[pos] = color;
+								}
+							pos++;
+							initz += ldz;
+						}
 					}
 				}
 				/* Actualizamos los valores para la siguiente vuelta */
@@ -1784,6 +3287,8 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 */
 	public void drawFlatTexturedTriangle() {
 		int color = lastColor.getPackedValue();
+		float[] zf = floatDepth();
+		int[] zi = fixedDepth24();
 		/* Buscamos el lado cuya proyecci�n sobre el eje Y es m�s larga */
 		int dy01 = ((int) vertexPool[1].y - (int) vertexPool[0].y);
 		dy01 = (dy01 < 0) ? -dy01 : dy01;
@@ -1792,10 +3297,14 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		int dy12 = ((int) vertexPool[2].y - (int) vertexPool[1].y);
 		dy12 = (dy12 < 0) ? -dy12 : dy12;
 		int dy;
-		int bx1, bx2, by1, by2, sx, sy, btx1, bty1, btx2, bty2, stx, sty;
-		float bz1, bz2, sz;
+		int bx1, bx2, by1, by2, sx, sy;
+		float bz1, bz2, sz, btx1, bty1, btx2, bty2, stx, sty;
 		N3InternalTexture texture = (N3InternalTexture) textures
 				.elementAt(selectedTexture);
+		/* Las coordenadas de textura se interpolan divididas por w */
+		float q0 = qA * vertexPool[0].z + qB;
+		float q1 = qA * vertexPool[1].z + qB;
+		float q2 = qA * vertexPool[2].z + qB;
 		if ((dy01 >= dy02) && (dy01 >= dy12)) {
 			/* El lado base ser� el 0-1 */
 			bx1 = (int) vertexPool[0].x;
@@ -1808,12 +3317,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[2].y;
 			sz = vertexPool[2].z;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[1].u * (texture.width - 1));
-			bty2 = (int) (uvPool[1].v * (texture.height - 1));
-			stx = (int) (uvPool[2].u * (texture.width - 1));
-			sty = (int) (uvPool[2].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[1].u * (texture.width - 1) * q1;
+			bty2 = uvPool[1].v * (texture.height - 1) * q1;
+			stx = uvPool[2].u * (texture.width - 1) * q2;
+			sty = uvPool[2].v * (texture.height - 1) * q2;
 
 			dy = dy01;
 		} else if ((dy02 >= dy01) && (dy02 >= dy12)) {
@@ -1828,12 +3337,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[1].y;
 			sz = vertexPool[1].z;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[1].u * (texture.width - 1));
-			sty = (int) (uvPool[1].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[1].u * (texture.width - 1) * q1;
+			sty = uvPool[1].v * (texture.height - 1) * q1;
 
 			dy = dy02;
 		} else {
@@ -1848,12 +3357,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			sy = (int) vertexPool[0].y;
 			sz = vertexPool[0].z;
 
-			btx1 = (int) (uvPool[1].u * (texture.width - 1));
-			bty1 = (int) (uvPool[1].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[0].u * (texture.width - 1));
-			sty = (int) (uvPool[0].v * (texture.height - 1));
+			btx1 = uvPool[1].u * (texture.width - 1) * q1;
+			bty1 = uvPool[1].v * (texture.height - 1) * q1;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[0].u * (texture.width - 1) * q0;
+			sty = uvPool[0].v * (texture.height - 1) * q0;
 
 			dy = dy12;
 		}
@@ -1867,12 +3376,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			float tmpf = bz1;
 			bz1 = bz2;
 			bz2 = tmpf;
-			tmpi = btx1;
+			tmpf = btx1;
 			btx1 = btx2;
-			btx2 = tmpi;
-			tmpi = bty1;
+			btx2 = tmpf;
+			tmpf = bty1;
 			bty1 = bty2;
-			bty2 = tmpi;
+			bty2 = tmpf;
 		}
 		float bdx, bdz, s1dx, s1dz, s2dx, s2dz, dsx, dsz, btdx, btdy, s1tdx, s1tdy, s2tdx, s2tdy, dstx, dsty;
 		if ((int) dy != 0) {
@@ -1944,7 +3453,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			}
 			by1 = 0;
 		}
-		int texdatapos;
+		int texel;
 		if ((by1 < height) && (by2 > 0)) {
 			for (int y = by1; y <= by2; y++) {
 				/* Dibujamos la l�nea horizontal */
@@ -1977,21 +3486,58 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				}
 				pos = init + y * width;
 				if ((y >= 0) && (y < height) && (init <= width) && (end >= 0)) {
-					for (; init <= end; init++) {
-						if ((init >= 0) && (init < width))
-							if (depthTest(pos, initz)) {
-								texdatapos = ((int) inittx + ((int) initty)
-										* texture.width) * 4;
-								pixels[pos] = (int) (((int) texture.data[texdatapos] & 0xFF) * ((color & 0x000000FF) / 255))
-										| (int) ((((int) texture.data[texdatapos + 1] & 0xFF) * (((color & 0x0000FF00) >> 8) / 255)) << 8)
-										| (int) ((((int) texture.data[texdatapos + 2] & 0xFF) * (((color & 0x00FF0000) >> 16) / 255)) << 16)
-										| (int) ((((int) texture.data[texdatapos + 3] & 0xFF) * (((color >> 24) & 0x000000FF) / 255)) << 24);
-								;
+					if (spanBuffer)
+						addSpan(SPAN_FLAT_TEXTURED, y, init, end, color, initz,
+								ldz, 0, 0, 0, 0, 0, 0, 0, 0, inittx, initty,
+								ltdx, ltdy);
+					else if (zf != null) {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zf[pos] > initz) {
+								zf[pos] = initz;
+								texel = texture.texels[spanTexels[k]];
+								pixels[pos] = (int) ((texel & 0xFF) * ((color & 0x000000FF) / 255))
+										| (int) ((((texel >> 8) & 0xFF) * (((color & 0x0000FF00) >> 8) / 255)) << 8)
+										| (int) ((((texel >> 16) & 0xFF) * (((color & 0x00FF0000) >> 16) / 255)) << 16)
+										| (int) (((texel >>> 24) * (((color >> 24) & 0x000000FF) / 255)) << 24);
 							}
-						pos++;
-						initz += ldz;
-						inittx += ltdx;
-						initty += ltdy;
+							pos++;
+							initz += ldz;
+						}
+					} else if (zi != null) {
+						int q = fixedDepthStep(initz);
+						int dq = fixedDepthDelta(q, ldz, end - init + 1);
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zi[pos] > (q >> DEPTH_FRACTION)) {
+								zi[pos] = q >> DEPTH_FRACTION;
+								texel = texture.texels[spanTexels[k]];
+								pixels[pos] = (int) ((texel & 0xFF) * ((color & 0x000000FF) / 255))
+										| (int) ((((texel >> 8) & 0xFF) * (((color & 0x0000FF00) >> 8) / 255)) << 8)
+										| (int) ((((texel >> 16) & 0xFF) * (((color & 0x00FF0000) >> 16) / 255)) << 16)
+										| (int) (((texel >>> 24) * (((color >> 24) & 0x000000FF) / 255)) << 24);
+							}
+							pos++;
+							q += dq;
+						}
+					} else {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width))
+								if (depthTest(pos, initz)) {
+									texel = texture.texels[spanTexels[k]];
+									pixels[pos] = (int) ((texel & 0xFF) * ((color & 0x000000FF) / 255))
+											| (int) ((((texel >> 8) & 0xFF) * (((color & 0x0000FF00) >> 8) / 255)) << 8)
+											| (int) ((((texel >> 16) & 0xFF) * (((color & 0x00FF0000) >> 16) / 255)) << 16)
+											| (int) (((texel >>> 24) * (((color >> 24) & 0x000000FF) / 255)) << 24);
+									;
+								}
+							pos++;
+							initz += ldz;
+						}
 					}
 				}
 				/* Actualizamos los valores para la siguiente vuelta */
@@ -2013,6 +3559,8 @@ public class N3SoftwareRenderContext implements ImageProducer {
 	 * los colores del pool
 	 */
 	public void drawGoraudTexturedTriangle() {
+		float[] zf = floatDepth();
+		int[] zi = fixedDepth24();
 		int c0 = colorPool[0].getPackedValue();
 		int c1 = colorPool[1].getPackedValue();
 		int c2 = colorPool[2].getPackedValue();
@@ -2024,10 +3572,14 @@ public class N3SoftwareRenderContext implements ImageProducer {
 		int dy12 = ((int) vertexPool[2].y - (int) vertexPool[1].y);
 		dy12 = (dy12 < 0) ? -dy12 : dy12;
 		int dy;
-		int bx1, bx2, by1, by2, sx, sy, bc1, bc2, sc, btx1, bty1, btx2, bty2, stx, sty;
-		float bz1, bz2, sz;
+		int bx1, bx2, by1, by2, sx, sy, bc1, bc2, sc;
+		float bz1, bz2, sz, btx1, bty1, btx2, bty2, stx, sty;
 		N3InternalTexture texture = (N3InternalTexture) textures
 				.elementAt(selectedTexture);
+		/* Las coordenadas de textura se interpolan divididas por w */
+		float q0 = qA * vertexPool[0].z + qB;
+		float q1 = qA * vertexPool[1].z + qB;
+		float q2 = qA * vertexPool[2].z + qB;
 		if ((dy01 >= dy02) && (dy01 >= dy12)) {
 			/* El lado base ser� el 0-1 */
 			bx1 = (int) vertexPool[0].x;
@@ -2043,12 +3595,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			bc2 = c1;
 			sc = c2;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[1].u * (texture.width - 1));
-			bty2 = (int) (uvPool[1].v * (texture.height - 1));
-			stx = (int) (uvPool[2].u * (texture.width - 1));
-			sty = (int) (uvPool[2].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[1].u * (texture.width - 1) * q1;
+			bty2 = uvPool[1].v * (texture.height - 1) * q1;
+			stx = uvPool[2].u * (texture.width - 1) * q2;
+			sty = uvPool[2].v * (texture.height - 1) * q2;
 
 		} else if ((dy02 >= dy01) && (dy02 >= dy12)) {
 			/* El lado base ser� el 0-2 */
@@ -2065,12 +3617,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			bc2 = c2;
 			sc = c1;
 
-			btx1 = (int) (uvPool[0].u * (texture.width - 1));
-			bty1 = (int) (uvPool[0].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[1].u * (texture.width - 1));
-			sty = (int) (uvPool[1].v * (texture.height - 1));
+			btx1 = uvPool[0].u * (texture.width - 1) * q0;
+			bty1 = uvPool[0].v * (texture.height - 1) * q0;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[1].u * (texture.width - 1) * q1;
+			sty = uvPool[1].v * (texture.height - 1) * q1;
 
 		} else {
 			/* El lado base ser� el 1-2 */
@@ -2087,12 +3639,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			bc2 = c2;
 			sc = c0;
 
-			btx1 = (int) (uvPool[1].u * (texture.width - 1));
-			bty1 = (int) (uvPool[1].v * (texture.height - 1));
-			btx2 = (int) (uvPool[2].u * (texture.width - 1));
-			bty2 = (int) (uvPool[2].v * (texture.height - 1));
-			stx = (int) (uvPool[0].u * (texture.width - 1));
-			sty = (int) (uvPool[0].v * (texture.height - 1));
+			btx1 = uvPool[1].u * (texture.width - 1) * q1;
+			bty1 = uvPool[1].v * (texture.height - 1) * q1;
+			btx2 = uvPool[2].u * (texture.width - 1) * q2;
+			bty2 = uvPool[2].v * (texture.height - 1) * q2;
+			stx = uvPool[0].u * (texture.width - 1) * q0;
+			sty = uvPool[0].v * (texture.height - 1) * q0;
 
 		}
 		if (by1 > by2) {
@@ -2108,12 +3660,12 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			float tmpf = bz1;
 			bz1 = bz2;
 			bz2 = tmpf;
-			tmpi = btx1;
+			tmpf = btx1;
 			btx1 = btx2;
-			btx2 = tmpi;
-			tmpi = bty1;
+			btx2 = tmpf;
+			tmpf = bty1;
 			bty1 = bty2;
-			bty2 = tmpi;
+			bty2 = tmpf;
 		}
 		float bdx, bdz, s1dx, s1dz, s2dx, s2dz, bda, bdr, bdg, bdb, s1da, s1dr, s1dg, s1db, s2da, s2dr, s2dg, s2db, dsx, dsz, btdx, btdy, s1tdx, s1tdy, s2tdx, s2tdy, dstx, dsty;
 		int dscolor;
@@ -2254,7 +3806,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 			}
 			by1 = 0;
 		}
-		int texdatapos;
+		int texel;
 		if ((by1 < height) && (by2 > 0)) {
 			for (int y = by1; y <= by2; y++) {
 				/* Dibujamos la l�nea horizontal */
@@ -2307,24 +3859,69 @@ public class N3SoftwareRenderContext implements ImageProducer {
 				}
 				pos = init + y * width;
 				if ((y >= 0) && (y < height) && (init <= width) && (end >= 0))
-					for (; init <= end; init++) {
-						if ((init >= 0) && (init < width))
-							if (depthTest(pos, initz)) {
-								texdatapos = ((int) inittx + ((int) initty)
-										* texture.width) * 4;
-								pixels[pos] = (int) (((int) texture.data[texdatapos] & 0xFF) * (initr / 255))
-										| ((int) ((((int) texture.data[texdatapos + 1] & 0xFF) * (initg / 255))) << 8)
-										| ((int) ((((int) texture.data[texdatapos + 2] & 0xFF) * (initb / 255))) << 16)
-										| ((int) ((((int) texture.data[texdatapos + 3] & 0xFF) * (inita / 255))) << 24);
+					if (spanBuffer)
+						addSpan(SPAN_GOURAUD_TEXTURED, y, init, end, 0, initz,
+								ldz, initr, initg, initb, inita, ldr, ldg, ldb,
+								lda, inittx, initty, ltdx, ltdy);
+					else if (zf != null) {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zf[pos] > initz) {
+								zf[pos] = initz;
+								texel = texture.texels[spanTexels[k]];
+								pixels[pos] = (int) ((texel & 0xFF) * (initr / 255))
+										| ((int) ((((texel >> 8) & 0xFF) * (initg / 255))) << 8)
+										| ((int) ((((texel >> 16) & 0xFF) * (initb / 255))) << 16)
+										| ((int) (((texel >>> 24) * (inita / 255))) << 24);
+							}
+							pos++;
+							initz += ldz;
+							initr += ldr;
+							initg += ldg;
+							initb += ldb;
+							inita += lda;
+						}
+					} else if (zi != null) {
+						int q = fixedDepthStep(initz);
+						int dq = fixedDepthDelta(q, ldz, end - init + 1);
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width) && zi[pos] > (q >> DEPTH_FRACTION)) {
+								zi[pos] = q >> DEPTH_FRACTION;
+								texel = texture.texels[spanTexels[k]];
+								pixels[pos] = (int) ((texel & 0xFF) * (initr / 255))
+										| ((int) ((((texel >> 8) & 0xFF) * (initg / 255))) << 8)
+										| ((int) ((((texel >> 16) & 0xFF) * (initb / 255))) << 16)
+										| ((int) (((texel >>> 24) * (inita / 255))) << 24);
 							}
-						pos++;
-						initz += ldz;
-						initr += ldr;
-						initg += ldg;
-						initb += ldb;
-						inita += lda;
-						inittx += ltdx;
-						initty += ltdy;
+							pos++;
+							q += dq;
+							initr += ldr;
+							initg += ldg;
+							initb += ldb;
+							inita += lda;
+						}
+					} else {
+						perspectiveTexels(texture, initz, ldz, inittx, initty,
+								ltdx, ltdy, end - init + 1);
+						for (int k = 0; init <= end; init++, k++) {
+							if ((init >= 0) && (init < width))
+								if (depthTest(pos, initz)) {
+									texel = texture.texels[spanTexels[k]];
+									pixels[pos] = (int) ((texel & 0xFF) * (initr / 255))
+											| ((int) ((((texel >> 8) & 0xFF) * (initg / 255))) << 8)
+											| ((int) ((((texel >> 16) & 0xFF) * (initb / 255))) << 16)
+											| ((int) (((texel >>> 24) * (inita / 255))) << 24);
+								}
+							pos++;
+							initz += ldz;
+							initr += ldr;
+							initg += ldg;
+							initb += ldb;
+							inita += lda;
+						}
 					}
 				/* Actualizamos los valores para la siguiente vuelta */
 				bx += bdx;
@@ -2360,7 +3957,7 @@ public class N3SoftwareRenderContext implements ImageProducer {
 
 	public synchronized void addConsumer(ImageConsumer ic) {
 		consumer = ic;
-		consumer.setDimensions(width, height);
+		consumer.setDimensions(outputWidth, outputHeight);
 		consumer.setHints(ImageConsumer.TOPDOWNLEFTRIGHT
 				| ImageConsumer.COMPLETESCANLINES | ImageConsumer.SINGLEPASS
 				| ImageConsumer.SINGLEFRAME);
@@ -228,6 +228,7 @@ public class N3Camera extends N3LeafNode {
 	public void setTarget(N3Node node, N3Vector3D t) {
 		target = node;
 		top = t;
+		scene.notifyChange();
 	}
 
 	/**
@@ -248,6 +249,7 @@ public class N3Camera extends N3LeafNode {
 	 */
 	public void setTop(N3Vector3D t) {
 		top = t;
+		scene.notifyChange();
 	}
 
 	/**
@@ -341,6 +343,7 @@ public class N3Camera extends N3LeafNode {
 	 */
 	public void setDirtyCamera() {
 		dirty = true;
+		scene.notifyChange();
 	}
 
 	/**
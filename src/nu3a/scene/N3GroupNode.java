@@ -70,6 +70,7 @@ public class N3GroupNode extends N3Node {
 	public void addChild(N3Node node) throws N3AlreadyHasParentException {
 		node.setParent(this);
 		children.add(node);
+		hierarchyChanged();
 	}
 
 	/**
@@ -82,6 +83,7 @@ public class N3GroupNode extends N3Node {
 	public void removeChild(N3Node node) {
 		children.remove(node);
 		node.removeParent();
+		hierarchyChanged();
 	}
 
 	/**
@@ -0,0 +1,374 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.awt.Rectangle;
+
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3Texture2D;
+import nu3a.math.N3Matrix4D;
+import nu3a.names.exception.N3NameException;
+import nu3a.render.N3Render;
+
+/**
+ * Impostor de una malla: una imagen de la malla dibujada en una textura
+ * pequena que, a partir de cierta distancia de la camara, se dibuja en su
+ * lugar como un rectangulo orientado hacia la camara. La imagen se toma
+ * desde una direccion cuantizada y se vuelve a tomar cuando la direccion de
+ * la camara se aleja de ella mas de un angulo dado, o cuando cambian la
+ * geometria, el material, la orientacion o escala de la malla o las luces.
+ */
+public class N3Impostor {
+	/**
+	 * Relacion entre la distancia desde la que se toma la imagen y el radio
+	 * de la malla.
+	 */
+	protected static final float CAPTURE_DISTANCE = 8.0f;
+
+	/**
+	 * Malla a la que sustituye el impostor.
+	 */
+	protected N3VisualMesh mesh;
+
+	/**
+	 * Distancia a la camara a partir de la cual se dibuja el impostor.
+	 */
+	protected float distance;
+
+	/**
+	 * Lado en pixels de la textura del impostor.
+	 */
+	protected int size;
+
+	/**
+	 * Angulo en radianes que puede desviarse la camara antes de volver a
+	 * tomar la imagen.
+	 */
+	protected float angle;
+
+	/**
+	 * Textura en la que se dibuja la malla.
+	 */
+	protected N3Texture2D texture;
+
+	/**
+	 * Indica si el impostor sustituye a la malla en el dibujado actual.
+	 */
+	protected boolean active;
+
+	// Centro y radio de la esfera que envuelve la malla en coordenadas del
+	// mundo
+	private float cx, cy, cz, radius;
+
+	// Direccion y vector arriba con los que se tomo la imagen
+	private float dirX, dirY, dirZ, upX, upY, upZ;
+
+	// Estado de la malla y de la escena cuando se tomo la imagen
+	private boolean captured;
+	private N3Render capturedRender;
+	private int capturedGeometry, capturedMaterial, capturedLights;
+	private float[] capturedMatrix;
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param mesh
+	 *            Malla a la que sustituye el impostor
+	 * @param distance
+	 *            Distancia a la camara a partir de la cual se dibuja el
+	 *            impostor
+	 */
+	public N3Impostor(N3VisualMesh mesh, float distance)
+			throws N3NameException {
+		this.mesh = mesh;
+		this.distance = distance;
+		size = 64;
+		angle = (float) Math.toRadians(10);
+		capturedMatrix = new float[9];
+		texture = new N3Texture2D(mesh.scene, mesh.getName() + "#impostor");
+	}
+
+	/**
+	 * Libera la textura del impostor.
+	 */
+	protected void dispose() {
+		mesh.scene.removeNamedObject(texture);
+	}
+
+	/**
+	 * Establece la distancia a la camara a partir de la cual se dibuja el
+	 * impostor.
+	 *
+	 * @param distance
+	 *            Distancia de cambio
+	 */
+	public void setDistance(float distance) {
+		this.distance = distance;
+	}
+
+	/**
+	 * Obtiene la distancia a la camara a partir de la cual se dibuja el
+	 * impostor.
+	 *
+	 * @return Distancia de cambio
+	 */
+	public float getDistance() {
+		return distance;
+	}
+
+	/**
+	 * Establece el lado en pixels de la textura del impostor.
+	 *
+	 * @param size
+	 *            Lado de la textura
+	 */
+	public void setSize(int size) {
+		if (this.size != size) {
+			this.size = size;
+			invalidate();
+		}
+	}
+
+	/**
+	 * Obtiene el lado en pixels de la textura del impostor.
+	 *
+	 * @return Lado de la textura
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Establece el angulo que puede desviarse la camara antes de volver a
+	 * tomar la imagen. Es tambien el paso con el que se cuantiza la direccion
+	 * desde la que se toma.
+	 *
+	 * @param angle
+	 *            Angulo en radianes
+	 */
+	public void setAngle(float angle) {
+		if (this.angle != angle) {
+			this.angle = angle;
+			invalidate();
+		}
+	}
+
+	/**
+	 * Obtiene el angulo que puede desviarse la camara antes de volver a tomar
+	 * la imagen.
+	 *
+	 * @return Angulo en radianes
+	 */
+	public float getAngle() {
+		return angle;
+	}
+
+	/**
+	 * Obtiene la textura en la que se dibuja la malla.
+	 *
+	 * @return Textura del impostor
+	 */
+	public N3Texture2D getTexture() {
+		return texture;
+	}
+
+	/**
+	 * Indica si el impostor sustituye a la malla en el dibujado actual.
+	 *
+	 * @return True si se dibuja el impostor
+	 */
+	public boolean isActive() {
+		return active;
+	}
+
+	/**
+	 * Obliga a volver a tomar la imagen la proxima vez que se dibuje el
+	 * impostor, por ejemplo tras cambiar el contenido de una textura de la
+	 * malla.
+	 */
+	public void invalidate() {
+		captured = false;
+	}
+
+	/**
+	 * Decide si el impostor sustituye a la malla segun la posicion de la
+	 * camara y, si es asi y la imagen ha quedado desfasada, vuelve a tomarla.
+	 * Cambia el destino y las matrices del render, por lo que ha de llamarse
+	 * antes de preparar la vista principal.
+	 *
+	 * @param render
+	 *            Render con el que se dibuja la escena
+	 * @param m
+	 *            Matriz acumulada de la camara
+	 */
+	public void update(N3Render render, float[] m) {
+		active = false;
+		float[] b = mesh.getLocalBounds();
+		if (b == null || distance <= 0)
+			return;
+		float[] a = mesh.getAccMatrix().getMatrix();
+		// Esfera que envuelve la caja transformada
+		float lx = (b[0] + b[3]) * 0.5f, ly = (b[1] + b[4]) * 0.5f, lz = (b[2] + b[5]) * 0.5f;
+		float hx = (b[3] - b[0]) * 0.5f, hy = (b[4] - b[1]) * 0.5f, hz = (b[5] - b[2]) * 0.5f;
+		cx = a[0] * lx + a[4] * ly + a[8] * lz + a[12];
+		cy = a[1] * lx + a[5] * ly + a[9] * lz + a[13];
+		cz = a[2] * lx + a[6] * ly + a[10] * lz + a[14];
+		float ex = Math.abs(a[0]) * hx + Math.abs(a[4]) * hy + Math.abs(a[8])
+				* hz;
+		float ey = Math.abs(a[1]) * hx + Math.abs(a[5]) * hy + Math.abs(a[9])
+				* hz;
+		float ez = Math.abs(a[2]) * hx + Math.abs(a[6]) * hy
+				+ Math.abs(a[10]) * hz;
+		radius = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+		float dx = m[12] - cx, dy = m[13] - cy, dz = m[14] - cz;
+		float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (d <= distance || d <= radius || radius <= 0)
+			return;
+		active = true;
+		dx /= d;
+		dy /= d;
+		dz /= d;
+		float ux = m[4], uy = m[5], uz = m[6];
+		float cos = (float) Math.cos(angle);
+		boolean stale = !captured || render != capturedRender
+				|| capturedGeometry != mesh.geometryVersion
+				|| capturedMaterial != getMaterialVersion()
+				|| capturedLights != mesh.scene.getLightVersion()
+				|| dx * dirX + dy * dirY + dz * dirZ < cos
+				|| ux * upX + uy * upY + uz * upZ < cos;
+		for (int i = 0; i < 9 && !stale; i++)
+			stale = capturedMatrix[i] != a[i + i / 3];
+		if (stale)
+			capture(render, dx, dy, dz, ux, uy, uz);
+	}
+
+	/**
+	 * Dibuja el impostor como un rectangulo orientado hacia la camara.
+	 *
+	 * @param render
+	 *            Render con el que se dibuja la escena
+	 */
+	public void draw(N3Render render) {
+		float d = CAPTURE_DISTANCE * radius;
+		// Medio lado del campo de vision de la captura en el plano del centro
+		float half = radius * d / (float) Math.sqrt(d * d - radius * radius);
+		render.drawBillboard(texture, cx, cy, cz, half, half);
+	}
+
+	/**
+	 * Dibuja la malla en la textura desde la direccion cuantizada mas proxima
+	 * a la indicada.
+	 *
+	 * @param render
+	 *            Render con el que se dibuja la escena
+	 * @param dx
+	 *            Direccion del centro de la malla a la camara
+	 * @param ux
+	 *            Vector arriba de la camara
+	 */
+	protected void capture(N3Render render, float dx, float dy, float dz,
+			float ux, float uy, float uz) {
+		if (texture.getWidth() != size || capturedRender != render)
+			texture.genRenderTarget(size, size, render);
+		// Cuantiza el giro y la inclinacion de la direccion, de modo que
+		// camaras cercanas compartan la misma imagen
+		double yaw = Math.atan2(dx, dz);
+		double pitch = Math.asin(Math.max(-1, Math.min(1, dy)));
+		yaw = Math.rint(yaw / angle) * angle;
+		pitch = Math.rint(pitch / angle) * angle;
+		dirX = (float) (Math.cos(pitch) * Math.sin(yaw));
+		dirY = (float) Math.sin(pitch);
+		dirZ = (float) (Math.cos(pitch) * Math.cos(yaw));
+		// Ejes de la vista: z hacia la camara, x = arriba x z, y = z x x
+		float xx = uy * dirZ - uz * dirY;
+		float xy = uz * dirX - ux * dirZ;
+		float xz = ux * dirY - uy * dirX;
+		float l = (float) Math.sqrt(xx * xx + xy * xy + xz * xz);
+		if (l < 1e-4f) {
+			// Arriba paralelo a la direccion: se usa el eje x del mundo
+			xx = 0;
+			xy = dirZ;
+			xz = -dirY;
+			l = (float) Math.sqrt(xy * xy + xz * xz);
+		}
+		xx /= l;
+		xy /= l;
+		xz /= l;
+		upX = dirY * xz - dirZ * xy;
+		upY = dirZ * xx - dirX * xz;
+		upZ = dirX * xy - dirY * xx;
+		float d = CAPTURE_DISTANCE * radius;
+		float px = cx + dirX * d, py = cy + dirY * d, pz = cz + dirZ * d;
+		N3Matrix4D view = new N3Matrix4D();
+		float[] v = view.getMatrix();
+		v[0] = xx;
+		v[4] = xy;
+		v[8] = xz;
+		v[1] = upX;
+		v[5] = upY;
+		v[9] = upZ;
+		v[2] = dirX;
+		v[6] = dirY;
+		v[10] = dirZ;
+		v[12] = -(xx * px + xy * py + xz * pz);
+		v[13] = -(upX * px + upY * py + upZ * pz);
+		v[14] = -(dirX * px + dirY * py + dirZ * pz);
+		// Perspectiva ajustada a la esfera, con los planos cercano y lejano
+		// tocando su superficie
+		float n = d - radius, f = d + radius;
+		N3Matrix4D projection = new N3Matrix4D();
+		float[] p = projection.getMatrix();
+		p[0] = p[5] = (float) Math.sqrt(d * d - radius * radius) / radius;
+		p[10] = -(f + n) / (f - n);
+		p[11] = -1;
+		p[14] = -2 * f * n / (f - n);
+		p[15] = 0;
+
+		render.setRenderTarget(texture);
+		render.setViewport(new Rectangle(0, 0, size, size));
+		render.setProjectionMode();
+		render.loadMatrix(projection);
+		render.setModelViewMode();
+		render.setCameraTransformation(view);
+		mesh.scene.applyLights(render);
+		render.setClearColor(new N3ColorRGBA(0, 0, 0, 0));
+		render.clear();
+		mesh.draw(render);
+		render.setLightMask(-1);
+		render.setRenderTarget(null);
+
+		float[] a = mesh.getAccMatrix().getMatrix();
+		for (int i = 0; i < 9; i++)
+			capturedMatrix[i] = a[i + i / 3];
+		capturedGeometry = mesh.geometryVersion;
+		capturedMaterial = getMaterialVersion();
+		capturedLights = mesh.scene.getLightVersion();
+		capturedRender = render;
+		captured = true;
+	}
+
+	// Version del material de la malla, o 0 si no tiene
+	private int getMaterialVersion() {
+		return mesh.material != null ? mesh.material.getVersion() : 0;
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import nu3a.collision.N3AABB;
+import nu3a.collision.N3Collisionable;
+import nu3a.geometry.N3GeometryData;
+import nu3a.material.N3Material;
+import nu3a.math.N3Matrix4D;
+import nu3a.names.exception.N3NameException;
+import nu3a.persistence.N3PersistentResource;
+import nu3a.persistence.N3PersistentResourceList;
+import nu3a.persistence.N3SceneReader;
+import nu3a.render.N3Render;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Malla que se dibuja varias veces con distintas transformaciones. La
+ * geometria y el material son unicos para todas las instancias: la geometria
+ * se procesa una sola vez, el material se aplica una sola vez y entre una
+ * instancia y la siguiente solo cambia la transformacion. Cada instancia se
+ * define mediante una matriz relativa a la transformacion acumulada del nodo.
+ */
+public class N3InstancedMesh extends N3VisualMesh {
+
+	/**
+	 * Matrices de las instancias.
+	 */
+	protected Vector instances;
+
+	// Instancia que se esta dibujando
+	private int current;
+
+	// Matriz de trabajo para la transformacion de cada instancia
+	private N3Matrix4D instanceMatrix;
+
+	/**
+	 * Constructor de la clase. Crea una malla instanciada, sin instancias, con
+	 * la geometria indicada.
+	 *
+	 * @param scene
+	 *            Escena en la que se encuentra el objeto visual
+	 * @param g
+	 *            Objeto que indica la geometria de todas las instancias
+	 * @param name
+	 *            Nombre del nodo
+	 */
+	public N3InstancedMesh(N3Scene scene, N3GeometryData g, String name)
+			throws N3NameException {
+		super(scene, g, name);
+		instances = new Vector(0, 1);
+		instanceMatrix = new N3Matrix4D();
+	}
+
+	/**
+	 * Anade una instancia de la malla.
+	 *
+	 * @param m
+	 *            Transformacion de la instancia, relativa a la del nodo. Se
+	 *            guarda una copia.
+	 * @return Indice de la instancia
+	 */
+	public int addInstance(N3Matrix4D m) {
+		instances.add(new N3Matrix4D(m));
+		scene.notifyChange();
+		return instances.size() - 1;
+	}
+
+	/**
+	 * Cambia la transformacion de una instancia.
+	 *
+	 * @param i
+	 *            Indice de la instancia
+	 * @param m
+	 *            Nueva transformacion de la instancia
+	 */
+	public void setInstance(int i, N3Matrix4D m) {
+		((N3Matrix4D) instances.elementAt(i)).setData(m);
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene la transformacion de una instancia.
+	 *
+	 * @param i
+	 *            Indice de la instancia
+	 * @return Transformacion de la instancia
+	 */
+	public N3Matrix4D getInstance(int i) {
+		return (N3Matrix4D) instances.elementAt(i);
+	}
+
+	/**
+	 * Elimina una instancia.
+	 *
+	 * @param i
+	 *            Indice de la instancia
+	 */
+	public void removeInstance(int i) {
+		instances.removeElementAt(i);
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene el numero de instancias de la malla.
+	 *
+	 * @return Numero de instancias
+	 */
+	public int getInstanceCount() {
+		return instances.size();
+	}
+
+	protected void applyTransform(N3Render render) {
+		instanceMatrix.setData(getAccMatrix());
+		instanceMatrix.mult(getInstance(current));
+		render.setObjectTransformation(instanceMatrix);
+	}
+
+	/**
+	 * Dibuja todas las instancias. La primera se dibuja como una malla
+	 * normal, procesando la geometria y aplicando el material; para el resto
+	 * solo se cambia la transformacion.
+	 */
+	public void draw(N3Render render) {
+		if (instances.isEmpty())
+			return;
+		current = 0;
+		super.draw(render);
+		for (current = 1; current < instances.size(); current++) {
+			applyTransform(render);
+			if (render.isLighting())
+				render.setLightMask(getLightMask());
+			if (geometry != null) {
+				colorData.begin();
+				vertexData.begin();
+				normalData.begin();
+			}
+			render.setLitColorCacheKey(getInstance(current), geometryVersion);
+			drawMesh(render);
+		}
+	}
+
+	/**
+	 * Obtiene la mascara de luces de la instancia que se esta dibujando.
+	 * 
+	 * @return Mascara de luces, con el bit n para la luz activa n
+	 */
+	protected int getLightMask() {
+		return getLightMask(instanceMatrix);
+	}
+
+	public void updateBV() {
+		if (geometry != null) {
+			N3AABB box = new N3AABB();
+			for (int i = 0; i < instances.size(); i++) {
+				instanceMatrix.setData(getAccMatrix());
+				instanceMatrix.mult(getInstance(i));
+				geometry.calculeBV(instanceMatrix);
+				box.add(geometry.getBoundingVolume());
+			}
+			bVolume.setData(box);
+		}
+	}
+
+	protected void addOccluder(N3OcclusionCuller culler) {
+		float[] t = getOccluderTriangles();
+		if (t != null && t.length > 0)
+			for (int i = 0; i < instances.size(); i++) {
+				instanceMatrix.setData(getAccMatrix());
+				instanceMatrix.mult(getInstance(i));
+				culler.addOccluder(t, instanceMatrix);
+			}
+	}
+
+	/**
+	 * Las instancias se prueban por separado: la malla solo esta oculta si lo
+	 * estan todas sus instancias.
+	 */
+	protected boolean isOccluded(N3OcclusionCuller culler) {
+		float[] b = getLocalBounds();
+		if (b == null || instances.isEmpty())
+			return false;
+		for (int i = 0; i < instances.size(); i++) {
+			instanceMatrix.setData(getAccMatrix());
+			instanceMatrix.mult(getInstance(i));
+			if (!culler.isOccluded(b, instanceMatrix))
+				return false;
+		}
+		return true;
+	}
+
+	public boolean testGeometry(N3Collisionable c, boolean all) {
+		boolean result = false;
+		if (geometry != null)
+			for (int i = 0; i < instances.size() && (all || !result); i++) {
+				instanceMatrix.setData(getAccMatrix());
+				instanceMatrix.mult(getInstance(i));
+				result |= geometry.testGeometry(c, instanceMatrix, all);
+			}
+		return result;
+	}
+
+	public Element getXMLDescription(Document doc,
+			N3PersistentResourceList resources) {
+		Element result = super.getXMLDescription(doc, resources);
+
+		for (int i = 0; i < instances.size(); i++) {
+			float[] m = getInstance(i).getMatrix();
+			String floatString = "";
+			for (int j = 0; j < 16; j++)
+				floatString += ("" + m[j] + ((j < 15) ? " " : ""));
+			Element data = doc.createElement("instance");
+			data.setAttribute("values", floatString);
+			result.appendChild(data);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Devuelve una instancia de la clase, a partir de los parametros, y de la
+	 * descripcion XML en infoNode.
+	 *
+	 * @param infoNode
+	 *            Descripcion XML de la instacia a crear
+	 * @param nodes
+	 *            Rama XML con las descripciones de los recursos de la escena
+	 * @param resources
+	 *            Lista de recursos de la escena
+	 * @param reader
+	 *            Instancia capaz de crear recursos que aun no se han creado
+	 * @param render
+	 *            Render para el que se esta creando la escena
+	 * @param scene
+	 *            Escena que se esta creando
+	 * @return Instancia de la clase con la informacion especificada
+	 */
+	public static N3PersistentResource loadInstance(Element infoNode,
+			NodeList nodes, N3PersistentResourceList resources,
+			N3SceneReader reader, N3Render render, N3Scene scene)
+			throws Exception {
+		String name = infoNode.getAttribute("name");
+		Element data = (Element) infoNode.getElementsByTagName("geometry")
+				.item(0);
+		int index = Integer.parseInt(data.getAttribute("index"));
+		N3GeometryData g = (N3GeometryData) resources.resourceAt(index);
+		N3InstancedMesh result = new N3InstancedMesh(scene, g, name);
+
+		data = (Element) infoNode.getElementsByTagName("collisionable").item(0);
+		result.setCollisionable((new Boolean(data.getAttribute("value")))
+				.booleanValue());
+
+		data = (Element) infoNode.getElementsByTagName("material").item(0);
+		index = Integer.parseInt(data.getAttribute("index"));
+		if (index != -1) {
+			N3Material m = (N3Material) resources.resourceAt(index);
+			result.setMaterial(m);
+		}
+
+		if (infoNode.getElementsByTagName("prelit").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("prelit").item(0);
+			result.setPreLit((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("stripped").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("stripped").item(0);
+			result.setStripped((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("renderlayer").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("renderlayer")
+					.item(0);
+			result.setRenderLayer(Integer.parseInt(data.getAttribute("layer")));
+			result.setTransparent((new Boolean(data
+					.getAttribute("transparent"))).booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("occluder").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("occluder").item(0);
+			result.setOccluder((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		NodeList instanceList = infoNode.getElementsByTagName("instance");
+		N3Matrix4D m = new N3Matrix4D();
+		for (int i = 0; i < instanceList.getLength(); i++) {
+			data = (Element) instanceList.item(i);
+			StringTokenizer st = new StringTokenizer(
+					data.getAttribute("values"), " ");
+			float[] values = m.getMatrix();
+			int j = 0;
+			while (st.hasMoreTokens()) {
+				values[j] = Float.parseFloat(st.nextToken());
+				j++;
+			}
+			result.addInstance(m);
+		}
+
+		return result;
+	}
+}
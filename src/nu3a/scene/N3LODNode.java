@@ -0,0 +1,532 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.awt.Rectangle;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import nu3a.camera.N3CameraData;
+import nu3a.geometry.N3GeometryData;
+import nu3a.geometry.N3MeshSimplifier;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3Polygon;
+import nu3a.material.N3Material;
+import nu3a.names.exception.N3NameException;
+import nu3a.persistence.N3PersistentResource;
+import nu3a.persistence.N3PersistentResourceList;
+import nu3a.persistence.N3SceneReader;
+import nu3a.render.N3Render;
+import nu3a.scene.exception.N3AlreadyHasParentException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Nodo de nivel de detalle. Cada hijo es un nivel, del mas detallado al menos
+ * detallado, y en cada frame solo se dibujan los objetos visuales del nivel
+ * seleccionado segun la distancia a la camara activa o segun el tamano que
+ * ocupa el nodo en pantalla.
+ *
+ * Para evitar cambios continuos de nivel cerca de los umbrales, un cambio solo
+ * se produce cuando la medida supera el umbral en una proporcion dada
+ * (histeresis).
+ *
+ * Los niveles menos detallados pueden generarse con N3MeshSimplifier mediante
+ * createLevels.
+ */
+public class N3LODNode extends N3GroupNode {
+	/**
+	 * Seleccion del nivel por distancia a la camara. El umbral de cada nivel
+	 * es la distancia maxima a la que se usa.
+	 */
+	public final static int N3_DISTANCE = 0;
+
+	/**
+	 * Seleccion del nivel por tamano en pantalla. El umbral de cada nivel es
+	 * el tamano minimo, en pixels, del radio proyectado con el que se usa.
+	 */
+	public final static int N3_SCREEN_SIZE = 1;
+
+	/**
+	 * Umbrales de los niveles, en el orden de los hijos.
+	 */
+	protected Vector thresholds;
+
+	/**
+	 * Modo de seleccion del nivel.
+	 */
+	protected int mode;
+
+	/**
+	 * Proporcion en que la medida ha de superar un umbral para cambiar de
+	 * nivel.
+	 */
+	protected float hysteresis;
+
+	/**
+	 * Radio del nodo usado para calcular su tamano en pantalla. Si es 0 se
+	 * calcula a partir de la geometria del primer nivel.
+	 */
+	protected float radius;
+
+	/**
+	 * Nivel seleccionado, o -1 si no se ha seleccionado ninguno.
+	 */
+	protected int current;
+
+	/**
+	 * Distancia a la camara en la ultima seleccion, relativa al radio.
+	 */
+	protected float relativeDistance;
+
+	// Triangulos de cada nivel, o null si hay que recalcularlos
+	private int[] triangles;
+
+	// Radio calculado a partir del primer nivel, o 0 si hay que calcularlo
+	private float computedRadius;
+
+	/**
+	 * Constructor de la clase. Crea un nodo de nivel de detalle sin niveles,
+	 * con seleccion por distancia y una histeresis del 10%.
+	 *
+	 * @param scene
+	 *            Escena a la que pertenece el nodo.
+	 * @param name
+	 *            Nombre del nodo
+	 */
+	public N3LODNode(N3Scene scene, String name) throws N3NameException {
+		super(scene, name);
+		thresholds = new Vector(0, 1);
+		mode = N3_DISTANCE;
+		hysteresis = 0.1f;
+		current = -1;
+		scene.addLODNode(this);
+	}
+
+	/**
+	 * Anade un nivel de detalle, menos detallado que los anteriores.
+	 *
+	 * @param node
+	 *            Nodo con los objetos visuales del nivel
+	 * @param threshold
+	 *            Distancia maxima a la que se usa el nivel, o tamano minimo en
+	 *            pixels con el que se usa, segun el modo
+	 */
+	public void addLevel(N3Node node, float threshold)
+			throws N3AlreadyHasParentException {
+		addChild(node);
+		setThreshold(children.size() - 1, threshold);
+	}
+
+	/**
+	 * Cambia el umbral de un nivel.
+	 *
+	 * @param level
+	 *            Nivel
+	 * @param threshold
+	 *            Nuevo umbral
+	 */
+	public void setThreshold(int level, float threshold) {
+		while (thresholds.size() <= level)
+			thresholds.add(new Float(Float.MAX_VALUE));
+		thresholds.setElementAt(new Float(threshold), level);
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene el umbral de un nivel. Los niveles sin umbral se usan a
+	 * cualquier distancia.
+	 *
+	 * @param level
+	 *            Nivel
+	 * @return Umbral del nivel
+	 */
+	public float getThreshold(int level) {
+		if (level < thresholds.size())
+			return ((Float) thresholds.elementAt(level)).floatValue();
+		return mode == N3_DISTANCE ? Float.MAX_VALUE : 0;
+	}
+
+	/**
+	 * Obtiene el numero de niveles.
+	 *
+	 * @return Numero de niveles
+	 */
+	public int getLevelCount() {
+		return children.size();
+	}
+
+	/**
+	 * Establece el modo de seleccion del nivel.
+	 *
+	 * @param mode
+	 *            N3_DISTANCE o N3_SCREEN_SIZE
+	 */
+	public void setMode(int mode) {
+		this.mode = mode;
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene el modo de seleccion del nivel.
+	 *
+	 * @return N3_DISTANCE o N3_SCREEN_SIZE
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Establece la histeresis de los cambios de nivel.
+	 *
+	 * @param hysteresis
+	 *            Proporcion en que la medida ha de superar un umbral para
+	 *            cambiar de nivel, entre 0 y 1
+	 */
+	public void setHysteresis(float hysteresis) {
+		this.hysteresis = hysteresis;
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene la histeresis de los cambios de nivel.
+	 *
+	 * @return Histeresis
+	 */
+	public float getHysteresis() {
+		return hysteresis;
+	}
+
+	/**
+	 * Establece el radio con el que se calcula el tamano en pantalla.
+	 *
+	 * @param radius
+	 *            Radio del nodo, o 0 para calcularlo a partir de la geometria
+	 *            del primer nivel
+	 */
+	public void setRadius(float radius) {
+		this.radius = radius;
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene el radio con el que se calcula el tamano en pantalla.
+	 *
+	 * @return Radio del nodo
+	 */
+	public float getRadius() {
+		if (radius > 0)
+			return radius;
+		if (computedRadius <= 0 && !children.isEmpty())
+			computedRadius = computeRadius((N3Node) children.elementAt(0));
+		return computedRadius > 0 ? computedRadius : 1.0f;
+	}
+
+	/**
+	 * Obtiene el nivel seleccionado en el ultimo frame.
+	 *
+	 * @return Nivel seleccionado, o -1 si no se ha seleccionado ninguno
+	 */
+	public int getCurrentLevel() {
+		return current;
+	}
+
+	/**
+	 * Obtiene el numero de triangulos de un nivel.
+	 *
+	 * @param level
+	 *            Nivel
+	 * @return Numero de triangulos de los objetos visuales del nivel
+	 */
+	public int getTriangleCount(int level) {
+		if (triangles == null || triangles.length != children.size()) {
+			triangles = new int[children.size()];
+			for (int i = 0; i < triangles.length; i++)
+				triangles[i] = countTriangles((N3Node) children.elementAt(i));
+		}
+		return triangles[level];
+	}
+
+	/**
+	 * Genera los niveles del nodo a partir de una geometria. El primer nivel
+	 * usa la geometria original y los siguientes versiones simplificadas con
+	 * N3MeshSimplifier.
+	 *
+	 * @param g
+	 *            Geometria del nivel mas detallado
+	 * @param material
+	 *            Material de todos los niveles. Puede ser null.
+	 * @param ratios
+	 *            Proporcion de triangulos de cada nivel respecto a la
+	 *            geometria original. La del primer nivel se ignora.
+	 * @param thresholds
+	 *            Umbral de cada nivel
+	 */
+	public void createLevels(N3GeometryData g, N3Material material,
+			float[] ratios, float[] thresholds) throws N3NameException,
+			N3AlreadyHasParentException {
+		for (int i = 0; i < ratios.length; i++) {
+			N3GeometryData lg = i == 0 ? g : N3MeshSimplifier.simplify(g,
+					ratios[i]);
+			N3VisualMesh mesh = new N3VisualMesh(scene, lg, name + "_lod" + i);
+			if (material != null)
+				mesh.setMaterial(material);
+			addLevel(mesh, thresholds[i]);
+		}
+	}
+
+	/**
+	 * Anade un hijo como un nuevo nivel, menos detallado que los anteriores.
+	 * Sus objetos visuales no se dibujan hasta que se selecciona el nivel.
+	 *
+	 * @param node
+	 *            Nodo hijo
+	 */
+	public void addChild(N3Node node) throws N3AlreadyHasParentException {
+		super.addChild(node);
+		if (current < 0)
+			setCurrentLevel(0);
+		else
+			setLevelSelected(node, false);
+	}
+
+	/**
+	 * Quita un nivel del nodo. Los objetos visuales del nivel vuelven a
+	 * dibujarse normalmente.
+	 *
+	 * @param node
+	 *            Nodo hijo
+	 */
+	public void removeChild(N3Node node) {
+		int index = children.indexOf(node);
+		super.removeChild(node);
+		if (index < 0)
+			return;
+		setLevelSelected(node, true);
+		if (index < thresholds.size())
+			thresholds.removeElementAt(index);
+		if (index < current)
+			current--;
+		else if (index == current) {
+			current = -1;
+			if (!children.isEmpty())
+				setCurrentLevel(Math.min(index, children.size() - 1));
+		}
+	}
+
+	protected void hierarchyChanged() {
+		triangles = null;
+		computedRadius = 0;
+		super.hierarchyChanged();
+	}
+
+	public void remove() {
+		super.remove();
+		scene.removeLODNode(this);
+	}
+
+	// Radio maximo de los vertices de los objetos visuales del nodo
+	private static float computeRadius(N3Node node) {
+		float r = 0;
+		if (node instanceof N3GroupNode) {
+			N3GroupNode group = (N3GroupNode) node;
+			for (int i = 0; i < group.children.size(); i++)
+				r = Math.max(r, computeRadius((N3Node) group.children
+						.elementAt(i)));
+		} else if (node instanceof N3VisualObject) {
+			N3GeometryData g = ((N3VisualObject) node).getGeometry();
+			for (int i = 0; g != null && i < g.polygonCount(); i++) {
+				N3Polygon p = g.getPolygon(i);
+				for (int j = 0; j < p.getSides(); j++) {
+					N3Point3D v = (N3Point3D) p.getVertex(j);
+					r = Math.max(r, (float) Math.sqrt(v.x * v.x + v.y * v.y
+							+ v.z * v.z));
+				}
+			}
+		}
+		return r;
+	}
+
+	private static int countTriangles(N3Node node) {
+		int count = 0;
+		if (node instanceof N3GroupNode) {
+			N3GroupNode group = (N3GroupNode) node;
+			for (int i = 0; i < group.children.size(); i++)
+				count += countTriangles((N3Node) group.children.elementAt(i));
+		} else if (node instanceof N3VisualObject) {
+			N3GeometryData g = ((N3VisualObject) node).getGeometry();
+			if (g != null)
+				count = N3MeshSimplifier.triangleCount(g);
+		}
+		return count;
+	}
+
+	// Activa o desactiva los objetos visuales de un nivel
+	private static void setLevelSelected(N3Node node, boolean selected) {
+		if (node instanceof N3GroupNode) {
+			N3GroupNode group = (N3GroupNode) node;
+			for (int i = 0; i < group.children.size(); i++)
+				setLevelSelected((N3Node) group.children.elementAt(i),
+						selected);
+		} else if (node instanceof N3VisualObject)
+			((N3VisualObject) node).lodSelected = selected;
+	}
+
+	// Nivel correspondiente a la medida indicada
+	private int levelFor(float measure) {
+		int last = children.size() - 1;
+		for (int i = 0; i < last; i++) {
+			float t = getThreshold(i);
+			float limit = mode == N3_DISTANCE ? t : (t > 0 ? 1.0f / t
+					: Float.MAX_VALUE);
+			if (measure < limit)
+				return i;
+		}
+		return last;
+	}
+
+	/**
+	 * Cambia el nivel seleccionado.
+	 *
+	 * @param level
+	 *            Nuevo nivel
+	 */
+	protected void setCurrentLevel(int level) {
+		if (level == current)
+			return;
+		for (int i = 0; i < children.size(); i++)
+			setLevelSelected((N3Node) children.elementAt(i), i == level);
+		current = level;
+	}
+
+	/**
+	 * Selecciona el nivel a dibujar segun la posicion de la camara.
+	 *
+	 * @param cx
+	 *            Coordenada x de la camara
+	 * @param cy
+	 *            Coordenada y de la camara
+	 * @param cz
+	 *            Coordenada z de la camara
+	 * @param cd
+	 *            Datos de la camara
+	 */
+	public void select(float cx, float cy, float cz, N3CameraData cd) {
+		if (children.isEmpty())
+			return;
+		float[] m = getAccMatrix().getMatrix();
+		float dx = m[12] - cx, dy = m[13] - cy, dz = m[14] - cz;
+		float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+		relativeDistance = distance / getRadius();
+		float measure = distance;
+		if (mode == N3_SCREEN_SIZE) {
+			// Inversa del radio proyectado en pixels
+			Rectangle vp = cd.getViewport();
+			float h = vp != null ? vp.height : 1.0f;
+			float tan = (float) Math.tan(Math.toRadians(cd.getFovy()) / 2);
+			measure = relativeDistance * 2 * tan / h;
+		}
+		int level = levelFor(measure);
+		if (current >= 0 && level > current)
+			level = Math.max(current, levelFor(measure / (1 + hysteresis)));
+		else if (current >= 0 && level < current)
+			level = Math.min(current, levelFor(measure / (1 - hysteresis)));
+		setCurrentLevel(level);
+	}
+
+	/**
+	 * Pasa al siguiente nivel menos detallado, si existe.
+	 *
+	 * @return True si se ha cambiado de nivel
+	 */
+	public boolean coarsen() {
+		if (current < 0 || current >= children.size() - 1)
+			return false;
+		setCurrentLevel(current + 1);
+		return true;
+	}
+
+	public Element getXMLDescription(Document doc,
+			N3PersistentResourceList resources) {
+		Element result = super.getXMLDescription(doc, resources);
+
+		String floatString = "";
+		for (int i = 0; i < thresholds.size(); i++)
+			floatString += ("" + getThreshold(i) + ((i < thresholds.size() - 1)
+					? " " : ""));
+		Element data = doc.createElement("lod");
+		data.setAttribute("mode", "" + mode);
+		data.setAttribute("hysteresis", "" + hysteresis);
+		data.setAttribute("radius", "" + radius);
+		data.setAttribute("thresholds", floatString);
+		result.appendChild(data);
+
+		return result;
+	}
+
+	/**
+	 * Devuelve una instancia de la clase, a partir de los parametros, y de la
+	 * descripcion XML en infoNode.
+	 *
+	 * @param infoNode
+	 *            Descripcion XML de la instacia a crear
+	 * @param nodes
+	 *            Rama XML con las descripciones de los recursos de la escena
+	 * @param resources
+	 *            Lista de recursos de la escena
+	 * @param reader
+	 *            Instancia capaz de crear recursos que aun no se han creado
+	 * @param render
+	 *            Render para el que se esta creando la escena
+	 * @param scene
+	 *            Escena que se esta creando
+	 * @return Instancia de la clase con la informacion especificada
+	 */
+	public static N3PersistentResource loadInstance(Element infoNode,
+			NodeList nodes, N3PersistentResourceList resources,
+			N3SceneReader reader, N3Render render, N3Scene scene)
+			throws Exception {
+		String name = infoNode.getAttribute("name");
+		N3LODNode result = new N3LODNode(scene, name);
+
+		Element data = (Element) infoNode.getElementsByTagName("collisionable")
+				.item(0);
+		result.setCollisionable((new Boolean(data.getAttribute("value")))
+				.booleanValue());
+
+		data = (Element) infoNode.getElementsByTagName("lod").item(0);
+		result.setMode(Integer.parseInt(data.getAttribute("mode")));
+		result.setHysteresis(Float.parseFloat(data.getAttribute("hysteresis")));
+		result.setRadius(Float.parseFloat(data.getAttribute("radius")));
+		StringTokenizer st = new StringTokenizer(data
+				.getAttribute("thresholds"), " ");
+		int i = 0;
+		while (st.hasMoreTokens()) {
+			result.setThreshold(i, Float.parseFloat(st.nextToken()));
+			i++;
+		}
+		return result;
+	}
+}
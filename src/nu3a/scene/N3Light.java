@@ -22,7 +22,10 @@
 
 package nu3a.scene;
 
+import nu3a.geometry.N3Point3D;
 import nu3a.light.N3LightData;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.math.N3Matrix4D;
 import nu3a.math.N3Vector3D;
 import nu3a.names.exception.N3NameException;
 import nu3a.persistence.N3PersistentResource;
@@ -51,6 +54,26 @@ public class N3Light extends N3LeafNode {
 	 */
 	N3LightData internalLight;
 
+	/**
+	 * Intensidad por debajo de la cual la contribuci�n de la luz se
+	 * desprecia al calcular su alcance.
+	 */
+	public static final float THRESHOLD = 1.0f / 256.0f;
+
+	/**
+	 * Posici�n de la luz en el vector de luces activas de la escena durante
+	 * el �ltimo dibujado, o -1.
+	 */
+	protected int activeIndex = -1;
+
+	// Volumen de influencia en coordenadas del mundo: esfera de alcance y,
+	// en los focos de menos de 90 grados, cono
+	private boolean bounded, cone;
+	private float range;
+	private float coneCos, coneSin;
+	private N3Point3D worldPos = new N3Point3D();
+	private N3Vector3D worldDir = new N3Vector3D();
+
 	/**
 	 * Crea una instancia de un nodo de luz para el objeto de datos de luz
 	 * especificado.
@@ -105,6 +128,105 @@ public class N3Light extends N3LeafNode {
 		render.setLightParam(render.N3_QUADRATIC_ATTENUATION,
 				internalLight.getQuadraticAttenuation(), n);
 
+		calculeRenderVectors();
+		render.setLightParam(render.N3_POSITION, pos, n);
+		render.setLightParam(render.N3_SPOT_DIRECTION, dir, n);
+		render.setLightParam(render.N3_SPOT_CUTOFF, internalLight.getAngle(), n);
+		render.setLightParam(render.N3_SPOT_EXPONENT,
+				internalLight.getSpotExponent(), n);
+		activeIndex = n;
+		updateInfluence();
+	}
+
+	/**
+	 * Obtiene la distancia a partir de la cual la atenuaci�n hace que la
+	 * contribuci�n de la luz sea menor que THRESHOLD.
+	 * 
+	 * @return Alcance de la luz, o Float.MAX_VALUE si no tiene l�mite
+	 */
+	public float getRange() {
+		if (!internalLight.getPositional())
+			return Float.MAX_VALUE;
+		float kc = internalLight.getConstantAttenuation();
+		float kl = internalLight.getLinearAttenuation();
+		float kq = internalLight.getQuadraticAttenuation();
+		N3ColorRGBA a = internalLight.getAmbiental();
+		N3ColorRGBA d = internalLight.getDiffuse();
+		N3ColorRGBA s = internalLight.getSpecular();
+		// El t�rmino especular puede llegar al doble de la componente
+		float intensity = Math.max(a.R + d.R + 2 * s.R, Math.max(a.G + d.G
+				+ 2 * s.G, a.B + d.B + 2 * s.B));
+		float t = intensity / THRESHOLD;
+		if (kc >= t)
+			return 0;
+		if (kq > 0)
+			return (float) ((-kl + Math.sqrt(kl * kl - 4 * kq * (kc - t))) / (2 * kq));
+		if (kl > 0)
+			return (t - kc) / kl;
+		return Float.MAX_VALUE;
+	}
+
+	/**
+	 * Calcula el volumen de influencia de la luz en coordenadas del mundo, a
+	 * partir de su alcance y de la apertura del foco.
+	 */
+	protected void updateInfluence() {
+		range = getRange();
+		bounded = range != Float.MAX_VALUE;
+		float angle = internalLight.getAngle();
+		cone = internalLight.getPositional() && angle < 90.0f;
+		if (internalLight.getPositional())
+			getWorldPosition(worldPos);
+		if (cone) {
+			getWorldDirection(worldDir);
+			coneCos = (float) Math.cos(Math.toRadians(angle));
+			coneSin = (float) Math.sin(Math.toRadians(angle));
+		}
+	}
+
+	/**
+	 * Indica si la luz puede iluminar alg�n punto de la caja indicada, seg�n
+	 * el volumen calculado en el �ltimo dibujado. La comprobaci�n es
+	 * conservadora.
+	 * 
+	 * @param b
+	 *            Esquina m�nima y m�xima de la caja en coordenadas del mundo
+	 * @return True si la luz puede llegar a la caja
+	 */
+	protected boolean reaches(float[] b) {
+		if (bounded) {
+			float dx = Math.max(Math.max(b[0] - worldPos.x, 0), worldPos.x
+					- b[3]);
+			float dy = Math.max(Math.max(b[1] - worldPos.y, 0), worldPos.y
+					- b[4]);
+			float dz = Math.max(Math.max(b[2] - worldPos.z, 0), worldPos.z
+					- b[5]);
+			if (dx * dx + dy * dy + dz * dz > range * range)
+				return false;
+		}
+		if (cone) {
+			// Esfera que contiene la caja contra el cono del foco
+			float ex = (b[3] - b[0]) / 2, ey = (b[4] - b[1]) / 2, ez = (b[5] - b[2]) / 2;
+			float r = (float) Math.sqrt(ex * ex + ey * ey + ez * ez);
+			float vx = b[0] + ex - worldPos.x;
+			float vy = b[1] + ey - worldPos.y;
+			float vz = b[2] + ez - worldPos.z;
+			float dist2 = vx * vx + vy * vy + vz * vz;
+			if (dist2 <= r * r)
+				return true;
+			float d = vx * worldDir.x + vy * worldDir.y + vz * worldDir.z;
+			float perp = (float) Math.sqrt(Math.max(dist2 - d * d, 0));
+			if (perp * coneCos - d * coneSin > r)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Calcula la posici�n y direcci�n, en coordenadas de la luz, que se pasan
+	 * al render.
+	 */
+	private void calculeRenderVectors() {
 		N3Vector3D direction = internalLight.getDirection();
 		this.dir[0] = direction.x;
 		this.dir[1] = direction.y;
@@ -124,12 +246,38 @@ public class N3Light extends N3LeafNode {
 			dir[1] = 0;
 			dir[2] = -1.0f;
 		}
+	}
 
-		render.setLightParam(render.N3_POSITION, pos, n);
-		render.setLightParam(render.N3_SPOT_DIRECTION, dir, n);
-		render.setLightParam(render.N3_SPOT_CUTOFF, internalLight.getAngle(), n);
-		render.setLightParam(render.N3_SPOT_EXPONENT,
-				internalLight.getSpotExponent(), n);
+	/**
+	 * Obtiene la posici�n de la luz en coordenadas del mundo, tal y como la
+	 * recibe el render.
+	 * 
+	 * @param p
+	 *            Punto en el que se deja la posici�n
+	 */
+	public void getWorldPosition(N3Point3D p) {
+		calculeRenderVectors();
+		p.x = pos[0];
+		p.y = pos[1];
+		p.z = pos[2];
+		p.w = pos[3];
+		N3Matrix4D.mult(getAccMatrix(), p);
+	}
+
+	/**
+	 * Obtiene la direcci�n de la luz en coordenadas del mundo, tal y como la
+	 * recibe el render.
+	 * 
+	 * @param d
+	 *            Vector en el que se deja la direcci�n
+	 */
+	public void getWorldDirection(N3Vector3D d) {
+		calculeRenderVectors();
+		d.x = dir[0];
+		d.y = dir[1];
+		d.z = dir[2];
+		N3Matrix4D.mult(getAccMatrix(), d);
+		d.normalize();
 	}
 
 	/**
@@ -149,6 +297,7 @@ public class N3Light extends N3LeafNode {
 	 */
 	public void setLightData(N3LightData data) {
 		internalLight = data;
+		scene.notifyChange();
 	}
 
 	public void getPersistentResources(N3PersistentResourceList resources) {
@@ -0,0 +1,181 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.Vector;
+
+import nu3a.geometry.N3GeometryData;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3Polygon;
+import nu3a.light.N3LightData;
+import nu3a.material.N3Material;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.math.N3Matrix4D;
+import nu3a.math.N3Vector3D;
+import nu3a.render.software.N3SoftwareLight;
+import nu3a.render.software.N3SoftwareLighting;
+
+/**
+ * Herramienta para precalcular de forma offline la iluminacion de las luces
+ * estaticas de una escena sobre sus mallas estaticas. El resultado se guarda
+ * en los colores de los vertices de la geometria de cada malla, que queda
+ * marcada como preiluminada para que no se vuelva a iluminar al dibujarla. Al
+ * estar en la geometria, la iluminacion precalculada se guarda con la escena
+ * mediante N3SceneWriter.
+ *
+ * Se utiliza el mismo modelo de iluminacion que el render software,
+ * incluyendo atenuacion y corte de los focos, evaluado en coordenadas del
+ * mundo. El termino especular depende del observador y no se precalcula.
+ */
+public class N3LightBaker {
+
+	/**
+	 * Precalcula la iluminacion de las luces estaticas de la escena sobre
+	 * todas sus mallas estaticas. Si una malla comparte su geometria con otros
+	 * objetos, se le asigna una copia para no alterar a los demas.
+	 *
+	 * @param scene
+	 *            Escena a procesar
+	 * @return Numero de mallas preiluminadas
+	 */
+	public static int bake(N3Scene scene) {
+		Vector lights = new Vector(0, 1);
+		for (int i = 0; i < scene.getLightCount(); i++) {
+			N3Light l = scene.getLight(i);
+			if (l.isStatic())
+				lights.add(l);
+		}
+		int baked = 0;
+		for (int i = 0; i < scene.getVisualObjectCount(); i++) {
+			N3VisualObject obj = scene.getVisualObject(i);
+			if (obj.getClass() == N3VisualMesh.class && obj.isStatic()
+					&& obj.getGeometry() != null) {
+				bakeMesh((N3VisualMesh) obj, lights,
+						scene.getAmbientalLight());
+				baked++;
+			}
+		}
+		return baked;
+	}
+
+	/**
+	 * Precalcula la iluminacion de las luces indicadas sobre una malla.
+	 *
+	 * @param mesh
+	 *            Malla a iluminar
+	 * @param lights
+	 *            Luces que se precalculan
+	 * @param ambiental
+	 *            Luz ambiental de la escena
+	 */
+	public static void bakeMesh(N3VisualMesh mesh, Vector lights,
+			N3ColorRGBA ambiental) {
+		N3GeometryData g = mesh.getGeometry();
+		if (g.getGeometryListenerCount() > 1) {
+			g = g.copy();
+			mesh.setGeometry(g);
+		}
+
+		// El motor admite un numero limitado de luces, por lo que se
+		// acumulan por grupos. Solo el primero aporta el termino
+		// independiente de las luces.
+		int groups = Math.max(1, (lights.size()
+				+ N3SoftwareLighting.MAX_LIGHTS - 1)
+				/ N3SoftwareLighting.MAX_LIGHTS);
+		N3SoftwareLighting[] engines = new N3SoftwareLighting[groups];
+		N3ColorRGBA black = new N3ColorRGBA(0, 0, 0);
+		N3ColorRGBA white = new N3ColorRGBA(1, 1, 1);
+		N3Material m = mesh.getMaterial();
+		boolean apply = m != null && m.isMaterialApplied();
+		N3Point3D p = new N3Point3D();
+		N3Vector3D d = new N3Vector3D();
+		for (int i = 0; i < groups; i++) {
+			N3SoftwareLighting e = new N3SoftwareLighting();
+			e.setAmbientalLight(i == 0 ? ambiental : black);
+			e.setMatEmission(i == 0 && apply ? m.getEmissionColor() : black);
+			e.setMatAmbient(apply ? m.getAmbientColor() : white);
+			e.setMatDiffuse(apply ? m.getDiffuseColor() : white);
+			e.setMatSpecular(black);
+			for (int j = 0; j < N3SoftwareLighting.MAX_LIGHTS; j++) {
+				int n = i * N3SoftwareLighting.MAX_LIGHTS + j;
+				N3SoftwareLight sl = e.getLight(j);
+				if (n >= lights.size()) {
+					sl.setEnable(false);
+					continue;
+				}
+				N3Light l = (N3Light) lights.elementAt(n);
+				N3LightData data = l.getLightData();
+				sl.setAmbiental(data.getAmbiental());
+				sl.setDiffuse(data.getDiffuse());
+				sl.setSpecular(data.getSpecular());
+				sl.setConstantAtten(data.getConstantAttenuation());
+				sl.setLinearAtten(data.getLinearAttenuation());
+				sl.setQuadAtten(data.getQuadraticAttenuation());
+				sl.setCutOff(data.getAngle());
+				sl.setSpotExp(data.getSpotExponent());
+				l.getWorldPosition(p);
+				sl.setPosition(p);
+				l.getWorldDirection(d);
+				sl.setDirection(d);
+			}
+			engines[i] = e;
+		}
+
+		N3Matrix4D acc = mesh.getAccMatrix();
+		N3ColorRGBA c = new N3ColorRGBA();
+		for (int i = 0; i < g.polygonCount(); i++) {
+			N3Polygon poly = g.getPolygon(i);
+			N3Vector3D polyNormal = null;
+			for (int j = 0; j < poly.getSides(); j++) {
+				N3Point3D v = (N3Point3D) poly.getVertex(j);
+				N3Vector3D n = (N3Vector3D) poly.getNormal(j);
+				if (n == null) {
+					if (polyNormal == null)
+						polyNormal = poly.getPolygonNormal();
+					n = polyNormal;
+				}
+				p.x = v.x;
+				p.y = v.y;
+				p.z = v.z;
+				N3Matrix4D.mult(acc, p);
+				d.x = n.x;
+				d.y = n.y;
+				d.z = n.z;
+				N3Matrix4D.mult(acc, d);
+				d.normalize();
+				float r = 0, gr = 0, b = 0;
+				for (int k = 0; k < groups; k++) {
+					engines[k].shade(p.x, p.y, p.z, d.x, d.y, d.z, c);
+					r += c.R;
+					gr += c.G;
+					b += c.B;
+				}
+				N3ColorRGBA old = poly.getColor(j);
+				poly.setColor(new N3ColorRGBA(Math.min(r, 1.0f), Math.min(gr,
+						1.0f), Math.min(b, 1.0f), old != null ? old.A : 1.0f),
+						j);
+			}
+		}
+		mesh.setPreLit(true);
+	}
+}
@@ -90,6 +90,13 @@ public abstract class N3Node implements N3NamedObject,
 	 */
 	protected boolean collisionable;
 
+	/**
+	 * Indica si el nodo es est�tico, es decir, si ni �l ni su transformaci�n
+	 * van a cambiar durante la ejecuci�n. Permite precalcular informaci�n del
+	 * nodo de forma offline.
+	 */
+	protected boolean staticNode;
+
 	/**
 	 * Constructor de la clase.
 	 * 
@@ -185,6 +192,20 @@ public abstract class N3Node implements N3NamedObject,
 	 */
 	protected void setDirty() {
 		isDirty = true;
+		if (scene != null)
+			scene.notifyChange();
+	}
+
+	/**
+	 * Notifica que ha cambiado algo en el sub�rbol del nodo (hijos, geometr�a,
+	 * material o visibilidad) que puede afectar a sus antecesores. La
+	 * notificaci�n se propaga hasta la ra�z.
+	 */
+	protected void hierarchyChanged() {
+		if (parent != null)
+			parent.hierarchyChanged();
+		else if (scene != null)
+			scene.notifyChange();
 	}
 
 	/**
@@ -286,6 +307,25 @@ public abstract class N3Node implements N3NamedObject,
 		return collisionable;
 	}
 
+	/**
+	 * Permite indicar si el nodo es est�tico.
+	 * 
+	 * @param s
+	 *            True si el nodo es est�tico; False en caso contrario
+	 */
+	public void setStatic(boolean s) {
+		staticNode = s;
+	}
+
+	/**
+	 * Indica si el nodo es est�tico.
+	 * 
+	 * @return True si el nodo es est�tico; False en caso contrario
+	 */
+	public boolean isStatic() {
+		return staticNode;
+	}
+
 	public N3BoundingVolume getBoundingVolume() {
 		return bVolume;
 	}
@@ -307,6 +347,10 @@ public abstract class N3Node implements N3NamedObject,
 		data.setAttribute("value", "" + collisionable);
 		result.appendChild(data);
 
+		data = doc.createElement("static");
+		data.setAttribute("value", "" + staticNode);
+		result.appendChild(data);
+
 		return result;
 	}
 
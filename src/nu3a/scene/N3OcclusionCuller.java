@@ -0,0 +1,413 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import nu3a.math.N3Matrix4D;
+import nu3a.render.N3WorkerPool;
+
+/**
+ * Etapa de ocultacion por software. Los objetos marcados como oclusores se
+ * rasterizan, solo en profundidad, en un buffer de baja resolucion; despues,
+ * la caja envolvente de cada objeto se proyecta en pantalla y se compara con
+ * el buffer. Si toda la caja queda detras de los oclusores el objeto no se
+ * dibuja.
+ *
+ * La prueba es conservadora para oclusores convexos: el buffer se erosiona
+ * para que cada pixel guarde la profundidad mas lejana de sus vecinos, de
+ * forma que un pixel solo oculta si esta cubierto por completo, y los
+ * triangulos que cruzan el plano cercano no se rasterizan.
+ *
+ * La rasterizacion puede hacerse en un hilo propio mientras el hilo de dibujo
+ * sigue trabajando; las pruebas esperan a que termine.
+ */
+public class N3OcclusionCuller {
+	/**
+	 * Anchura por defecto del buffer de profundidad.
+	 */
+	public static final int DEFAULT_WIDTH = 256;
+
+	/**
+	 * Altura por defecto del buffer de profundidad.
+	 */
+	public static final int DEFAULT_HEIGHT = 128;
+
+	/**
+	 * Dimensiones del buffer de profundidad.
+	 */
+	protected int width, height;
+
+	/**
+	 * Profundidad rasterizada, en coordenadas normalizadas (-1 cerca, 1
+	 * lejos).
+	 */
+	protected float[] depth;
+
+	/**
+	 * Profundidad erosionada con la que se hacen las pruebas.
+	 */
+	protected float[] eroded;
+
+	/**
+	 * Numero de objetos probados y ocultos desde el comienzo del frame.
+	 */
+	protected int tested, occluded;
+
+	// Proyeccion por vista
+	private float[] viewProjection = new float[16];
+
+	// Oclusores del frame: triangulos locales y matriz de mundo
+	private float[][] occluderTriangles = new float[16][];
+
+	private float[][] occluderMatrices = new float[16][];
+
+	private int occluderCount;
+
+	// Matriz de trabajo de las pruebas
+	private float[] testMatrix = new float[16];
+
+	// Matriz y vertices de trabajo de la rasterizacion
+	private float[] rasterMatrix = new float[16];
+
+	private float[] sx = new float[3], sy = new float[3], sz = new float[3];
+
+	private ExecutorService executor;
+
+	private Future pending;
+
+	private Runnable rasterizer = new Runnable() {
+		public void run() {
+			rasterize();
+		}
+	};
+
+	/**
+	 * Constructor de la clase. Crea una etapa de ocultacion con un buffer de
+	 * las dimensiones por defecto.
+	 */
+	public N3OcclusionCuller() {
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param width
+	 *            Anchura del buffer de profundidad
+	 * @param height
+	 *            Altura del buffer de profundidad
+	 */
+	public N3OcclusionCuller(int width, int height) {
+		this.width = width;
+		this.height = height;
+		depth = new float[width * height];
+		eroded = new float[width * height];
+	}
+
+	/**
+	 * Permite rasterizar los oclusores en un hilo propio.
+	 *
+	 * @param threaded
+	 *            True para usar un hilo propio
+	 */
+	public void setThreaded(boolean threaded) {
+		if (threaded && executor == null)
+			executor = N3WorkerPool.newExecutor("N3OcclusionCuller", 1);
+		else if (!threaded && executor != null) {
+			waitRasterization();
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Indica si los oclusores se rasterizan en un hilo propio.
+	 *
+	 * @return True si se usa un hilo propio
+	 */
+	public boolean isThreaded() {
+		return executor != null;
+	}
+
+	/**
+	 * Empieza un nuevo frame con la camara indicada. Descarta los oclusores
+	 * del frame anterior.
+	 *
+	 * @param projection
+	 *            Matriz de proyeccion de la camara
+	 * @param view
+	 *            Transformacion del mundo al espacio de la camara
+	 */
+	public void begin(N3Matrix4D projection, N3Matrix4D view) {
+		waitRasterization();
+		mult(projection.getMatrix(), view.getMatrix(), viewProjection);
+		occluderCount = 0;
+		tested = 0;
+		occluded = 0;
+	}
+
+	/**
+	 * Anade un oclusor al frame en curso.
+	 *
+	 * @param triangles
+	 *            Coordenadas locales de los vertices de los triangulos del
+	 *            oclusor, de nueve en nueve. No debe modificarse durante el
+	 *            frame.
+	 * @param world
+	 *            Transformacion del oclusor al mundo. Se guarda una copia.
+	 */
+	public void addOccluder(float[] triangles, N3Matrix4D world) {
+		if (occluderCount == occluderTriangles.length) {
+			float[][] t = new float[occluderCount * 2][];
+			System.arraycopy(occluderTriangles, 0, t, 0, occluderCount);
+			occluderTriangles = t;
+			float[][] m = new float[occluderCount * 2][];
+			System.arraycopy(occluderMatrices, 0, m, 0, occluderCount);
+			occluderMatrices = m;
+		}
+		if (occluderMatrices[occluderCount] == null)
+			occluderMatrices[occluderCount] = new float[16];
+		System.arraycopy(world.getMatrix(), 0, occluderMatrices[occluderCount],
+				0, 16);
+		occluderTriangles[occluderCount] = triangles;
+		occluderCount++;
+	}
+
+	/**
+	 * Rasteriza los oclusores del frame, en el hilo propio si esta activado.
+	 */
+	public void start() {
+		if (executor != null)
+			pending = executor.submit(rasterizer);
+		else
+			rasterize();
+	}
+
+	// Espera a que termine la rasterizacion en curso
+	private void waitRasterization() {
+		if (pending != null) {
+			try {
+				pending.get();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			pending = null;
+		}
+	}
+
+	// Producto a * b de matrices por columnas
+	private static void mult(float[] a, float[] b, float[] r) {
+		for (int c = 0; c < 4; c++)
+			for (int f = 0; f < 4; f++)
+				r[c * 4 + f] = a[f] * b[c * 4] + a[4 + f] * b[c * 4 + 1] + a[8
+						+ f]
+						* b[c * 4 + 2] + a[12 + f] * b[c * 4 + 3];
+	}
+
+	/**
+	 * Rasteriza los oclusores y erosiona el buffer resultante.
+	 */
+	protected void rasterize() {
+		for (int i = 0; i < depth.length; i++)
+			depth[i] = Float.MAX_VALUE;
+		for (int o = 0; o < occluderCount; o++) {
+			mult(viewProjection, occluderMatrices[o], rasterMatrix);
+			float[] t = occluderTriangles[o];
+			for (int i = 0; i + 8 < t.length; i += 9)
+				rasterizeTriangle(t, i);
+			occluderTriangles[o] = null;
+		}
+		// Cada pixel guarda la profundidad mas lejana de sus vecinos; los
+		// bordes del buffer no ocultan
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++) {
+				float z = Float.MAX_VALUE;
+				if (x > 0 && y > 0 && x < width - 1 && y < height - 1) {
+					z = depth[(y - 1) * width + x - 1];
+					for (int dy = -1; dy <= 1; dy++) {
+						int row = (y + dy) * width + x;
+						for (int dx = -1; dx <= 1; dx++)
+							if (depth[row + dx] > z)
+								z = depth[row + dx];
+					}
+				}
+				eroded[y * width + x] = z;
+			}
+	}
+
+	// Rasteriza en profundidad el triangulo que empieza en t[i]
+	private void rasterizeTriangle(float[] t, int i) {
+		float[] m = rasterMatrix;
+		for (int v = 0; v < 3; v++) {
+			float x = t[i + v * 3], y = t[i + v * 3 + 1], z = t[i + v * 3 + 2];
+			float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+			if (cw <= 0)
+				return;
+			float cz = (m[2] * x + m[6] * y + m[10] * z + m[14]) / cw;
+			// Los triangulos que cruzan el plano cercano se recortarian al
+			// dibujarlos, por lo que no ocultan
+			if (cz < -1)
+				return;
+			sx[v] = ((m[0] * x + m[4] * y + m[8] * z + m[12]) / cw * 0.5f + 0.5f)
+					* width;
+			sy[v] = (0.5f - (m[1] * x + m[5] * y + m[9] * z + m[13]) / cw
+					* 0.5f)
+					* height;
+			sz[v] = cz;
+		}
+		float area = (sx[1] - sx[0]) * (sy[2] - sy[0]) - (sx[2] - sx[0])
+				* (sy[1] - sy[0]);
+		if (area == 0)
+			return;
+		int x0 = Math.max(0, (int) Math.floor(Math.min(sx[0], Math.min(sx[1],
+				sx[2]))));
+		int x1 = Math.min(width - 1, (int) Math.ceil(Math.max(sx[0], Math.max(
+				sx[1], sx[2]))));
+		int y0 = Math.max(0, (int) Math.floor(Math.min(sy[0], Math.min(sy[1],
+				sy[2]))));
+		int y1 = Math.min(height - 1, (int) Math.ceil(Math.max(sy[0], Math
+				.max(sy[1], sy[2]))));
+		float inv = 1.0f / area;
+		for (int y = y0; y <= y1; y++) {
+			float py = y + 0.5f;
+			for (int x = x0; x <= x1; x++) {
+				float px = x + 0.5f;
+				float w0 = ((sx[2] - sx[1]) * (py - sy[1]) - (sy[2] - sy[1])
+						* (px - sx[1]))
+						* inv;
+				float w1 = ((sx[0] - sx[2]) * (py - sy[2]) - (sy[0] - sy[2])
+						* (px - sx[2]))
+						* inv;
+				float w2 = 1.0f - w0 - w1;
+				if (w0 < 0 || w1 < 0 || w2 < 0)
+					continue;
+				float z = w0 * sz[0] + w1 * sz[1] + w2 * sz[2];
+				int p = y * width + x;
+				if (z < depth[p])
+					depth[p] = z;
+			}
+		}
+	}
+
+	/**
+	 * Indica si una caja queda oculta por completo detras de los oclusores.
+	 * Espera a que termine la rasterizacion si esta en curso.
+	 *
+	 * @param bounds
+	 *            Caja en coordenadas locales: minimo x, y, z y maximo x, y, z
+	 * @param world
+	 *            Transformacion de la caja al mundo
+	 * @return True si la caja esta oculta
+	 */
+	public boolean isOccluded(float[] bounds, N3Matrix4D world) {
+		waitRasterization();
+		float[] m = testMatrix;
+		mult(viewProjection, world.getMatrix(), m);
+		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+		float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+		float minZ = Float.MAX_VALUE;
+		for (int c = 0; c < 8; c++) {
+			float x = bounds[(c & 1) == 0 ? 0 : 3];
+			float y = bounds[(c & 2) == 0 ? 1 : 4];
+			float z = bounds[(c & 4) == 0 ? 2 : 5];
+			float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+			if (cw <= 0)
+				return false;
+			float cz = (m[2] * x + m[6] * y + m[10] * z + m[14]) / cw;
+			if (cz < -1)
+				return false;
+			float px = ((m[0] * x + m[4] * y + m[8] * z + m[12]) / cw * 0.5f + 0.5f)
+					* width;
+			float py = (0.5f - (m[1] * x + m[5] * y + m[9] * z + m[13]) / cw
+					* 0.5f)
+					* height;
+			minX = Math.min(minX, px);
+			maxX = Math.max(maxX, px);
+			minY = Math.min(minY, py);
+			maxY = Math.max(maxY, py);
+			minZ = Math.min(minZ, cz);
+		}
+		int x0 = Math.max(0, (int) Math.floor(minX));
+		int x1 = Math.min(width - 1, (int) Math.floor(maxX));
+		int y0 = Math.max(0, (int) Math.floor(minY));
+		int y1 = Math.min(height - 1, (int) Math.floor(maxY));
+		// Fuera de la pantalla no es trabajo de esta etapa
+		if (x0 > x1 || y0 > y1)
+			return false;
+		for (int y = y0; y <= y1; y++)
+			for (int x = x0; x <= x1; x++)
+				if (eroded[y * width + x] >= minZ)
+					return false;
+		return true;
+	}
+
+	/**
+	 * Cuenta el resultado de la prueba de un objeto.
+	 *
+	 * @param hidden
+	 *            True si el objeto estaba oculto
+	 */
+	protected void count(boolean hidden) {
+		tested++;
+		if (hidden)
+			occluded++;
+	}
+
+	/**
+	 * Obtiene el numero de objetos probados en el ultimo frame.
+	 *
+	 * @return Numero de objetos probados
+	 */
+	public int getTestedCount() {
+		return tested;
+	}
+
+	/**
+	 * Obtiene el numero de objetos ocultos en el ultimo frame.
+	 *
+	 * @return Numero de objetos ocultos
+	 */
+	public int getOccludedCount() {
+		return occluded;
+	}
+
+	/**
+	 * Obtiene la anchura del buffer de profundidad.
+	 *
+	 * @return Anchura en pixels
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Obtiene la altura del buffer de profundidad.
+	 *
+	 * @return Altura en pixels
+	 */
+	public int getHeight() {
+		return height;
+	}
+}
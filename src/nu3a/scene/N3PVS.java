@@ -0,0 +1,379 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.StringTokenizer;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Conjuntos de objetos potencialmente visibles (PVS) de una escena estatica.
+ * El espacio navegable se divide en una rejilla de celdas cubicas y para cada
+ * celda se guarda, como un conjunto de bits, que objetos estaticos pueden
+ * verse desde algun punto de ella. Los conjuntos se calculan con
+ * N3PVSBuilder.
+ *
+ * Durante el dibujo la escena obtiene la celda de la camara y descarta los
+ * objetos estaticos que no estan en su conjunto. Los objetos que no forman
+ * parte del PVS, y las camaras fuera de la rejilla, no se ven afectados.
+ */
+public class N3PVS {
+	/**
+	 * Esquina minima de la rejilla.
+	 */
+	protected float originX, originY, originZ;
+
+	/**
+	 * Lado de las celdas.
+	 */
+	protected float cellSize;
+
+	/**
+	 * Numero de celdas en cada eje.
+	 */
+	protected int sizeX, sizeY, sizeZ;
+
+	/**
+	 * Objetos estaticos a los que se refieren los conjuntos.
+	 */
+	protected N3VisualObject[] objects;
+
+	/**
+	 * Conjunto de bits de cada celda, con un bit por objeto.
+	 */
+	protected int[][] cells;
+
+	/**
+	 * Numero de veces que se han modificado los conjuntos.
+	 */
+	protected int version;
+
+	// Indices de los objetos visibles desde cada celda, calculados al
+	// pedirlos la primera vez
+	private int[][] visibleLists;
+
+	/**
+	 * Constructor de la clase. Crea una rejilla en la que ningun objeto es
+	 * visible desde ninguna celda.
+	 *
+	 * @param originX
+	 *            Coordenada x de la esquina minima
+	 * @param originY
+	 *            Coordenada y de la esquina minima
+	 * @param originZ
+	 *            Coordenada z de la esquina minima
+	 * @param cellSize
+	 *            Lado de las celdas
+	 * @param sizeX
+	 *            Numero de celdas en el eje x
+	 * @param sizeY
+	 *            Numero de celdas en el eje y
+	 * @param sizeZ
+	 *            Numero de celdas en el eje z
+	 * @param objects
+	 *            Objetos estaticos
+	 */
+	public N3PVS(float originX, float originY, float originZ, float cellSize,
+			int sizeX, int sizeY, int sizeZ, N3VisualObject[] objects) {
+		if (cellSize <= 0 || sizeX <= 0 || sizeY <= 0 || sizeZ <= 0)
+			throw new IllegalArgumentException("Invalid PVS grid");
+		this.originX = originX;
+		this.originY = originY;
+		this.originZ = originZ;
+		this.cellSize = cellSize;
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+		this.objects = objects;
+		cells = new int[sizeX * sizeY * sizeZ][(objects.length + 31) >>> 5];
+		visibleLists = new int[cells.length][];
+	}
+
+	/**
+	 * Obtiene la celda que contiene el punto indicado.
+	 *
+	 * @param x
+	 *            Coordenada x del punto
+	 * @param y
+	 *            Coordenada y del punto
+	 * @param z
+	 *            Coordenada z del punto
+	 * @return Indice de la celda, o -1 si el punto esta fuera de la rejilla
+	 */
+	public int getCell(float x, float y, float z) {
+		float fx = (x - originX) / cellSize;
+		float fy = (y - originY) / cellSize;
+		float fz = (z - originZ) / cellSize;
+		if (fx < 0 || fy < 0 || fz < 0 || fx >= sizeX || fy >= sizeY
+				|| fz >= sizeZ)
+			return -1;
+		return ((int) fz * sizeY + (int) fy) * sizeX + (int) fx;
+	}
+
+	/**
+	 * Obtiene el numero de celdas de la rejilla.
+	 *
+	 * @return Numero de celdas
+	 */
+	public int getCellCount() {
+		return cells.length;
+	}
+
+	/**
+	 * Obtiene la esquina minima de una celda.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @return Coordenadas x, y, z de la esquina
+	 */
+	public float[] getCellOrigin(int cell) {
+		int x = cell % sizeX;
+		int y = (cell / sizeX) % sizeY;
+		int z = cell / (sizeX * sizeY);
+		return new float[] { originX + x * cellSize, originY + y * cellSize,
+				originZ + z * cellSize };
+	}
+
+	/**
+	 * Obtiene el lado de las celdas.
+	 *
+	 * @return Lado de las celdas
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Obtiene el numero de objetos estaticos del PVS.
+	 *
+	 * @return Numero de objetos
+	 */
+	public int getObjectCount() {
+		return objects.length;
+	}
+
+	/**
+	 * Obtiene uno de los objetos estaticos del PVS.
+	 *
+	 * @param i
+	 *            Indice del objeto
+	 * @return Objeto visual
+	 */
+	public N3VisualObject getObject(int i) {
+		return objects[i];
+	}
+
+	/**
+	 * Marca un objeto como visible desde una celda.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @param object
+	 *            Indice del objeto
+	 */
+	public void setVisible(int cell, int object) {
+		cells[cell][object >>> 5] |= 1 << (object & 31);
+		visibleLists[cell] = null;
+		version++;
+	}
+
+	/**
+	 * Obtiene los indices de los objetos visibles desde una celda. La lista
+	 * se calcula recorriendo los bits de la celda la primera vez que se pide,
+	 * de modo que despues su coste solo depende del numero de objetos
+	 * visibles.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @return Indices de los objetos potencialmente visibles
+	 */
+	public int[] getVisibleObjects(int cell) {
+		int[] list = visibleLists[cell];
+		if (list == null) {
+			int[] bits = cells[cell];
+			list = new int[getVisibleCount(cell)];
+			int n = 0;
+			for (int w = 0; w < bits.length; w++)
+				for (int b = bits[w]; b != 0; b &= b - 1)
+					list[n++] = (w << 5) + Integer.numberOfTrailingZeros(b);
+			visibleLists[cell] = list;
+		}
+		return list;
+	}
+
+	/**
+	 * Obtiene el numero de veces que se han modificado los conjuntos.
+	 *
+	 * @return Version de los conjuntos
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Indica si un objeto es visible desde una celda.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @param object
+	 *            Indice del objeto
+	 * @return True si el objeto es potencialmente visible
+	 */
+	public boolean isVisible(int cell, int object) {
+		return (cells[cell][object >>> 5] & (1 << (object & 31))) != 0;
+	}
+
+	/**
+	 * Indica si un objeto es visible desde una celda. Los objetos que no
+	 * forman parte del PVS siempre son visibles.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @param o
+	 *            Objeto visual
+	 * @return True si el objeto es potencialmente visible
+	 */
+	public boolean isVisible(int cell, N3VisualObject o) {
+		if (!contains(o))
+			return true;
+		return isVisible(cell, o.pvsIndex);
+	}
+
+	/**
+	 * Indica si un objeto forma parte del PVS.
+	 *
+	 * @param o
+	 *            Objeto visual
+	 * @return True si el objeto tiene un indice en el PVS
+	 */
+	public boolean contains(N3VisualObject o) {
+		int i = o.pvsIndex;
+		return i >= 0 && i < objects.length && objects[i] == o;
+	}
+
+	/**
+	 * Obtiene el numero de objetos visibles desde una celda.
+	 *
+	 * @param cell
+	 *            Indice de la celda
+	 * @return Numero de objetos potencialmente visibles
+	 */
+	public int getVisibleCount(int cell) {
+		int count = 0;
+		for (int i = 0; i < cells[cell].length; i++)
+			count += Integer.bitCount(cells[cell][i]);
+		return count;
+	}
+
+	/**
+	 * Asigna a cada objeto su indice en el PVS.
+	 */
+	protected void attach() {
+		for (int i = 0; i < objects.length; i++)
+			if (objects[i] != null)
+				objects[i].pvsIndex = i;
+	}
+
+	/**
+	 * Retira a los objetos su indice en el PVS.
+	 */
+	protected void detach() {
+		for (int i = 0; i < objects.length; i++)
+			if (objects[i] != null && objects[i].pvsIndex == i)
+				objects[i].pvsIndex = -1;
+	}
+
+	/**
+	 * Obtiene la descripcion XML del PVS. Los objetos se guardan por nombre y
+	 * los conjuntos de cada celda como palabras hexadecimales.
+	 *
+	 * @param doc
+	 *            Documento DOM
+	 * @return Elemento con la descripcion del PVS
+	 */
+	public Element getXMLDescription(Document doc) {
+		Element result = doc.createElement("pvs");
+		result.setAttribute("origin", originX + " " + originY + " " + originZ);
+		result.setAttribute("cellsize", "" + cellSize);
+		result.setAttribute("size", sizeX + " " + sizeY + " " + sizeZ);
+		for (int i = 0; i < objects.length; i++) {
+			Element data = doc.createElement("object");
+			data.setAttribute("name", objects[i].getName());
+			result.appendChild(data);
+		}
+		StringBuffer bits = new StringBuffer();
+		for (int i = 0; i < cells.length; i++) {
+			bits.setLength(0);
+			for (int j = 0; j < cells[i].length; j++) {
+				String w = Integer.toHexString(cells[i][j]);
+				for (int k = w.length(); k < 8; k++)
+					bits.append('0');
+				bits.append(w);
+			}
+			Element data = doc.createElement("cell");
+			data.setAttribute("bits", bits.toString());
+			result.appendChild(data);
+		}
+		return result;
+	}
+
+	/**
+	 * Crea un PVS a partir de su descripcion XML. Los objetos deben estar ya
+	 * en la escena.
+	 *
+	 * @param info
+	 *            Elemento con la descripcion del PVS
+	 * @param scene
+	 *            Escena a la que pertenecen los objetos
+	 * @return PVS cargado
+	 */
+	public static N3PVS loadInstance(Element info, N3Scene scene) {
+		StringTokenizer origin = new StringTokenizer(info
+				.getAttribute("origin"));
+		StringTokenizer size = new StringTokenizer(info.getAttribute("size"));
+		NodeList objectList = info.getElementsByTagName("object");
+		N3VisualObject[] objects = new N3VisualObject[objectList.getLength()];
+		for (int i = 0; i < objects.length; i++)
+			objects[i] = (N3VisualObject) scene
+					.getNamedObject(((Element) objectList.item(i))
+							.getAttribute("name"));
+		N3PVS result = new N3PVS(Float.parseFloat(origin.nextToken()), Float
+				.parseFloat(origin.nextToken()), Float.parseFloat(origin
+				.nextToken()), Float.parseFloat(info.getAttribute("cellsize")),
+				Integer.parseInt(size.nextToken()), Integer.parseInt(size
+						.nextToken()), Integer.parseInt(size.nextToken()),
+				objects);
+		NodeList cellList = info.getElementsByTagName("cell");
+		for (int i = 0; i < cellList.getLength() && i < result.cells.length; i++) {
+			String bits = ((Element) cellList.item(i)).getAttribute("bits");
+			int[] cell = result.cells[i];
+			for (int j = 0; j < cell.length && j * 8 + 8 <= bits.length(); j++)
+				cell[j] = (int) Long.parseLong(bits.substring(j * 8, j * 8 + 8),
+						16);
+		}
+		result.version++;
+		return result;
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.Random;
+import java.util.Vector;
+
+import nu3a.math.N3Matrix4D;
+
+/**
+ * Herramienta que calcula los conjuntos de objetos potencialmente visibles de
+ * una escena. Se consideran los objetos visuales marcados como estaticos que
+ * no dependen de un nodo N3LODNode.
+ *
+ * Desde varios puntos aleatorios de cada celda se lanzan rayos en direcciones
+ * aleatorias y hacia puntos aleatorios de la caja de cada objeto; el primer
+ * objeto que corta cada rayo se marca como visible desde la celda. Los
+ * objetos cuya caja contiene la celda se marcan siempre. El resultado es una
+ * aproximacion: con pocos rayos pueden perderse objetos que solo asoman por
+ * huecos pequenos.
+ *
+ * Los rayos se prueban contra los triangulos de los objetos en coordenadas de
+ * mundo, descartando antes los objetos cuya caja no corta el rayo.
+ */
+public class N3PVSBuilder {
+	/**
+	 * Escena de la que se calcula el PVS.
+	 */
+	protected N3Scene scene;
+
+	/**
+	 * Numero de puntos de cada celda desde los que se lanzan rayos.
+	 */
+	protected int points = 4;
+
+	/**
+	 * Numero de rayos en direcciones aleatorias desde cada punto.
+	 */
+	protected int rays = 256;
+
+	/**
+	 * Numero de rayos hacia cada objeto desde cada punto.
+	 */
+	protected int objectRays = 4;
+
+	/**
+	 * Semilla de los numeros aleatorios, para obtener siempre el mismo
+	 * resultado.
+	 */
+	protected long seed = 0;
+
+	// Objetos, sus cajas de mundo y el rango de sus triangulos
+	private N3VisualObject[] objects;
+
+	private float[][] bounds;
+
+	private int[] first, last;
+
+	// Triangulos de mundo, de nueve en nueve coordenadas
+	private float[] triangles;
+
+	private Random random;
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param scene
+	 *            Escena de la que se calcula el PVS
+	 */
+	public N3PVSBuilder(N3Scene scene) {
+		this.scene = scene;
+	}
+
+	/**
+	 * Establece el numero de rayos que se lanzan desde cada celda.
+	 *
+	 * @param points
+	 *            Numero de puntos de cada celda
+	 * @param rays
+	 *            Numero de rayos en direcciones aleatorias desde cada punto
+	 * @param objectRays
+	 *            Numero de rayos hacia cada objeto desde cada punto
+	 */
+	public void setSamples(int points, int rays, int objectRays) {
+		this.points = points;
+		this.rays = rays;
+		this.objectRays = objectRays;
+	}
+
+	/**
+	 * Establece la semilla de los numeros aleatorios.
+	 *
+	 * @param seed
+	 *            Semilla
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Calcula el PVS de la region indicada, que debe cubrir el espacio por el
+	 * que se mueve la camara.
+	 *
+	 * @param minX
+	 *            Coordenada x minima de la region
+	 * @param minY
+	 *            Coordenada y minima de la region
+	 * @param minZ
+	 *            Coordenada z minima de la region
+	 * @param maxX
+	 *            Coordenada x maxima de la region
+	 * @param maxY
+	 *            Coordenada y maxima de la region
+	 * @param maxZ
+	 *            Coordenada z maxima de la region
+	 * @param cellSize
+	 *            Lado de las celdas
+	 * @return PVS calculado
+	 */
+	public N3PVS build(float minX, float minY, float minZ, float maxX,
+			float maxY, float maxZ, float cellSize) {
+		collect();
+		random = new Random(seed);
+		int sx = Math.max(1, (int) Math.ceil((maxX - minX) / cellSize));
+		int sy = Math.max(1, (int) Math.ceil((maxY - minY) / cellSize));
+		int sz = Math.max(1, (int) Math.ceil((maxZ - minZ) / cellSize));
+		N3PVS pvs = new N3PVS(minX, minY, minZ, cellSize, sx, sy, sz, objects);
+		float[] o = new float[3];
+		float[] d = new float[3];
+		for (int cell = 0; cell < pvs.getCellCount(); cell++) {
+			float[] c = pvs.getCellOrigin(cell);
+			for (int i = 0; i < objects.length; i++) {
+				float[] b = bounds[i];
+				if (b[0] <= c[0] + cellSize && b[3] >= c[0]
+						&& b[1] <= c[1] + cellSize && b[4] >= c[1]
+						&& b[2] <= c[2] + cellSize && b[5] >= c[2])
+					pvs.setVisible(cell, i);
+			}
+			for (int p = 0; p < points; p++) {
+				o[0] = c[0] + random.nextFloat() * cellSize;
+				o[1] = c[1] + random.nextFloat() * cellSize;
+				o[2] = c[2] + random.nextFloat() * cellSize;
+				for (int r = 0; r < rays; r++) {
+					float z = random.nextFloat() * 2 - 1;
+					float a = (float) (random.nextFloat() * 2 * Math.PI);
+					float s = (float) Math.sqrt(1 - z * z);
+					d[0] = (float) (s * Math.cos(a));
+					d[1] = (float) (s * Math.sin(a));
+					d[2] = z;
+					mark(pvs, cell, o, d);
+				}
+				for (int i = 0; i < objects.length; i++) {
+					if (pvs.isVisible(cell, i))
+						continue;
+					float[] b = bounds[i];
+					for (int r = 0; r < objectRays; r++) {
+						d[0] = b[0] + random.nextFloat() * (b[3] - b[0]) - o[0];
+						d[1] = b[1] + random.nextFloat() * (b[4] - b[1]) - o[1];
+						d[2] = b[2] + random.nextFloat() * (b[5] - b[2]) - o[2];
+						mark(pvs, cell, o, d);
+					}
+				}
+			}
+		}
+		objects = null;
+		bounds = null;
+		triangles = null;
+		return pvs;
+	}
+
+	// Marca como visible el primer objeto que corta el rayo
+	private void mark(N3PVS pvs, int cell, float[] o, float[] d) {
+		int hit = cast(o, d);
+		if (hit >= 0)
+			pvs.setVisible(cell, hit);
+	}
+
+	/**
+	 * Obtiene los objetos estaticos de la escena y sus triangulos en
+	 * coordenadas de mundo.
+	 */
+	protected void collect() {
+		Vector candidates = new Vector(0, 1);
+		for (int i = 0; i < scene.objects.size(); i++) {
+			N3VisualObject o = (N3VisualObject) scene.objects.elementAt(i);
+			if (o.inScene() && o.isStatic() && o.getLocalBounds() != null
+					&& !underLOD(o))
+				candidates.add(o);
+		}
+		objects = new N3VisualObject[candidates.size()];
+		candidates.copyInto(objects);
+		bounds = new float[objects.length][];
+		first = new int[objects.length];
+		last = new int[objects.length];
+		Vector matrices = new Vector(0, 1);
+		int count = 0;
+		for (int i = 0; i < objects.length; i++)
+			count += objects[i].getOccluderTriangles().length
+					* instances(objects[i], null);
+		triangles = new float[count];
+		int k = 0;
+		for (int i = 0; i < objects.length; i++) {
+			float[] t = objects[i].getOccluderTriangles();
+			float[] b = new float[] { Float.MAX_VALUE, Float.MAX_VALUE,
+					Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE,
+					-Float.MAX_VALUE };
+			first[i] = k;
+			matrices.clear();
+			instances(objects[i], matrices);
+			for (int j = 0; j < matrices.size(); j++) {
+				float[] m = ((N3Matrix4D) matrices.elementAt(j)).getMatrix();
+				for (int v = 0; v < t.length; v += 3) {
+					float x = m[0] * t[v] + m[4] * t[v + 1] + m[8] * t[v + 2]
+							+ m[12];
+					float y = m[1] * t[v] + m[5] * t[v + 1] + m[9] * t[v + 2]
+							+ m[13];
+					float z = m[2] * t[v] + m[6] * t[v + 1] + m[10] * t[v + 2]
+							+ m[14];
+					triangles[k++] = x;
+					triangles[k++] = y;
+					triangles[k++] = z;
+					b[0] = Math.min(b[0], x);
+					b[1] = Math.min(b[1], y);
+					b[2] = Math.min(b[2], z);
+					b[3] = Math.max(b[3], x);
+					b[4] = Math.max(b[4], y);
+					b[5] = Math.max(b[5], z);
+				}
+			}
+			last[i] = k;
+			bounds[i] = b;
+		}
+	}
+
+	// Indica si el objeto depende de un nodo de nivel de detalle
+	private static boolean underLOD(N3Node n) {
+		for (N3GroupNode p = n.getParent(); p != null; p = p.getParent())
+			if (p instanceof N3LODNode)
+				return true;
+		return false;
+	}
+
+	// Obtiene las transformaciones de mundo del objeto y devuelve cuantas son
+	private static int instances(N3VisualObject o, Vector matrices) {
+		if (o instanceof N3InstancedMesh) {
+			N3InstancedMesh mesh = (N3InstancedMesh) o;
+			if (matrices != null)
+				for (int i = 0; i < mesh.getInstanceCount(); i++) {
+					N3Matrix4D m = new N3Matrix4D(o.getAccMatrix());
+					m.mult(mesh.getInstance(i));
+					matrices.add(m);
+				}
+			return mesh.getInstanceCount();
+		}
+		if (matrices != null)
+			matrices.add(o.getAccMatrix());
+		return 1;
+	}
+
+	/**
+	 * Obtiene el primer objeto que corta un rayo.
+	 *
+	 * @param o
+	 *            Origen del rayo
+	 * @param d
+	 *            Direccion del rayo
+	 * @return Indice del objeto, o -1 si el rayo no corta ninguno
+	 */
+	protected int cast(float[] o, float[] d) {
+		float best = Float.MAX_VALUE;
+		int hit = -1;
+		for (int i = 0; i < objects.length; i++) {
+			if (!slab(bounds[i], o, d, best))
+				continue;
+			for (int t = first[i]; t < last[i]; t += 9) {
+				float dist = intersect(t, o, d);
+				if (dist > 0 && dist < best) {
+					best = dist;
+					hit = i;
+				}
+			}
+		}
+		return hit;
+	}
+
+	// Comprueba si el rayo corta la caja antes de la distancia indicada
+	private static boolean slab(float[] b, float[] o, float[] d, float max) {
+		float near = 0, far = max;
+		for (int a = 0; a < 3; a++) {
+			if (d[a] == 0) {
+				if (o[a] < b[a] || o[a] > b[a + 3])
+					return false;
+				continue;
+			}
+			float t1 = (b[a] - o[a]) / d[a];
+			float t2 = (b[a + 3] - o[a]) / d[a];
+			if (t1 > t2) {
+				float tmp = t1;
+				t1 = t2;
+				t2 = tmp;
+			}
+			if (t1 > near)
+				near = t1;
+			if (t2 < far)
+				far = t2;
+			if (near > far)
+				return false;
+		}
+		return true;
+	}
+
+	// Interseccion del rayo con el triangulo que empieza en t, por ambas
+	// caras. Devuelve la distancia en unidades de d, o -1 si no hay corte
+	private float intersect(int t, float[] o, float[] d) {
+		float[] v = triangles;
+		float e1x = v[t + 3] - v[t], e1y = v[t + 4] - v[t + 1], e1z = v[t + 5]
+				- v[t + 2];
+		float e2x = v[t + 6] - v[t], e2y = v[t + 7] - v[t + 1], e2z = v[t + 8]
+				- v[t + 2];
+		float px = d[1] * e2z - d[2] * e2y;
+		float py = d[2] * e2x - d[0] * e2z;
+		float pz = d[0] * e2y - d[1] * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det > -1e-9f && det < 1e-9f)
+			return -1;
+		float inv = 1 / det;
+		float sx = o[0] - v[t], sy = o[1] - v[t + 1], sz = o[2] - v[t + 2];
+		float u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1)
+			return -1;
+		float qx = sy * e1z - sz * e1y;
+		float qy = sz * e1x - sx * e1z;
+		float qz = sx * e1y - sy * e1x;
+		float w = (d[0] * qx + d[1] * qy + d[2] * qz) * inv;
+		if (w < 0 || u + w > 1)
+			return -1;
+		return (e2x * qx + e2y * qy + e2z * qz) * inv;
+	}
+}
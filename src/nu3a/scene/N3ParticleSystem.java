@@ -0,0 +1,607 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nu3a.material.N3Material;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.math.N3Vector3D;
+import nu3a.names.exception.N3NameException;
+import nu3a.persistence.N3PersistentResource;
+import nu3a.persistence.N3PersistentResourceList;
+import nu3a.persistence.N3SceneReader;
+import nu3a.render.N3Render;
+import nu3a.render.N3WorkerPool;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Sistema de particulas. Las particulas nacen en un emisor con forma de caja
+ * centrado en el origen del nodo, se mueven con una aceleracion constante y
+ * pasan del color inicial al final a lo largo de su vida. Se dibujan sin
+ * iluminacion, como un unico lote de puntos.
+ *
+ * Los datos de las particulas se guardan en un array por atributo
+ * (posicion, velocidad, color y vida), en coordenadas del nodo, y las
+ * particulas vivas ocupan siempre las primeras posiciones. La simulacion
+ * recorre los arrays en bloques de BLOCK_SIZE particulas, que pueden
+ * repartirse entre varios hilos.
+ */
+public class N3ParticleSystem extends N3VisualObject {
+	/**
+	 * Numero de particulas de cada bloque de la simulacion.
+	 */
+	public static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * Numero maximo de particulas.
+	 */
+	protected int capacity;
+
+	/**
+	 * Numero de particulas vivas.
+	 */
+	protected int count;
+
+	/**
+	 * Posicion de las particulas.
+	 */
+	protected float[] posX, posY, posZ;
+
+	/**
+	 * Velocidad de las particulas.
+	 */
+	protected float[] velX, velY, velZ;
+
+	/**
+	 * Vida restante de las particulas, en segundos.
+	 */
+	protected float[] life;
+
+	/**
+	 * Inversa de la vida inicial de las particulas.
+	 */
+	protected float[] invLife;
+
+	/**
+	 * Color empaquetado de las particulas.
+	 */
+	protected int[] colors;
+
+	/**
+	 * Particulas emitidas por segundo.
+	 */
+	protected float rate;
+
+	/**
+	 * Semiejes de la caja del emisor.
+	 */
+	protected float sizeX, sizeY, sizeZ;
+
+	/**
+	 * Velocidad inicial y su variacion maxima en cada eje.
+	 */
+	protected float speedX, speedY, speedZ, speedSpread;
+
+	/**
+	 * Aceleracion de las particulas.
+	 */
+	protected float accelX, accelY, accelZ;
+
+	/**
+	 * Vida de las particulas y su variacion maxima, en segundos.
+	 */
+	protected float lifeTime = 1, lifeSpread;
+
+	/**
+	 * Colores inicial y final de las particulas.
+	 */
+	protected N3ColorRGBA startColor, endColor;
+
+	/**
+	 * Lado en pixels de los puntos.
+	 */
+	protected int pointSize = 1;
+
+	/**
+	 * Numero de hilos de la simulacion.
+	 */
+	protected int threads;
+
+	// Particulas pendientes de emitir
+	private float pending;
+
+	private Random random;
+
+	// Componentes de los colores inicial y final, de 0 a 255
+	private int startR, startG, startB, startA, endR, endG, endB, endA;
+
+	// Paso de la simulacion en curso
+	private float step;
+
+	private int blocks;
+
+	private AtomicInteger nextBlock;
+
+	private N3ParticleUpdater updater;
+
+	private N3WorkerPool pool;
+
+	/**
+	 * Constructor de la clase. Crea un sistema sin particulas que no emite
+	 * ninguna hasta que se establece su ritmo de emision.
+	 *
+	 * @param scene
+	 *            Escena en la que se encuentra el objeto visual
+	 * @param capacity
+	 *            Numero maximo de particulas
+	 * @param name
+	 *            Nombre del nodo
+	 */
+	public N3ParticleSystem(N3Scene scene, int capacity, String name)
+			throws N3NameException {
+		super(scene, name);
+		if (capacity < 0)
+			throw new IllegalArgumentException("Invalid capacity: "
+					+ capacity);
+		this.capacity = capacity;
+		posX = new float[capacity];
+		posY = new float[capacity];
+		posZ = new float[capacity];
+		velX = new float[capacity];
+		velY = new float[capacity];
+		velZ = new float[capacity];
+		life = new float[capacity];
+		invLife = new float[capacity];
+		colors = new int[capacity];
+		random = new Random();
+		nextBlock = new AtomicInteger();
+		pool = new N3WorkerPool("N3ParticleSystem");
+		setColors(new N3ColorRGBA(1, 1, 1), new N3ColorRGBA(1, 1, 1));
+		setThreads(1);
+	}
+
+	/**
+	 * Establece el numero de hilos de la simulacion.
+	 *
+	 * @param threads
+	 *            Numero de hilos, 1 para simular en el hilo que llama a
+	 *            update
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			threads = 1;
+		this.threads = threads;
+		updater = new N3ParticleUpdater();
+		Vector tasks = new Vector(threads);
+		tasks.add(updater);
+		for (int i = 1; i < threads; i++)
+			tasks.add(new N3ParticleUpdater());
+		pool.setTasks(tasks);
+	}
+
+	/**
+	 * Obtiene el numero de hilos de la simulacion.
+	 *
+	 * @return Numero de hilos
+	 */
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Establece el numero de particulas emitidas por segundo.
+	 *
+	 * @param rate
+	 *            Particulas por segundo
+	 */
+	public void setEmissionRate(float rate) {
+		this.rate = Math.max(0, rate);
+	}
+
+	/**
+	 * Obtiene el numero de particulas emitidas por segundo.
+	 *
+	 * @return Particulas por segundo
+	 */
+	public float getEmissionRate() {
+		return rate;
+	}
+
+	/**
+	 * Establece el tamano de la caja del emisor, centrada en el origen del
+	 * nodo.
+	 *
+	 * @param x
+	 *            Semieje x de la caja
+	 * @param y
+	 *            Semieje y de la caja
+	 * @param z
+	 *            Semieje z de la caja
+	 */
+	public void setEmitterSize(float x, float y, float z) {
+		sizeX = x;
+		sizeY = y;
+		sizeZ = z;
+	}
+
+	/**
+	 * Establece la velocidad inicial de las particulas.
+	 *
+	 * @param v
+	 *            Velocidad media
+	 * @param spread
+	 *            Variacion maxima de cada componente de la velocidad
+	 */
+	public void setVelocity(N3Vector3D v, float spread) {
+		speedX = v.x;
+		speedY = v.y;
+		speedZ = v.z;
+		speedSpread = spread;
+	}
+
+	/**
+	 * Establece la aceleracion de las particulas, por ejemplo la gravedad.
+	 *
+	 * @param a
+	 *            Aceleracion en coordenadas del nodo
+	 */
+	public void setAcceleration(N3Vector3D a) {
+		accelX = a.x;
+		accelY = a.y;
+		accelZ = a.z;
+	}
+
+	/**
+	 * Establece la vida de las particulas.
+	 *
+	 * @param time
+	 *            Vida media, en segundos
+	 * @param spread
+	 *            Variacion maxima de la vida, en segundos
+	 */
+	public void setLife(float time, float spread) {
+		lifeTime = time;
+		lifeSpread = spread;
+	}
+
+	/**
+	 * Establece los colores de las particulas al nacer y al morir. Entre
+	 * ambos se interpola linealmente.
+	 *
+	 * @param start
+	 *            Color inicial
+	 * @param end
+	 *            Color final
+	 */
+	public void setColors(N3ColorRGBA start, N3ColorRGBA end) {
+		startColor = new N3ColorRGBA(start.R, start.G, start.B, start.A);
+		endColor = new N3ColorRGBA(end.R, end.G, end.B, end.A);
+		startR = (int) (255 * start.R);
+		startG = (int) (255 * start.G);
+		startB = (int) (255 * start.B);
+		startA = (int) (255 * start.A);
+		endR = (int) (255 * end.R);
+		endG = (int) (255 * end.G);
+		endB = (int) (255 * end.B);
+		endA = (int) (255 * end.A);
+	}
+
+	/**
+	 * Establece el lado en pixels con el que se dibuja cada particula.
+	 *
+	 * @param size
+	 *            Lado en pixels
+	 */
+	public void setPointSize(int size) {
+		pointSize = Math.max(1, size);
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene el lado en pixels con el que se dibuja cada particula.
+	 *
+	 * @return Lado en pixels
+	 */
+	public int getPointSize() {
+		return pointSize;
+	}
+
+	/**
+	 * Obtiene el numero de particulas vivas.
+	 *
+	 * @return Numero de particulas
+	 */
+	public int getParticleCount() {
+		return count;
+	}
+
+	/**
+	 * Obtiene el numero maximo de particulas.
+	 *
+	 * @return Numero maximo de particulas
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Elimina todas las particulas.
+	 */
+	public void clearParticles() {
+		if (count > 0)
+			scene.notifyChange();
+		count = 0;
+		pending = 0;
+	}
+
+	/**
+	 * Emite particulas nuevas, hasta llenar el sistema.
+	 *
+	 * @param n
+	 *            Numero de particulas a emitir
+	 * @return Numero de particulas emitidas
+	 */
+	public int emit(int n) {
+		n = Math.min(n, capacity - count);
+		for (int i = count; i < count + n; i++) {
+			posX[i] = sizeX * (2 * random.nextFloat() - 1);
+			posY[i] = sizeY * (2 * random.nextFloat() - 1);
+			posZ[i] = sizeZ * (2 * random.nextFloat() - 1);
+			velX[i] = speedX + speedSpread * (2 * random.nextFloat() - 1);
+			velY[i] = speedY + speedSpread * (2 * random.nextFloat() - 1);
+			velZ[i] = speedZ + speedSpread * (2 * random.nextFloat() - 1);
+			float l = Math.max(1e-3f, lifeTime + lifeSpread
+					* (2 * random.nextFloat() - 1));
+			life[i] = l;
+			invLife[i] = 1 / l;
+			colors[i] = startR | (startG << 8) | (startB << 16)
+					| (startA << 24);
+		}
+		count += n;
+		if (n > 0)
+			scene.notifyChange();
+		return n;
+	}
+
+	/**
+	 * Avanza la simulacion: mueve las particulas, actualiza su color, elimina
+	 * las que han agotado su vida y emite las nuevas.
+	 *
+	 * @param dt
+	 *            Tiempo transcurrido, en segundos
+	 */
+	public void update(float dt) {
+		if (count > 0) {
+			step = dt;
+			blocks = (count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+			nextBlock.set(0);
+			if (pool.isParallel() && blocks > 1)
+				pool.invokeAll();
+			else
+				updater.call();
+			compact();
+			scene.notifyChange();
+		}
+		pending += rate * dt;
+		int n = (int) pending;
+		pending -= n;
+		emit(n);
+	}
+
+	// Mueve las ultimas particulas vivas a los huecos de las muertas
+	private void compact() {
+		int i = 0;
+		while (i < count) {
+			if (life[i] > 0) {
+				i++;
+				continue;
+			}
+			int last = --count;
+			posX[i] = posX[last];
+			posY[i] = posY[last];
+			posZ[i] = posZ[last];
+			velX[i] = velX[last];
+			velY[i] = velY[last];
+			velZ[i] = velZ[last];
+			life[i] = life[last];
+			invLife[i] = invLife[last];
+			colors[i] = colors[last];
+		}
+	}
+
+	// Simula las particulas [from, to)
+	private void simulate(int from, int to) {
+		float dt = step;
+		float ax = accelX * dt, ay = accelY * dt, az = accelZ * dt;
+		int dr = endR - startR, dg = endG - startG, db = endB - startB, da = endA
+				- startA;
+		for (int i = from; i < to; i++) {
+			float l = life[i] - dt;
+			life[i] = l;
+			if (l <= 0)
+				continue;
+			float vx = velX[i] + ax, vy = velY[i] + ay, vz = velZ[i] + az;
+			velX[i] = vx;
+			velY[i] = vy;
+			velZ[i] = vz;
+			posX[i] += vx * dt;
+			posY[i] += vy * dt;
+			posZ[i] += vz * dt;
+			// Fraccion de vida consumida, de 0 a 256
+			int t = 256 - (int) (l * invLife[i] * 256);
+			colors[i] = (startR + ((dr * t) >> 8))
+					| ((startG + ((dg * t) >> 8)) << 8)
+					| ((startB + ((db * t) >> 8)) << 16)
+					| ((startA + ((da * t) >> 8)) << 24);
+		}
+	}
+
+	/**
+	 * Tarea que simula bloques de particulas hasta que no quedan.
+	 */
+	private class N3ParticleUpdater implements Callable {
+		public Object call() {
+			for (int b = nextBlock.getAndIncrement(); b < blocks; b = nextBlock
+					.getAndIncrement())
+				simulate(b * BLOCK_SIZE, Math.min((b + 1) * BLOCK_SIZE, count));
+			return null;
+		}
+	}
+
+	protected void processGeometry() {
+	}
+
+	/**
+	 * Dibuja las particulas vivas en una sola llamada al render.
+	 */
+	public void draw(N3Render render) {
+		if (count == 0)
+			return;
+		super.draw(render);
+		render.drawPoints(posX, posY, posZ, colors, count, pointSize);
+	}
+
+	public Element getXMLDescription(Document doc,
+			N3PersistentResourceList resources) {
+		Element result = super.getXMLDescription(doc, resources);
+
+		Element data = doc.createElement("emitter");
+		data.setAttribute("capacity", "" + capacity);
+		data.setAttribute("rate", "" + rate);
+		data.setAttribute("size", sizeX + " " + sizeY + " " + sizeZ);
+		data.setAttribute("pointsize", "" + pointSize);
+		result.appendChild(data);
+
+		data = doc.createElement("velocity");
+		data.setAttribute("values", speedX + " " + speedY + " " + speedZ);
+		data.setAttribute("spread", "" + speedSpread);
+		result.appendChild(data);
+
+		data = doc.createElement("acceleration");
+		data.setAttribute("values", accelX + " " + accelY + " " + accelZ);
+		result.appendChild(data);
+
+		data = doc.createElement("life");
+		data.setAttribute("time", "" + lifeTime);
+		data.setAttribute("spread", "" + lifeSpread);
+		result.appendChild(data);
+
+		data = doc.createElement("colors");
+		data.setAttribute("start", startColor.R + " " + startColor.G + " "
+				+ startColor.B + " " + startColor.A);
+		data.setAttribute("end", endColor.R + " " + endColor.G + " "
+				+ endColor.B + " " + endColor.A);
+		result.appendChild(data);
+
+		return result;
+	}
+
+	// Lee un vector de tres componentes de un atributo
+	private static N3Vector3D parseVector(String s) {
+		StringTokenizer st = new StringTokenizer(s);
+		return new N3Vector3D(Float.parseFloat(st.nextToken()), Float
+				.parseFloat(st.nextToken()), Float.parseFloat(st.nextToken()));
+	}
+
+	// Lee un color de cuatro componentes de un atributo
+	private static N3ColorRGBA parseColor(String s) {
+		StringTokenizer st = new StringTokenizer(s);
+		return new N3ColorRGBA(Float.parseFloat(st.nextToken()), Float
+				.parseFloat(st.nextToken()), Float.parseFloat(st.nextToken()),
+				Float.parseFloat(st.nextToken()));
+	}
+
+	/**
+	 * Devuelve una instancia de la clase, a partir de los parametros, y de la
+	 * descripcion XML en infoNode. Las particulas no se guardan: el sistema
+	 * se carga vacio.
+	 *
+	 * @param infoNode
+	 *            Descripcion XML de la instacia a crear
+	 * @param nodes
+	 *            Rama XML con las descripciones de los recursos de la escena
+	 * @param resources
+	 *            Lista de recursos de la escena
+	 * @param reader
+	 *            Instancia capaz de crear recursos que aun no se han creado
+	 * @param render
+	 *            Render para el que se esta creando la escena
+	 * @param scene
+	 *            Escena que se esta creando
+	 * @return Instancia de la clase con la informacion especificada
+	 */
+	public static N3PersistentResource loadInstance(Element infoNode,
+			NodeList nodes, N3PersistentResourceList resources,
+			N3SceneReader reader, N3Render render, N3Scene scene)
+			throws Exception {
+		String name = infoNode.getAttribute("name");
+		Element data = (Element) infoNode.getElementsByTagName("emitter")
+				.item(0);
+		N3ParticleSystem result = new N3ParticleSystem(scene, Integer
+				.parseInt(data.getAttribute("capacity")), name);
+		result.setEmissionRate(Float.parseFloat(data.getAttribute("rate")));
+		N3Vector3D size = parseVector(data.getAttribute("size"));
+		result.setEmitterSize(size.x, size.y, size.z);
+		result.setPointSize(Integer.parseInt(data.getAttribute("pointsize")));
+
+		data = (Element) infoNode.getElementsByTagName("velocity").item(0);
+		result.setVelocity(parseVector(data.getAttribute("values")), Float
+				.parseFloat(data.getAttribute("spread")));
+
+		data = (Element) infoNode.getElementsByTagName("acceleration").item(0);
+		result.setAcceleration(parseVector(data.getAttribute("values")));
+
+		data = (Element) infoNode.getElementsByTagName("life").item(0);
+		result.setLife(Float.parseFloat(data.getAttribute("time")), Float
+				.parseFloat(data.getAttribute("spread")));
+
+		data = (Element) infoNode.getElementsByTagName("colors").item(0);
+		result.setColors(parseColor(data.getAttribute("start")),
+				parseColor(data.getAttribute("end")));
+
+		data = (Element) infoNode.getElementsByTagName("material").item(0);
+		int index = Integer.parseInt(data.getAttribute("index"));
+		if (index != -1) {
+			N3Material m = (N3Material) resources.resourceAt(index);
+			result.setMaterial(m);
+		}
+
+		if (infoNode.getElementsByTagName("renderlayer").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("renderlayer")
+					.item(0);
+			result.setRenderLayer(Integer.parseInt(data.getAttribute("layer")));
+			result.setTransparent((new Boolean(data
+					.getAttribute("transparent"))).booleanValue());
+		}
+
+		return result;
+	}
+}
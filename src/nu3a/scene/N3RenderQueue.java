@@ -0,0 +1,300 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import nu3a.material.N3Material;
+import nu3a.material.texture.N3Texture;
+import nu3a.math.N3Matrix4D;
+
+/**
+ * Cola de dibujo de un frame. Cada objeto visual se anade con una clave de 64
+ * bits que agrupa, de mas a menos significativo:
+ *
+ * <pre>
+ *  opacos:        capa(4) | 0 | material(16) | textura(16) | profundidad(24)
+ *  transparentes: capa(4) | 1 | profundidad invertida(24) | material(16) | textura(16)
+ * </pre>
+ *
+ * Los objetos opacos se agrupan por material y textura y, dentro de cada
+ * grupo, se dibujan de delante hacia atras para aprovechar el Z buffer. Los
+ * transparentes se dibujan despues, de atras hacia delante. La cola se ordena
+ * mediante una ordenacion por radix de las claves, sin comparadores ni
+ * reservas de memoria una vez que los arrays tienen el tamano necesario.
+ */
+public class N3RenderQueue {
+	/**
+	 * Capa maxima de un objeto visual.
+	 */
+	public static final int MAX_LAYER = 15;
+
+	private static final int LAYER_SHIFT = 60;
+
+	private static final int TRANSPARENT_SHIFT = 59;
+
+	private static final int DEPTH_BITS = 24;
+
+	private static final long DEPTH_MASK = (1L << DEPTH_BITS) - 1;
+
+	private static final long ID_MASK = 0xffffL;
+
+	/**
+	 * Objetos de la cola, en el orden en que se han anadido.
+	 */
+	protected N3VisualObject[] items;
+
+	/**
+	 * Claves de ordenacion.
+	 */
+	protected long[] keys;
+
+	/**
+	 * Indice en items del objeto de cada clave.
+	 */
+	protected int[] order;
+
+	/**
+	 * Numero de objetos en la cola.
+	 */
+	protected int size;
+
+	/**
+	 * Indica si los objetos opacos se ordenan de delante hacia atras. Sin Z
+	 * buffer han de ordenarse de atras hacia delante.
+	 */
+	protected boolean frontToBack = true;
+
+	// Arrays auxiliares de la ordenacion
+	private long[] tmpKeys;
+
+	private int[] tmpOrder;
+
+	private int[] counts;
+
+	// Transformacion de la vista y profundidad maxima
+	private float[] view;
+
+	private float maxDepth;
+
+	/**
+	 * Constructor de la clase. Crea una cola vacia.
+	 */
+	public N3RenderQueue() {
+		items = new N3VisualObject[64];
+		keys = new long[64];
+		order = new int[64];
+		tmpKeys = new long[64];
+		tmpOrder = new int[64];
+		counts = new int[256];
+		maxDepth = 1.0f;
+	}
+
+	/**
+	 * Vacia la cola.
+	 */
+	public void clear() {
+		for (int i = 0; i < size; i++)
+			items[i] = null;
+		size = 0;
+	}
+
+	/**
+	 * Establece la transformacion de la vista con la que se calcula la
+	 * profundidad de los objetos.
+	 *
+	 * @param cameraTransformation
+	 *            Transformacion del mundo al espacio de la camara, o null para
+	 *            no ordenar por profundidad
+	 * @param zFar
+	 *            Distancia del plano lejano de la camara
+	 */
+	public void setView(N3Matrix4D cameraTransformation, float zFar) {
+		view = cameraTransformation != null ? cameraTransformation
+				.getMatrix() : null;
+		maxDepth = zFar > 0 ? zFar : 1.0f;
+	}
+
+	/**
+	 * Permite indicar si los objetos opacos se ordenan de delante hacia atras
+	 * o de atras hacia delante.
+	 *
+	 * @param frontToBack
+	 *            True para ordenarlos de delante hacia atras
+	 */
+	public void setFrontToBack(boolean frontToBack) {
+		this.frontToBack = frontToBack;
+	}
+
+	/**
+	 * Anade un objeto a la cola.
+	 *
+	 * @param o
+	 *            Objeto visual
+	 */
+	public void add(N3VisualObject o) {
+		if (size == items.length)
+			grow(size * 2);
+		long depth = 0;
+		if (view != null) {
+			float[] m = o.getAccMatrix().getMatrix();
+			float z = -(view[2] * m[12] + view[6] * m[13] + view[10] * m[14]
+					+ view[14]);
+			float d = z / maxDepth;
+			if (d > 1.0f)
+				d = 1.0f;
+			if (d > 0.0f)
+				depth = (long) (d * DEPTH_MASK);
+		}
+		int material = 0;
+		int texture = 0;
+		N3Material mat = o.getMaterial();
+		if (mat != null) {
+			material = mat.getSortId();
+			N3Texture t = mat.getActiveTexture();
+			if (t != null)
+				texture = t.getID() + 1;
+		}
+		items[size] = o;
+		keys[size] = createKey(o.getRenderLayer(), o.isTransparent(),
+				material, texture, depth);
+		order[size] = size;
+		size++;
+	}
+
+	/**
+	 * Compone la clave de ordenacion de un objeto.
+	 *
+	 * @param layer
+	 *            Capa del objeto
+	 * @param transparent
+	 *            True si el objeto es transparente
+	 * @param material
+	 *            Identificador del material
+	 * @param texture
+	 *            Identificador de la textura
+	 * @param depth
+	 *            Profundidad cuantizada, de 0 (cerca) a 2^24 - 1 (lejos)
+	 * @return Clave de ordenacion
+	 */
+	protected long createKey(int layer, boolean transparent, int material,
+			int texture, long depth) {
+		long key = (long) layer << LAYER_SHIFT;
+		if (transparent)
+			return key | (1L << TRANSPARENT_SHIFT)
+					| ((DEPTH_MASK - depth) << 35)
+					| ((material & ID_MASK) << 19) | ((texture & ID_MASK) << 3);
+		if (!frontToBack)
+			depth = DEPTH_MASK - depth;
+		return key | ((material & ID_MASK) << 43)
+				| ((texture & ID_MASK) << 27) | (depth << 3);
+	}
+
+	// Aumenta la capacidad de la cola
+	private void grow(int capacity) {
+		N3VisualObject[] i = new N3VisualObject[capacity];
+		System.arraycopy(items, 0, i, 0, size);
+		items = i;
+		long[] k = new long[capacity];
+		System.arraycopy(keys, 0, k, 0, size);
+		keys = k;
+		int[] o = new int[capacity];
+		System.arraycopy(order, 0, o, 0, size);
+		order = o;
+		tmpKeys = new long[capacity];
+		tmpOrder = new int[capacity];
+	}
+
+	/**
+	 * Ordena la cola por sus claves mediante una ordenacion por radix de ocho
+	 * pasadas de 8 bits, estable y sin comparaciones. Las pasadas en las que
+	 * todas las claves tienen el mismo byte se omiten.
+	 */
+	public void sort() {
+		if (size < 2)
+			return;
+		long[] k = keys;
+		int[] o = order;
+		long[] tk = tmpKeys;
+		int[] to = tmpOrder;
+		for (int shift = 0; shift < 64; shift += 8) {
+			for (int i = 0; i < 256; i++)
+				counts[i] = 0;
+			for (int i = 0; i < size; i++)
+				counts[(int) (k[i] >>> shift) & 0xff]++;
+			if (counts[(int) (k[0] >>> shift) & 0xff] == size)
+				continue;
+			int pos = 0;
+			for (int i = 0; i < 256; i++) {
+				int c = counts[i];
+				counts[i] = pos;
+				pos += c;
+			}
+			for (int i = 0; i < size; i++) {
+				int p = counts[(int) (k[i] >>> shift) & 0xff]++;
+				tk[p] = k[i];
+				to[p] = o[i];
+			}
+			long[] lt = k;
+			k = tk;
+			tk = lt;
+			int[] it = o;
+			o = to;
+			to = it;
+		}
+		keys = k;
+		order = o;
+		tmpKeys = tk;
+		tmpOrder = to;
+	}
+
+	/**
+	 * Obtiene el numero de objetos de la cola.
+	 *
+	 * @return Numero de objetos
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Obtiene el objeto que ocupa la posicion indicada. Tras llamar a sort,
+	 * los objetos se obtienen en orden de dibujo.
+	 *
+	 * @param i
+	 *            Posicion en la cola
+	 * @return Objeto visual
+	 */
+	public N3VisualObject get(int i) {
+		return items[order[i]];
+	}
+
+	/**
+	 * Obtiene la clave del objeto que ocupa la posicion indicada.
+	 *
+	 * @param i
+	 *            Posicion en la cola
+	 * @return Clave de ordenacion
+	 */
+	public long getKey(int i) {
+		return keys[i];
+	}
+}
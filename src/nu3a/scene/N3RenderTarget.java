@@ -0,0 +1,149 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import nu3a.material.texture.N3Texture2D;
+
+/**
+ * Vista secundaria de la escena, dibujada desde una camara en una textura
+ * creada con N3Texture2D.genRenderTarget. Sirve para espejos, monitores o
+ * paneles dentro de la escena: los objetos que usan la textura muestran lo
+ * que ve la camara. Las vistas secundarias pueden actualizarse con menos
+ * frecuencia que la principal, manteniendo entre tanto la ultima imagen.
+ */
+public class N3RenderTarget {
+	/**
+	 * Camara desde la que se dibuja la vista.
+	 */
+	protected N3Camera camera;
+
+	/**
+	 * Textura en la que se dibuja la vista.
+	 */
+	protected N3Texture2D texture;
+
+	/**
+	 * Numero de dibujados de la escena entre dos actualizaciones de la vista.
+	 */
+	protected int interval;
+
+	// Dibujados que faltan para la siguiente actualizacion
+	private int wait;
+
+	// Indica si se ha dejado pasar algun dibujado desde la ultima
+	// actualizacion
+	private boolean stale;
+
+	/**
+	 * Constructor de la clase. La vista se actualiza en cada dibujado de la
+	 * escena.
+	 * 
+	 * @param camera
+	 *            Camara desde la que se dibuja la vista. Su ventana de
+	 *            visualizacion debe tener el tamano de la textura.
+	 * @param texture
+	 *            Textura generada con genRenderTarget
+	 */
+	public N3RenderTarget(N3Camera camera, N3Texture2D texture) {
+		this.camera = camera;
+		this.texture = texture;
+		interval = 1;
+	}
+
+	/**
+	 * Obtiene la camara desde la que se dibuja la vista.
+	 * 
+	 * @return Camara de la vista
+	 */
+	public N3Camera getCamera() {
+		return camera;
+	}
+
+	/**
+	 * Obtiene la textura en la que se dibuja la vista.
+	 * 
+	 * @return Textura de la vista
+	 */
+	public N3Texture2D getTexture() {
+		return texture;
+	}
+
+	/**
+	 * Establece cada cuantos dibujados de la escena se actualiza la vista.
+	 * 
+	 * @param interval
+	 *            Numero de dibujados entre actualizaciones, 1 para
+	 *            actualizarla siempre
+	 */
+	public void setUpdateInterval(int interval) {
+		this.interval = (interval < 1) ? 1 : interval;
+		if (wait >= this.interval)
+			wait = this.interval - 1;
+	}
+
+	/**
+	 * Obtiene cada cuantos dibujados de la escena se actualiza la vista.
+	 * 
+	 * @return Numero de dibujados entre actualizaciones
+	 */
+	public int getUpdateInterval() {
+		return interval;
+	}
+
+	/**
+	 * Hace que la vista se actualice en el siguiente dibujado de la escena,
+	 * sea cual sea su frecuencia.
+	 */
+	public void invalidate() {
+		wait = 0;
+	}
+
+	/**
+	 * Indica si la vista se tiene que actualizar en este dibujado, y cuenta
+	 * el dibujado.
+	 * 
+	 * @return True si hay que dibujar la vista
+	 */
+	protected boolean isDue() {
+		if (camera == null || texture == null || !camera.inScene())
+			return false;
+		if (wait > 0) {
+			wait--;
+			stale = true;
+			return false;
+		}
+		wait = interval - 1;
+		stale = false;
+		return true;
+	}
+
+	/**
+	 * Indica si la vista ha dejado pasar algun dibujado de la escena desde su
+	 * ultima actualizacion, de modo que puede no mostrar su estado actual.
+	 * 
+	 * @return True si la vista esta pendiente de actualizarse
+	 */
+	protected boolean isStale() {
+		return stale;
+	}
+}
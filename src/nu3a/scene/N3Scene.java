@@ -31,6 +31,7 @@ import java.util.Vector;
 import nu3a.collision.N3Collisionable;
 import nu3a.geometry.N3Point3D;
 import nu3a.material.color.N3ColorRGBA;
+import nu3a.math.N3Matrix4D;
 import nu3a.math.N3Vector3D;
 import nu3a.names.N3NameManager;
 import nu3a.names.N3NamedObject;
@@ -65,6 +66,10 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	protected Vector activeLights;
 
+	// Caja en coordenadas del mundo con la que se calculan las m�scaras de
+	// luces
+	private float[] worldBox = new float[6];
+
 	/**
 	 * N�mero m�ximo de luces activas de la escena. Esta propiedad deber�a de
 	 * coincidir con el n�mero m�ximo de luces que soporta el render a utilizar,
@@ -87,6 +92,100 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	protected Vector objects;
 
+	/**
+	 * Vector de nodos est�ticos de la escena, cuyas mallas se dibujan
+	 * agrupadas en lotes.
+	 */
+	protected Vector staticGroups;
+
+	/**
+	 * Vector de nodos de nivel de detalle de la escena.
+	 */
+	protected Vector lodNodes;
+
+	/**
+	 * N�mero m�ximo de tri�ngulos de los niveles seleccionados de los nodos
+	 * de nivel de detalle, o 0 si no hay l�mite.
+	 */
+	protected int triangleBudget;
+
+	/**
+	 * Cola en la que se ordenan los objetos visibles antes de dibujarlos.
+	 */
+	protected N3RenderQueue queue;
+
+	/**
+	 * Etapa de ocultaci�n por software, o null si est� desactivada.
+	 */
+	protected N3OcclusionCuller occlusion;
+
+	/**
+	 * Conjuntos de objetos potencialmente visibles de la escena, o null si no
+	 * se usan.
+	 */
+	protected N3PVS pvs;
+
+	/**
+	 * Objetos visuales de la escena que no forman parte del PVS, y que se
+	 * consideran siempre visibles.
+	 */
+	protected Vector freeObjects;
+
+	/**
+	 * Indica si hay que recalcular los objetos que no forman parte del PVS.
+	 */
+	protected boolean freeObjectsDirty;
+
+	/**
+	 * Objetos candidatos a dibujarse en la vista actual.
+	 */
+	protected Vector candidates;
+
+	/**
+	 * Vistas secundarias que se dibujan en texturas antes que la principal.
+	 */
+	protected Vector renderTargets;
+
+	/**
+	 * Contador de cambios de la escena. Lo incrementan los nodos, las
+	 * c�maras, los materiales y la propia escena cada vez que se modifican.
+	 */
+	protected int changeCount;
+
+	/**
+	 * Indica si render no vuelve a dibujar la escena cuando no ha cambiado
+	 * desde el �ltimo dibujado.
+	 */
+	protected boolean skipUnchanged;
+
+	/**
+	 * Indica si, al no volver a dibujar la escena, se vuelve a mostrar la
+	 * �ltima imagen en el componente.
+	 */
+	protected boolean presentUnchanged;
+
+	/**
+	 * Indica si se est� dibujando la vista principal, en la que las mallas
+	 * lejanas pueden sustituirse por sus impostores.
+	 */
+	protected boolean impostorView;
+
+	/**
+	 * C�mara de la vista que se est� dibujando, o null fuera de renderView.
+	 * Los objetos que eligen su detalle al dibujarse, como el terreno, la
+	 * consultan.
+	 */
+	protected N3Camera viewCamera;
+
+	// Render, contador de cambios y suma de los contadores de las luces
+	// activas del �ltimo dibujado
+	private N3Render lastRender;
+	private int renderedChanges, renderedLights;
+
+	// Indica si alguna vista secundaria ha dejado pasar un dibujado sin
+	// actualizarse y no muestra a�n el estado actual de la escena
+	private boolean staleTargets;
+
 	/**
 	 * C�mara a partir de la cual se visualizar� la escena
 	 */
@@ -105,6 +204,13 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 		lights = new Vector(0, 1);
 		cameras = new Vector(0, 1);
 		objects = new Vector(0, 1);
+		staticGroups = new Vector(0, 1);
+		freeObjects = new Vector(0, 1);
+		candidates = new Vector(0, 1);
+		queue = new N3RenderQueue();
+		lodNodes = new Vector(0, 1);
+		renderTargets = new Vector(0, 1);
+		triangleBudget = 0;
 		activeLights = new Vector(0, 1);
 		activeLightCount = 0;
 		selectedCamera = null;
@@ -220,6 +326,8 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	protected void addVisualObject(N3VisualObject o) {
 		objects.add(o);
+		freeObjectsDirty = true;
+		notifyChange();
 	}
 
 	/**
@@ -252,6 +360,195 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	protected void removeVisualObject(N3VisualObject o) {
 		objects.remove(o);
+		// Un objeto retirado deja de pertenecer al PVS; si se vuelve a
+		// a�adir se considerar� siempre visible
+		if (pvs != null && pvs.contains(o))
+			o.pvsIndex = -1;
+		freeObjectsDirty = true;
+		notifyChange();
+	}
+
+	/**
+	 * A�ade un nodo est�tico a la escena.
+	 * 
+	 * @param g
+	 *            Nodo est�tico a a�adir
+	 */
+	protected void addStaticGroup(N3StaticGroupNode g) {
+		staticGroups.add(g);
+	}
+
+	/**
+	 * Elimina un nodo est�tico de la escena.
+	 * 
+	 * @param g
+	 *            Nodo est�tico a eliminar
+	 */
+	protected void removeStaticGroup(N3StaticGroupNode g) {
+		staticGroups.remove(g);
+	}
+
+	/**
+	 * A�ade un nodo de nivel de detalle a la escena.
+	 * 
+	 * @param l
+	 *            Nodo de nivel de detalle a a�adir
+	 */
+	protected void addLODNode(N3LODNode l) {
+		lodNodes.add(l);
+	}
+
+	/**
+	 * Elimina un nodo de nivel de detalle de la escena.
+	 * 
+	 * @param l
+	 *            Nodo de nivel de detalle a eliminar
+	 */
+	protected void removeLODNode(N3LODNode l) {
+		lodNodes.remove(l);
+	}
+
+	/**
+	 * Establece el n�mero m�ximo de tri�ngulos de los niveles seleccionados
+	 * de los nodos de nivel de detalle. Si se supera, se pasa a niveles menos
+	 * detallados en los nodos m�s lejanos, en relaci�n a su tama�o, hasta
+	 * cumplir el l�mite o agotar los niveles.
+	 * 
+	 * @param budget
+	 *            N�mero m�ximo de tri�ngulos, o 0 para no limitarlo
+	 */
+	public void setTriangleBudget(int budget) {
+		triangleBudget = budget;
+		notifyChange();
+	}
+
+	/**
+	 * Obtiene el n�mero m�ximo de tri�ngulos de los niveles seleccionados de
+	 * los nodos de nivel de detalle.
+	 * 
+	 * @return N�mero m�ximo de tri�ngulos, o 0 si no hay l�mite
+	 */
+	public int getTriangleBudget() {
+		return triangleBudget;
+	}
+
+	/**
+	 * Activa o desactiva la ocultaci�n por software. Si est� activada, los
+	 * objetos marcados como oclusores se rasterizan en un buffer de
+	 * profundidad de baja resoluci�n y no se dibujan los objetos que quedan
+	 * completamente detr�s de ellos.
+	 * 
+	 * @param enabled
+	 *            True para activar la ocultaci�n
+	 */
+	public void setOcclusionCulling(boolean enabled) {
+		if (enabled && occlusion == null)
+			occlusion = new N3OcclusionCuller();
+		else if (!enabled && occlusion != null) {
+			occlusion.setThreaded(false);
+			occlusion = null;
+		}
+		notifyChange();
+	}
+
+	/**
+	 * Obtiene la etapa de ocultaci�n por software, con la que pueden
+	 * consultarse los objetos ocultos en el �ltimo frame o activarse el uso
+	 * de un hilo propio.
+	 * 
+	 * @return Etapa de ocultaci�n, o null si est� desactivada
+	 */
+	public N3OcclusionCuller getOcclusionCuller() {
+		return occlusion;
+	}
+
+	/**
+	 * A�ade una vista secundaria, que en cada dibujado de la escena se dibuja
+	 * en su textura antes que la vista principal, cuando le toque seg�n su
+	 * frecuencia de actualizaci�n.
+	 * 
+	 * @param target
+	 *            Vista secundaria
+	 */
+	public void addRenderTarget(N3RenderTarget target) {
+		if (!renderTargets.contains(target))
+			renderTargets.add(target);
+		notifyChange();
+	}
+
+	/**
+	 * Elimina una vista secundaria.
+	 * 
+	 * @param target
+	 *            Vista secundaria
+	 */
+	public void removeRenderTarget(N3RenderTarget target) {
+		renderTargets.remove(target);
+		notifyChange();
+	}
+
+	/**
+	 * Establece los conjuntos de objetos potencialmente visibles de la
+	 * escena, calculados con N3PVSBuilder. Mientras la c�mara est� dentro de
+	 * la rejilla del PVS solo se dibujan los objetos est�ticos visibles desde
+	 * su celda.
+	 * 
+	 * @param pvs
+	 *            PVS de la escena, o null para no usarlo
+	 */
+	public void setPVS(N3PVS pvs) {
+		if (this.pvs != null)
+			this.pvs.detach();
+		this.pvs = pvs;
+		if (pvs != null)
+			pvs.attach();
+		freeObjectsDirty = true;
+		notifyChange();
+	}
+
+	/**
+	 * Obtiene los conjuntos de objetos potencialmente visibles de la escena.
+	 * 
+	 * @return PVS de la escena, o null si no se usa
+	 */
+	public N3PVS getPVS() {
+		return pvs;
+	}
+
+	/**
+	 * Selecciona el nivel de cada nodo de nivel de detalle para la c�mara
+	 * indicada, respetando el l�mite de tri�ngulos.
+	 * 
+	 * @param c
+	 *            C�mara activa
+	 */
+	protected void selectLOD(N3Camera c) {
+		if (lodNodes.isEmpty())
+			return;
+		float[] m = c.getAccMatrix().getMatrix();
+		int total = 0;
+		for (int i = 0; i < lodNodes.size(); i++) {
+			N3LODNode l = (N3LODNode) lodNodes.elementAt(i);
+			if (l.inScene() && l.getLevelCount() > 0) {
+				l.select(m[12], m[13], m[14], c.getCameraData());
+				total += l.getTriangleCount(l.getCurrentLevel());
+			}
+		}
+		while (triangleBudget > 0 && total > triangleBudget) {
+			N3LODNode far = null;
+			for (int i = 0; i < lodNodes.size(); i++) {
+				N3LODNode l = (N3LODNode) lodNodes.elementAt(i);
+				if (l.inScene() && l.getCurrentLevel() >= 0
+						&& l.getCurrentLevel() < l.getLevelCount() - 1
+						&& (far == null || l.relativeDistance > far.relativeDistance))
+					far = l;
+			}
+			if (far == null)
+				break;
+			total -= far.getTriangleCount(far.getCurrentLevel());
+			far.coarsen();
+			total += far.getTriangleCount(far.getCurrentLevel());
+		}
 	}
 
 	/**
@@ -262,6 +559,7 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 *            C�mara que define la visi�n del espectador.
 	 */
 	public boolean setActiveCamera(N3Camera c) {
+		notifyChange();
 		int pos = cameras.indexOf(c);
 		if (pos != -1) {
 			selectedCamera = c;
@@ -337,36 +635,261 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 *            Render con el que renderizar la escena.
 	 */
 	public void render(N3Render render) {
+		if (skipUnchanged && render == lastRender
+				&& changeCount == renderedChanges
+				&& getLightVersion() == renderedLights && !staleTargets) {
+			if (presentUnchanged)
+				render.present();
+			return;
+		}
 		if (render.beginDraw()) {
+			render.beginFrame();
+			staleTargets = false;
+			for (int i = 0; i < renderTargets.size(); i++) {
+				N3RenderTarget t = (N3RenderTarget) renderTargets.elementAt(i);
+				if (t.isDue()) {
+					render.setRenderTarget(t.getTexture());
+					renderView(render, t.getCamera());
+					render.setRenderTarget(null);
+				} else if (t.isStale())
+					staleTargets = true;
+			}
+			updateImpostors(render, selectedCamera);
+			impostorView = true;
+			renderView(render, selectedCamera);
+			impostorView = false;
+			render.endDraw();
+			// Los cambios hechos al dibujar, como recalcular matrices o
+			// elegir niveles de detalle, no obligan a volver a dibujar. Si
+			// alguna vista secundaria espera su actualizaci�n, la escena se
+			// sigue dibujando hasta que le toque
+			lastRender = render;
+			renderedChanges = changeCount;
+			renderedLights = getLightVersion();
+		}
+	}
+
+	/**
+	 * Indica que algo ha cambiado en la escena y ha de volver a dibujarse.
+	 * Los nodos, c�maras, materiales y la propia escena lo llaman al
+	 * modificarse; hay que llamarlo a mano tras cambiar objetos compartidos,
+	 * como un color, sin pasar por sus m�todos, o tras cambiar el estado del
+	 * render.
+	 */
+	public void notifyChange() {
+		changeCount++;
+	}
+
+	/**
+	 * Obtiene el contador de cambios de la escena.
+	 * 
+	 * @return Contador de cambios
+	 */
+	public int getChangeCount() {
+		return changeCount;
+	}
+
+	/**
+	 * Permite que render no vuelva a dibujar la escena mientras no cambie,
+	 * de modo que una escena quieta apenas consuma tiempo de proceso.
+	 * 
+	 * @param skip
+	 *            True para no volver a dibujar la escena si no ha cambiado
+	 * @param present
+	 *            True para volver a mostrar la �ltima imagen en lugar de no
+	 *            hacer nada, por si el componente se ha repintado
+	 */
+	public void setSkipUnchanged(boolean skip, boolean present) {
+		skipUnchanged = skip;
+		presentUnchanged = present;
+		notifyChange();
+	}
+
+	/**
+	 * Indica si render no vuelve a dibujar la escena cuando no ha cambiado.
+	 * 
+	 * @return True si no se vuelven a dibujar las escenas sin cambios
+	 */
+	public boolean isSkipUnchanged() {
+		return skipUnchanged;
+	}
+
+	/**
+	 * Suma los contadores de cambios de las luces activas. Como los
+	 * contadores solo crecen, la suma cambia si cambia alguna luz.
+	 * 
+	 * @return Suma de los contadores
+	 */
+	protected int getLightVersion() {
+		int result = 0;
+		for (int i = 0; i < activeLights.size(); i++)
+			result += ((N3Light) activeLights.elementAt(i)).getLightData()
+					.getVersion();
+		return result;
+	}
+
+	/**
+	 * Decide qu� mallas se sustituyen por sus impostores en la vista
+	 * principal y vuelve a dibujar los que hayan quedado desfasados. Se llama
+	 * antes de preparar la vista, ya que dibujar un impostor cambia el
+	 * destino y las matrices del render.
+	 * 
+	 * @param render
+	 *            Render con el que renderizar la escena.
+	 * @param c
+	 *            C�mara desde la que se ve la escena, o null
+	 */
+	protected void updateImpostors(N3Render render, N3Camera c) {
+		float[] m = (c != null) ? c.getAccMatrix().getMatrix() : null;
+		for (int i = 0; i < objects.size(); i++) {
+			Object o = objects.elementAt(i);
+			if (!(o instanceof N3VisualMesh))
+				continue;
+			N3VisualMesh mesh = (N3VisualMesh) o;
+			N3Impostor impostor = mesh.getImpostor();
+			if (impostor == null)
+				continue;
+			if (m != null && mesh.inScene() && mesh.isVisible()
+					&& mesh.lodSelected && !mesh.isBatched())
+				impostor.update(render, m);
+			else
+				impostor.active = false;
+		}
+	}
+
+	/**
+	 * Establece en el render la luz ambiente y las luces activas de la
+	 * escena, con la transformaci�n de c�mara actual.
+	 * 
+	 * @param render
+	 *            Render con el que renderizar la escena.
+	 */
+	protected void applyLights(N3Render render) {
+		if (render.isLighting()) {
+			render.setAmbientLightValue(ambientalLight);
 			int i;
-			if (selectedCamera != null) {
-				N3Camera c = getActiveCamera();
-				render.setProjectionMode();
-				render.loadMatrix(c.getProjectionMatrix());
-				render.setModelViewMode();
-				render.setCameraTransformation(c.getCameraTransformation());
-				if (c.getCameraData().getViewport() != null)
-					render.setViewport(c.getCameraData().getViewport());
+			for (i = 0; i < activeLights.size(); i++)
+				((N3Light) activeLights.elementAt(i)).setRenderValues(
+						render, i);
+			for (; i < render.getMaxLights(); i++) {
+				render.disableLight(i);
+			}
+		}
+	}
+
+	/**
+	 * Obtiene los objetos que pueden verse desde una celda del PVS: los
+	 * visibles seg�n el conjunto de la celda m�s los que no forman parte del
+	 * PVS. El coste depende del n�mero de objetos visibles y no del total de
+	 * la escena.
+	 * 
+	 * @param cell
+	 *            Celda del PVS en la que est� la c�mara, o -1 si no se usa
+	 * @return Vector de objetos candidatos
+	 */
+	protected Vector getCandidates(int cell) {
+		if (cell < 0)
+			return objects;
+		if (freeObjectsDirty) {
+			freeObjects.clear();
+			for (int i = 0; i < objects.size(); i++) {
+				N3VisualObject o = (N3VisualObject) objects.elementAt(i);
+				if (!pvs.contains(o))
+					freeObjects.add(o);
+			}
+			freeObjectsDirty = false;
+		}
+		candidates.clear();
+		candidates.addAll(freeObjects);
+		int[] visible = pvs.getVisibleObjects(cell);
+		for (int i = 0; i < visible.length; i++) {
+			N3VisualObject o = pvs.getObject(visible[i]);
+			if (o != null && o.pvsIndex == visible[i])
+				candidates.add(o);
+		}
+		return candidates;
+	}
+
+	/**
+	 * Dibuja la escena vista desde una c�mara en el destino actual del
+	 * render.
+	 * 
+	 * @param render
+	 *            Render con el que renderizar la escena.
+	 * @param c
+	 *            C�mara desde la que se ve la escena, o null
+	 */
+	protected void renderView(N3Render render, N3Camera c) {
+		int i;
+		int cell = -1;
+		Vector visible = objects;
+		queue.clear();
+		queue.setView(null, 0);
+		viewCamera = c;
+		if (c != null) {
+			render.setProjectionMode();
+			render.loadMatrix(c.getProjectionMatrix());
+			render.setModelViewMode();
+			N3Matrix4D view = c.getCameraTransformation();
+			render.setCameraTransformation(view);
+			if (c.getCameraData().getViewport() != null)
+				render.setViewport(c.getCameraData().getViewport());
+			queue.setView(view, c.getCameraData().getZFar());
+			selectLOD(c);
+			if (pvs != null) {
+				float[] m = c.getAccMatrix().getMatrix();
+				cell = pvs.getCell(m[12], m[13], m[14]);
 			}
-			if (render.isLighting()) {
-				render.setAmbientLightValue(ambientalLight);
-				for (i = 0; i < activeLights.size(); i++)
-					((N3Light) activeLights.elementAt(i)).setRenderValues(
-							render, i);
-				for (; i < render.getMaxLights(); i++) {
-					render.disableLight(i);
+			visible = getCandidates(cell);
+			if (occlusion != null) {
+				// Los oclusores se rasterizan mientras se preparan las
+				// luces y se dibujan los lotes. Un objeto que no es visible
+				// desde la celda no puede ocultar a los que s� lo son
+				occlusion.begin(c.getProjectionMatrix(), view);
+				for (i = 0; i < visible.size(); i++) {
+					N3VisualObject o = (N3VisualObject) visible.elementAt(i);
+					if (o.isOccluder() && o.inScene() && o.isVisible()
+							&& o.lodSelected)
+						o.addOccluder(occlusion);
 				}
+				occlusion.start();
 			}
-			N3VisualObject obj;
-			render.setClearColor(new N3ColorRGBA(0, 0, 0, 1.0f));
-			render.clear();
-			for (i = 0; i < objects.size(); i++) {
-				obj = (N3VisualObject) objects.elementAt(i);
-				if (obj.inScene() && obj.isVisible())
-					obj.draw(render);
+		}
+		applyLights(render);
+		N3VisualObject obj;
+		render.setClearColor(new N3ColorRGBA(0, 0, 0, 1.0f));
+		render.clear();
+		// Los lotes se dibujan primero, reconstruy�ndose si es necesario,
+		// para que los objetos agrupados en ellos est�n actualizados
+		for (i = 0; i < staticGroups.size(); i++) {
+			N3StaticGroupNode g = (N3StaticGroupNode) staticGroups
+					.elementAt(i);
+			if (g.inScene())
+				g.draw(render, cell >= 0 ? pvs : null, cell);
+		}
+		// El resto de objetos se ordenan por capa, material, textura y
+		// profundidad
+		queue.setFrontToBack(render.getZBuffer());
+		boolean culling = occlusion != null && c != null;
+		for (i = 0; i < visible.size(); i++) {
+			obj = (N3VisualObject) visible.elementAt(i);
+			if (obj.inScene() && obj.isVisible() && obj.lodSelected
+					&& !obj.isBatched()) {
+				if (culling && !obj.isOccluder()) {
+					boolean hidden = obj.isOccluded(occlusion);
+					occlusion.count(hidden);
+					if (hidden)
+						continue;
+				}
+				queue.add(obj);
 			}
-			render.endDraw();
 		}
+		queue.sort();
+		for (i = 0; i < queue.size(); i++)
+			queue.get(i).draw(render);
+		queue.clear();
+		render.setLightMask(-1);
+		viewCamera = null;
 	}
 
 	/**
@@ -382,6 +905,7 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 		if ((activeLights.size() < activeLightCount)
 				&& (lights.indexOf(light) != -1)) {
 			activeLights.add(light);
+			notifyChange();
 			return true;
 		} else
 			return false;
@@ -395,6 +919,7 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	public void removeActiveLight(N3Light light) {
 		activeLights.remove(lights);
+		notifyChange();
 	}
 
 	/**
@@ -407,6 +932,7 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	public void setActiveLightCount(int n) {
 		activeLightCount = n;
+		notifyChange();
 	}
 
 	/**
@@ -422,6 +948,39 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 		return activeLights.indexOf(light);
 	}
 
+	/**
+	 * Obtiene la m�scara de las luces activas que pueden iluminar una caja,
+	 * comprobando su caja en coordenadas del mundo contra el volumen de
+	 * influencia que cada luz calcul� en el �ltimo dibujado.
+	 * 
+	 * @param b
+	 *            Esquina m�nima y m�xima de la caja en coordenadas locales
+	 * @param m
+	 *            Transformaci�n de la caja al mundo
+	 * @return M�scara con el bit n activo si la luz activa n puede iluminar la
+	 *         caja, o -1 si no se indica caja
+	 */
+	public int getLightMask(float[] b, N3Matrix4D m) {
+		if (b == null)
+			return -1;
+		float[] t = m.getMatrix();
+		float cx = (b[0] + b[3]) / 2, cy = (b[1] + b[4]) / 2, cz = (b[2] + b[5]) / 2;
+		float ex = (b[3] - b[0]) / 2, ey = (b[4] - b[1]) / 2, ez = (b[5] - b[2]) / 2;
+		for (int i = 0; i < 3; i++) {
+			float c = t[i] * cx + t[i + 4] * cy + t[i + 8] * cz + t[i + 12];
+			float e = Math.abs(t[i]) * ex + Math.abs(t[i + 4]) * ey
+					+ Math.abs(t[i + 8]) * ez;
+			worldBox[i] = c - e;
+			worldBox[i + 3] = c + e;
+		}
+		int mask = 0;
+		int n = Math.min(activeLights.size(), 32);
+		for (int i = 0; i < n; i++)
+			if (((N3Light) activeLights.elementAt(i)).reaches(worldBox))
+				mask |= 1 << i;
+		return mask;
+	}
+
 	/**
 	 * Actualiza los volumenes de contenci�n de la escena.
 	 */
@@ -556,6 +1115,9 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 		sceneData.setAttribute("camera", selectedCamera.getName());
 		sceneRoot.appendChild(sceneData);
 
+		if (pvs != null)
+			sceneRoot.appendChild(pvs.getXMLDescription(doc));
+
 		return sceneRoot;
 	}
 
@@ -600,6 +1162,12 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 			pars = new Object[] { nodeInfo, hierarchy, resources, reader,
 					render, this };
 			node = (N3Node) m.invoke(null, pars);
+			if (nodeInfo.getElementsByTagName("static").getLength() > 0) {
+				Element staticInfo = (Element) nodeInfo.getElementsByTagName(
+						"static").item(0);
+				node.setStatic((new Boolean(staticInfo.getAttribute("value")))
+						.booleanValue());
+			}
 			parent = (N3GroupNode) getNamedObject(nodeInfo
 					.getAttribute("parentname"));
 			parent.addChild(node);
@@ -627,6 +1195,10 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 			node = (N3Node) getNamedObject(nodeInfo.getAttribute("name"));
 			node.ressolveNames(nodeInfo, this, resources);
 		}
+
+		if (sceneData.getElementsByTagName("pvs").getLength() > 0)
+			setPVS(N3PVS.loadInstance((Element) sceneData
+					.getElementsByTagName("pvs").item(0), this));
 	}
 
 	/**
@@ -637,5 +1209,15 @@ public class N3Scene implements N3NameManager, N3PersistentResource {
 	 */
 	public void setAmbientalLight(N3ColorRGBA c) {
 		ambientalLight = c;
+		notifyChange();
+	}
+
+	/**
+	 * Obtiene el color de la luz ambiental de la escena.
+	 * 
+	 * @return Color de la luz ambiental
+	 */
+	public N3ColorRGBA getAmbientalLight() {
+		return ambientalLight;
 	}
 }
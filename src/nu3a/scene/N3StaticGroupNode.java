@@ -0,0 +1,389 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.Vector;
+
+import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3VertexData;
+import nu3a.material.N3Material;
+import nu3a.material.color.N3ColorData;
+import nu3a.material.texture.N3TexCoordData;
+import nu3a.math.N3Matrix4D;
+import nu3a.math.N3Vector3D;
+import nu3a.names.exception.N3NameException;
+import nu3a.persistence.N3PersistentResource;
+import nu3a.persistence.N3PersistentResourceList;
+import nu3a.persistence.N3SceneReader;
+import nu3a.render.N3Render;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Nodo de agrupacion cuyo subarbol se considera estatico. Las mallas del
+ * subarbol que comparten material se pretransforman a coordenadas del mundo y
+ * se fusionan en un unico lote, que se dibuja con una sola transformacion y
+ * una sola aplicacion del material. Las mallas que forman parte de un lote no
+ * se dibujan por separado.
+ *
+ * Cualquier cambio en el subarbol (transformaciones, geometria, material,
+ * visibilidad o hijos anadidos o eliminados) invalida los lotes, que se
+ * reconstruyen automaticamente antes de volver a dibujarse.
+ *
+ * Solo se agrupan objetos opacos de la capa 0 de la clase N3VisualMesh
+ * dibujados como triangulos independientes, sin luces desactivadas y sin
+ * volumen visible. Los nodos N3StaticGroupNode anidados forman sus propios
+ * lotes, y los subarboles de los nodos N3LODNode no se agrupan.
+ */
+public class N3StaticGroupNode extends N3GroupNode {
+
+	/**
+	 * Lote de mallas que comparten material.
+	 */
+	protected class N3Batch {
+		protected N3Material material;
+
+		protected boolean preLit;
+
+		protected boolean textured;
+
+		protected N3VertexData vertexData = new N3VertexData();
+
+		protected N3NormalData normalData = new N3NormalData();
+
+		protected N3ColorData colorData = new N3ColorData();
+
+		protected N3TexCoordData texCoordData = new N3TexCoordData();
+
+		protected Vector meshes = new Vector(0, 1);
+
+		// Celdas del PVS desde las que se ve alguna malla del lote, o null
+		// si alguna malla no forma parte del PVS
+		protected int[] cells;
+
+		protected N3PVS pvs;
+
+		protected int pvsVersion = -1;
+
+		protected int cellsVersion = -1;
+	}
+
+	/**
+	 * Mallas que forman parte de los lotes.
+	 */
+	protected Vector members;
+
+	/**
+	 * Lotes del nodo.
+	 */
+	protected Vector batches;
+
+	/**
+	 * Indica si hay que reconstruir los lotes.
+	 */
+	protected boolean dirtyBatches;
+
+	/**
+	 * Numero de veces que se han reconstruido los lotes.
+	 */
+	protected int batchVersion;
+
+	// Transformacion de los lotes, ya en coordenadas del mundo
+	private N3Matrix4D identity;
+
+	/**
+	 * Constructor de la clase. Crea un nodo de agrupacion estatico para la
+	 * escena especificada.
+	 *
+	 * @param scene
+	 *            Escena a la que pertenece el nodo.
+	 * @param name
+	 *            Nombre del nodo
+	 */
+	public N3StaticGroupNode(N3Scene scene, String name)
+			throws N3NameException {
+		super(scene, name);
+		members = new Vector(0, 1);
+		batches = new Vector(0, 1);
+		identity = new N3Matrix4D();
+		dirtyBatches = true;
+		setStatic(true);
+		scene.addStaticGroup(this);
+	}
+
+	/**
+	 * Indica que los lotes han de reconstruirse antes de dibujarse.
+	 */
+	public void invalidate() {
+		dirtyBatches = true;
+	}
+
+	protected void hierarchyChanged() {
+		invalidate();
+		super.hierarchyChanged();
+	}
+
+	protected void setDirty() {
+		super.setDirty();
+		invalidate();
+	}
+
+	public void remove() {
+		super.remove();
+		release();
+		scene.removeStaticGroup(this);
+	}
+
+	/**
+	 * Obtiene el numero de lotes del nodo. Reconstruye los lotes si es
+	 * necesario.
+	 *
+	 * @return Numero de lotes
+	 */
+	public int getBatchCount() {
+		if (dirtyBatches)
+			build();
+		return batches.size();
+	}
+
+	/**
+	 * Obtiene el numero de mallas agrupadas en los lotes del nodo. Reconstruye
+	 * los lotes si es necesario.
+	 *
+	 * @return Numero de mallas agrupadas
+	 */
+	public int getMemberCount() {
+		if (dirtyBatches)
+			build();
+		return members.size();
+	}
+
+	// Libera las mallas de los lotes actuales
+	private void release() {
+		for (int i = 0; i < members.size(); i++)
+			((N3VisualObject) members.elementAt(i)).batch = null;
+		members.clear();
+		batches.clear();
+	}
+
+	// Recoge las mallas del subarbol que se pueden agrupar
+	private void collect(N3GroupNode node) {
+		for (int i = 0; i < node.children.size(); i++) {
+			N3Node child = (N3Node) node.children.elementAt(i);
+			if (child instanceof N3StaticGroupNode
+					|| child instanceof N3LODNode)
+				continue;
+			if (child instanceof N3GroupNode)
+				collect((N3GroupNode) child);
+			else if (child.getClass() == N3VisualMesh.class) {
+				N3VisualMesh mesh = (N3VisualMesh) child;
+				if (mesh.isVisible() && mesh.getGeometry() != null
+						&& !mesh.isStripped() && mesh.disabledLights.isEmpty()
+						&& !mesh.isBoundingVolumeVisible()
+						&& mesh.getRenderLayer() == 0 && !mesh.isTransparent())
+					members.add(mesh);
+			}
+		}
+	}
+
+	// Busca el lote correspondiente a la malla, creandolo si no existe
+	private N3Batch getBatch(N3VisualMesh mesh) {
+		boolean textured = !mesh.texCoordData.isEmpty();
+		for (int i = 0; i < batches.size(); i++) {
+			N3Batch b = (N3Batch) batches.elementAt(i);
+			if (b.material == mesh.material && b.preLit == mesh.preLit
+					&& b.textured == textured)
+				return b;
+		}
+		N3Batch b = new N3Batch();
+		b.material = mesh.material;
+		b.preLit = mesh.preLit;
+		b.textured = textured;
+		batches.add(b);
+		return b;
+	}
+
+	/**
+	 * Reconstruye los lotes a partir de las mallas del subarbol.
+	 */
+	protected void build() {
+		release();
+		collect(this);
+		for (int i = 0; i < members.size(); i++) {
+			N3VisualMesh mesh = (N3VisualMesh) members.elementAt(i);
+			mesh.batch = this;
+			mesh.processGeometry();
+			N3Batch b = getBatch(mesh);
+			b.meshes.add(mesh);
+			N3Matrix4D m = mesh.getAccMatrix();
+			mesh.vertexData.begin();
+			mesh.normalData.begin();
+			mesh.colorData.begin();
+			mesh.texCoordData.begin();
+			for (int j = 0; j < mesh.vertexData.size(); j++) {
+				N3Point3D v = (N3Point3D) mesh.vertexData.next();
+				N3Point3D wv = new N3Point3D(v.x, v.y, v.z);
+				N3Matrix4D.mult(m, wv);
+				b.vertexData.addVertex(wv);
+				N3Vector3D n = (N3Vector3D) mesh.normalData.next();
+				if (n != null) {
+					N3Vector3D wn = new N3Vector3D(n.x, n.y, n.z);
+					N3Matrix4D.mult(m, wn);
+					wn.normalize();
+					n = wn;
+				}
+				b.normalData.addNormal(n);
+				b.colorData.addColor(mesh.colorData.next());
+				if (b.textured)
+					b.texCoordData.addTexCoord(mesh.texCoordData.next());
+			}
+		}
+		batchVersion++;
+		dirtyBatches = false;
+	}
+
+	/**
+	 * Dibuja los lotes del nodo, reconstruyendolos si es necesario.
+	 *
+	 * @param render
+	 *            Render mediante el cual se renderiza la escena.
+	 */
+	public void draw(N3Render render) {
+		draw(render, null, -1);
+	}
+
+	/**
+	 * Indica si alguna malla de un lote es visible desde una celda del PVS.
+	 * Las celdas desde las que se ve el lote se calculan una vez por cada
+	 * version de los lotes y del PVS.
+	 *
+	 * @param b
+	 *            Lote
+	 * @param pvs
+	 *            PVS de la escena
+	 * @param cell
+	 *            Celda en la que esta la camara
+	 * @return True si el lote puede ser visible
+	 */
+	protected boolean isVisible(N3Batch b, N3PVS pvs, int cell) {
+		if (b.pvs != pvs || b.pvsVersion != pvs.getVersion()
+				|| b.cellsVersion != batchVersion) {
+			int count = pvs.getCellCount();
+			b.cells = new int[(count + 31) >>> 5];
+			for (int i = 0; i < b.meshes.size() && b.cells != null; i++)
+				if (!pvs.contains((N3VisualMesh) b.meshes.elementAt(i)))
+					b.cells = null;
+			for (int c = 0; c < count && b.cells != null; c++)
+				for (int i = 0; i < b.meshes.size(); i++) {
+					N3VisualMesh mesh = (N3VisualMesh) b.meshes.elementAt(i);
+					if (pvs.isVisible(c, mesh)) {
+						b.cells[c >>> 5] |= 1 << (c & 31);
+						break;
+					}
+				}
+			b.pvs = pvs;
+			b.pvsVersion = pvs.getVersion();
+			b.cellsVersion = batchVersion;
+		}
+		return b.cells == null
+				|| (b.cells[cell >>> 5] & (1 << (cell & 31))) != 0;
+	}
+
+	/**
+	 * Dibuja los lotes del nodo que pueden verse desde una celda del PVS,
+	 * reconstruyendolos si es necesario.
+	 *
+	 * @param render
+	 *            Render mediante el cual se renderiza la escena.
+	 * @param pvs
+	 *            PVS de la escena, o null para dibujar todos los lotes
+	 * @param cell
+	 *            Celda del PVS en la que esta la camara
+	 */
+	public void draw(N3Render render, N3PVS pvs, int cell) {
+		if (dirtyBatches)
+			build();
+		if (batches.isEmpty())
+			return;
+		render.setObjectTransformation(identity);
+		render.setLightMask(-1);
+		boolean lighting = render.isLighting();
+		for (int i = 0; i < batches.size(); i++) {
+			N3Batch b = (N3Batch) batches.elementAt(i);
+			if (pvs != null && !isVisible(b, pvs, cell))
+				continue;
+			if (b.material != null)
+				b.material.renderMaterial(render);
+			b.colorData.begin();
+			b.vertexData.begin();
+			b.normalData.begin();
+			render.setLitColorCacheKey(b, batchVersion);
+			if (b.preLit && lighting)
+				render.setLighting(false);
+			if (b.textured) {
+				b.texCoordData.begin();
+				render.drawData(b.vertexData, render.N3_TRIANGLES_DATA,
+						b.colorData, b.texCoordData, b.normalData);
+			} else {
+				render.drawData(b.vertexData, render.N3_TRIANGLES_DATA,
+						b.colorData, b.normalData);
+			}
+			if (b.preLit && lighting)
+				render.setLighting(true);
+		}
+	}
+
+	/**
+	 * Devuelve una instancia de la clase, a partir de los parametros, y de la
+	 * descripcion XML en infoNode.
+	 *
+	 * @param infoNode
+	 *            Descripcion XML de la instacia a crear
+	 * @param nodes
+	 *            Rama XML con las descripciones de los recursos de la escena
+	 * @param resources
+	 *            Lista de recursos de la escena
+	 * @param reader
+	 *            Instancia capaz de crear recursos que aun no se han creado
+	 * @param render
+	 *            Render para el que se esta creando la escena
+	 * @param scene
+	 *            Escena que se esta creando
+	 * @return Instancia de la clase con la informacion especificada
+	 */
+	public static N3PersistentResource loadInstance(Element infoNode,
+			NodeList nodes, N3PersistentResourceList resources,
+			N3SceneReader reader, N3Render render, N3Scene scene)
+			throws Exception {
+		String name = infoNode.getAttribute("name");
+		N3StaticGroupNode result = new N3StaticGroupNode(scene, name);
+
+		Element data = (Element) infoNode.getElementsByTagName("collisionable")
+				.item(0);
+		result.setCollisionable((new Boolean(data.getAttribute("value")))
+				.booleanValue());
+		return result;
+	}
+}
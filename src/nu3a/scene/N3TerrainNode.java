@@ -0,0 +1,772 @@
+/*
+ *	Copyright (c) 2003 Jorge García, Unai Aguilera
+ *
+ *	This file is part of Nu3A.
+ *
+ *   Nu3A is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+
+ *   Nu3A is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Nu3A.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ *
+ *	Authors: Jorge García <bardok@gmail.com>, Unai Aguilera <gkalgan@gmail.com>
+ */
+
+package nu3a.scene;
+
+import java.util.StringTokenizer;
+
+import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3VertexData;
+import nu3a.material.N3Material;
+import nu3a.material.color.N3ColorData;
+import nu3a.material.color.N3ColorRGBA;
+import nu3a.material.texture.N3TexCoord2D;
+import nu3a.material.texture.N3TexCoordData;
+import nu3a.math.N3Matrix4D;
+import nu3a.math.N3Vector3D;
+import nu3a.names.exception.N3NameException;
+import nu3a.persistence.N3PersistentResource;
+import nu3a.persistence.N3PersistentResourceList;
+import nu3a.persistence.N3SceneReader;
+import nu3a.render.N3Render;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Terreno definido por un mapa de alturas. El mapa es una rejilla de
+ * muestras separadas una distancia fija en los ejes x y z del nodo, centrada
+ * en su origen, con la altura en el eje y.
+ *
+ * El terreno se divide en trozos cuadrados de chunkSize x chunkSize celdas,
+ * cada uno con su caja envolvente, de modo que los trozos fuera de la vista
+ * no se dibujan. La densidad de cada trozo depende de su distancia a la
+ * camara: a partir de lodDistance se toma una de cada dos muestras, al doble
+ * de distancia una de cada cuatro, y asi sucesivamente. Los bordes de un
+ * trozo junto a otro menos detallado se ajustan a la arista de este para que
+ * no queden grietas.
+ *
+ * La malla de cada trozo se genera al dibujarlo por primera vez con un
+ * detalle dado, como una tira de triangulos, y se libera si el trozo deja de
+ * dibujarse durante CACHE_FRAMES dibujados, de modo que solo el mapa de
+ * alturas ocupa memoria de forma permanente. Las muestras interiores
+ * aparecen en la tira en dos filas, y cada union de filas repite dos
+ * vertices, pero todas las apariciones de una muestra son el mismo objeto,
+ * de modo que el render la transforma una sola vez.
+ */
+public class N3TerrainNode extends N3VisualObject {
+	/**
+	 * Numero de dibujados sin usar tras los que se libera la malla de un
+	 * trozo.
+	 */
+	public static final int CACHE_FRAMES = 120;
+
+	/**
+	 * Alturas de las muestras, fila a fila en el eje z.
+	 */
+	protected float[] heights;
+
+	/**
+	 * Numero de muestras en el eje x.
+	 */
+	protected int width;
+
+	/**
+	 * Numero de muestras en el eje z.
+	 */
+	protected int depth;
+
+	/**
+	 * Distancia entre muestras.
+	 */
+	protected float spacing;
+
+	/**
+	 * Numero de celdas de cada lado de un trozo.
+	 */
+	protected int chunkSize;
+
+	/**
+	 * Distancia a la camara a partir de la cual se reduce el detalle.
+	 */
+	protected float lodDistance;
+
+	/**
+	 * Color de los vertices del terreno.
+	 */
+	protected N3ColorRGBA color;
+
+	// Trozos del terreno, fila a fila en el eje z
+	private Chunk[] chunks;
+	private int chunksX, chunksZ;
+
+	// Nivel de detalle maximo: una sola celda por trozo
+	private int maxLevel;
+
+	// Numero de dibujados del terreno, para liberar las mallas sin usar
+	private int frame;
+
+	// Trozos y triangulos del ultimo dibujado
+	private int drawnChunks, drawnTriangles;
+
+	// Matrices de trabajo para la seleccion de trozos
+	private N3Matrix4D clip, inverse;
+
+	/**
+	 * Trozo del terreno, con su caja envolvente y su malla en el detalle en
+	 * que se dibujo por ultima vez.
+	 */
+	private static class Chunk {
+		// Primera muestra del trozo
+		int x0, z0;
+		// Altura minima y maxima
+		float minY, maxY;
+		// Nivel de detalle elegido y si se ve en el dibujado actual
+		int level;
+		boolean visible;
+		// Nivel y niveles de los vecinos con los que se genero la malla
+		int key = -1;
+		int version;
+		int lastFrame;
+		N3VertexData vertexData;
+		N3NormalData normalData;
+		N3ColorData colorData;
+		N3TexCoordData texCoordData;
+		int triangles;
+
+		void release() {
+			vertexData = null;
+			normalData = null;
+			colorData = null;
+			texCoordData = null;
+			key = -1;
+		}
+	}
+
+	/**
+	 * Constructor de la clase.
+	 *
+	 * @param scene
+	 *            Escena en la que se encuentra el objeto visual
+	 * @param heights
+	 *            Alturas de las muestras, fila a fila en el eje z. El array
+	 *            no se copia.
+	 * @param width
+	 *            Numero de muestras en el eje x
+	 * @param depth
+	 *            Numero de muestras en el eje z
+	 * @param spacing
+	 *            Distancia entre muestras
+	 * @param chunkSize
+	 *            Numero de celdas de cada lado de un trozo. Ha de ser una
+	 *            potencia de dos que divida a width - 1 y a depth - 1.
+	 * @param name
+	 *            Nombre del nodo
+	 */
+	public N3TerrainNode(N3Scene scene, float[] heights, int width,
+			int depth, float spacing, int chunkSize, String name)
+			throws N3NameException {
+		super(scene, name);
+		if (chunkSize < 1 || (chunkSize & (chunkSize - 1)) != 0)
+			throw new IllegalArgumentException("Invalid chunk size: "
+					+ chunkSize);
+		if (width < 2 || depth < 2 || (width - 1) % chunkSize != 0
+				|| (depth - 1) % chunkSize != 0)
+			throw new IllegalArgumentException("Invalid terrain size: "
+					+ width + "x" + depth);
+		if (heights.length < width * depth)
+			throw new IllegalArgumentException("Invalid height array length: "
+					+ heights.length);
+		this.heights = heights;
+		this.width = width;
+		this.depth = depth;
+		this.spacing = spacing;
+		this.chunkSize = chunkSize;
+		lodDistance = 2 * chunkSize * spacing;
+		color = new N3ColorRGBA(1, 1, 1);
+		maxLevel = Integer.numberOfTrailingZeros(chunkSize);
+		chunksX = (width - 1) / chunkSize;
+		chunksZ = (depth - 1) / chunkSize;
+		chunks = new Chunk[chunksX * chunksZ];
+		for (int j = 0; j < chunksZ; j++)
+			for (int i = 0; i < chunksX; i++) {
+				Chunk c = new Chunk();
+				c.x0 = i * chunkSize;
+				c.z0 = j * chunkSize;
+				chunks[i + j * chunksX] = c;
+				updateBounds(c);
+			}
+		clip = new N3Matrix4D();
+		inverse = new N3Matrix4D();
+	}
+
+	/**
+	 * Obtiene el numero de muestras en el eje x.
+	 *
+	 * @return Numero de muestras
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Obtiene el numero de muestras en el eje z.
+	 *
+	 * @return Numero de muestras
+	 */
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Obtiene la distancia entre muestras.
+	 *
+	 * @return Distancia entre muestras
+	 */
+	public float getSpacing() {
+		return spacing;
+	}
+
+	/**
+	 * Obtiene el numero de celdas de cada lado de un trozo.
+	 *
+	 * @return Lado de los trozos en celdas
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Obtiene el numero de trozos del terreno.
+	 *
+	 * @return Numero de trozos
+	 */
+	public int getChunkCount() {
+		return chunks.length;
+	}
+
+	/**
+	 * Obtiene el numero de trozos dibujados en el ultimo dibujado.
+	 *
+	 * @return Numero de trozos dibujados
+	 */
+	public int getDrawnChunks() {
+		return drawnChunks;
+	}
+
+	/**
+	 * Obtiene el numero de triangulos dibujados en el ultimo dibujado.
+	 *
+	 * @return Numero de triangulos dibujados
+	 */
+	public int getDrawnTriangles() {
+		return drawnTriangles;
+	}
+
+	/**
+	 * Establece la distancia a la camara a partir de la cual se reduce el
+	 * detalle. Cada vez que se dobla la distancia se toma la mitad de
+	 * muestras en cada eje.
+	 *
+	 * @param distance
+	 *            Distancia del primer cambio de detalle, o 0 para dibujar
+	 *            siempre el menor detalle
+	 */
+	public void setLODDistance(float distance) {
+		lodDistance = distance;
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene la distancia a la camara a partir de la cual se reduce el
+	 * detalle.
+	 *
+	 * @return Distancia del primer cambio de detalle
+	 */
+	public float getLODDistance() {
+		return lodDistance;
+	}
+
+	/**
+	 * Establece el color de los vertices del terreno.
+	 *
+	 * @param color
+	 *            Color de los vertices
+	 */
+	public void setColor(N3ColorRGBA color) {
+		this.color = color;
+		invalidateChunks(0, 0, width - 1, depth - 1);
+	}
+
+	/**
+	 * Obtiene el color de los vertices del terreno.
+	 *
+	 * @return Color de los vertices
+	 */
+	public N3ColorRGBA getColor() {
+		return color;
+	}
+
+	/**
+	 * Obtiene la altura de una muestra.
+	 *
+	 * @param x
+	 *            Columna de la muestra
+	 * @param z
+	 *            Fila de la muestra
+	 * @return Altura de la muestra
+	 */
+	public float getHeight(int x, int z) {
+		return heights[x + z * width];
+	}
+
+	/**
+	 * Cambia la altura de una muestra. Las mallas de los trozos que la
+	 * contienen se vuelven a generar.
+	 *
+	 * @param x
+	 *            Columna de la muestra
+	 * @param z
+	 *            Fila de la muestra
+	 * @param h
+	 *            Nueva altura
+	 */
+	public void setHeight(int x, int z, float h) {
+		heights[x + z * width] = h;
+		// Las normales de las muestras vecinas tambien cambian
+		invalidateChunks(x - 1, z - 1, x + 1, z + 1);
+	}
+
+	/**
+	 * Obtiene la altura del terreno en un punto, en coordenadas del nodo,
+	 * interpolando entre las muestras de la celda que lo contiene.
+	 *
+	 * @param x
+	 *            Coordenada x del punto
+	 * @param z
+	 *            Coordenada z del punto
+	 * @return Altura del terreno, o NaN si el punto queda fuera
+	 */
+	public float getHeightAt(float x, float z) {
+		float fx = x / spacing + (width - 1) * 0.5f;
+		float fz = z / spacing + (depth - 1) * 0.5f;
+		if (fx < 0 || fz < 0 || fx > width - 1 || fz > depth - 1)
+			return Float.NaN;
+		int ix = Math.min((int) fx, width - 2);
+		int iz = Math.min((int) fz, depth - 2);
+		float tx = fx - ix, tz = fz - iz;
+		float h0 = heights[ix + iz * width] * (1 - tx)
+				+ heights[ix + 1 + iz * width] * tx;
+		float h1 = heights[ix + (iz + 1) * width] * (1 - tx)
+				+ heights[ix + 1 + (iz + 1) * width] * tx;
+		return h0 * (1 - tz) + h1 * tz;
+	}
+
+	// Recalcula la caja de los trozos que tocan las muestras indicadas y
+	// libera sus mallas
+	private void invalidateChunks(int x0, int z0, int x1, int z1) {
+		int i0 = Math.max(0, (x0 - 1) / chunkSize);
+		int j0 = Math.max(0, (z0 - 1) / chunkSize);
+		int i1 = Math.min(chunksX - 1, Math.max(0, x1) / chunkSize);
+		int j1 = Math.min(chunksZ - 1, Math.max(0, z1) / chunkSize);
+		for (int j = j0; j <= j1; j++)
+			for (int i = i0; i <= i1; i++) {
+				Chunk c = chunks[i + j * chunksX];
+				updateBounds(c);
+				c.release();
+			}
+		geometryVersion++;
+		scene.notifyChange();
+	}
+
+	// Calcula la altura minima y maxima de un trozo
+	private void updateBounds(Chunk c) {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int z = c.z0; z <= c.z0 + chunkSize; z++)
+			for (int x = c.x0, p = c.x0 + z * width; x <= c.x0 + chunkSize; x++, p++) {
+				min = Math.min(min, heights[p]);
+				max = Math.max(max, heights[p]);
+			}
+		c.minY = min;
+		c.maxY = max;
+	}
+
+	protected float[] getLocalBounds() {
+		float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+		for (int i = 0; i < chunks.length; i++) {
+			min = Math.min(min, chunks[i].minY);
+			max = Math.max(max, chunks[i].maxY);
+		}
+		float hx = (width - 1) * 0.5f * spacing;
+		float hz = (depth - 1) * 0.5f * spacing;
+		return new float[] { -hx, min, -hz, hx, max, hz };
+	}
+
+	protected void processGeometry() {
+	}
+
+	/**
+	 * Elige el detalle de cada trozo segun su distancia a la camara de la
+	 * vista y descarta los que quedan fuera de ella. Sin camara se dibujan
+	 * todos los trozos con el mayor detalle.
+	 */
+	protected void selectChunks() {
+		N3Camera c = scene.viewCamera;
+		if (c == null) {
+			for (int i = 0; i < chunks.length; i++) {
+				chunks[i].level = 0;
+				chunks[i].visible = true;
+			}
+			return;
+		}
+		// Transformacion del nodo al espacio de recorte
+		clip.setData(c.getProjectionMatrix());
+		clip.mult(c.getCameraTransformation());
+		clip.mult(getAccMatrix());
+		float[] m = clip.getMatrix();
+		// Posicion de la camara en coordenadas del nodo
+		inverse.setData(getAccMatrix());
+		inverse.inverse();
+		float[] a = c.getAccMatrix().getMatrix();
+		float[] n = inverse.getMatrix();
+		float ex = n[0] * a[12] + n[4] * a[13] + n[8] * a[14] + n[12];
+		float ey = n[1] * a[12] + n[5] * a[13] + n[9] * a[14] + n[13];
+		float ez = n[2] * a[12] + n[6] * a[13] + n[10] * a[14] + n[14];
+		float size = chunkSize * spacing;
+		float ox = -(width - 1) * 0.5f * spacing;
+		float oz = -(depth - 1) * 0.5f * spacing;
+		for (int j = 0; j < chunksZ; j++)
+			for (int i = 0; i < chunksX; i++) {
+				Chunk k = chunks[i + j * chunksX];
+				float x0 = ox + i * size, z0 = oz + j * size;
+				k.visible = inFrustum(m, x0, k.minY, z0, x0 + size, k.maxY,
+						z0 + size);
+				// Distancia de la camara a la caja del trozo
+				float dx = Math.max(Math.max(x0 - ex, ex - x0 - size), 0);
+				float dy = Math.max(Math.max(k.minY - ey, ey - k.maxY), 0);
+				float dz = Math.max(Math.max(z0 - ez, ez - z0 - size), 0);
+				float d = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+				int level = 0;
+				if (lodDistance <= 0)
+					level = maxLevel;
+				else
+					for (float limit = lodDistance; d >= limit
+							&& level < maxLevel; limit *= 2)
+						level++;
+				k.level = level;
+			}
+	}
+
+	// Indica si alguna parte de la caja puede quedar dentro del volumen de
+	// la vista: la caja se descarta si todas sus esquinas quedan fuera del
+	// mismo plano de recorte
+	private static boolean inFrustum(float[] m, float x0, float y0,
+			float z0, float x1, float y1, float z1) {
+		int outside = 0x3F;
+		for (int k = 0; k < 8; k++) {
+			float x = (k & 1) == 0 ? x0 : x1;
+			float y = (k & 2) == 0 ? y0 : y1;
+			float z = (k & 4) == 0 ? z0 : z1;
+			float cx = m[0] * x + m[4] * y + m[8] * z + m[12];
+			float cy = m[1] * x + m[5] * y + m[9] * z + m[13];
+			float cz = m[2] * x + m[6] * y + m[10] * z + m[14];
+			float cw = m[3] * x + m[7] * y + m[11] * z + m[15];
+			int out = 0;
+			if (cx < -cw)
+				out |= 1;
+			if (cx > cw)
+				out |= 2;
+			if (cy < -cw)
+				out |= 4;
+			if (cy > cw)
+				out |= 8;
+			if (cz < -cw)
+				out |= 16;
+			if (cz > cw)
+				out |= 32;
+			outside &= out;
+			if (outside == 0)
+				return true;
+		}
+		return false;
+	}
+
+	// Nivel de detalle de un trozo vecino, o -1 si no existe
+	private int neighbourLevel(int i, int j) {
+		if (i < 0 || j < 0 || i >= chunksX || j >= chunksZ)
+			return -1;
+		return chunks[i + j * chunksX].level;
+	}
+
+	/**
+	 * Genera la malla de un trozo con su detalle actual, ajustando los bordes
+	 * que lindan con trozos menos detallados.
+	 */
+	private void buildChunk(Chunk c, int north, int south, int west, int east) {
+		int step = 1 << c.level;
+		int n = chunkSize >> c.level;
+		int row = n + 1;
+		N3Point3D[] points = new N3Point3D[row * row];
+		N3Vector3D[] normals = new N3Vector3D[row * row];
+		N3TexCoord2D[] uvs = new N3TexCoord2D[row * row];
+		float ox = -(width - 1) * 0.5f * spacing;
+		float oz = -(depth - 1) * 0.5f * spacing;
+		for (int j = 0; j <= n; j++)
+			for (int i = 0; i <= n; i++) {
+				int x = c.x0 + i * step, z = c.z0 + j * step;
+				float h = heights[x + z * width];
+				if (j == 0 && north > c.level)
+					h = edgeHeight(x, z, 1 << north, true);
+				else if (j == n && south > c.level)
+					h = edgeHeight(x, z, 1 << south, true);
+				if (i == 0 && west > c.level)
+					h = edgeHeight(x, z, 1 << west, false);
+				else if (i == n && east > c.level)
+					h = edgeHeight(x, z, 1 << east, false);
+				int k = i + j * row;
+				points[k] = new N3Point3D(ox + x * spacing, h, oz + z
+						* spacing);
+				normals[k] = sampleNormal(x, z);
+				uvs[k] = new N3TexCoord2D((float) x / (width - 1), (float) z
+						/ (depth - 1));
+			}
+		N3VertexData vertexData = new N3VertexData();
+		N3NormalData normalData = new N3NormalData();
+		N3ColorData colorData = new N3ColorData();
+		N3TexCoordData texCoordData = new N3TexCoordData();
+		// Una tira por fila de celdas, unidas repitiendo el ultimo vertice de
+		// una fila y el primero de la siguiente. Se reutilizan los mismos
+		// objetos de points para que el render reconozca las repeticiones
+		for (int j = 0; j < n; j++) {
+			if (j > 0) {
+				addVertex(vertexData, normalData, colorData, texCoordData,
+						points, normals, uvs, n + j * row);
+				addVertex(vertexData, normalData, colorData, texCoordData,
+						points, normals, uvs, j * row);
+			}
+			for (int i = 0; i <= n; i++) {
+				addVertex(vertexData, normalData, colorData, texCoordData,
+						points, normals, uvs, i + j * row);
+				addVertex(vertexData, normalData, colorData, texCoordData,
+						points, normals, uvs, i + (j + 1) * row);
+			}
+		}
+		c.vertexData = vertexData;
+		c.normalData = normalData;
+		c.colorData = colorData;
+		c.texCoordData = texCoordData;
+		c.triangles = 2 * n * n;
+		c.version++;
+	}
+
+	private void addVertex(N3VertexData vertexData, N3NormalData normalData,
+			N3ColorData colorData, N3TexCoordData texCoordData,
+			N3Point3D[] points, N3Vector3D[] normals, N3TexCoord2D[] uvs,
+			int k) {
+		vertexData.addVertex(points[k]);
+		normalData.addNormal(normals[k]);
+		colorData.addColor(color);
+		texCoordData.addTexCoord(uvs[k]);
+	}
+
+	// Altura de una muestra del borde de un trozo sobre la arista del vecino
+	// menos detallado, que solo tiene una de cada step muestras
+	private float edgeHeight(int x, int z, int step, boolean alongX) {
+		int p = alongX ? x : z;
+		int p0 = p - p % step;
+		if (p0 == p)
+			return heights[x + z * width];
+		float t = (float) (p - p0) / step;
+		float h0, h1;
+		if (alongX) {
+			h0 = heights[p0 + z * width];
+			h1 = heights[p0 + step + z * width];
+		} else {
+			h0 = heights[x + p0 * width];
+			h1 = heights[x + (p0 + step) * width];
+		}
+		return h0 + (h1 - h0) * t;
+	}
+
+	// Normal de una muestra a partir de las diferencias con sus vecinas
+	private N3Vector3D sampleNormal(int x, int z) {
+		float hl = heights[Math.max(x - 1, 0) + z * width];
+		float hr = heights[Math.min(x + 1, width - 1) + z * width];
+		float hu = heights[x + Math.max(z - 1, 0) * width];
+		float hd = heights[x + Math.min(z + 1, depth - 1) * width];
+		N3Vector3D v = new N3Vector3D(hl - hr, 2 * spacing, hu - hd);
+		v.normalize();
+		return v;
+	}
+
+	/**
+	 * Dibuja los trozos visibles, generando las mallas que falten.
+	 */
+	public void draw(N3Render render) {
+		super.draw(render);
+		selectChunks();
+		frame++;
+		drawnChunks = 0;
+		drawnTriangles = 0;
+		boolean textured = material != null
+				&& material.getActiveTexture() != null;
+		boolean lighting = render.isLighting();
+		if (preLit && lighting)
+			render.setLighting(false);
+		for (int j = 0; j < chunksZ; j++)
+			for (int i = 0; i < chunksX; i++) {
+				Chunk c = chunks[i + j * chunksX];
+				if (!c.visible) {
+					if (c.vertexData != null
+							&& frame - c.lastFrame > CACHE_FRAMES)
+						c.release();
+					continue;
+				}
+				int north = neighbourLevel(i, j - 1);
+				int south = neighbourLevel(i, j + 1);
+				int west = neighbourLevel(i - 1, j);
+				int east = neighbourLevel(i + 1, j);
+				// Solo importan los vecinos menos detallados
+				int key = c.level;
+				key = key * 16 + Math.max(north, c.level);
+				key = key * 16 + Math.max(south, c.level);
+				key = key * 16 + Math.max(west, c.level);
+				key = key * 16 + Math.max(east, c.level);
+				if (c.vertexData == null || c.key != key) {
+					buildChunk(c, north, south, west, east);
+					c.key = key;
+				}
+				c.lastFrame = frame;
+				c.vertexData.begin();
+				c.normalData.begin();
+				c.colorData.begin();
+				render.setLitColorCacheKey(c, c.version);
+				if (textured) {
+					c.texCoordData.begin();
+					render.drawData(c.vertexData,
+							render.N3_TRIANGLE_STRIP_DATA, c.colorData,
+							c.texCoordData, c.normalData);
+				} else
+					render.drawData(c.vertexData,
+							render.N3_TRIANGLE_STRIP_DATA, c.colorData,
+							c.normalData);
+				drawnChunks++;
+				drawnTriangles += c.triangles;
+			}
+		if (preLit && lighting)
+			render.setLighting(true);
+	}
+
+	public Element getXMLDescription(Document doc,
+			N3PersistentResourceList resources) {
+		Element result = super.getXMLDescription(doc, resources);
+
+		Element data = doc.createElement("terrain");
+		data.setAttribute("width", "" + width);
+		data.setAttribute("depth", "" + depth);
+		data.setAttribute("spacing", "" + spacing);
+		data.setAttribute("chunksize", "" + chunkSize);
+		data.setAttribute("loddistance", "" + lodDistance);
+		data.setAttribute("color", color.R + " " + color.G + " " + color.B
+				+ " " + color.A);
+		result.appendChild(data);
+
+		data = doc.createElement("heights");
+		StringBuffer values = new StringBuffer(width * depth * 4);
+		for (int i = 0; i < width * depth; i++) {
+			if (i > 0)
+				values.append(' ');
+			values.append(heights[i]);
+		}
+		data.appendChild(doc.createTextNode(values.toString()));
+		result.appendChild(data);
+
+		return result;
+	}
+
+	/**
+	 * Devuelve una instancia de la clase, a partir de los parametros, y de la
+	 * descripcion XML en infoNode.
+	 *
+	 * @param infoNode
+	 *            Descripcion XML de la instacia a crear
+	 * @param nodes
+	 *            Rama XML con las descripciones de los recursos de la escena
+	 * @param resources
+	 *            Lista de recursos de la escena
+	 * @param reader
+	 *            Instancia capaz de crear recursos que aun no se han creado
+	 * @param render
+	 *            Render para el que se esta creando la escena
+	 * @param scene
+	 *            Escena que se esta creando
+	 * @return Instancia de la clase con la informacion especificada
+	 */
+	public static N3PersistentResource loadInstance(Element infoNode,
+			NodeList nodes, N3PersistentResourceList resources,
+			N3SceneReader reader, N3Render render, N3Scene scene)
+			throws Exception {
+		String name = infoNode.getAttribute("name");
+		Element data = (Element) infoNode.getElementsByTagName("terrain")
+				.item(0);
+		int width = Integer.parseInt(data.getAttribute("width"));
+		int depth = Integer.parseInt(data.getAttribute("depth"));
+		float spacing = Float.parseFloat(data.getAttribute("spacing"));
+		int chunkSize = Integer.parseInt(data.getAttribute("chunksize"));
+		float lodDistance = Float.parseFloat(data.getAttribute("loddistance"));
+		StringTokenizer st = new StringTokenizer(data.getAttribute("color"));
+		N3ColorRGBA color = new N3ColorRGBA(Float.parseFloat(st.nextToken()),
+				Float.parseFloat(st.nextToken()), Float.parseFloat(st
+						.nextToken()), Float.parseFloat(st.nextToken()));
+
+		data = (Element) infoNode.getElementsByTagName("heights").item(0);
+		float[] heights = new float[width * depth];
+		st = new StringTokenizer(data.getTextContent());
+		for (int i = 0; i < heights.length; i++)
+			heights[i] = Float.parseFloat(st.nextToken());
+
+		N3TerrainNode result = new N3TerrainNode(scene, heights, width, depth,
+				spacing, chunkSize, name);
+		result.setLODDistance(lodDistance);
+		result.setColor(color);
+
+		data = (Element) infoNode.getElementsByTagName("collisionable").item(0);
+		if (data != null)
+			result.setCollisionable((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+
+		data = (Element) infoNode.getElementsByTagName("material").item(0);
+		int index = Integer.parseInt(data.getAttribute("index"));
+		if (index != -1) {
+			N3Material m = (N3Material) resources.resourceAt(index);
+			result.setMaterial(m);
+		}
+
+		if (infoNode.getElementsByTagName("prelit").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("prelit").item(0);
+			result.setPreLit((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("renderlayer").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("renderlayer")
+					.item(0);
+			result.setRenderLayer(Integer.parseInt(data.getAttribute("layer")));
+			result.setTransparent((new Boolean(data
+					.getAttribute("transparent"))).booleanValue());
+		}
+
+		return result;
+	}
+}
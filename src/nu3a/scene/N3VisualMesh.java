@@ -25,6 +25,7 @@ package nu3a.scene;
 import nu3a.geometry.N3GeometryData;
 import nu3a.geometry.N3Point2D;
 import nu3a.geometry.N3Polygon;
+import nu3a.geometry.N3Stripifier;
 import nu3a.material.N3Material;
 import nu3a.material.color.N3ColorRGBA;
 import nu3a.material.texture.N3TexCoord2D;
@@ -35,6 +36,7 @@ import nu3a.persistence.N3PersistentResourceList;
 import nu3a.persistence.N3SceneReader;
 import nu3a.render.N3Render;
 
+import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
@@ -42,6 +44,18 @@ import org.w3c.dom.NodeList;
  * Clase que representa un objeto visual cuya geometr�a es una malla.
  */
 public class N3VisualMesh extends N3VisualObject {
+	/**
+	 * Indica si la geometr�a se env�a al render como una tira de tri�ngulos en
+	 * lugar de como tri�ngulos independientes.
+	 */
+	protected boolean stripped = false;
+
+	/**
+	 * Impostor que sustituye a la malla cuando est� lejos de la c�mara, o
+	 * null si la malla se dibuja siempre.
+	 */
+	protected N3Impostor impostor;
+
 	/**
 	 * Constructor de la clase. Crea un objeto visual con la geometr�a
 	 * especificada por el objeto de geometr�a de malla indicado, para la escena
@@ -59,6 +73,74 @@ public class N3VisualMesh extends N3VisualObject {
 		super(scene, g, name);
 	}
 
+	/**
+	 * Permite indicar si la geometr�a de la malla se convierte en una tira de
+	 * tri�ngulos mediante N3Stripifier. En una tira cada v�rtice se transforma
+	 * e ilumina una sola vez, aunque pertenezca a varios tri�ngulos.
+	 * 
+	 * @param stripped
+	 *            True para dibujar la malla como una tira de tri�ngulos
+	 */
+	public void setStripped(boolean stripped) {
+		if (this.stripped != stripped) {
+			this.stripped = stripped;
+			dirtyGeometry = true;
+			geometryVersion++;
+			hierarchyChanged();
+		}
+	}
+
+	/**
+	 * Indica si la geometr�a de la malla se dibuja como una tira de
+	 * tri�ngulos.
+	 * 
+	 * @return True si la malla se dibuja como una tira de tri�ngulos
+	 */
+	public boolean isStripped() {
+		return stripped;
+	}
+
+	/**
+	 * Establece la distancia a la c�mara a partir de la cual la malla se
+	 * dibuja como un impostor: una imagen de la malla en una textura peque�a
+	 * dibujada en un rect�ngulo orientado hacia la c�mara.
+	 * 
+	 * @param distance
+	 *            Distancia de cambio, o 0 para dibujar siempre la malla
+	 */
+	public void setImpostorDistance(float distance) throws N3NameException {
+		if (distance > 0) {
+			if (impostor == null)
+				impostor = new N3Impostor(this, distance);
+			else
+				impostor.setDistance(distance);
+		} else if (impostor != null) {
+			impostor.dispose();
+			impostor = null;
+		}
+		scene.notifyChange();
+	}
+
+	/**
+	 * Obtiene la distancia a la c�mara a partir de la cual la malla se dibuja
+	 * como un impostor.
+	 * 
+	 * @return Distancia de cambio, o 0 si la malla se dibuja siempre
+	 */
+	public float getImpostorDistance() {
+		return impostor != null ? impostor.getDistance() : 0;
+	}
+
+	/**
+	 * Obtiene el impostor de la malla, para ajustar el tama�o de su textura o
+	 * el �ngulo con el que se vuelve a dibujar.
+	 * 
+	 * @return Impostor de la malla, o null si no tiene
+	 */
+	public N3Impostor getImpostor() {
+		return impostor;
+	}
+
 	/**
 	 * Redefine el metodo draw de tal forma que dibuja una malla de triangulos a
 	 * partir del vertexData. La informaci�n de vertices,color y mapeado la
@@ -66,18 +148,44 @@ public class N3VisualMesh extends N3VisualObject {
 	 */
 
 	public void draw(N3Render render) {
+		if (impostor != null && impostor.isActive() && scene.impostorView) {
+			impostor.draw(render);
+			return;
+		}
 		super.draw(render);
+		drawMesh(render);
+	}
+
+	/**
+	 * Env�a al render los datos de la malla ya procesados, con la
+	 * transformaci�n y el material que est�n activos en ese momento.
+	 * 
+	 * @param render
+	 *            Render mediante el cual se renderiza la escena.
+	 */
+	protected void drawMesh(N3Render render) {
+		boolean lighting = render.isLighting();
+		if (preLit && lighting)
+			render.setLighting(false);
+		int dataType = stripped ? render.N3_TRIANGLE_STRIP_DATA
+				: render.N3_TRIANGLES_DATA;
 		if (!texCoordData.isEmpty()) {
 			texCoordData.begin();
-			render.drawData(vertexData, render.N3_TRIANGLES_DATA, colorData,
-					texCoordData, normalData);
-		} else {
-			render.drawData(vertexData, render.N3_TRIANGLES_DATA, colorData,
+			render.drawData(vertexData, dataType, colorData, texCoordData,
 					normalData);
+		} else {
+			render.drawData(vertexData, dataType, colorData, normalData);
 		}
+		if (preLit && lighting)
+			render.setLighting(true);
 	}
 
 	protected void processGeometry() {
+		if (dirtyGeometry && stripped) {
+			N3Stripifier.stripify(geometry, vertexData, colorData, normalData,
+					texCoordData);
+			dirtyGeometry = false;
+		}
 		if (dirtyGeometry) {
 			N3Point2D p1 = null;
 			N3Point2D p2 = null;
@@ -148,6 +256,25 @@ public class N3VisualMesh extends N3VisualObject {
 		}
 	}
 
+	public Element getXMLDescription(Document doc,
+			N3PersistentResourceList resources) {
+		Element result = super.getXMLDescription(doc, resources);
+
+		Element data = doc.createElement("stripped");
+		data.setAttribute("value", "" + stripped);
+		result.appendChild(data);
+
+		if (impostor != null) {
+			data = doc.createElement("impostor");
+			data.setAttribute("distance", "" + impostor.getDistance());
+			data.setAttribute("size", "" + impostor.getSize());
+			data.setAttribute("angle", "" + impostor.getAngle());
+			result.appendChild(data);
+		}
+
+		return result;
+	}
+
 	/**
 	 * Devuelve una instancia de la clase, a partir de los par�metros, y de la
 	 * descripci�n XML en infoNode.
@@ -188,6 +315,42 @@ public class N3VisualMesh extends N3VisualObject {
 			result.setMaterial(m);
 		}
 
+		if (infoNode.getElementsByTagName("prelit").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("prelit").item(0);
+			result.setPreLit((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("stripped").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("stripped").item(0);
+			result.setStripped((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("renderlayer").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("renderlayer")
+					.item(0);
+			result.setRenderLayer(Integer.parseInt(data.getAttribute("layer")));
+			result.setTransparent((new Boolean(data
+					.getAttribute("transparent"))).booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("occluder").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("occluder").item(0);
+			result.setOccluder((new Boolean(data.getAttribute("value")))
+					.booleanValue());
+		}
+
+		if (infoNode.getElementsByTagName("impostor").getLength() > 0) {
+			data = (Element) infoNode.getElementsByTagName("impostor").item(0);
+			result.setImpostorDistance(Float.parseFloat(data
+					.getAttribute("distance")));
+			result.getImpostor().setSize(
+					Integer.parseInt(data.getAttribute("size")));
+			result.getImpostor().setAngle(
+					Float.parseFloat(data.getAttribute("angle")));
+		}
+
 		return result;
 	}
 }
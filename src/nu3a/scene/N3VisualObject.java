@@ -28,10 +28,13 @@ import nu3a.collision.N3Collisionable;
 import nu3a.geometry.N3GeometryData;
 import nu3a.geometry.N3GeometryListener;
 import nu3a.geometry.N3NormalData;
+import nu3a.geometry.N3Point3D;
+import nu3a.geometry.N3Polygon;
 import nu3a.geometry.N3VertexData;
 import nu3a.material.N3Material;
 import nu3a.material.color.N3ColorData;
 import nu3a.material.texture.N3TexCoordData;
+import nu3a.math.N3Matrix4D;
 import nu3a.names.N3NameManager;
 import nu3a.names.exception.N3NameException;
 import nu3a.persistence.N3PersistentResourceList;
@@ -72,6 +75,59 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	protected boolean dirtyGeometry = false;
 
+	/**
+	 * Version de la geometr�a del objeto. Se incrementa cada vez que se
+	 * notifica un cambio en la geometr�a, y permite al render saber si los
+	 * datos que guarda del objeto siguen siendo v�lidos.
+	 */
+	protected int geometryVersion = 0;
+
+	/**
+	 * Indica si la iluminaci�n del objeto est� precalculada en los colores de
+	 * sus v�rtices, en cuyo caso no se ilumina al dibujarlo.
+	 */
+	protected boolean preLit = false;
+
+	/**
+	 * Capa de dibujo del objeto, entre 0 y N3RenderQueue.MAX_LAYER. Las capas
+	 * se dibujan en orden creciente.
+	 */
+	protected int renderLayer = 0;
+
+	/**
+	 * Indica si el objeto es transparente, en cuyo caso se dibuja despu�s de
+	 * los objetos opacos de su capa, de atr�s hacia delante.
+	 */
+	protected boolean transparent = false;
+
+	/**
+	 * Indica si el objeto pertenece al nivel seleccionado de su nodo
+	 * N3LODNode. Los objetos que no est�n bajo un N3LODNode siempre est�n
+	 * seleccionados.
+	 */
+	protected boolean lodSelected = true;
+
+	/**
+	 * Indica si el objeto se usa como oclusor en la etapa de ocultaci�n de la
+	 * escena. Los oclusores deben ser objetos grandes y de pocos pol�gonos.
+	 */
+	protected boolean occluder = false;
+
+	/**
+	 * �ndice del objeto en el PVS de la escena, o -1 si no forma parte de �l.
+	 */
+	protected int pvsIndex = -1;
+
+	// Caja local y tri�ngulos de oclusi�n, y versi�n de la geometr�a con la
+	// que se calcularon
+	private float[] localBounds;
+
+	private int boundsVersion = -1;
+
+	private float[] occluderTriangles;
+
+	private int occluderVersion = -1;
+
 	/**
 	 * Objeto que contiene la informaci�n de material del objeto visual.
 	 */
@@ -103,6 +159,12 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	protected Vector disabledLights;
 
+	/**
+	 * Nodo est�tico en cuyos lotes est� agrupado el objeto, o null si el
+	 * objeto se dibuja por separado.
+	 */
+	protected N3StaticGroupNode batch;
+
 	/**
 	 * Constructor de la clase. Obtiene una instancia de un objeto visual
 	 * gen�rico.
@@ -155,6 +217,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	public void setVisible(boolean visible) {
 		this.visible = visible;
+		hierarchyChanged();
 	}
 
 	/**
@@ -174,6 +237,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	public void setBoundingVolumeVisible(boolean visible) {
 		this.bvVisible = visible;
+		hierarchyChanged();
 	}
 
 	/**
@@ -185,6 +249,192 @@ public abstract class N3VisualObject extends N3LeafNode implements
 		return bvVisible;
 	}
 
+	/**
+	 * Permite indicar si la iluminaci�n del objeto est� precalculada en los
+	 * colores de su geometr�a.
+	 * 
+	 * @param preLit
+	 *            True si el objeto est� preiluminado
+	 */
+	public void setPreLit(boolean preLit) {
+		this.preLit = preLit;
+		hierarchyChanged();
+	}
+
+	/**
+	 * Indica si la iluminaci�n del objeto est� precalculada en los colores de
+	 * su geometr�a.
+	 * 
+	 * @return True si el objeto est� preiluminado
+	 */
+	public boolean isPreLit() {
+		return preLit;
+	}
+
+	/**
+	 * Establece la capa de dibujo del objeto. Las capas se dibujan en orden
+	 * creciente, y dentro de cada capa los objetos se ordenan por material,
+	 * textura y profundidad.
+	 * 
+	 * @param layer
+	 *            Capa de dibujo, entre 0 y N3RenderQueue.MAX_LAYER
+	 */
+	public void setRenderLayer(int layer) {
+		if (layer < 0 || layer > N3RenderQueue.MAX_LAYER)
+			throw new IllegalArgumentException("Invalid render layer: "
+					+ layer);
+		renderLayer = layer;
+		hierarchyChanged();
+	}
+
+	/**
+	 * Obtiene la capa de dibujo del objeto.
+	 * 
+	 * @return Capa de dibujo
+	 */
+	public int getRenderLayer() {
+		return renderLayer;
+	}
+
+	/**
+	 * Permite indicar si el objeto es transparente. Los objetos transparentes
+	 * se dibujan despu�s de los opacos de su capa, de atr�s hacia delante.
+	 * 
+	 * @param transparent
+	 *            True si el objeto es transparente
+	 */
+	public void setTransparent(boolean transparent) {
+		this.transparent = transparent;
+		hierarchyChanged();
+	}
+
+	/**
+	 * Indica si el objeto es transparente.
+	 * 
+	 * @return True si el objeto es transparente
+	 */
+	public boolean isTransparent() {
+		return transparent;
+	}
+
+	/**
+	 * Permite indicar si el objeto se usa como oclusor. Los oclusores se
+	 * rasterizan en el buffer de profundidad de la etapa de ocultaci�n de la
+	 * escena y nunca se consideran ocultos.
+	 * 
+	 * @param occluder
+	 *            True si el objeto es un oclusor
+	 */
+	public void setOccluder(boolean occluder) {
+		this.occluder = occluder;
+		hierarchyChanged();
+	}
+
+	/**
+	 * Indica si el objeto se usa como oclusor.
+	 * 
+	 * @return True si el objeto es un oclusor
+	 */
+	public boolean isOccluder() {
+		return occluder;
+	}
+
+	/**
+	 * Obtiene la caja envolvente de la geometr�a en coordenadas locales.
+	 * 
+	 * @return M�nimo x, y, z y m�ximo x, y, z, o null si el objeto no tiene
+	 *         geometr�a
+	 */
+	protected float[] getLocalBounds() {
+		if (geometry == null || geometry.polygonCount() == 0)
+			return null;
+		if (boundsVersion != geometryVersion) {
+			float[] b = new float[] { Float.MAX_VALUE, Float.MAX_VALUE,
+					Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE,
+					-Float.MAX_VALUE };
+			for (int i = 0; i < geometry.polygonCount(); i++) {
+				N3Polygon p = geometry.getPolygon(i);
+				for (int j = 0; j < p.getSides(); j++) {
+					N3Point3D v = (N3Point3D) p.getVertex(j);
+					b[0] = Math.min(b[0], v.x);
+					b[1] = Math.min(b[1], v.y);
+					b[2] = Math.min(b[2], v.z);
+					b[3] = Math.max(b[3], v.x);
+					b[4] = Math.max(b[4], v.y);
+					b[5] = Math.max(b[5], v.z);
+				}
+			}
+			localBounds = b;
+			boundsVersion = geometryVersion;
+		}
+		return localBounds;
+	}
+
+	/**
+	 * Obtiene los tri�ngulos de la geometr�a en coordenadas locales, de nueve
+	 * en nueve coordenadas. Cada pol�gono se divide en abanico. Cuando la
+	 * geometr�a cambia se crea un array nuevo, de modo que el anterior puede
+	 * seguir us�ndose en otro hilo.
+	 * 
+	 * @return Coordenadas de los tri�ngulos, o null si el objeto no tiene
+	 *         geometr�a
+	 */
+	protected float[] getOccluderTriangles() {
+		if (geometry == null)
+			return null;
+		if (occluderVersion != geometryVersion) {
+			int count = 0;
+			for (int i = 0; i < geometry.polygonCount(); i++)
+				count += Math.max(0, geometry.getPolygon(i).getSides() - 2);
+			float[] t = new float[count * 9];
+			int k = 0;
+			for (int i = 0; i < geometry.polygonCount(); i++) {
+				N3Polygon p = geometry.getPolygon(i);
+				for (int j = 2; j < p.getSides(); j++) {
+					k = putVertex(t, k, (N3Point3D) p.getVertex(0));
+					k = putVertex(t, k, (N3Point3D) p.getVertex(j - 1));
+					k = putVertex(t, k, (N3Point3D) p.getVertex(j));
+				}
+			}
+			occluderTriangles = t;
+			occluderVersion = geometryVersion;
+		}
+		return occluderTriangles;
+	}
+
+	// Copia las coordenadas de un v�rtice a partir de la posici�n k
+	private static int putVertex(float[] t, int k, N3Point3D v) {
+		t[k] = v.x;
+		t[k + 1] = v.y;
+		t[k + 2] = v.z;
+		return k + 3;
+	}
+
+	/**
+	 * A�ade la geometr�a del objeto como oclusor del frame en curso.
+	 * 
+	 * @param culler
+	 *            Etapa de ocultaci�n
+	 */
+	protected void addOccluder(N3OcclusionCuller culler) {
+		float[] t = getOccluderTriangles();
+		if (t != null && t.length > 0)
+			culler.addOccluder(t, getAccMatrix());
+	}
+
+	/**
+	 * Indica si el objeto queda oculto por completo tras los oclusores del
+	 * frame en curso.
+	 * 
+	 * @param culler
+	 *            Etapa de ocultaci�n
+	 * @return True si el objeto est� oculto
+	 */
+	protected boolean isOccluded(N3OcclusionCuller culler) {
+		float[] b = getLocalBounds();
+		return b != null && culler.isOccluded(b, getAccMatrix());
+	}
+
 	/**
 	 * Permite cambiar la geometria asociada con el objeto visual.
 	 * 
@@ -196,6 +446,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 			geometry.removeGeometryListener(this);
 		geometry = g;
 		geometry.addGeometryListener(this);
+		notifyGeometry();
 	}
 
 	/**
@@ -218,6 +469,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 
 	public void setMaterial(N3Material material) {
 		this.material = material;
+		hierarchyChanged();
 	}
 
 	/**
@@ -238,6 +490,23 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	public void remove() {
 		super.remove();
 		scene.removeVisualObject(this);
+		hierarchyChanged();
+	}
+
+	protected void setDirty() {
+		super.setDirty();
+		if (batch != null)
+			batch.invalidate();
+	}
+
+	/**
+	 * Indica si el objeto est� agrupado en los lotes de un nodo est�tico de
+	 * la escena, en cuyo caso no se dibuja por separado.
+	 * 
+	 * @return True si el objeto est� agrupado
+	 */
+	public boolean isBatched() {
+		return batch != null && batch.inScene();
 	}
 
 	/**
@@ -270,12 +539,8 @@ public abstract class N3VisualObject extends N3LeafNode implements
 		}
 		processGeometry();
 		applyTransform(render);
-		for (int i = 0; i < disabledLights.size(); i++) {
-			int l = scene.getActiveLightNumber((N3Light) disabledLights
-					.elementAt(i));
-			if (l != -1)
-				render.disableLight(l);
-		}
+		if (render.isLighting())
+			render.setLightMask(getLightMask());
 		if (material != null) {
 			material.renderMaterial(render);
 		}
@@ -284,12 +549,38 @@ public abstract class N3VisualObject extends N3LeafNode implements
 			vertexData.begin();
 			normalData.begin();
 		}
+		render.setLitColorCacheKey(this, geometryVersion);
+	}
+
+	/**
+	 * Obtiene la m�scara de las luces activas que afectan al objeto: las que
+	 * alcanzan su caja en coordenadas del mundo y no se han desactivado con
+	 * disableLight.
+	 * 
+	 * @return M�scara de luces, con el bit n para la luz activa n
+	 */
+	protected int getLightMask() {
+		return getLightMask(getAccMatrix());
+	}
+
+	/**
+	 * Obtiene la m�scara de las luces activas que afectan a la geometr�a del
+	 * objeto transformada con la matriz indicada.
+	 * 
+	 * @param m
+	 *            Transformaci�n de la geometr�a al mundo
+	 * @return M�scara de luces, con el bit n para la luz activa n
+	 */
+	protected int getLightMask(N3Matrix4D m) {
+		int mask = scene.getLightMask(getLocalBounds(), m);
 		for (int i = 0; i < disabledLights.size(); i++) {
-			int l = scene.getActiveLightNumber((N3Light) disabledLights
-					.elementAt(i));
-			if (l != -1)
-				render.enableLight(l);
+			N3Light l = (N3Light) disabledLights.elementAt(i);
+			int n = l.activeIndex;
+			if (n >= 0 && n < 32 && n < scene.getActiveLights()
+					&& scene.getActiveLight(n) == l)
+				mask &= ~(1 << n);
 		}
+		return mask;
 	}
 
 	/**
@@ -300,6 +591,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	public void disableLight(N3Light light) {
 		disabledLights.add(light);
+		hierarchyChanged();
 	}
 
 	/**
@@ -311,6 +603,7 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	public void enableLight(N3Light light) {
 		disabledLights.remove(light);
+		hierarchyChanged();
 	}
 
 	/**
@@ -324,6 +617,8 @@ public abstract class N3VisualObject extends N3LeafNode implements
 	 */
 	public void notifyGeometry() {
 		dirtyGeometry = true;
+		geometryVersion++;
+		hierarchyChanged();
 	}
 
 	// /Redefinici�n de la interfaz N3CollisionableVolume
@@ -377,6 +672,19 @@ public abstract class N3VisualObject extends N3LeafNode implements
 		data.setAttribute("value", "" + bvVisible);
 		result.appendChild(data);
 
+		data = doc.createElement("prelit");
+		data.setAttribute("value", "" + preLit);
+		result.appendChild(data);
+
+		data = doc.createElement("renderlayer");
+		data.setAttribute("layer", "" + renderLayer);
+		data.setAttribute("transparent", "" + transparent);
+		result.appendChild(data);
+
+		data = doc.createElement("occluder");
+		data.setAttribute("value", "" + occluder);
+		result.appendChild(data);
+
 		data = doc.createElement("disabledlights");
 		for (int i = 0; i < disabledLights.size(); i++) {
 			Element lightNode = doc.createElement("light");